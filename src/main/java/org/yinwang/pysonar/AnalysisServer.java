@@ -0,0 +1,464 @@
+package org.yinwang.pysonar;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Keeps an {@link Indexer} between requests, so that an editor or a review
+ * tool pays for starting the analysis once rather than for every question. <p>
+ * The requests and responses are JSON-RPC 2.0 messages, one per line, on
+ * stdin and stdout, or with {@code --port N} on a TCP connection to the
+ * loopback address, one client at a time.  The methods are
+ * <ul>
+ * <li>{@code index {path, loadPath?}} analyzes a file or directory, and
+ * replaces whatever was analyzed before if that succeeds
+ * <li>{@code update {files}} analyzes changed files again, with the files
+ * that import them, see {@link Indexer#update}
+ * <li>{@code definition {file, offset}} the definitions of what is at the offset
+ * <li>{@code references {file, offset}} the references to what is at the offset
+ * <li>{@code typeAt {file, offset}} the types and docstrings of what is at the offset
+ * <li>{@code diagnostics {file}} the problems found in the file
+ * <li>{@code shutdown} ends the session
+ * </ul>
+ * Offsets count characters from the start of the file, as in {@link Ref} and
+ * {@link Def}.
+ */
+public class AnalysisServer {
+
+    private static final Logger LOG = Logger.getLogger(AnalysisServer.class.getCanonicalName());
+
+    // JSON-RPC error codes
+    private static final int PARSE_ERROR = -32700;
+    private static final int INVALID_REQUEST = -32600;
+    private static final int METHOD_NOT_FOUND = -32601;
+    private static final int INVALID_PARAMS = -32602;
+    private static final int INTERNAL_ERROR = -32603;
+    private static final int NOT_INDEXED = -32000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    private static class RpcException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+
+        RpcException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonNodeFactory nodes = JsonNodeFactory.instance;
+    @Nullable
+    private Indexer indexer = null;
+    private boolean shutdown = false;
+
+
+    /**
+     * Answers the requests read from {@code in} on {@code out} until
+     * {@code in} ends or a {@code shutdown} request comes.  The analysis
+     * prints its progress with {@link _#msg}, so {@code out} shouldn't be
+     * {@link System#out}.
+     *
+     * @return {@code true} if the session ended with {@code shutdown}
+     */
+    public boolean serve(@NotNull Reader in, @NotNull Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while (!shutdown && (line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonNode response = handle(line);
+            if (response != null) {
+                out.write(mapper.writeValueAsString(response));
+                out.write('\n');
+                out.flush();
+            }
+        }
+        return shutdown;
+    }
+
+
+    /**
+     * Closes the indexer, if there is one.
+     */
+    public void close() {
+        if (indexer != null) {
+            indexer.close();
+            indexer = null;
+        }
+    }
+
+
+    /**
+     * @return the response to {@code message}, or {@code null} if it is a
+     * notification, i.e. has no id
+     */
+    @Nullable
+    public JsonNode handle(@NotNull String message) {
+        JsonNode request;
+        try {
+            request = mapper.readTree(message);
+        }
+        catch (IOException e) {
+            return error(null, PARSE_ERROR, "parse error: " + e.getMessage());
+        }
+
+        JsonNode id = request == null ? null : request.get("id");
+        boolean notification = id == null && request != null && request.path("method").isTextual();
+        try {
+            if (request == null || !request.isObject() || !request.path("method").isTextual()) {
+                throw new RpcException(INVALID_REQUEST, "not a request");
+            }
+            JsonNode result = call(request.get("method").asText(), request.path("params"));
+            if (notification) {
+                return null;
+            }
+            ObjectNode response = nodes.objectNode();
+            response.put("jsonrpc", "2.0");
+            response.put("id", id);
+            response.put("result", result);
+            return response;
+        }
+        catch (RpcException e) {
+            return notification ? null : error(id, e.code, e.getMessage());
+        }
+        catch (Exception e) {
+            _.msg("Failed to answer " + message + ": " + e);
+            LOG.log(Level.FINE, "Failed to answer " + message, e);
+            return notification ? null : error(id, INTERNAL_ERROR, e.toString());
+        }
+    }
+
+
+    @NotNull
+    private JsonNode call(@NotNull String method, @NotNull JsonNode params) throws Exception {
+        switch (method) {
+            case "index":
+                return index(params);
+            case "update":
+                return update(params);
+            case "definition":
+                return definition(params);
+            case "references":
+                return references(params);
+            case "typeAt":
+                return typeAt(params);
+            case "diagnostics":
+                return diagnostics(params);
+            case "shutdown":
+                shutdown = true;
+                return nodes.nullNode();
+            default:
+                throw new RpcException(METHOD_NOT_FOUND, "no such method: " + method);
+        }
+    }
+
+
+    @NotNull
+    private JsonNode index(@NotNull JsonNode params) throws RpcException {
+        String path = _.unifyPath(textParam(params, "path"));
+        long start = System.currentTimeMillis();
+
+        // the indexer answers on until the new one is ready, and stays if it fails
+        if (indexer != null) {
+            indexer.detachAstCache();
+        }
+        Indexer fresh = null;
+        boolean done = false;
+        try {
+            fresh = new Indexer();
+            for (JsonNode p : params.path("loadPath")) {
+                fresh.addPath(p.asText());
+            }
+            fresh.loadFileRecursive(path);
+            fresh.finish();
+            done = true;
+        }
+        finally {
+            if (!done) {
+                if (fresh != null) {
+                    fresh.close();
+                }
+                if (indexer != null) {
+                    indexer.makeCurrent();
+                }
+            }
+        }
+        close();
+        indexer = fresh;
+
+        ObjectNode result = nodes.objectNode();
+        result.put("files", fresh.loadedFiles.size());
+        result.put("references", fresh.getReferences().size());
+        result.put("problems", fresh.semanticErrors.size());
+        result.put("failedToParse", fresh.failedToParse.size());
+        result.put("millis", System.currentTimeMillis() - start);
+        return result;
+    }
+
+
+    @NotNull
+    private JsonNode update(@NotNull JsonNode params) throws RpcException {
+        Indexer idx = getIndexer();
+        List<String> files = new ArrayList<>();
+        for (JsonNode f : params.path("files")) {
+            files.add(f.asText());
+        }
+        if (files.isEmpty()) {
+            throw new RpcException(INVALID_PARAMS, "no files to update");
+        }
+
+        ArrayNode result = nodes.arrayNode();
+        for (String file : idx.update(files)) {
+            result.add(file);
+        }
+        return result;
+    }
+
+
+    @NotNull
+    private JsonNode definition(@NotNull JsonNode params) throws RpcException {
+        Set<Def> defs = new LinkedHashSet<>();
+        for (Binding b : bindingsAt(params)) {
+            defs.addAll(b.getDefs());
+        }
+
+        ArrayNode result = nodes.arrayNode();
+        for (Def def : defs) {
+            ObjectNode d = result.addObject();
+            d.put("qname", def.getBinding().getQname());
+            d.put("kind", def.getBinding().getKind().toString());
+            if (def.isURL()) {
+                d.put("url", def.getURL());
+            } else {
+                d.put("file", def.getFile());
+                d.put("start", def.getStart());
+                d.put("end", def.getEnd());
+            }
+        }
+        return result;
+    }
+
+
+    @NotNull
+    private JsonNode references(@NotNull JsonNode params) throws RpcException {
+        // the bindings share their Ref objects, and Ref.equals doesn't tell refs in a file apart
+        Set<Ref> seen = Collections.newSetFromMap(new IdentityHashMap<Ref, Boolean>());
+        List<Ref> refs = new ArrayList<>();
+        for (Binding b : bindingsAt(params)) {
+            for (Ref ref : b.getRefs()) {
+                if (seen.add(ref)) {
+                    refs.add(ref);
+                }
+            }
+        }
+        Collections.sort(refs, new Comparator<Ref>() {
+            @Override
+            public int compare(Ref a, Ref b) {
+                int c = String.valueOf(a.getFile()).compareTo(String.valueOf(b.getFile()));
+                return c != 0 ? c : a.start() - b.start();
+            }
+        });
+
+        ArrayNode result = nodes.arrayNode();
+        for (Ref ref : refs) {
+            ObjectNode r = result.addObject();
+            r.put("file", ref.getFile());
+            r.put("start", ref.start());
+            r.put("end", ref.end());
+        }
+        return result;
+    }
+
+
+    @NotNull
+    private JsonNode typeAt(@NotNull JsonNode params) throws RpcException {
+        ArrayNode result = nodes.arrayNode();
+        for (PositionIndex.Span span : spansAt(params)) {
+            ObjectNode s = result.addObject();
+            s.put("start", span.getStart());
+            s.put("end", span.getEnd());
+            s.put("isDef", span.isDef());
+
+            ArrayNode bindings = s.putArray("bindings");
+            for (Binding b : span.getBindings()) {
+                ObjectNode o = bindings.addObject();
+                o.put("qname", b.getQname());
+                o.put("kind", b.getKind().toString());
+                o.put("type", b.getType().toString());
+            }
+            ArrayNode docs = s.putArray("docstrings");
+            for (String doc : span.getDocstrings()) {
+                docs.add(doc);
+            }
+        }
+        return result;
+    }
+
+
+    @NotNull
+    private JsonNode diagnostics(@NotNull JsonNode params) throws RpcException {
+        Indexer idx = getIndexer();
+        String file = _.unifyPath(textParam(params, "file"));
+        List<Diagnostic> all = new ArrayList<>();
+        List<Diagnostic> parse = idx.parseErrors.get(file);
+        if (parse != null) {
+            all.addAll(parse);
+        }
+        List<Diagnostic> semantic = idx.semanticErrors.get(file);
+        if (semantic != null) {
+            all.addAll(semantic);
+        }
+
+        ArrayNode result = nodes.arrayNode();
+        for (Diagnostic d : all) {
+            ObjectNode o = result.addObject();
+            o.put("category", d.category.toString());
+            o.put("start", d.start);
+            o.put("end", d.end);
+            o.put("message", d.msg);
+        }
+        return result;
+    }
+
+
+    @NotNull
+    private List<PositionIndex.Span> spansAt(@NotNull JsonNode params) throws RpcException {
+        Indexer idx = getIndexer();
+        String file = _.unifyPath(textParam(params, "file"));
+        JsonNode offset = params.path("offset");
+        if (!offset.isInt()) {
+            throw new RpcException(INVALID_PARAMS, "missing parameter: offset");
+        }
+        return idx.getPositionIndex().lookupAt(file, offset.asInt());
+    }
+
+
+    // the bindings of the innermost reference or definition at the position
+    @NotNull
+    private List<Binding> bindingsAt(@NotNull JsonNode params) throws RpcException {
+        List<PositionIndex.Span> spans = spansAt(params);
+        return spans.isEmpty() ? Collections.<Binding>emptyList() : spans.get(0).getBindings();
+    }
+
+
+    @NotNull
+    private Indexer getIndexer() throws RpcException {
+        if (indexer == null) {
+            throw new RpcException(NOT_INDEXED, "nothing has been indexed yet");
+        }
+        return indexer;
+    }
+
+
+    @NotNull
+    private static String textParam(@NotNull JsonNode params, @NotNull String name) throws RpcException {
+        JsonNode value = params.path(name);
+        if (!value.isTextual()) {
+            throw new RpcException(INVALID_PARAMS, "missing parameter: " + name);
+        }
+        return value.asText();
+    }
+
+
+    @NotNull
+    private JsonNode error(@Nullable JsonNode id, int code, String message) {
+        ObjectNode response = nodes.objectNode();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id == null ? nodes.nullNode() : id);
+        ObjectNode error = response.putObject("error");
+        error.put("code", code);
+        error.put("message", message);
+        return response;
+    }
+
+
+    private static void usage() {
+        _.msg("Usage: java -cp pysonar-2.0-SNAPSHOT.jar org.yinwang.pysonar.AnalysisServer [--port N]");
+        _.msg("Answers JSON-RPC requests, one per line, on stdin and stdout, or on the TCP port N of " +
+                "the loopback address.");
+        System.exit(1);
+    }
+
+
+    public static void main(@NotNull String[] args) throws IOException {
+        int port = -1;
+        if (args.length == 2 && args[0].equals("--port") && args[1].matches("[0-9]+")) {
+            port = Integer.parseInt(args[1]);
+        } else if (args.length != 0) {
+            usage();
+        }
+
+        // stdout is for the responses; the progress of the analysis goes to stderr
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+
+        AnalysisServer server = new AnalysisServer();
+        try {
+            if (port < 0) {
+                server.serve(new InputStreamReader(System.in, UTF8),
+                        new BufferedWriter(new OutputStreamWriter(stdout, UTF8)));
+                return;
+            }
+
+            ServerSocket socket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+            try {
+                _.msg("Listening on " + socket.getLocalSocketAddress());
+                boolean done = false;
+                while (!done) {
+                    Socket client = socket.accept();
+                    try {
+                        done = server.serve(new InputStreamReader(client.getInputStream(), UTF8),
+                                new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), UTF8)));
+                    }
+                    catch (IOException e) {
+                        _.msg("Lost the client: " + e);
+                    }
+                    finally {
+                        client.close();
+                    }
+                }
+            }
+            finally {
+                socket.close();
+            }
+        }
+        finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Moves the disk cache between machines: {@link #export} writes the ASTs in
+ * a cache dir to one compressed file, and {@link #importInto} adds the ASTs
+ * of such a file to a cache dir, for example in a fresh CI container before
+ * the {@link Indexer} starts.  The ASTs are keyed by the SHA-1 of their
+ * source, so they are found wherever the sources are checked out. <p>
+ * Library summaries aren't bundled.  Each is one file already, written by
+ * {@link LibrarySummary#write}, and it names the files it covers by path, so
+ * it is moved alongside a bundle and only used where the library is installed
+ * at the same paths.
+ */
+public class AstBundle {
+
+    private static final int MAGIC = 0x5059424e;      // "PYBN"
+    private static final int VERSION = 1;
+
+
+    /**
+     * Writes the ASTs in the disk cache in {@code cacheDir} to {@code bundle}.
+     *
+     * @return the number of ASTs written
+     */
+    public static int export(@NotNull File cacheDir, @NotNull File bundle) throws IOException {
+        AstPack pack = AstCache.openPack(cacheDir);
+        File tmp = new File(bundle.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int count = 0;
+            for (String key : pack.getKeys()) {
+                ByteBuffer data = pack.get(key);
+                String path = pack.getPath(key);
+                if (data == null || path == null) {
+                    continue;
+                }
+                out.writeBoolean(true);
+                out.writeUTF(key);
+                out.writeUTF(path);
+                out.writeInt(pack.getParseMicros(key));
+                out.writeInt(data.remaining());
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                out.write(bytes);
+                count++;
+            }
+            out.writeBoolean(false);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(bundle)) {
+                bundle.delete();
+                if (!tmp.renameTo(bundle)) {
+                    throw new IOException("can't write " + bundle);
+                }
+            }
+            return count;
+        }
+        finally {
+            if (out != null) {
+                out.close();
+                tmp.delete();
+            }
+            pack.close();
+        }
+    }
+
+
+    /**
+     * Adds the ASTs in {@code bundle} to the disk cache in {@code cacheDir}.
+     * ASTs the cache already has are skipped.
+     *
+     * @return the number of ASTs added
+     */
+    public static int importInto(@NotNull File cacheDir, @NotNull File bundle) throws IOException {
+        AstPack pack = AstCache.openPack(cacheDir);
+        DataInputStream in = null;
+        try {
+            if (!pack.isWritable()) {
+                throw new IOException("the AST cache is in use: " + cacheDir);
+            }
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(bundle))));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not an AST cache bundle: " + bundle);
+            }
+
+            int added = 0;
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                String path = in.readUTF();
+                int parseMicros = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                if (pack.getPath(key) == null) {
+                    pack.put(key, path, data, parseMicros);
+                    added++;
+                }
+            }
+            return added;
+        }
+        finally {
+            if (in != null) {
+                in.close();
+            }
+            pack.close();
+        }
+    }
+}
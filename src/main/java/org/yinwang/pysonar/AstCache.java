@@ -3,18 +3,24 @@ package org.yinwang.pysonar;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Node;
 import org.yinwang.pysonar.ast.Str;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * Provides a factory for python source ASTs.  Maintains configurable on-disk and
- * in-memory caches to avoid re-parsing files during analysis.
+ * in-memory caches to avoid re-parsing files during analysis.  Lookups may come
+ * from several threads; parsing itself is spread over the {@link AstParser}
+ * worker threads.
  */
 public class AstCache {
 
@@ -36,14 +42,51 @@ public class AstCache {
 
     private static final Logger LOG = Logger.getLogger(AstCache.class.getCanonicalName());
 
+    // how many files may be parsed ahead of the analysis; 0 turns parsing ahead off.
+    // On one core the parser only gets ahead while the analysis waits for it, so
+    // it is off there by default
+    private static final int PREFETCH_DEPTH = Math.max(0, Integer.getInteger("pysonar.prefetch",
+            Runtime.getRuntime().availableProcessors() > 1 ? 32 : 0));
+
+    // the heap the memory cache may take, in MB; a quarter of the heap by default
+    private static final long MEMORY_BUDGET = Long.getLong("pysonar.astcache",
+            Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024)) * 1024 * 1024;
+
+    // how many encoded ASTs may wait to be written to the disk cache
+    private static final int WRITE_QUEUE = Math.max(1, Integer.getInteger("pysonar.writequeue", 256));
+
+    // the size, in MB, and the age, in days, past which the disk cache drops
+    // the ASTs used least recently when it is opened
+    private static final long DISK_BUDGET = Long.getLong("pysonar.diskcache", 1024) * 1024 * 1024;
+    private static final long DISK_MAX_AGE = Long.getLong("pysonar.diskcache.days", 30) * 24 * 60 * 60 * 1000;
+
     @NotNull
-    private Map<String, Module> cache = new HashMap<>();
-    private Map<String, DocstringInfo> docstringCache = new HashMap<>();
+    private AstMemoryCache cache = new AstMemoryCache(MEMORY_BUDGET);
+    private Map<String, DocstringInfo> docstringCache = Collections.synchronizedMap(new HashMap<String, DocstringInfo>());
 
     private static AstCache INSTANCE;
 
     @NotNull
-    private static PythonParser parser;
+    private final AstParser parser = AstParser.create();
+
+    @Nullable
+    private AstPrefetcher prefetcher;
+
+    @Nullable
+    private AstPack pack;
+
+    @Nullable
+    private AstWriter writer;
+    // set by close(), after which the writer and the pack aren't opened again,
+    // e.g. by a parse still running on the parser pool
+    private boolean closed = false;
+
+    // ASTs found in the disk cache and ASTs parsed, for the hit rate
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger parses = new AtomicInteger();
+    // the parse time of the ASTs found on disk, and the time it took to load them
+    private final AtomicLong hitParseMicros = new AtomicLong();
+    private final AtomicLong hitLoadMicros = new AtomicLong();
 
 
     private AstCache() {
@@ -54,7 +97,6 @@ public class AstCache {
         if (INSTANCE == null) {
             INSTANCE = new AstCache();
         }
-        parser = new PythonParser();
         return INSTANCE;
     }
 
@@ -64,6 +106,19 @@ public class AstCache {
      */
     public void clear() {
         cache.clear();
+        if (prefetcher != null) {
+            prefetcher.forget();
+        }
+    }
+
+
+    /**
+     * Drops {@code path} from the memory cache, so that the next
+     * {@link #getAST} loads it again, from the disk cache if it is unchanged.
+     */
+    public void forget(@NotNull String path) {
+        cache.forget(path);
+        docstringCache.remove(path);
     }
 
 
@@ -73,166 +128,414 @@ public class AstCache {
      * @return {@code true} if all cached AST files were removed
      */
     public boolean clearDiskCache() {
+        closeWriter();
+        closePack();
+        return deleteDiskCache(new File(Indexer.idx().cacheDir)) >= 0;
+    }
+
+
+    /**
+     * Deletes the on-disk cache in {@code dir}, which must not be open.
+     *
+     * @return the number of bytes freed, or -1 if some files couldn't be removed
+     */
+    public static long deleteDiskCache(@NotNull File dir) {
+        long freed = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                freed += f.length();
+            }
+        }
         try {
-            _.deleteDirectory(new File(Indexer.idx.cacheDir));
-            return true;
+            if (dir.exists() && !_.deleteDirectory(dir)) {
+                LOG.log(Level.SEVERE, "Failed to clear disk cache: " + dir);
+                return -1;
+            }
+            return freed;
         }
         catch (Exception x) {
 
             LOG.log(Level.SEVERE, "Failed to clear disk cache: " + x);
 
-            return false;
+            return -1;
         }
     }
 
 
+    /**
+     * Stops the prefetcher, the parsers and the disk cache writer.  The next
+     * {@link #get} makes a new cache: the ASTs in this one carry the marks of
+     * the analysis that used them, e.g. which functions were called, so a new
+     * {@link Indexer} must not see them.
+     */
     public void close() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        synchronized (this) {
+            closed = true;
+        }
         parser.close();
+        closeWriter();
+        closePack();
+        if (INSTANCE == this) {
+            INSTANCE = null;
+        }
 //        clearDiskCache();
     }
 
 
+    /**
+     * Lets the next {@link #get} make a new cache while this one stays in use,
+     * for an analysis that only replaces the one using this cache if it
+     * succeeds.  The disk cache is closed, so that the new cache can write it;
+     * this one opens it again when it needs it.
+     */
+    void detach() {
+        closeWriter();
+        closePack();
+        if (INSTANCE == this) {
+            INSTANCE = null;
+        }
+    }
+
+
+    // not synchronized: the writer needs the pack to finish
+    private void closeWriter() {
+        AstWriter w;
+        synchronized (this) {
+            w = writer;
+            writer = null;
+        }
+        if (w != null) {
+            w.close();
+        }
+    }
+
+
+    private synchronized void closePack() {
+        if (pack != null) {
+            pack.close();
+            pack = null;
+        }
+    }
+
+
     /**
      * Returns the syntax tree for {@code path}.  May find and/or create a
-     * cached copy in the mem cache or the disk cache.
+     * cached copy in the mem cache or the disk cache, or wait for the
+     * {@link AstPrefetcher} to finish parsing it.
      *
      * @param path absolute path to a source file
      * @return the AST, or {@code null} if the parse failed for any reason
      */
     @Nullable
     public Module getAST(@NotNull String path) {
-        // Cache stores null value if the parse failed.
-        if (cache.containsKey(path)) {
-            return cache.get(path);
+        if (prefetcher != null) {
+            Future<Module> pending = prefetcher.claim(path);
+            if (pending != null) {
+                try {
+                    return pending.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                catch (Exception e) {
+                    _.msg("\nFailed to parse: " + path + ": " + e);
+                    return null;
+                }
+            }
         }
+        return load(path);
+    }
 
-        // Might be cached on disk but not in memory.
-        Module mod = getSerializedModule(path);
-        if (mod != null) {
 
-            LOG.log(Level.FINE, "reusing " + path);
+    /**
+     * Starts parsing {@code paths}, and the files they import, in the
+     * background, in this order and at most {@code -Dpysonar.prefetch} files
+     * ahead of the calls to {@link #getAST}.
+     */
+    public void prefetch(@NotNull Collection<String> paths) {
+        prefetch(paths, Collections.<String>emptySet());
+    }
 
-            cache.put(path, mod);
-            Str docstring = mod.docstring();
-            if (docstring != null) {
-                docstringCache.put(path, DocstringInfo.NewWithDocstringNode(docstring));
-            }
-            return mod;
-        }
 
-        mod = null;
-        try {
-            LOG.log(Level.FINE, "parsing " + path);
-            mod = (Module) parser.parseFile(path);
-        }
-        finally {
-            cache.put(path, mod);  // may be null
-            if (mod != null && mod.docstring() != null) {
-                docstringCache.put(path, DocstringInfo.NewWithDocstringNode(mod.docstring())); // may be null
-            }
+    /**
+     * Like {@link #prefetch(Collection)}, but never parses the files in
+     * {@code skip} ahead, e.g. because they come from a library summary.
+     */
+    public void prefetch(@NotNull Collection<String> paths, @NotNull Collection<String> skip) {
+        if (PREFETCH_DEPTH == 0) {
+            return;
         }
-
-        if (mod != null) {
-            serialize(mod);
+        if (prefetcher == null) {
+            prefetcher = new AstPrefetcher(this, parser, PREFETCH_DEPTH, Indexer.idx().path);
         }
-
-        return mod;
+        prefetcher.skip(skip);
+        prefetcher.start(paths);
     }
 
 
+    /**
+     * @return the prefetcher started by {@link #prefetch}, for its counters, or
+     * {@code null} if nothing was prefetched
+     */
     @Nullable
-    public DocstringInfo getModuleDocstringInfo(String path) {
-        return docstringCache.get(path);
+    public AstPrefetcher getPrefetcher() {
+        return prefetcher;
     }
 
 
     /**
-     * Each source file's AST is saved in an object file named for the MD5
-     * checksum of the source file.  All that is needed is the MD5, but the
-     * file's base name is included for ease of debugging.
+     * @return the number of files parsed with python3 without trying python
+     * first, because of their package's dialect or {@code --python-version 3}
      */
-    @NotNull
-    public String getCachePath(@NotNull File sourcePath) {
-        return getCachePath(_.getSHA1(sourcePath), sourcePath.getName());
+    public int getParseRetriesAvoided() {
+        return parser.getRetriesAvoided();
     }
 
 
-    @NotNull
-    public String getCachePath(String md5, String name) {
-        return _.makePathString(Indexer.idx.cacheDir, name + md5 + ".ast");
-    }
+    // getAST without the prefetcher; also run by the prefetcher on the parser pool
+    @Nullable
+    Module load(@NotNull String path) {
+        if (cache.isFailed(path)) {
+            return null;
+        }
+        Module cached = cache.get(path);
+        if (cached != null) {
+            return cached;
+        }
 
+        // Might be cached on disk but not in memory.
+        Module mod = loadSerialized(path);
+        if (mod != null) {
+            return mod;
+        }
 
-    // package-private for testing
-    void serialize(@NotNull Module ast) {
-        String path = getCachePath(ast.getMD5(), new File(ast.getFile()).getName());
-        ObjectOutputStream oos = null;
-        FileOutputStream fos = null;
+        long t0 = System.nanoTime();
         try {
-            fos = new FileOutputStream(path);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(ast);
+            LOG.log(Level.FINE, "parsing " + path);
+            mod = (Module) parser.parseFile(path);
         }
-        catch (Exception e) {
-            _.msg("Failed to serialize: " + path);
+        catch (RuntimeException e) {
+            _.msg("\nFailed to parse: " + path + ": " + e);
         }
         finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                } else if (fos != null) {
-                    fos.close();
-                }
+            putParsed(path, mod, (System.nanoTime() - t0) / 1000);
+        }
+        return mod;
+    }
+
+
+    /**
+     * Returns the syntax trees for {@code paths}.  Files found in neither the
+     * mem cache nor the disk cache are parsed concurrently on the parser pool.
+     *
+     * @return a map from each path to its AST, or to {@code null} if the parse failed
+     */
+    @NotNull
+    public Map<String, Module> getASTs(@NotNull Collection<String> paths) {
+        Map<String, Module> result = new LinkedHashMap<>();
+        List<String> toParse = new ArrayList<>();
+
+        for (String path : paths) {
+            if (cache.isFailed(path)) {
+                result.put(path, null);
+                continue;
+            }
+            Module mod = cache.get(path);
+            if (mod == null) {
+                mod = loadSerialized(path);
             }
-            catch (Exception e) {
+            if (mod != null) {
+                result.put(path, mod);
+            } else {
+                toParse.add(path);
             }
         }
+
+        long t0 = System.nanoTime();
+        Map<String, Node> parsed = parser.parseFiles(toParse);
+        // the files are parsed together, so each is charged an equal share
+        long micros = (System.nanoTime() - t0) / 1000 * AstParser.POOL_SIZE / Math.max(1, toParse.size());
+        for (Map.Entry<String, Node> e : parsed.entrySet()) {
+            Module mod = (Module) e.getValue();
+            putParsed(e.getKey(), mod, micros);
+            result.put(e.getKey(), mod);
+        }
+
+        return result;
     }
 
 
-    // package-private for testing
+    // Might be cached on disk but not in memory, or dropped from memory.
     @Nullable
-    Module getSerializedModule(String sourcePath) {
-        File sourceFile = new File(sourcePath);
-        if (sourceFile == null || !sourceFile.canRead()) {
+    private Module loadSerialized(@NotNull String path) {
+        long t0 = System.nanoTime();
+        File sourceFile = new File(path);
+        AstPack p = getPack();
+        if (p == null || !sourceFile.canRead()) {
             return null;
         }
-        File cached = new File(getCachePath(sourceFile));
-        if (!cached.canRead()) {
+
+        String sha1 = Indexer.idx().fileHashes.getSHA1(sourceFile);
+        Module mod;
+        int length;
+        int parseMicros = 0;
+        try {
+            AstWriter w = getWriter();
+            ByteBuffer data = w == null ? null : w.pending(sha1);
+            if (data == null) {
+                data = p.get(sha1);
+                parseMicros = p.getParseMicros(sha1);
+            }
+            if (data == null) {
+                return null;
+            }
+            length = data.remaining();
+            mod = AstCodec.decode(data);
+        }
+        catch (Exception e) {
+            // written by an older version, or damaged; it is parsed again
             return null;
         }
-        return deserialize(sourceFile);
+        // Files in different dirs may have the same base name and contents.
+        mod.setFileAndMD5(_.unifyPath(sourceFile), sha1);
+
+        LOG.log(Level.FINE, "reusing " + path);
+
+        cache.put(path, mod, AstMemoryCache.estimateSize(length));
+        Str docstring = mod.docstring();
+        if (docstring != null) {
+            docstringCache.put(path, DocstringInfo.NewWithDocstringNode(docstring));
+        }
+
+        diskHits.incrementAndGet();
+        hitParseMicros.addAndGet(parseMicros);
+        hitLoadMicros.addAndGet((System.nanoTime() - t0) / 1000);
+        return mod;
     }
 
 
-    // package-private for testing
-    @Nullable
-    Module deserialize(@NotNull File sourcePath) {
-        String cachePath = getCachePath(sourcePath);
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
+    private void putParsed(@NotNull String path, @Nullable Module mod, long parseMicros) {
+        parses.incrementAndGet();
+        if (mod == null) {
+            cache.put(path, null, 0);
+            return;
+        }
+        if (mod.docstring() != null) {
+            docstringCache.put(path, DocstringInfo.NewWithDocstringNode(mod.docstring()));
+        }
+
+        byte[] data = null;
         try {
-            fis = new FileInputStream(cachePath);
-            ois = new ObjectInputStream(fis);
-            Module mod = (Module) ois.readObject();
-            // Files in different dirs may have the same base name and contents.
-            mod.setFile(sourcePath);
-            return mod;
+            data = AstCodec.encode(mod);
         }
         catch (Exception e) {
-            return null;
+            _.msg("Failed to serialize: " + path);
         }
-        finally {
+        // without a copy on disk, it has to be parsed again if it is dropped
+        cache.put(path, mod, AstMemoryCache.estimateSize(data == null ? 0 : data.length));
+        if (data != null) {
+            serialize(mod, data, (int) Math.min(parseMicros, Integer.MAX_VALUE));
+        }
+    }
+
+
+    @Nullable
+    public DocstringInfo getModuleDocstringInfo(String path) {
+        return docstringCache.get(path);
+    }
+
+
+    /**
+     * Each source file's AST is saved, in the {@link AstCodec} format, in the
+     * {@link AstPack} in the cache dir, under the SHA-1 of the source file.
+     * The pack is opened the first time it is needed.
+     */
+    @Nullable
+    synchronized AstPack getPack() {
+        if (pack == null && !closed) {
             try {
-                if (ois != null) {
-                    ois.close();
-                } else if (fis != null) {
-                    fis.close();
-                }
+                pack = openPack(new File(Indexer.idx().cacheDir));
             }
-            catch (Exception e) {
-
+            catch (IOException e) {
+                _.msg("Failed to open the AST cache: " + e);
             }
         }
+        return pack;
+    }
+
+
+    private void serialize(@NotNull Module ast, @NotNull byte[] data, int parseMicros) {
+        AstWriter w = startWriter();
+        if (w != null) {
+            w.write(ast.getMD5(), ast.getFile(), data, parseMicros);
+        }
+    }
+
+
+    // null once the cache is closed
+    @Nullable
+    private synchronized AstWriter startWriter() {
+        if (writer == null && !closed) {
+            writer = new AstWriter(this, WRITE_QUEUE);
+        }
+        return writer;
+    }
+
+
+    /**
+     * @return the writer of the disk cache, for its counters, or {@code null}
+     * if nothing was written
+     */
+    @Nullable
+    synchronized AstWriter getWriter() {
+        return writer;
+    }
+
+
+    /**
+     * Opens the disk cache in {@code dir} with the configured limits.
+     */
+    @NotNull
+    static AstPack openPack(@NotNull File dir) throws IOException {
+        return new AstPack(dir, DISK_BUDGET, DISK_MAX_AGE);
+    }
+
+
+    /**
+     * @return the number of ASTs loaded from the disk cache
+     */
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+
+    /**
+     * @return the number of files parsed, because they weren't in the disk cache
+     */
+    public int getParses() {
+        return parses.get();
+    }
+
+
+    /**
+     * @return the time it took to parse the ASTs loaded from the disk cache,
+     * when they were parsed, less the time it took to load them
+     */
+    public long getMillisSaved() {
+        return (hitParseMicros.get() - hitLoadMicros.get()) / 1000;
+    }
+
+
+    /**
+     * @return the memory cache, for its counters
+     */
+    @NotNull
+    AstMemoryCache getMemoryCache() {
+        return cache;
     }
 }
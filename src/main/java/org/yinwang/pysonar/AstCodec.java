@@ -0,0 +1,1287 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The format of the on-disk AST cache.  A file is the magic bytes "PYAST",
+ * a version byte and the module's tree in preorder.  Each node is written as
+ * its {@link Tag} (0 for {@code null}), its start and its length as zigzag
+ * varints, and then its fields as the tag lays them out.  Lists are their
+ * size plus one (0 for {@code null}) followed by the elements.  Strings are
+ * written once per file and referred to by index afterwards.  <p>
+ * Parent links aren't written: nodes are rebuilt through their constructors,
+ * which set them.  Only the parsed tree is kept, not what the analysis adds
+ * to it later, such as {@link FunctionDef#called} or the names of lambdas.
+ */
+public class AstCodec {
+
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'P', 'Y', 'A', 'S', 'T'};
+
+    // string references: 0 is null, 1 starts a new string, n >= 2 is string n - 2
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+
+    // Num values
+    private static final int NUM_NULL = 0;
+    private static final int NUM_DOUBLE = 1;
+    private static final int NUM_INT = 2;
+    private static final int NUM_LONG = 3;
+    private static final int NUM_OTHER = 4;     // as its string
+
+    private static final Map<Class<?>, Tag> TAGS = new HashMap<>();
+
+    static {
+        for (Tag t : Tag.values()) {
+            TAGS.put(t.type, t);
+        }
+    }
+
+
+    /**
+     * One entry per node class.  The ordinal is the tag in the file, so new
+     * classes go at the end, and any other change needs a new VERSION.
+     */
+    private enum Tag {
+        Alias(Alias.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Alias n = (Alias) node;
+                e.nodes(n.name);
+                e.node(n.asname);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Alias(d.nodes(Name.class), d.node(Name.class), start, end);
+            }
+        },
+
+        Assert(Assert.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Assert n = (Assert) node;
+                e.node(n.test);
+                e.node(n.msg);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Assert(d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Assign(Assign.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Assign n = (Assign) node;
+                e.nodes(n.targets);
+                e.node(n.rvalue);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Assign(d.nodes(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Attribute(Attribute.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Attribute n = (Attribute) node;
+                e.node(n.target);
+                e.node(n.attr);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Attribute(d.node(Node.class), d.node(Name.class), start, end);
+            }
+        },
+
+        AugAssign(AugAssign.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                AugAssign n = (AugAssign) node;
+                e.node(n.target);
+                e.node(n.value);
+                e.node(n.op);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new AugAssign(d.node(Node.class), d.node(Node.class), d.node(Name.class), start, end);
+            }
+        },
+
+        BinOp(BinOp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                BinOp n = (BinOp) node;
+                e.node(n.left);
+                e.node(n.right);
+                e.node(n.op);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new BinOp(d.node(Node.class), d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Block(Block.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Block) node).seq);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Block(d.nodes(Node.class), start, end);
+            }
+        },
+
+        BoolOp(BoolOp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                BoolOp n = (BoolOp) node;
+                e.node(n.op);
+                e.nodes(n.values);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new BoolOp(d.node(Name.class), d.nodes(Node.class), start, end);
+            }
+        },
+
+        Break(Break.class) {
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) {
+                return new Break(start, end);
+            }
+        },
+
+        Bytes(Bytes.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.string(((Bytes) node).getStr().toString());
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Bytes(d.nonNullString(), start, end);
+            }
+        },
+
+        Call(Call.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Call n = (Call) node;
+                e.node(n.func);
+                e.nodes(n.args);
+                e.nodes(n.keywords);
+                e.node(n.kwargs);
+                e.node(n.starargs);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Call(d.node(Node.class), d.nodes(Node.class), d.nodes(Keyword.class),
+                        d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        ClassDef(ClassDef.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                ClassDef n = (ClassDef) node;
+                e.node(n.name);
+                e.nodes(n.bases);
+                e.node(n.body);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new ClassDef(d.node(Name.class), d.nodes(Node.class), d.node(Block.class), start, end);
+            }
+        },
+
+        Compare(Compare.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Compare n = (Compare) node;
+                e.node(n.left);
+                e.nodes(n.ops);
+                e.nodes(n.comparators);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Compare(d.node(Node.class), d.nodes(Node.class), d.nodes(Node.class), start, end);
+            }
+        },
+
+        Comprehension(Comprehension.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Comprehension n = (Comprehension) node;
+                e.node(n.target);
+                e.node(n.iter);
+                e.nodes(n.ifs);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Comprehension(d.node(Node.class), d.node(Node.class), d.nodes(Node.class), start, end);
+            }
+        },
+
+        Continue(Continue.class) {
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) {
+                return new Continue(start, end);
+            }
+        },
+
+        Delete(Delete.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Delete) node).targets);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Delete(d.nodes(Node.class), start, end);
+            }
+        },
+
+        Dict(Dict.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Dict n = (Dict) node;
+                e.nodes(n.keys);
+                e.nodes(n.values);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Dict(d.nodes(Node.class), d.nodes(Node.class), start, end);
+            }
+        },
+
+        DictComp(DictComp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                DictComp n = (DictComp) node;
+                e.node(n.key);
+                e.node(n.value);
+                e.nodes(n.generators);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new DictComp(d.node(Node.class), d.node(Node.class), d.nodes(Comprehension.class), start, end);
+            }
+        },
+
+        Ellipsis(Ellipsis.class) {
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) {
+                return new Ellipsis(start, end);
+            }
+        },
+
+        ExceptHandler(ExceptHandler.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                ExceptHandler n = (ExceptHandler) node;
+                e.node(n.name);
+                e.node(n.exceptionType);
+                e.node(n.body);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new ExceptHandler(d.node(Node.class), d.node(Node.class), d.node(Block.class), start, end);
+            }
+        },
+
+        Exec(Exec.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Exec n = (Exec) node;
+                e.node(n.body);
+                e.node(n.globals);
+                e.node(n.locals);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Exec(d.node(Node.class), d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Expr(Expr.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((Expr) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Expr(d.node(Node.class), start, end);
+            }
+        },
+
+        ExtSlice(ExtSlice.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((ExtSlice) node).dims);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new ExtSlice(d.nodes(Node.class), start, end);
+            }
+        },
+
+        For(For.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                For n = (For) node;
+                e.node(n.target);
+                e.node(n.iter);
+                e.node(n.body);
+                e.node(n.orelse);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new For(d.node(Node.class), d.node(Node.class), d.node(Block.class), d.node(Block.class),
+                        start, end);
+            }
+        },
+
+        FunctionDef(FunctionDef.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                FunctionDef n = (FunctionDef) node;
+                e.node(n.name);
+                e.nodes(n.args);
+                e.node(n.body);
+                e.nodes(n.defaults);
+                e.node(n.vararg);
+                e.node(n.kwarg);
+                e.nodes(n.getDecoratorList());
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                FunctionDef n = new FunctionDef(d.node(Name.class), d.nodes(Node.class), d.node(Block.class),
+                        d.nodes(Node.class), d.node(Name.class), d.node(Name.class), start, end);
+                List<Node> decorators = d.nodes(Node.class);
+                if (decorators != null) {
+                    n.setDecoratorList(decorators);
+                }
+                return n;
+            }
+        },
+
+        GeneratorExp(GeneratorExp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                GeneratorExp n = (GeneratorExp) node;
+                e.node(n.elt);
+                e.nodes(n.generators);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new GeneratorExp(d.node(Node.class), d.nodes(Comprehension.class), start, end);
+            }
+        },
+
+        Global(Global.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Global) node).getNames());
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Global(d.nodes(Name.class), start, end);
+            }
+        },
+
+        If(If.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                If n = (If) node;
+                e.node(n.test);
+                e.node(n.body);
+                e.node(n.orelse);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new If(d.node(Node.class), d.node(Block.class), d.node(Block.class), start, end);
+            }
+        },
+
+        IfExp(IfExp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                IfExp n = (IfExp) node;
+                e.node(n.test);
+                e.node(n.body);
+                e.node(n.orelse);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new IfExp(d.node(Node.class), d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Import(Import.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Import) node).names);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Import(d.nodes(Alias.class), start, end);
+            }
+        },
+
+        ImportFrom(ImportFrom.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                ImportFrom n = (ImportFrom) node;
+                e.nodes(n.module);
+                e.nodes(n.names);
+                e.zigzag(n.level);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new ImportFrom(d.nodes(Name.class), d.nodes(Alias.class), d.zigzag(), start, end);
+            }
+        },
+
+        Index(Index.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((Index) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Index(d.node(Node.class), start, end);
+            }
+        },
+
+        Keyword(Keyword.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Keyword n = (Keyword) node;
+                e.string(n.arg);
+                e.node(n.value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Keyword(d.string(), d.node(Node.class), start, end);
+            }
+        },
+
+        Lambda(Lambda.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Lambda n = (Lambda) node;
+                e.nodes(n.args);
+                e.node(n.body);
+                e.nodes(n.defaults);
+                e.node(n.vararg);
+                e.node(n.kwarg);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Lambda(d.nodes(Node.class), d.node(Node.class), d.nodes(Node.class),
+                        d.node(Name.class), d.node(Name.class), start, end);
+            }
+        },
+
+        ListComp(ListComp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                ListComp n = (ListComp) node;
+                e.node(n.elt);
+                e.nodes(n.generators);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new ListComp(d.node(Node.class), d.nodes(Comprehension.class), start, end);
+            }
+        },
+
+        Module(Module.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Module n = (Module) node;
+                e.node(n.body);
+                e.string(n.getFile());
+                e.string(n.getMD5());
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                Module n = new Module(d.node(Block.class), start, end);
+                String file = d.string();
+                String sha1 = d.string();
+                if (file != null) {
+                    n.setFileAndMD5(file, sha1);
+                }
+                return n;
+            }
+        },
+
+        NList(NList.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((NList) node).elts);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new NList(d.nodes(Node.class), start, end);
+            }
+        },
+
+        Name(Name.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.string(((Name) node).id);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Name(d.nonNullString(), start, end);
+            }
+        },
+
+        Num(Num.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Object n = ((Num) node).n;
+                if (n == null) {
+                    e.varint(NUM_NULL);
+                } else if (n instanceof Double) {
+                    e.varint(NUM_DOUBLE);
+                    e.fixed64(Double.doubleToRawLongBits((Double) n));
+                } else if (n instanceof Integer) {
+                    e.varint(NUM_INT);
+                    e.zigzag((Integer) n);
+                } else if (n instanceof Long) {
+                    e.varint(NUM_LONG);
+                    e.fixed64((Long) n);
+                } else {
+                    e.varint(NUM_OTHER);
+                    e.string(n.toString());
+                }
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                Object n;
+                int type = d.varint();
+                switch (type) {
+                    case NUM_NULL:
+                        n = null;
+                        break;
+                    case NUM_DOUBLE:
+                        n = Double.longBitsToDouble(d.fixed64());
+                        break;
+                    case NUM_INT:
+                        n = d.zigzag();
+                        break;
+                    case NUM_LONG:
+                        n = d.fixed64();
+                        break;
+                    case NUM_OTHER:
+                        n = d.string();
+                        break;
+                    default:
+                        throw new IOException("bad number type " + type);
+                }
+                return new Num(n, start, end);
+            }
+        },
+
+        Pass(Pass.class) {
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) {
+                return new Pass(start, end);
+            }
+        },
+
+        Print(Print.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Print n = (Print) node;
+                e.node(n.dest);
+                e.nodes(n.values);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Print(d.node(Node.class), d.nodes(Node.class), start, end);
+            }
+        },
+
+        Raise(Raise.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Raise n = (Raise) node;
+                e.node(n.exceptionType);
+                e.node(n.inst);
+                e.node(n.traceback);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Raise(d.node(Node.class), d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Repr(Repr.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((Repr) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Repr(d.node(Node.class), start, end);
+            }
+        },
+
+        Return(Return.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((Return) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Return(d.node(Node.class), start, end);
+            }
+        },
+
+        Set(Set.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Set) node).elts);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Set(d.nodes(Node.class), start, end);
+            }
+        },
+
+        SetComp(SetComp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                SetComp n = (SetComp) node;
+                e.node(n.elt);
+                e.nodes(n.generators);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new SetComp(d.node(Node.class), d.nodes(Comprehension.class), start, end);
+            }
+        },
+
+        Slice(Slice.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Slice n = (Slice) node;
+                e.node(n.lower);
+                e.node(n.step);
+                e.node(n.upper);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Slice(d.node(Node.class), d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Str(Str.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.string(((Str) node).getStr());
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Str(d.nonNullString(), start, end);
+            }
+        },
+
+        Subscript(Subscript.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Subscript n = (Subscript) node;
+                e.node(n.value);
+                e.node(n.slice);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Subscript(d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        TryExcept(TryExcept.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                TryExcept n = (TryExcept) node;
+                e.nodes(n.handlers);
+                e.node(n.body);
+                e.node(n.orelse);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new TryExcept(d.nodes(ExceptHandler.class), d.node(Block.class), d.node(Block.class),
+                        start, end);
+            }
+        },
+
+        TryFinally(TryFinally.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                TryFinally n = (TryFinally) node;
+                e.node(n.body);
+                e.node(n.finalbody);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new TryFinally(d.node(Block.class), d.node(Block.class), start, end);
+            }
+        },
+
+        Tuple(Tuple.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.nodes(((Tuple) node).elts);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Tuple(d.nodes(Node.class), start, end);
+            }
+        },
+
+        UnaryOp(UnaryOp.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                UnaryOp n = (UnaryOp) node;
+                e.node(n.op);
+                e.node(n.operand);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new UnaryOp(d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        While(While.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                While n = (While) node;
+                e.node(n.test);
+                e.node(n.body);
+                e.node(n.orelse);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new While(d.node(Node.class), d.node(Block.class), d.node(Block.class), start, end);
+            }
+        },
+
+        With(With.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                With n = (With) node;
+                e.nodes(n.items);
+                e.node(n.body);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new With(d.nodes(Withitem.class), d.node(Block.class), start, end);
+            }
+        },
+
+        Withitem(Withitem.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                Withitem n = (Withitem) node;
+                e.node(n.context_expr);
+                e.node(n.optional_vars);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Withitem(d.node(Node.class), d.node(Node.class), start, end);
+            }
+        },
+
+        Yield(Yield.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((Yield) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new Yield(d.node(Node.class), start, end);
+            }
+        },
+
+        YieldFrom(YieldFrom.class) {
+            @Override
+            void write(@NotNull Encoder e, @NotNull Node node) throws IOException {
+                e.node(((YieldFrom) node).value);
+            }
+
+
+            @NotNull
+            @Override
+            Node read(@NotNull Decoder d, int start, int end) throws IOException {
+                return new YieldFrom(d.node(Node.class), start, end);
+            }
+        };
+
+
+        final Class<? extends Node> type;
+
+
+        Tag(Class<? extends Node> type) {
+            this.type = type;
+        }
+
+
+        // writes the fields of n; the nodes without fields write nothing
+        void write(@NotNull Encoder e, @NotNull Node n) throws IOException {
+        }
+
+
+        @NotNull
+        abstract Node read(@NotNull Decoder d, int start, int end) throws IOException;
+    }
+
+
+    /**
+     * @return {@code module} in the cache format
+     * @throws IOException if the tree has a node class the format doesn't know
+     */
+    @NotNull
+    public static byte[] encode(@NotNull Module module) throws IOException {
+        Encoder e = new Encoder();
+        for (byte b : MAGIC) {
+            e.write(b);
+        }
+        e.write(VERSION);
+        e.node(module);
+        return Arrays.copyOf(e.buf, e.pos);
+    }
+
+
+    /**
+     * @return the module in {@code data}, as written by {@link #encode}
+     * @throws IOException if {@code data} isn't in the current format or is damaged
+     */
+    @NotNull
+    public static Module decode(@NotNull byte[] data) throws IOException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+
+    /**
+     * Decodes the bytes between the position and the limit of {@code data},
+     * which may be a slice of a mapped file.  The buffer itself isn't changed.
+     */
+    @NotNull
+    public static Module decode(@NotNull ByteBuffer data) throws IOException {
+        Decoder d = new Decoder(data);
+        for (byte b : MAGIC) {
+            if (d.readByte() != b) {
+                throw new IOException("not an AST cache file");
+            }
+        }
+        int version = d.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported AST cache version: " + version);
+        }
+        Module module = d.node(Module.class);
+        if (module == null) {
+            throw new IOException("no module in AST cache file");
+        }
+        return module;
+    }
+
+
+    private static class Encoder {
+        byte[] buf = new byte[4096];
+        int pos = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+
+        void write(int b) {
+            if (pos == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[pos++] = (byte) b;
+        }
+
+
+        void varint(int n) {
+            while ((n & ~0x7f) != 0) {
+                write((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            write(n);
+        }
+
+
+        void zigzag(int n) {
+            varint((n << 1) ^ (n >> 31));
+        }
+
+
+        void fixed64(long n) {
+            for (int i = 56; i >= 0; i -= 8) {
+                write((int) (n >>> i));
+            }
+        }
+
+
+        void string(@Nullable String s) {
+            if (s == null) {
+                varint(STRING_NULL);
+                return;
+            }
+            Integer i = strings.get(s);
+            if (i != null) {
+                varint(i + 2);
+                return;
+            }
+            strings.put(s, strings.size());
+            varint(STRING_NEW);
+            byte[] bytes = s.getBytes(_.UTF_8);
+            varint(bytes.length);
+            if (pos + bytes.length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+
+        void node(@Nullable Node n) throws IOException {
+            if (n == null) {
+                varint(0);
+                return;
+            }
+            Tag tag = TAGS.get(n.getClass());
+            if (tag == null) {
+                throw new IOException("can't encode " + n.getClass().getName());
+            }
+            varint(tag.ordinal() + 1);
+            zigzag(n.start);
+            zigzag(n.end - n.start);
+            tag.write(this, n);
+        }
+
+
+        void nodes(@Nullable List<? extends Node> nodes) throws IOException {
+            if (nodes == null) {
+                varint(0);
+                return;
+            }
+            varint(nodes.size() + 1);
+            for (Node n : nodes) {
+                node(n);
+            }
+        }
+    }
+
+
+    private static class Decoder {
+        private static final Tag[] TAG_VALUES = Tag.values();
+
+        private final ByteBuffer buf;
+        private final int limit;
+        private int pos;
+        private String[] strings = new String[64];
+        private int nStrings = 0;
+
+
+        Decoder(@NotNull ByteBuffer buf) {
+            this.buf = buf;
+            this.pos = buf.position();
+            this.limit = buf.limit();
+        }
+
+
+        int readByte() throws IOException {
+            if (pos >= limit) {
+                throw new IOException("truncated AST cache file");
+            }
+            return buf.get(pos++);
+        }
+
+
+        int varint() throws IOException {
+            int result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+
+        int zigzag() throws IOException {
+            int n = varint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+
+        long fixed64() throws IOException {
+            long n = 0;
+            for (int i = 0; i < 8; i++) {
+                n = (n << 8) | (readByte() & 0xff);
+            }
+            return n;
+        }
+
+
+        @Nullable
+        String string() throws IOException {
+            int ref = varint();
+            if (ref == STRING_NULL) {
+                return null;
+            } else if (ref == STRING_NEW) {
+                int len = varint();
+                if (len < 0 || len > limit - pos) {
+                    throw new IOException("truncated AST cache file");
+                }
+                String s = utf8(len);
+                pos += len;
+                if (nStrings == strings.length) {
+                    strings = Arrays.copyOf(strings, nStrings * 2);
+                }
+                strings[nStrings++] = s;
+                return s;
+            } else if (ref - 2 < nStrings) {
+                return strings[ref - 2];
+            } else {
+                throw new IOException("bad string reference: " + (ref - 2));
+            }
+        }
+
+
+        @NotNull
+        private String utf8(int len) {
+            if (buf.hasArray()) {
+                return new String(buf.array(), buf.arrayOffset() + pos, len, _.UTF_8);
+            }
+            byte[] bytes = new byte[len];
+            for (int i = 0; i < len; i++) {
+                bytes[i] = buf.get(pos + i);
+            }
+            return new String(bytes, _.UTF_8);
+        }
+
+
+        @NotNull
+        String nonNullString() throws IOException {
+            String s = string();
+            if (s == null) {
+                throw new IOException("missing string at " + pos);
+            }
+            return s;
+        }
+
+
+        @Nullable
+        <T extends Node> T node(@NotNull Class<T> type) throws IOException {
+            int tag = varint();
+            if (tag == 0) {
+                return null;
+            }
+            if (tag > TAG_VALUES.length) {
+                throw new IOException("bad node tag " + tag + " at " + pos);
+            }
+            int start = zigzag();
+            int end = start + zigzag();
+            Node n = TAG_VALUES[tag - 1].read(this, start, end);
+            if (!type.isInstance(n)) {
+                throw new IOException("expected " + type.getSimpleName() + ", got " + n);
+            }
+            return type.cast(n);
+        }
+
+
+        @Nullable
+        <T extends Node> List<T> nodes(@NotNull Class<T> type) throws IOException {
+            int size = varint() - 1;
+            if (size < 0) {
+                return null;
+            }
+            List<T> nodes = new ArrayList<>(Math.min(size, limit - pos));
+            for (int i = 0; i < size; i++) {
+                nodes.add(node(type));
+            }
+            return nodes;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Module;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The memory cache of {@link AstCache}: the ASTs used last, up to a heap
+ * budget.  Each AST is charged an estimate of its heap size, and the least
+ * recently used ones are dropped when the total goes over the budget.  A
+ * dropped AST is loaded again from the disk cache the next time it is asked
+ * for. <p>
+ * The files that failed to parse are remembered separately, and aren't
+ * dropped.
+ */
+class AstMemoryCache {
+
+    // heap bytes per byte of an AST in the AstCodec format, measured on the stdlib
+    private static final int HEAP_PER_ENCODED_BYTE = 9;
+
+    private final long budget;
+    private long used = 0;
+    private int evictions = 0;
+
+    private final LinkedHashMap<String, Module> modules = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> sizes = new HashMap<>();
+    private final Set<String> failed = new HashSet<>();
+
+
+    /**
+     * @param budget the heap, in bytes, the cached ASTs may take
+     */
+    AstMemoryCache(long budget) {
+        this.budget = budget;
+    }
+
+
+    /**
+     * @return the estimated heap size of an AST that takes
+     * {@code encodedLength} bytes in the {@link AstCodec} format
+     */
+    static long estimateSize(int encodedLength) {
+        return (long) encodedLength * HEAP_PER_ENCODED_BYTE;
+    }
+
+
+    /**
+     * @return {@code true} if {@code path} is known to fail to parse
+     */
+    synchronized boolean isFailed(@NotNull String path) {
+        return failed.contains(path);
+    }
+
+
+    @Nullable
+    synchronized Module get(@NotNull String path) {
+        return modules.get(path);
+    }
+
+
+    /**
+     * Caches the AST of {@code path}, or that it failed to parse if
+     * {@code mod} is {@code null}, and drops the least recently used ASTs
+     * that no longer fit.
+     *
+     * @param size the estimated heap size of {@code mod}
+     */
+    synchronized void put(@NotNull String path, @Nullable Module mod, long size) {
+        remove(path);
+        if (mod == null) {
+            failed.add(path);
+            return;
+        }
+        failed.remove(path);
+        modules.put(path, mod);
+        sizes.put(path, size);
+        used += size;
+
+        // the AST just added stays, even if it is over the budget by itself
+        Iterator<Map.Entry<String, Module>> it = modules.entrySet().iterator();
+        while (used > budget && modules.size() > 1) {
+            String eldest = it.next().getKey();
+            it.remove();
+            used -= sizes.remove(eldest);
+            evictions++;
+        }
+    }
+
+
+    /**
+     * Forgets {@code path}, whether it was cached or failed to parse.
+     */
+    synchronized void forget(@NotNull String path) {
+        remove(path);
+        failed.remove(path);
+    }
+
+
+    synchronized void clear() {
+        modules.clear();
+        sizes.clear();
+        failed.clear();
+        used = 0;
+    }
+
+
+    private void remove(@NotNull String path) {
+        if (modules.remove(path) != null) {
+            used -= sizes.remove(path);
+        }
+    }
+
+
+    synchronized long getBudget() {
+        return budget;
+    }
+
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+
+    synchronized int getEvictions() {
+        return evictions;
+    }
+}
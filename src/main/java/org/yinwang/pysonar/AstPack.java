@@ -0,0 +1,691 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * The on-disk AST cache: one append-only pack file of encoded ASTs, keyed by
+ * the SHA-1 of the source, and an index of where each one is in the pack.
+ * The pack is read through a memory mapping, so a lookup returns a slice of
+ * the mapping and nothing is copied. <p>
+ * Each record in the pack carries its key, the source path it was written
+ * for and a CRC, so the pack can be read without the index.  The index is
+ * written on {@link #close} to a temporary file that is synced and then
+ * renamed over the old index.  After a crash, the records appended since
+ * the last index are recovered from the pack, and a torn last record is cut
+ * off. <p>
+ * An entry dies when an entry with the same key or the same source path is
+ * added after it.  Dead entries stay in the pack until it is compacted, when
+ * it is opened and more than half of it is dead: the live records are copied
+ * into a pack of the next generation, the index is switched to that pack,
+ * and the old pack is deleted.  A crash in between leaves the index on one
+ * pack or the other, and the unused one is deleted on the next open. <p>
+ * The index also records how long each entry took to parse, and when it
+ * was last read or written.  When
+ * the pack is opened, the entries not used for longer than the age limit
+ * are dropped, and then the least recently used ones until the live entries
+ * fit in the size limit; the pack is compacted if it is still over the
+ * limit. <p>
+ * Only one process writes a cache directory at a time; another process that
+ * opens it while it is locked only reads it.
+ */
+class AstPack {
+
+    private static final String INDEX = "asts.idx";
+    private static final String LOCK = "asts.lock";
+    private static final String PACK_PREFIX = "asts-";
+    private static final String PACK_SUFFIX = ".pack";
+
+    private static final int RECORD_MAGIC = 0x50594b52;     // "PYKR"
+    private static final int INDEX_MAGIC = 0x50594958;      // "PYIX"
+    private static final int INDEX_VERSION = 3;
+
+    // magic, key length, path length, data length, CRC
+    private static final int HEADER = 20;
+
+    // the least dead space worth compacting for
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    // access times closer than this aren't worth rewriting the index for
+    private static final long ACCESS_RESOLUTION = 60 * 60 * 1000;
+
+    // how much of the size limit is left free when entries are dropped for it
+    private static final double SIZE_SLACK = 0.1;
+
+
+    private static class Entry {
+        final String key;
+        final String path;
+        final long offset;     // of the record
+        final int length;      // of the record
+        final int dataLength;
+        final int parseMicros;
+        long accessed;         // in millis
+
+
+        Entry(String key, String path, long offset, int length, int dataLength, int parseMicros, long accessed) {
+            this.key = key;
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.dataLength = dataLength;
+            this.parseMicros = parseMicros;
+            this.accessed = accessed;
+        }
+
+
+        long dataOffset() {
+            return offset + length - dataLength;
+        }
+    }
+
+
+    @NotNull
+    private final File dir;
+    private final long maxBytes;
+    private final long maxAge;
+    private final boolean writable;
+    @Nullable
+    private RandomAccessFile lockFile;
+    @Nullable
+    private FileLock lock;
+
+    private long generation = 0;
+    @Nullable
+    private RandomAccessFile packFile;
+    @Nullable
+    private FileChannel pack;
+    private long size = 0;          // end of the last whole record
+    private long liveBytes = 0;
+    private boolean dirty = false;
+
+    @Nullable
+    private MappedByteBuffer mapping;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, String> keyOfPath = new HashMap<>();
+
+
+    /**
+     * @param maxBytes the size the live entries are cut down to on open
+     * @param maxAge   the time, in millis, after which an unused entry is dropped on open
+     */
+    AstPack(@NotNull File dir, long maxBytes, long maxAge) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        writable = lock();
+
+        boolean indexed = readIndex();
+        if (!indexed) {
+            generation = newestGeneration();
+        }
+        File file = packFile(generation);
+        if (writable) {
+            packFile = new RandomAccessFile(file, "rw");
+        } else if (file.exists()) {
+            packFile = new RandomAccessFile(file, "r");
+        }
+        if (packFile != null) {
+            pack = packFile.getChannel();
+            if (!indexed) {
+                size = 0;
+            }
+            recover();
+        }
+
+        if (writable) {
+            deleteStaleFiles();
+            dropUnused();
+            long dead = size - liveBytes;
+            if ((dead > MIN_COMPACT_BYTES && dead > liveBytes) || (dead > 0 && size > maxBytes)) {
+                compact();
+            }
+        }
+    }
+
+
+    /**
+     * @return the encoded AST stored under {@code key}, as a read-only
+     * buffer positioned at its first byte, or {@code null} if there is none
+     */
+    @Nullable
+    synchronized ByteBuffer get(@NotNull String key) throws IOException {
+        Entry e = entries.get(key);
+        if (e == null || pack == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - e.accessed > ACCESS_RESOLUTION) {
+            e.accessed = now;
+            dirty = true;
+        }
+
+        long end = e.dataOffset() + e.dataLength;
+        if (end > Integer.MAX_VALUE) {
+            // past what one mapping can hold
+            ByteBuffer copy = ByteBuffer.allocate(e.dataLength);
+            readFully(copy, e.dataOffset());
+            copy.flip();
+            return copy;
+        }
+        if (mapping == null || mapping.capacity() < end) {
+            mapping = pack.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        }
+        ByteBuffer slice = mapping.duplicate();
+        slice.position((int) e.dataOffset());
+        slice.limit((int) end);
+        return slice.slice();
+    }
+
+
+    /**
+     * Appends {@code data} under {@code key}, unless the key is there already.
+     *
+     * @param path        the source file the AST was parsed from
+     * @param parseMicros how long it took to parse, or 0 if not known
+     */
+    synchronized void put(@NotNull String key, @NotNull String path, @NotNull byte[] data, int parseMicros)
+            throws IOException
+    {
+        if (!writable || pack == null) {
+            return;
+        }
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            existing.accessed = System.currentTimeMillis();
+            keyOfPath.put(path, key);
+            return;
+        }
+
+        byte[] keyBytes = key.getBytes(_.UTF_8);
+        byte[] pathBytes = path.getBytes(_.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + keyBytes.length + pathBytes.length + data.length);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(keyBytes.length);
+        record.putInt(pathBytes.length);
+        record.putInt(data.length);
+        record.putInt(crc(keyBytes, pathBytes, data));
+        record.put(keyBytes);
+        record.put(pathBytes);
+        record.put(data);
+        record.flip();
+
+        long offset = size;
+        while (record.hasRemaining()) {
+            offset += pack.write(record, offset);
+        }
+        add(new Entry(key, path, size, record.capacity(), data.length, parseMicros, System.currentTimeMillis()));
+        size = offset;
+        dirty = true;
+    }
+
+
+    /**
+     * Writes the index if anything was added, and releases the files.
+     */
+    synchronized void close() {
+        try {
+            if (writable && dirty && pack != null) {
+                pack.force(false);
+                writeIndex();
+            }
+        }
+        catch (IOException e) {
+            _.msg("Failed to write the AST cache index: " + e);
+        }
+        finally {
+            mapping = null;
+            closeQuietly(packFile);
+            packFile = null;
+            pack = null;
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+            }
+            catch (IOException e) {
+            }
+            closeQuietly(lockFile);
+            lockFile = null;
+            lock = null;
+        }
+    }
+
+
+    /**
+     * @return the keys of the live entries, in the order they are in the pack
+     */
+    @NotNull
+    synchronized List<String> getKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Entry e : inPackOrder()) {
+            keys.add(e.key);
+        }
+        return keys;
+    }
+
+
+    /**
+     * @return the source file the entry under {@code key} was written for
+     */
+    @Nullable
+    synchronized String getPath(@NotNull String key) {
+        Entry e = entries.get(key);
+        return e == null ? null : e.path;
+    }
+
+
+    /**
+     * @return how long the entry under {@code key} took to parse, or 0 if not known
+     */
+    synchronized int getParseMicros(@NotNull String key) {
+        Entry e = entries.get(key);
+        return e == null ? 0 : e.parseMicros;
+    }
+
+
+    synchronized boolean isWritable() {
+        return writable;
+    }
+
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+
+    synchronized long getSize() {
+        return size;
+    }
+
+
+    // records the entry, and kills the entries it replaces
+    private void add(@NotNull Entry e) {
+        Entry old = entries.put(e.key, e);
+        if (old != null) {
+            liveBytes -= old.length;
+        }
+        String oldKey = keyOfPath.put(e.path, e.key);
+        if (oldKey != null && !oldKey.equals(e.key)) {
+            Entry stale = entries.get(oldKey);
+            if (stale != null && stale.path.equals(e.path)) {
+                entries.remove(oldKey);
+                liveBytes -= stale.length;
+            }
+        }
+        liveBytes += e.length;
+    }
+
+
+    /**
+     * Drops the entries older than the age limit, and then the least recently
+     * used entries until the rest fit in the size limit with some room to spare.
+     */
+    private void dropUnused() {
+        List<Entry> byAccess = new ArrayList<>(entries.values());
+        Collections.sort(byAccess, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.accessed, b.accessed);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long target = liveBytes > maxBytes ? (long) (maxBytes * (1 - SIZE_SLACK)) : maxBytes;
+        int dropped = 0;
+        long droppedBytes = 0;
+        for (Entry e : byAccess) {
+            if (now - e.accessed <= maxAge && liveBytes <= target) {
+                break;
+            }
+            entries.remove(e.key);
+            if (e.key.equals(keyOfPath.get(e.path))) {
+                keyOfPath.remove(e.path);
+            }
+            liveBytes -= e.length;
+            dropped++;
+            droppedBytes += e.length;
+        }
+        if (dropped > 0) {
+            dirty = true;
+            _.msg("Dropped " + dropped + " unused ASTs (" + droppedBytes + " bytes) from the AST cache");
+        }
+    }
+
+
+    private boolean lock() {
+        try {
+            lockFile = new RandomAccessFile(new File(dir, LOCK), "rw");
+            lock = lockFile.getChannel().tryLock();
+        }
+        catch (IOException | OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            _.msg("The AST cache is in use by another process; it will only be read");
+            closeQuietly(lockFile);
+            lockFile = null;
+        }
+        return lock != null;
+    }
+
+
+    @NotNull
+    private File packFile(long generation) {
+        return new File(dir, PACK_PREFIX + generation + PACK_SUFFIX);
+    }
+
+
+    // the generation of a pack file's name, or -1 if it isn't one
+    private static long generationOf(@NotNull String name) {
+        if (!name.startsWith(PACK_PREFIX) || !name.endsWith(PACK_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private long newestGeneration() {
+        long newest = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                newest = Math.max(newest, generationOf(name));
+            }
+        }
+        return newest;
+    }
+
+
+    // the other generations, left by an interrupted compaction, and the
+    // per-module files of the cache before the pack
+    private void deleteStaleFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            long gen = generationOf(f.getName());
+            if ((gen >= 0 && gen != generation) || f.getName().endsWith(".ast")) {
+                if (!f.delete()) {
+                    _.msg("Failed to delete stale AST cache file: " + f);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads the records after {@code size}, which the index doesn't know
+     * about, and cuts the pack after the last whole one.
+     */
+    private void recover() throws IOException {
+        long end = pack.size();
+        int recovered = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+        while (size + HEADER <= end) {
+            header.clear();
+            readFully(header, size);
+            header.flip();
+            int magic = header.getInt();
+            int keyLength = header.getInt();
+            int pathLength = header.getInt();
+            int dataLength = header.getInt();
+            int crc = header.getInt();
+            long length = (long) HEADER + keyLength + pathLength + dataLength;
+            if (magic != RECORD_MAGIC || keyLength < 0 || pathLength < 0 || dataLength < 0 ||
+                    length > Integer.MAX_VALUE || size + length > end)
+            {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate((int) length - HEADER);
+            readFully(body, size + HEADER);
+            byte[] bytes = body.array();
+            CRC32 check = new CRC32();
+            check.update(bytes, 0, bytes.length);
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+            String key = new String(bytes, 0, keyLength, _.UTF_8);
+            String path = new String(bytes, keyLength, pathLength, _.UTF_8);
+            add(new Entry(key, path, size, (int) length, dataLength, 0, System.currentTimeMillis()));
+            size += length;
+            recovered++;
+        }
+
+        if (size < end && writable) {
+            pack.truncate(size);
+        }
+        if (recovered > 0) {
+            dirty = true;
+        }
+    }
+
+
+    private void readFully(@NotNull ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (pack.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+
+    private static int crc(@NotNull byte[]... parts) {
+        CRC32 crc = new CRC32();
+        for (byte[] part : parts) {
+            crc.update(part, 0, part.length);
+        }
+        return (int) crc.getValue();
+    }
+
+
+    /**
+     * Loads the index, if there is a whole one for a pack that exists.
+     */
+    private boolean readIndex() {
+        File file = new File(dir, INDEX);
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            long gen = in.readLong();
+            long packSize = in.readLong();
+            int count = in.readInt();
+
+            List<Entry> read = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                String path = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                int dataLength = in.readInt();
+                int parseMicros = in.readInt();
+                long accessed = in.readLong();
+                read.add(new Entry(key, path, offset, length, dataLength, parseMicros, accessed));
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                return false;
+            }
+
+            File pf = packFile(gen);
+            if (!pf.exists() || pf.length() < packSize) {
+                return false;
+            }
+            generation = gen;
+            size = packSize;
+            for (Entry e : read) {
+                add(e);
+            }
+            return true;
+        }
+        catch (IOException e) {
+            entries.clear();
+            keyOfPath.clear();
+            liveBytes = 0;
+            return false;
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+
+    // written beside the index, synced, then renamed over it
+    private void writeIndex() throws IOException {
+        File tmp = new File(dir, INDEX + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(generation);
+            out.writeLong(size);
+            out.writeInt(entries.size());
+            for (Entry e : inPackOrder()) {
+                out.writeUTF(e.key);
+                out.writeUTF(e.path);
+                out.writeLong(e.offset);
+                out.writeInt(e.length);
+                out.writeInt(e.dataLength);
+                out.writeInt(e.parseMicros);
+                out.writeLong(e.accessed);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+
+        File index = new File(dir, INDEX);
+        try {
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+
+    // the live entries in the order they were added, which add() relies on
+    @NotNull
+    private List<Entry> inPackOrder() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.offset, b.offset);
+            }
+        });
+        return list;
+    }
+
+
+    /**
+     * Copies the live records into the next generation's pack and switches
+     * the index to it.
+     */
+    private void compact() throws IOException {
+        long oldSize = size;
+        File oldFile = packFile(generation);
+        File newFile = packFile(generation + 1);
+
+        RandomAccessFile out = new RandomAccessFile(newFile, "rw");
+        List<Entry> moved = new ArrayList<>();
+        long offset = 0;
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            for (Entry e : inPackOrder()) {
+                long done = 0;
+                while (done < e.length) {
+                    done += pack.transferTo(e.offset + done, e.length - done, channel);
+                }
+                moved.add(new Entry(e.key, e.path, offset, e.length, e.dataLength, e.parseMicros, e.accessed));
+                offset += e.length;
+            }
+            channel.force(false);
+        }
+        catch (IOException e) {
+            closeQuietly(out);
+            newFile.delete();
+            throw e;
+        }
+
+        closeQuietly(packFile);
+        packFile = out;
+        pack = out.getChannel();
+        mapping = null;
+        generation++;
+        size = offset;
+        entries.clear();
+        keyOfPath.clear();
+        liveBytes = 0;
+        for (Entry e : moved) {
+            add(e);
+        }
+        writeIndex();
+
+        if (!oldFile.delete()) {
+            _.msg("Failed to delete old AST pack: " + oldFile);
+        }
+        _.msg("Compacted the AST cache from " + oldSize + " to " + size + " bytes");
+    }
+
+
+    private static void closeQuietly(@Nullable Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+}
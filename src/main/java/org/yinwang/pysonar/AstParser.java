@@ -0,0 +1,181 @@
+package org.yinwang.pysonar;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Turns Python files into ASTs.  {@link PythonParser} runs CPython with
+ * ast2json.py, {@link InProcessParser} parses in the JVM; the system
+ * property {@code pysonar.parser} ("python" or "java") picks one.  Both try
+ * the Python 2 grammar first and Python 3 when that fails, in the order that
+ * worked so far for the package, unless {@code pysonar.python} says which
+ * to use.  {@link #parseFile} may be called from several threads at once.
+ */
+public abstract class AstParser {
+
+    // 2 or 3 to parse as that version only; 0 tries Python 2 first and
+    // Python 3 when it fails, in the order that worked so far for the package
+    static final int PYTHON_VERSION = Integer.getInteger("pysonar.python", 0);
+
+    // Number of threads parsing at once.
+    static final int POOL_SIZE =
+            Math.max(1, Integer.getInteger("pysonar.parsers", Runtime.getRuntime().availableProcessors()));
+
+    @Nullable
+    private ExecutorService batchExecutor;
+
+    // python3 successes minus python successes per package root; python3 is
+    // tried first where this is positive
+    private final ConcurrentMap<String, AtomicInteger> dialects = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> dialectRoots = new ConcurrentHashMap<>();
+    final AtomicInteger retriesAvoided = new AtomicInteger();
+
+
+    /**
+     * The parser selected by {@code pysonar.parser}.
+     */
+    @NotNull
+    public static AstParser create() {
+        if ("java".equals(System.getProperty("pysonar.parser", "python"))) {
+            return new InProcessParser();
+        } else {
+            return new PythonParser();
+        }
+    }
+
+
+    /**
+     * @return the AST of {@code filename}, or {@code null} if it fails to
+     * parse, in which case it is added to {@link Indexer#failedToParse}
+     */
+    @Nullable
+    public abstract Node parseFile(String filename);
+
+
+    public void close() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Parses {@code filenames} concurrently.  Files that fail to parse are
+     * mapped to {@code null}.
+     */
+    @NotNull
+    public Map<String, Node> parseFiles(@NotNull Collection<String> filenames) {
+        Map<String, Future<Node>> futures = new LinkedHashMap<>();
+        for (final String filename : filenames) {
+            futures.put(filename, getBatchExecutor().submit(new Callable<Node>() {
+                @Override
+                public Node call() {
+                    return parseFile(filename);
+                }
+            }));
+        }
+
+        Map<String, Node> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<Node>> e : futures.entrySet()) {
+            Node n = null;
+            try {
+                n = e.getValue().get();
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException x) {
+                _.msg("\nFailed to parse: " + e.getKey() + ": " + x.getCause());
+            }
+            result.put(e.getKey(), n);
+        }
+        return result;
+    }
+
+
+    /**
+     * Runs {@code task} on the threads that {@link #parseFiles} uses.
+     */
+    @NotNull
+    public <T> Future<T> submit(@NotNull Callable<T> task) {
+        return getBatchExecutor().submit(task);
+    }
+
+
+    /**
+     * @return the number of files parsed as Python 3 without trying Python 2 first
+     */
+    public int getRetriesAvoided() {
+        return retriesAvoided.get();
+    }
+
+
+    boolean preferPython3(@NotNull String filename) {
+        AtomicInteger score = dialects.get(dialectRoot(filename));
+        return score != null && score.get() > 0;
+    }
+
+
+    void learnDialect(@NotNull String filename, boolean python3) {
+        String root = dialectRoot(filename);
+        AtomicInteger score = dialects.get(root);
+        if (score == null) {
+            dialects.putIfAbsent(root, new AtomicInteger());
+            score = dialects.get(root);
+        }
+        if (python3) {
+            score.incrementAndGet();
+        } else {
+            score.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * The outermost package directory containing {@code filename}, or its
+     * directory if that is not a package.
+     */
+    @NotNull
+    private String dialectRoot(@NotNull String filename) {
+        File dir = new File(filename).getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return "";
+        }
+
+        String root = dialectRoots.get(dir.getPath());
+        if (root == null) {
+            File top = dir;
+            while (top.getParentFile() != null && new File(top, "__init__.py").exists() &&
+                    new File(top.getParentFile(), "__init__.py").exists())
+            {
+                top = top.getParentFile();
+            }
+            root = top.getPath();
+            dialectRoots.put(dir.getPath(), root);
+        }
+        return root;
+    }
+
+
+    @NotNull
+    private synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null) {
+            ThreadFactory factory = new ThreadFactoryBuilder()
+                    .setNameFormat("pysonar-parser-%d")
+                    .setDaemon(true)
+                    .build();
+            batchExecutor = Executors.newFixedThreadPool(POOL_SIZE, factory);
+        }
+        return batchExecutor;
+    }
+}
@@ -0,0 +1,205 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Module;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+
+/**
+ * Parses files on the parser pool ahead of the analysis, so that
+ * {@link AstCache#getAST} usually finds their ASTs ready.  Files come from the
+ * list given to {@link #start} and from the imports of the files parsed so far;
+ * imported files go to the front of the queue, because the analysis loads a
+ * file's imports before it moves on to the next file. <p>
+ * At most {@code depth} files are parsed ahead of the analysis.  A slot is
+ * freed when the analysis asks for a file that was parsed ahead, or, if it asks
+ * for one that wasn't, by giving up on the oldest file it hasn't asked for yet.
+ */
+public class AstPrefetcher {
+
+    private final AstCache cache;
+    private final AstParser parser;
+    private final int depth;
+    private final List<String> loadPath;
+
+    // files waiting to be parsed, in the order the analysis is expected to ask for them
+    private final Deque<String> queue = new ArrayDeque<>();
+    // every file ever queued or skipped, so that each is parsed ahead at most once
+    private final Set<String> seen = new HashSet<>();
+    // files the analysis has asked for
+    private final Set<String> claimed = new HashSet<>();
+    // files parsed or being parsed ahead that the analysis hasn't asked for yet
+    private final Map<String, Future<Module>> prefetched = new HashMap<>();
+    // the part of prefetched that counts against depth, oldest first
+    private final Deque<String> window = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private int hits = 0;
+    private int waits = 0;
+    private int misses = 0;
+
+
+    AstPrefetcher(@NotNull AstCache cache, @NotNull AstParser parser, int depth,
+                  @NotNull List<String> loadPath)
+    {
+        this.cache = cache;
+        this.parser = parser;
+        this.depth = depth;
+        this.loadPath = new ArrayList<>(loadPath);
+    }
+
+
+    /**
+     * Queues {@code paths} after the files already queued.
+     */
+    public synchronized void start(@NotNull Collection<String> paths) {
+        for (String path : paths) {
+            if (seen.add(path)) {
+                queue.addLast(path);
+            }
+        }
+        fill();
+    }
+
+
+    /**
+     * Never parses {@code paths} ahead, neither from the list given to
+     * {@link #start} nor as imports.
+     */
+    public synchronized void skip(@NotNull Collection<String> paths) {
+        seen.addAll(paths);
+    }
+
+
+    /**
+     * Records that the analysis asks for {@code path}.
+     *
+     * @return the pending AST of {@code path} if it was parsed ahead, or
+     * {@code null} if the caller has to load it itself
+     */
+    @Nullable
+    synchronized Future<Module> claim(@NotNull String path) {
+        if (!claimed.add(path)) {
+            return null;    // asked before, so the cache has it
+        }
+
+        Future<Module> f = prefetched.remove(path);
+        if (f == null) {
+            misses++;
+            if (window.size() >= depth) {
+                // the AST of the dropped file is left to the cache and its budget
+                Future<Module> dropped = prefetched.remove(window.pollFirst());
+                if (dropped != null) {
+                    dropped.cancel(false);
+                }
+            }
+        } else {
+            window.remove(path);
+            if (f.isDone()) {
+                hits++;
+            } else {
+                waits++;
+            }
+        }
+
+        fill();
+        return f;
+    }
+
+
+    /**
+     * Drops the ASTs parsed ahead, e.g. after the memory cache is cleared.
+     */
+    synchronized void forget() {
+        prefetched.clear();
+        window.clear();
+        fill();
+    }
+
+
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        for (Future<Module> f : prefetched.values()) {
+            f.cancel(false);
+        }
+        prefetched.clear();
+        window.clear();
+    }
+
+
+    /**
+     * @return the number of files whose AST was ready when the analysis asked for it
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+
+    /**
+     * @return the number of files the analysis had to wait for while they were
+     * being parsed ahead
+     */
+    public synchronized int getWaits() {
+        return waits;
+    }
+
+
+    /**
+     * @return the number of files the analysis asked for before they were parsed ahead
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+
+    private void fill() {
+        while (!closed && window.size() < depth && !queue.isEmpty()) {
+            final String path = queue.pollFirst();
+            if (claimed.contains(path)) {
+                continue;
+            }
+
+            window.addLast(path);
+            prefetched.put(path, parser.submit(new Callable<Module>() {
+                @Override
+                public Module call() {
+                    Module mod = cache.load(path);
+                    if (mod != null) {
+                        addImports(path, mod);
+                    }
+                    return mod;
+                }
+            }));
+        }
+    }
+
+
+    // queue the files imported by mod in front of the rest, keeping their order
+    private void addImports(@NotNull String path, @NotNull Module mod) {
+        List<String> files = ImportGraph.importedFiles(new File(path).getParentFile(), mod, loadPath);
+
+        synchronized (this) {
+            for (int i = files.size() - 1; i >= 0; i--) {
+                String file = files.get(i);
+                if (seen.add(file)) {
+                    queue.addFirst(file);
+                }
+            }
+            fill();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.yinwang.pysonar;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Writes encoded ASTs to the {@link AstPack} on a thread of its own, so that
+ * parsing and the analysis don't wait for the disk.  At most {@code capacity}
+ * ASTs wait to be written; {@link #write} blocks while the queue is full.
+ * The ASTs waiting in the queue can still be read with {@link #pending}.
+ */
+class AstWriter {
+
+    private static class Job {
+        @NotNull
+        final String sha1;
+        @NotNull
+        final String path;
+        @NotNull
+        final byte[] data;
+        final int parseMicros;
+
+
+        Job(@NotNull String sha1, @NotNull String path, @NotNull byte[] data, int parseMicros) {
+            this.sha1 = sha1;
+            this.path = path;
+            this.data = data;
+            this.parseMicros = parseMicros;
+        }
+    }
+
+
+    // tells the thread to stop
+    private static final Job END = new Job("", "", new byte[0], 0);
+
+    @NotNull
+    private final AstCache cache;
+    @NotNull
+    private final BlockingQueue<Job> queue;
+    private final int capacity;
+    @NotNull
+    private final Thread thread;
+
+    // the queued jobs and the one being written, by key
+    private final Map<String, Job> pending = new HashMap<>();
+
+    private int written = 0;
+    private long bytesWritten = 0;
+    private long writeNanos = 0;
+    private long blockedNanos = 0;
+    private int peakDepth = 0;
+
+
+    AstWriter(@NotNull AstCache cache, int capacity) {
+        this.cache = cache;
+        this.capacity = capacity;
+        queue = new ArrayBlockingQueue<>(capacity);
+        thread = new ThreadFactoryBuilder()
+                .setNameFormat("pysonar-ast-writer")
+                .setDaemon(true)
+                .build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                });
+        thread.start();
+    }
+
+
+    /**
+     * Queues {@code data}, the encoded AST of {@code path}, to be stored
+     * under {@code sha1}, waiting while the queue is full.
+     *
+     * @param parseMicros how long {@code path} took to parse
+     */
+    void write(@NotNull String sha1, @NotNull String path, @NotNull byte[] data, int parseMicros) {
+        Job job = new Job(sha1, path, data, parseMicros);
+        synchronized (this) {
+            if (pending.containsKey(sha1)) {
+                return;
+            }
+            pending.put(sha1, job);
+        }
+
+        long t0 = System.nanoTime();
+        put(job);
+
+        synchronized (this) {
+            blockedNanos += System.nanoTime() - t0;
+            peakDepth = Math.max(peakDepth, queue.size());
+        }
+    }
+
+
+    /**
+     * @return the encoded AST stored under {@code sha1} that is waiting to
+     * be written, or {@code null} if there is none
+     */
+    @Nullable
+    synchronized ByteBuffer pending(@NotNull String sha1) {
+        Job job = pending.get(sha1);
+        return job == null ? null : ByteBuffer.wrap(job.data);
+    }
+
+
+    /**
+     * Waits until everything queued so far is written.
+     */
+    synchronized void flush() {
+        boolean interrupted = false;
+        while (!pending.isEmpty() && thread.isAlive()) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Writes what is queued and stops the thread.
+     */
+    void close() {
+        flush();
+        // the queue may have filled up again since the flush, and the thread
+        // only stops once it sees END
+        put(END);
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // waits for room in the queue, and keeps the interrupt for later
+    private void put(@NotNull Job job) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(job);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void loop() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            if (job == END) {
+                return;
+            }
+
+            long t0 = System.nanoTime();
+            AstPack pack = cache.getPack();
+            if (pack != null) {
+                try {
+                    pack.put(job.sha1, job.path, job.data, job.parseMicros);
+                }
+                catch (IOException e) {
+                    _.msg("Failed to serialize: " + job.path);
+                }
+            }
+
+            synchronized (this) {
+                writeNanos += System.nanoTime() - t0;
+                written++;
+                bytesWritten += job.data.length;
+                pending.remove(job.sha1);
+                notifyAll();
+            }
+        }
+    }
+
+
+    int getCapacity() {
+        return capacity;
+    }
+
+
+    synchronized int getDepth() {
+        return queue.size();
+    }
+
+
+    synchronized int getPeakDepth() {
+        return peakDepth;
+    }
+
+
+    synchronized int getWritten() {
+        return written;
+    }
+
+
+    synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+
+    synchronized long getWriteMillis() {
+        return writeNanos / 1000000;
+    }
+
+
+    /**
+     * @return the time callers of {@link #write} waited for room in the queue
+     */
+    synchronized long getBlockedMillis() {
+        return blockedNanos / 1000000;
+    }
+}
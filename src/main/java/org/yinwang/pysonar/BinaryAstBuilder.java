@@ -0,0 +1,210 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.NodeFactory.Fields;
+import org.yinwang.pysonar.NodeFactory.Kind;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Builds AST nodes from the binary format written by ast2json.py with
+ * {@code --binary}.  See the comment above {@code BinaryEncoder} in ast2json.py
+ * for the layout.  Strings arrive once per file and are referred to by index
+ * afterwards; the node kind of each string is resolved at most once, so the
+ * per-node dispatch is an array lookup.
+ */
+public class BinaryAstBuilder {
+
+    static final int VERSION = 1;
+
+    private static final int NONE = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUM = 3;
+    private static final int STR = 4;
+    private static final int SREF = 5;
+    private static final int LIST = 6;
+    private static final int NODE = 7;
+
+
+    @Nullable
+    public Node build(@NotNull byte[] frame) throws IOException {
+        Decoder d = new Decoder(frame);
+        int version = d.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported AST format version: " + version);
+        }
+        Object o = d.readValue();
+        return o instanceof Node ? (Node) o : null;
+    }
+
+
+    // decoding state for one frame
+    private static class Decoder {
+        private final byte[] buf;
+        private int pos = 0;
+
+        private String[] strings = new String[64];
+        private Kind[] kinds = new Kind[64];
+        private boolean[] kindResolved = new boolean[64];
+        private int nStrings = 0;
+
+
+        Decoder(byte[] buf) {
+            this.buf = buf;
+        }
+
+
+        int readByte() throws IOException {
+            if (pos >= buf.length) {
+                throw new IOException("truncated AST frame");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+
+        int readVarint() throws IOException {
+            int result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+
+        int readZigzag() throws IOException {
+            int n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+
+        // reads a STR or SREF and returns the string's index
+        int readStringIndex() throws IOException {
+            int tag = readByte();
+            if (tag == SREF) {
+                int i = readVarint();
+                if (i >= nStrings) {
+                    throw new IOException("bad string reference: " + i);
+                }
+                return i;
+            } else if (tag == STR) {
+                return defineString();
+            } else {
+                throw new IOException("expected a string, got tag " + tag);
+            }
+        }
+
+
+        @NotNull
+        String readString() throws IOException {
+            int i = readStringIndex();
+            return strings[i];
+        }
+
+
+        int defineString() throws IOException {
+            int len = readVarint();
+            if (len < 0 || pos + len > buf.length) {
+                throw new IOException("truncated AST frame");
+            }
+            String s = new String(buf, pos, len, _.UTF_8);
+            pos += len;
+
+            if (nStrings == strings.length) {
+                strings = Arrays.copyOf(strings, nStrings * 2);
+                kinds = Arrays.copyOf(kinds, nStrings * 2);
+                kindResolved = Arrays.copyOf(kindResolved, nStrings * 2);
+            }
+            strings[nStrings] = s;
+            return nStrings++;
+        }
+
+
+        @Nullable
+        Kind kindAt(int i) {
+            if (!kindResolved[i]) {
+                kinds[i] = NodeFactory.kind(strings[i]);
+                kindResolved[i] = true;
+            }
+            return kinds[i];
+        }
+
+
+        @Nullable
+        Object readValue() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case NUM:
+                    return readDouble();    // Num.n has always been a Double
+                case STR:
+                case SREF:
+                    pos--;
+                    return readString();
+                case LIST:
+                    return readList();
+                case NODE:
+                    return readNode();
+                default:
+                    throw new IOException("bad tag " + tag + " at " + (pos - 1));
+            }
+        }
+
+
+        @NotNull
+        List<Object> readList() throws IOException {
+            int n = readVarint();
+            List<Object> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                list.add(readValue());
+            }
+            return list;
+        }
+
+
+        // Returns the built node, a Fields for the helper kinds, or null for
+        // objects that don't become nodes (contexts, operators, ...)
+        @Nullable
+        Object readNode() throws IOException {
+            Fields f = new Fields();
+            f.kind = kindAt(readStringIndex());
+            f.start = readZigzag();
+            f.end = readZigzag();
+
+            int n = readVarint();
+            for (int i = 0; i < n; i++) {
+                String name = readString();
+                Object value = readValue();
+                if (value != null) {
+                    f.put(name, value);
+                }
+            }
+
+            return NodeFactory.build(f);
+        }
+    }
+}
@@ -51,7 +51,7 @@ public class Binding implements Comparable<Object> {
         this.defs = new TreeSet<>();
         addDef(node);
 
-        Indexer.idx.registerBinding(this);
+        Indexer.idx().registerBinding(this);
     }
 
 
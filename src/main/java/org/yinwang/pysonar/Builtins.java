@@ -5,8 +5,10 @@ import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.ast.Url;
 import org.yinwang.pysonar.types.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -106,6 +108,11 @@ public class Builtins {
     @NotNull
     Set<Type> nativeTypes = new HashSet<Type>();
 
+    // the builtins of the workers of a parallel analysis merged into this
+    // indexer, whose types the merged results have
+    @NotNull
+    private final List<Builtins> merged = new ArrayList<>();
+
 
     @NotNull
     ClassType newClass(@NotNull String name, Scope table) {
@@ -128,7 +135,7 @@ public class Builtins {
 
     @Nullable
     ModuleType newModule(String name) {
-        ModuleType mt = new ModuleType(name, null, Indexer.idx.globaltable);
+        ModuleType mt = new ModuleType(name, null, Indexer.idx().globaltable);
         nativeTypes.add(mt);
         return mt;
     }
@@ -136,7 +143,7 @@ public class Builtins {
 
     @NotNull
     InstanceType unknown() {
-        InstanceType t = Indexer.idx.builtins.unknown;
+        InstanceType t = Indexer.idx().builtins.unknown;
         nativeTypes.add(t);
         return t;
     }
@@ -159,9 +166,9 @@ public class Builtins {
     @Nullable
     FunType newFunc(@Nullable Type type) {
         if (type == null) {
-            type = Indexer.idx.builtins.unknown;
+            type = Indexer.idx().builtins.unknown;
         }
-        FunType t = new FunType(Indexer.idx.builtins.unknown, type);
+        FunType t = new FunType(Indexer.idx().builtins.unknown, type);
         nativeTypes.add(t);
         return t;
     }
@@ -245,7 +252,7 @@ public class Builtins {
             if (module == null) {
                 module = newModule(name);
                 table = module.getTable();
-                Indexer.idx.moduleTable.insert(name, liburl(), module, MODULE);
+                Indexer.idx().moduleTable.insert(name, liburl(), module, MODULE);
             }
         }
 
@@ -493,7 +500,76 @@ public class Builtins {
 
 
     public boolean isNative(Type type) {
-        return nativeTypes.contains(type);
+        if (nativeTypes.contains(type)) {
+            return true;
+        }
+        for (Builtins b : merged) {
+            if (b.nativeTypes.contains(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Makes the types of {@code worker} count as these builtins in the type
+     * tests below, after its results are merged into this indexer.
+     */
+    void addMerged(@NotNull Builtins worker) {
+        merged.add(worker);
+    }
+
+
+    public boolean isUnknown(Type type) {
+        if (type == unknown) {
+            return true;
+        }
+        for (Builtins b : merged) {
+            if (type == b.unknown) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public boolean isNone(Type type) {
+        if (type == None) {
+            return true;
+        }
+        for (Builtins b : merged) {
+            if (type == b.None) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public boolean isNum(Type type) {
+        if (type == BaseNum || type == BaseFloat || type == BaseComplex) {
+            return true;
+        }
+        for (Builtins b : merged) {
+            if (type == b.BaseNum || type == b.BaseFloat || type == b.BaseComplex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public boolean isStr(Type type) {
+        if (type == BaseStr) {
+            return true;
+        }
+        for (Builtins b : merged) {
+            if (type == b.BaseStr) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -776,9 +852,9 @@ public class Builtins {
         synthetic(t, "func_code", new Url(DATAMODEL_URL), unknown(), ATTRIBUTE);
         synthetic(t, "func_defaults", new Url(DATAMODEL_URL), newTuple(), ATTRIBUTE);
         synthetic(t, "func_globals", new Url(DATAMODEL_URL),
-                new DictType(BaseStr, Indexer.idx.builtins.unknown), ATTRIBUTE);
+                new DictType(BaseStr, Indexer.idx().builtins.unknown), ATTRIBUTE);
         synthetic(t, "func_dict", new Url(DATAMODEL_URL),
-                new DictType(BaseStr, Indexer.idx.builtins.unknown), ATTRIBUTE);
+                new DictType(BaseStr, Indexer.idx().builtins.unknown), ATTRIBUTE);
 
         // Assume any function can become a method, for simplicity.
         for (String s : list("__func__", "im_func")) {
@@ -811,7 +887,7 @@ public class Builtins {
 
         @Override
         public void initBindings() {
-            Indexer.idx.moduleTable.insert(name, liburl(), module, MODULE);
+            Indexer.idx().moduleTable.insert(name, liburl(), module, MODULE);
             table.addSuper(BaseModule.getTable());
 
             addClass("None", newLibUrl("constants"), None);
@@ -871,7 +947,7 @@ public class Builtins {
 
             for (String f : builtin_exception_types) {
                 addClass(f, newDataModelUrl("org/yinwang/pysonar/types"),
-                        newClass(f, Indexer.idx.globaltable, Object));
+                        newClass(f, Indexer.idx().globaltable, Object));
             }
             BaseException = (ClassType) table.lookup("BaseException").getType();
 
@@ -883,8 +959,8 @@ public class Builtins {
             addFunction("open", newTutUrl("inputoutput.html#reading-and-writing-files"), BaseFile);
             addFunction("__import__", newLibUrl("functions"), newModule("<?>"));
 
-            Indexer.idx.globaltable.insert("__builtins__", liburl(), module, ATTRIBUTE);
-            Indexer.idx.globaltable.putAll(table);
+            Indexer.idx().globaltable.insert("__builtins__", liburl(), module, ATTRIBUTE);
+            Indexer.idx().globaltable.putAll(table);
         }
     }
 
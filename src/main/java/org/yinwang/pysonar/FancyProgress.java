@@ -30,7 +30,7 @@ public class FancyProgress {
     }
 
 
-    public void tick(int n) {
+    public synchronized void tick(int n) {
         count += n;
         if (count > total) {
             total = count;
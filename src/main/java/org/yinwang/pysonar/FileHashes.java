@@ -0,0 +1,219 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * The SHA-1 of source files, remembered across runs with the size and
+ * modification time each file had when it was hashed.  A file whose size
+ * and time are unchanged isn't read again; any other file is hashed again.
+ * <p>
+ * A file modified less than {@link #RACY_MILLIS} before it was hashed isn't
+ * remembered, since it could be changed again without its time changing.
+ * The manifest is saved on {@link #save}, to a temporary file that is then
+ * renamed over the old one.
+ */
+public class FileHashes {
+
+    private static final int MAGIC = 0x50594853;      // "PYHS"
+    private static final int VERSION = 1;
+
+    // coarser than the modification time resolution of common file systems
+    private static final long RACY_MILLIS = 2000;
+
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        @NotNull
+        final String sha1;
+
+
+        Entry(long size, long mtime, @NotNull String sha1) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sha1 = sha1;
+        }
+    }
+
+
+    @NotNull
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty = false;
+
+    private int hits = 0;
+    private int misses = 0;
+
+
+    /**
+     * Loads the manifest in {@code file}, if there is a whole one.
+     */
+    public FileHashes(@NotNull File file) {
+        this.file = file;
+        load();
+    }
+
+
+    /**
+     * @return the SHA-1 of the contents of {@code path}, as hex
+     */
+    @NotNull
+    public String getSHA1(@NotNull File path) {
+        String key = _.unifyPath(path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path.toPath(), BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return _.getSHA1(path);
+        }
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && e.size == size && e.mtime == mtime) {
+                hits++;
+                return e.sha1;
+            }
+            misses++;
+        }
+
+        long now = System.currentTimeMillis();
+        String sha1 = _.getSHA1(path);
+        synchronized (this) {
+            if (mtime < now - RACY_MILLIS) {
+                entries.put(key, new Entry(size, mtime, sha1));
+            } else {
+                entries.remove(key);
+            }
+            dirty = true;
+        }
+        return sha1;
+    }
+
+
+    @NotNull
+    public String getSHA1(@NotNull String path) {
+        return getSHA1(new File(path));
+    }
+
+
+    /**
+     * Writes the manifest if any file was hashed.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            // the cache dir may have been cleared
+            file.getParentFile().mkdirs();
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().size);
+                    out.writeLong(e.getValue().mtime);
+                    out.writeUTF(e.getValue().sha1);
+                }
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+        }
+        catch (IOException e) {
+            _.msg("Failed to save file hashes: " + e);
+            tmp.delete();
+        }
+    }
+
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            Map<String, Entry> read = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String sha1 = in.readUTF();
+                read.put(path, new Entry(size, mtime, sha1));
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() == crc) {
+                entries.putAll(read);
+            }
+        }
+        catch (IOException e) {
+            // damaged; every file is hashed again
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return how many files weren't read, because their hash was known
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+
+    /**
+     * @return how many files were read and hashed
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,600 @@
+package org.yinwang.pysonar;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Alias;
+import org.yinwang.pysonar.ast.DefaultNodeVisitor;
+import org.yinwang.pysonar.ast.Import;
+import org.yinwang.pysonar.ast.ImportFrom;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Name;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Which source files import which.  An edge from A to B means that A imports
+ * B, so the results for A may depend on B.  The edges come from the import
+ * statements found by {@link #scanImportedFiles} before the analysis, and from
+ * the loads {@link Indexer#loadFile} sees during it. <p>
+ * {@link #getComponents} orders files so that each comes after the files it
+ * imports, except inside import cycles.
+ */
+public class ImportGraph {
+
+    private static final Pattern IMPORT = Pattern.compile("import\\s+(.+)", Pattern.DOTALL);
+    private static final Pattern IMPORT_FROM = Pattern.compile(
+            "from\\s*([.\\s]*[\\w.\\s]*?)\\s+import\\b(.*)", Pattern.DOTALL);
+    private static final Pattern DOTTED_NAME = Pattern.compile("\\s*\\w+(\\s*\\.\\s*\\w+)*");
+
+    private final Map<String, Set<String>> imports = new LinkedHashMap<>();
+    private final Map<String, Set<String>> importers = new LinkedHashMap<>();
+
+
+    /**
+     * Records that {@code importer} loads {@code imported}.
+     */
+    public void addImport(@NotNull String importer, @NotNull String imported) {
+        if (importer.equals(imported)) {
+            return;
+        }
+        edges(imports, importer).add(imported);
+        edges(importers, imported).add(importer);
+    }
+
+
+    /**
+     * @return the files {@code file} loads
+     */
+    @NotNull
+    public Set<String> getImports(@NotNull String file) {
+        Set<String> s = imports.get(file);
+        return s == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(s);
+    }
+
+
+    /**
+     * @return the files that load {@code file}
+     */
+    @NotNull
+    public Set<String> getImporters(@NotNull String file) {
+        Set<String> s = importers.get(file);
+        return s == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(s);
+    }
+
+
+    /**
+     * @return {@code files} and the files that import any of them, directly
+     * or through other files
+     */
+    @NotNull
+    public Set<String> getDependents(@NotNull Collection<String> files) {
+        Set<String> seen = new LinkedHashSet<>(files);
+        Deque<String> work = new ArrayDeque<>(files);
+        while (!work.isEmpty()) {
+            for (String importer : getImporters(work.pop())) {
+                if (seen.add(importer)) {
+                    work.push(importer);
+                }
+            }
+        }
+        return seen;
+    }
+
+
+    /**
+     * Forgets the imports of {@code file} and the imports of it.
+     */
+    public void remove(@NotNull String file) {
+        Set<String> out = imports.remove(file);
+        if (out != null) {
+            for (String imported : out) {
+                Set<String> s = importers.get(imported);
+                if (s != null) {
+                    s.remove(file);
+                }
+            }
+        }
+        Set<String> in = importers.remove(file);
+        if (in != null) {
+            for (String importer : in) {
+                Set<String> s = imports.get(importer);
+                if (s != null) {
+                    s.remove(file);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the files that import or are imported by some file
+     */
+    @NotNull
+    public Set<String> getFiles() {
+        Set<String> files = new LinkedHashSet<>(imports.keySet());
+        files.addAll(importers.keySet());
+        return files;
+    }
+
+
+    /**
+     * @return the number of edges
+     */
+    public int getImportCount() {
+        int n = 0;
+        for (Set<String> s : imports.values()) {
+            n += s.size();
+        }
+        return n;
+    }
+
+
+    /**
+     * Splits {@code files} into strongly connected components of the imports
+     * among them, i.e. into groups of files that import each other, directly
+     * or indirectly.  A file that isn't in a cycle is a group by itself.
+     *
+     * @return the groups, each after the groups it imports from, and the files
+     * of each group in the order of {@code files}
+     */
+    @NotNull
+    public List<List<String>> getComponents(@NotNull Collection<String> files) {
+        final List<String> nodes = new ArrayList<>(new LinkedHashSet<>(files));
+        final Map<String, Integer> position = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            position.put(nodes.get(i), i);
+        }
+
+        int[][] succ = new int[nodes.size()][];
+        for (int i = 0; i < nodes.size(); i++) {
+            List<Integer> out = new ArrayList<>();
+            for (String imported : getImports(nodes.get(i))) {
+                Integer j = position.get(imported);
+                if (j != null) {
+                    out.add(j);
+                }
+            }
+            succ[i] = new int[out.size()];
+            for (int k = 0; k < out.size(); k++) {
+                succ[i][k] = out.get(k);
+            }
+        }
+
+        // Tarjan's algorithm, with an explicit stack because import chains can be long.
+        // It finishes a component after the components reachable from it.
+        int[] index = new int[nodes.size()];
+        int[] low = new int[nodes.size()];
+        boolean[] onStack = new boolean[nodes.size()];
+        Arrays.fill(index, -1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<int[]> calls = new ArrayDeque<>();
+        List<List<String>> components = new ArrayList<>();
+        int next = 0;
+
+        for (int root = 0; root < nodes.size(); root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            index[root] = low[root] = next++;
+            stack.push(root);
+            onStack[root] = true;
+            calls.push(new int[]{root, 0});
+
+            while (!calls.isEmpty()) {
+                int[] frame = calls.peek();
+                int v = frame[0];
+                if (frame[1] < succ[v].length) {
+                    int w = succ[v][frame[1]++];
+                    if (index[w] == -1) {
+                        index[w] = low[w] = next++;
+                        stack.push(w);
+                        onStack[w] = true;
+                        calls.push(new int[]{w, 0});
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                calls.pop();
+                if (!calls.isEmpty()) {
+                    int u = calls.peek()[0];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    List<String> component = new ArrayList<>();
+                    int w;
+                    do {
+                        w = stack.pop();
+                        onStack[w] = false;
+                        component.add(nodes.get(w));
+                    } while (w != v);
+
+                    Collections.sort(component, new Comparator<String>() {
+                        @Override
+                        public int compare(String a, String b) {
+                            return position.get(a) - position.get(b);
+                        }
+                    });
+                    components.add(component);
+                }
+            }
+        }
+        return components;
+    }
+
+
+    /**
+     * Splits {@code files} into groups that don't import from each other,
+     * directly or through other files.  Files that import the same file, e.g.
+     * a module on the load path, are in the same group.
+     *
+     * @return the groups, with the files of each in the order of {@code files}
+     */
+    @NotNull
+    public List<List<String>> getGroups(@NotNull List<String> files) {
+        Map<String, String> leaders = new HashMap<>();
+        for (Map.Entry<String, Set<String>> e : imports.entrySet()) {
+            for (String imported : e.getValue()) {
+                String a = findLeader(leaders, e.getKey());
+                String b = findLeader(leaders, imported);
+                if (!a.equals(b)) {
+                    leaders.put(a, b);
+                }
+            }
+        }
+
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String file : files) {
+            String leader = findLeader(leaders, file);
+            List<String> group = groups.get(leader);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(leader, group);
+            }
+            group.add(file);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+
+    // union-find: the file that stands for the group of file
+    @NotNull
+    private static String findLeader(@NotNull Map<String, String> leaders, @NotNull String file) {
+        String leader = file;
+        String next;
+        while ((next = leaders.get(leader)) != null) {
+            leader = next;
+        }
+        while (!file.equals(leader)) {
+            next = leaders.get(file);
+            leaders.put(file, leader);
+            file = next;
+        }
+        return leader;
+    }
+
+
+    /**
+     * Writes the graph to {@code out} as JSON: the files in the order of
+     * {@link #getComponents}, the files each of them imports, and the import
+     * cycles.
+     */
+    public void writeJson(@NotNull File out) throws IOException {
+        List<List<String>> components = getComponents(getFiles());
+        JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+        try {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+
+            json.writeArrayFieldStart("files");
+            for (List<String> component : components) {
+                for (String file : component) {
+                    json.writeString(file);
+                }
+            }
+            json.writeEndArray();
+
+            json.writeObjectFieldStart("imports");
+            for (List<String> component : components) {
+                for (String file : component) {
+                    json.writeArrayFieldStart(file);
+                    for (String imported : getImports(file)) {
+                        json.writeString(imported);
+                    }
+                    json.writeEndArray();
+                }
+            }
+            json.writeEndObject();
+
+            json.writeArrayFieldStart("cycles");
+            for (List<String> component : components) {
+                if (component.size() > 1) {
+                    json.writeStartArray();
+                    for (String file : component) {
+                        json.writeString(file);
+                    }
+                    json.writeEndArray();
+                }
+            }
+            json.writeEndArray();
+
+            json.writeEndObject();
+        }
+        finally {
+            json.close();
+        }
+    }
+
+
+    /**
+     * Finds the files {@link Indexer#loadModule} will load for the imports in
+     * {@code mod}, looking in {@code dir} first and then in {@code loadPath}.
+     */
+    @NotNull
+    public static List<String> importedFiles(@Nullable File dir, @NotNull Module mod,
+                                             @NotNull List<String> loadPath)
+    {
+        final List<List<Name>> modules = new ArrayList<>();
+
+        mod.visit(new DefaultNodeVisitor() {
+            @Override
+            public boolean visit(@NotNull Import n) {
+                for (Alias a : n.names) {
+                    modules.add(a.name);
+                }
+                return false;
+            }
+
+
+            @Override
+            public boolean visit(@NotNull ImportFrom n) {
+                if (n.module == null) {
+                    return false;
+                }
+                modules.add(n.module);
+                if (!n.isImportStar()) {
+                    for (Alias a : n.names) {
+                        // may be a submodule rather than a name in the module
+                        List<Name> ext = new ArrayList<>(n.module);
+                        ext.add(a.name.get(0));
+                        modules.add(ext);
+                    }
+                }
+                return false;
+            }
+        });
+
+        return moduleFiles(dir, modules, loadPath);
+    }
+
+
+    /**
+     * Finds the files the imports in the source of {@code file} will load, as
+     * {@link #importedFiles(File, Module, List)} does for its AST, but without
+     * parsing it.  The import statements are picked from the logical lines of
+     * the source, past comments and string literals; an import that shares its
+     * line with the header of a compound statement, e.g. {@code try: import x},
+     * isn't seen.
+     */
+    @NotNull
+    public static List<String> scanImportedFiles(@NotNull String file, @NotNull List<String> loadPath) {
+        byte[] bytes = _.getBytesFromFile(new File(file));
+        if (bytes == null) {
+            return Collections.emptyList();
+        }
+
+        List<List<Name>> modules = new ArrayList<>();
+        for (String stmt : statements(new String(bytes, _.UTF_8))) {
+            addImports(stmt, modules);
+        }
+        return moduleFiles(new File(file).getParentFile(), modules, loadPath);
+    }
+
+
+    @NotNull
+    private static List<String> moduleFiles(@Nullable File dir, @NotNull List<List<Name>> modules,
+                                            @NotNull List<String> loadPath)
+    {
+        List<String> roots = new ArrayList<>();
+        if (dir != null) {
+            roots.add(dir.getPath());
+        }
+        roots.addAll(loadPath);
+
+        List<String> files = new ArrayList<>();
+        for (List<Name> name : modules) {
+            if (!name.isEmpty()) {
+                addModuleFiles(roots, name, files);
+            }
+        }
+        return files;
+    }
+
+
+    // the simple statements of source that start with "import" or "from", with
+    // comments and strings left out and continuation lines joined
+    @NotNull
+    private static List<String> statements(@NotNull String source) {
+        List<String> stmts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int depth = 0;
+        int n = source.length();
+
+        for (int i = 0; i < n; i++) {
+            char c = source.charAt(i);
+            if (c == '#') {
+                while (i + 1 < n && source.charAt(i + 1) != '\n') {
+                    i++;
+                }
+            } else if (c == '\'' || c == '"') {
+                boolean triple = i + 2 < n && source.charAt(i + 1) == c && source.charAt(i + 2) == c;
+                i = triple ? i + 3 : i + 1;
+                while (i < n) {
+                    char d = source.charAt(i);
+                    if (d == '\\') {
+                        i += 2;
+                    } else if (d == c && (!triple || source.startsWith(triple(c), i))) {
+                        i += triple ? 2 : 0;
+                        break;
+                    } else if (d == '\n' && !triple) {
+                        i--;        // unterminated, ends at the end of the line
+                        break;
+                    } else {
+                        i++;
+                    }
+                }
+                sb.append(' ');
+            } else if (c == '\\' && i + 1 < n && (source.charAt(i + 1) == '\n' || source.charAt(i + 1) == '\r')) {
+                sb.append(' ');
+                i++;
+                if (source.charAt(i) == '\r' && i + 1 < n && source.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+                sb.append(c);
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth = Math.max(0, depth - 1);
+                sb.append(c);
+            } else if ((c == '\n' || c == '\r') && depth > 0) {
+                sb.append(' ');
+            } else if (c == '\n' || c == '\r' || c == ';') {
+                addStatement(sb, stmts);
+            } else {
+                sb.append(c);
+            }
+        }
+        addStatement(sb, stmts);
+        return stmts;
+    }
+
+
+    @NotNull
+    private static String triple(char quote) {
+        return quote == '"' ? "\"\"\"" : "'''";
+    }
+
+
+    private static void addStatement(@NotNull StringBuilder sb, @NotNull List<String> stmts) {
+        String stmt = sb.toString().trim();
+        sb.setLength(0);
+        if (stmt.startsWith("import") || stmt.startsWith("from")) {
+            stmts.add(stmt);
+        }
+    }
+
+
+    // the modules an import statement names, in the shape importedFiles collects them from the AST
+    private static void addImports(@NotNull String stmt, @NotNull List<List<Name>> modules) {
+        Matcher m = IMPORT.matcher(stmt);
+        if (m.matches()) {
+            for (String part : m.group(1).split(",")) {
+                List<Name> name = dottedName(part);
+                if (name != null) {
+                    modules.add(name);
+                }
+            }
+            return;
+        }
+
+        m = IMPORT_FROM.matcher(stmt);
+        if (!m.matches()) {
+            return;
+        }
+        List<Name> module = dottedName(m.group(1).replaceFirst("^[.\\s]*", ""));
+        if (module == null) {
+            return;     // "from . import x" has no module, as in the AST
+        }
+        modules.add(module);
+
+        String names = m.group(2).replace('(', ' ').replace(')', ' ').trim();
+        if (names.equals("*")) {
+            return;
+        }
+        for (String part : names.split(",")) {
+            List<Name> alias = dottedName(part);
+            if (alias != null) {
+                // may be a submodule rather than a name in the module
+                List<Name> ext = new ArrayList<>(module);
+                ext.add(alias.get(0));
+                modules.add(ext);
+            }
+        }
+    }
+
+
+    // "a . b as c" as [a, b], or null if part doesn't start with a name
+    @Nullable
+    private static List<Name> dottedName(@NotNull String part) {
+        Matcher m = DOTTED_NAME.matcher(part);
+        if (!m.lookingAt()) {
+            return null;
+        }
+        List<Name> name = new ArrayList<>();
+        for (String id : m.group().split("\\.")) {
+            name.add(new Name(id.trim()));
+        }
+        return name;
+    }
+
+
+    // same search as Indexer.locateModule and Indexer.loadModule
+    private static void addModuleFiles(@NotNull List<String> roots, @NotNull List<Name> name,
+                                       @NotNull List<String> files)
+    {
+        String head = name.get(0).id;
+        if (head == null) {
+            return;
+        }
+
+        ModuleIndex index = Indexer.idx().moduleIndex;
+        for (String root : roots) {
+            File rootDir = new File(root);
+            if (index.isPackage(rootDir, head) || index.isModuleFile(rootDir, head)) {
+                File path = rootDir;
+                for (int i = 0; i < name.size(); i++) {
+                    File parent = path;
+                    path = new File(path, name.get(i).id);
+                    if (index.isPackage(parent, name.get(i).id)) {
+                        files.add(_.unifyPath(new File(path, "__init__.py")));
+                    } else if (i == name.size() - 1 && index.isModuleFile(parent, name.get(i).id)) {
+                        files.add(_.unifyPath(new File(path + ".py")));
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+
+    @NotNull
+    private static Set<String> edges(@NotNull Map<String, Set<String>> map, @NotNull String file) {
+        Set<String> s = map.get(file);
+        if (s == null) {
+            s = new LinkedHashSet<>();
+            map.put(file, s);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,126 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.NodeFactory.Fields;
+import org.yinwang.pysonar.ast.Node;
+import org.yinwang.pysonar.parser.ParseException;
+import org.yinwang.pysonar.parser.Parser;
+import org.yinwang.pysonar.parser.PyNode;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Parses Python files in the JVM with {@link Parser}, without starting
+ * CPython.  The trees come out as PythonParser builds them from ast2json.py:
+ * the same nodes with the same offsets, and the same files fail, as long as
+ * {@code python} is Python 2.  Where it is Python 3, PythonParser has no
+ * Python 2 grammar, but this parser still does, so files that only parse as
+ * Python 2 fail there and not here.  Selected with
+ * {@code -Dpysonar.parser=java}.
+ */
+public class InProcessParser extends AstParser {
+
+    public InProcessParser() {
+        _.msg("Using the built-in Python parser");
+    }
+
+
+    @Nullable
+    @Override
+    public Node parseFile(String filename) {
+        byte[] source = _.getBytesFromFile(new File(filename));
+        boolean python3First = PYTHON_VERSION == 3 || (PYTHON_VERSION == 0 && preferPython3(filename));
+
+        Node n = parseWith(filename, source, python3First);
+        if (n != null) {
+            if (python3First) {
+                retriesAvoided.incrementAndGet();
+            }
+            return n;
+        }
+
+        if (PYTHON_VERSION == 0) {
+            n = parseWith(filename, source, !python3First);
+        }
+        if (n == null) {
+            Indexer.idx().failedToParse.add(filename);
+        }
+        return n;
+    }
+
+
+    @Nullable
+    private Node parseWith(String filename, @Nullable byte[] source, boolean python3) {
+        if (source == null) {
+            return null;
+        }
+
+        PyNode tree;
+        try {
+            tree = Parser.parse(source, python3);
+        }
+        catch (ParseException e) {
+            return null;
+        }
+        catch (StackOverflowError e) {
+            // CPython gives up on such nesting too
+            return null;
+        }
+
+        tree.put("filename", filename);
+        Node n = (Node) convert(tree);
+        if (n != null && PYTHON_VERSION == 0) {
+            learnDialect(filename, python3);
+        }
+        return n;
+    }
+
+
+    /**
+     * Builds what BinaryAstBuilder builds from the frame ast2json.py would
+     * send for {@code value}: nodes through NodeFactory, numbers as doubles
+     * and other values as their Python {@code str()}.
+     */
+    @Nullable
+    private static Object convert(@Nullable Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Double) {
+            return value;
+        } else if (value instanceof PyNode) {
+            return convertNode((PyNode) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> out = new ArrayList<>(list.size());
+            for (Object x : list) {
+                out.add(convert(x));
+            }
+            return out;
+        } else if (value instanceof BigInteger) {
+            return ((BigInteger) value).doubleValue();
+        } else {
+            return value.toString();
+        }
+    }
+
+
+    // the kinds NodeFactory doesn't know are dropped with their children,
+    // after the children are built as BinaryAstBuilder does
+    @Nullable
+    private static Object convertNode(@NotNull PyNode n) {
+        Fields f = new Fields();
+        f.kind = NodeFactory.kind(n.kind);
+        f.start = n.start == PyNode.NONE ? 0 : n.start;
+        f.end = n.end == PyNode.NONE ? 1 : n.end;
+        for (int i = 0; i < n.size(); i++) {
+            Object value = convert(n.value(i));
+            if (value != null) {
+                f.put(n.name(i), value);
+            }
+        }
+        return NodeFactory.build(f);
+    }
+}
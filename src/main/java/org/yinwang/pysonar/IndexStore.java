@@ -0,0 +1,808 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The results of an analysis in one file, for tools that want to answer
+ * questions about a program long after it was analyzed, without analyzing
+ * it again. {@link #write} saves what {@link Indexer#finish} left: the
+ * bindings with their qnames, kinds, rendered types, definitions and
+ * docstrings, the references and the problems found.  {@link #open} maps
+ * the file into memory, and the queries read the mapping; nothing but the
+ * list of files is read into the heap up front, and no AST or type is
+ * rebuilt. <p>
+ * The file is a header with the offset and the number of records of each
+ * table, tables of fixed-size records of ints, and the strings, which the
+ * records refer to by number.  As in {@link PositionIndex}, the references
+ * and definitions of each file are sorted by start, with the largest end up
+ * to each one.  An instance may be used from several threads.
+ */
+public class IndexStore implements Closeable {
+
+    private static final int MAGIC = 0x50595358;      // "PYSX"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the tables, in the order of the header
+    private static final int STRINGS = 0;       // offset of the string bytes, by string
+    private static final int FILES = 1;
+    private static final int BINDINGS = 2;
+    private static final int DEFS = 3;
+    private static final int REFS = 4;
+    private static final int SPANS = 5;
+    private static final int DIAGS = 6;
+    private static final int INTS = 7;          // lists of bindings and references
+    private static final int BY_QNAME = 8;      // binding numbers, sorted by qname
+    private static final int STRING_BYTES = 9;
+    private static final int TABLES = 10;
+
+    // ints per record of each table
+    private static final int[] WIDTH = {1, 5, 8, 9, 7, 4, 5, 1, 1, 0};
+
+    // file: path, first span, number of spans, first problem, number of problems
+    private static final int F_PATH = 0, F_SPANS = 1, F_NSPANS = 2, F_DIAGS = 3, F_NDIAGS = 4;
+    // binding: qname, name, kind, type, first def, number of defs, first ref in INTS, number of refs
+    private static final int B_QNAME = 0, B_NAME = 1, B_KIND = 2, B_TYPE = 3,
+            B_DEFS = 4, B_NDEFS = 5, B_REFS = 6, B_NREFS = 7;
+    // def: binding, file or URL, 1 if URL, start, end, body start, body end, docstring, name
+    private static final int D_BINDING = 0, D_FILE = 1, D_URL = 2, D_START = 3, D_END = 4,
+            D_BODY_START = 5, D_BODY_END = 6, D_DOC = 7, D_NAME = 8;
+    // ref: file, start, end, name, flags, first binding in INTS, number of bindings
+    private static final int R_FILE = 0, R_START = 1, R_END = 2, R_NAME = 3, R_FLAGS = 4,
+            R_BINDINGS = 5, R_NBINDINGS = 6;
+    // span: start, end, largest end so far, ref number or -1 - def number
+    private static final int S_START = 0, S_END = 1, S_MAX_END = 2, S_ITEM = 3;
+    // problem: file, category, start, end, message
+    private static final int P_FILE = 0, P_CATEGORY = 1, P_START = 2, P_END = 3, P_MSG = 4;
+
+    // ref flags
+    private static final int ATTRIBUTE = 0x1;
+    private static final int CALL = 0x2;
+    private static final int NEW = 0x4;
+    private static final int STRING = 0x8;
+
+    private static final int HEADER = 8 + TABLES * 8;
+
+
+    /**
+     * A binding as saved.
+     */
+    public class Symbol {
+        private final int id;
+
+
+        Symbol(int id) {
+            this.id = id;
+        }
+
+
+        @NotNull
+        public String getQname() {
+            return string(field(BINDINGS, id, B_QNAME));
+        }
+
+
+        @NotNull
+        public String getName() {
+            return string(field(BINDINGS, id, B_NAME));
+        }
+
+
+        @NotNull
+        public Binding.Kind getKind() {
+            return Binding.Kind.valueOf(string(field(BINDINGS, id, B_KIND)));
+        }
+
+
+        /**
+         * @return the type, as {@link org.yinwang.pysonar.types.Type#toString} printed it
+         */
+        @NotNull
+        public String getType() {
+            return string(field(BINDINGS, id, B_TYPE));
+        }
+
+
+        @NotNull
+        public List<Location> getDefs() {
+            int first = field(BINDINGS, id, B_DEFS);
+            int n = field(BINDINGS, id, B_NDEFS);
+            List<Location> defs = new ArrayList<>(n);
+            for (int i = first; i < first + n; i++) {
+                defs.add(defLocation(i));
+            }
+            return defs;
+        }
+
+
+        /**
+         * @return the docstrings of the definitions
+         */
+        @NotNull
+        public List<String> getDocstrings() {
+            int first = field(BINDINGS, id, B_DEFS);
+            int n = field(BINDINGS, id, B_NDEFS);
+            List<String> docs = new ArrayList<>();
+            for (int i = first; i < first + n; i++) {
+                String doc = string(field(DEFS, i, D_DOC));
+                if (doc != null && !docs.contains(doc)) {
+                    docs.add(doc);
+                }
+            }
+            return docs;
+        }
+
+
+        @NotNull
+        public List<Location> getRefs() {
+            int first = field(BINDINGS, id, B_REFS);
+            int n = field(BINDINGS, id, B_NREFS);
+            List<Location> refs = new ArrayList<>(n);
+            for (int i = first; i < first + n; i++) {
+                refs.add(refLocation(field(INTS, i, 0)));
+            }
+            return refs;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Symbol && ((Symbol) o).id == id;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "<Symbol:" + getQname() + ":" + getKind() + ">";
+        }
+    }
+
+
+    /**
+     * Where a definition or reference is: a file and the range of its name in
+     * it, or the URL of a builtin.
+     */
+    public static class Location {
+        @Nullable
+        private final String file;
+        @Nullable
+        private final String url;
+        private final int start;
+        private final int end;
+
+
+        Location(@Nullable String file, @Nullable String url, int start, int end) {
+            this.file = file;
+            this.url = url;
+            this.start = start;
+            this.end = end;
+        }
+
+
+        @Nullable
+        public String getFile() {
+            return file;
+        }
+
+
+        @Nullable
+        public String getURL() {
+            return url;
+        }
+
+
+        public int getStart() {
+            return start;
+        }
+
+
+        public int getEnd() {
+            return end;
+        }
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "<Location:" + (file != null ? file : url) + ":" + start + "-" + end + ">";
+        }
+    }
+
+
+    /**
+     * A reference or definition found at a position, and the bindings it
+     * stands for.
+     */
+    public static class Span {
+        private final int start;
+        private final int end;
+        private final boolean isDef;
+        @NotNull
+        private final List<Symbol> symbols;
+
+
+        Span(int start, int end, boolean isDef, @NotNull List<Symbol> symbols) {
+            this.start = start;
+            this.end = end;
+            this.isDef = isDef;
+            this.symbols = symbols;
+        }
+
+
+        public int getStart() {
+            return start;
+        }
+
+
+        public int getEnd() {
+            return end;
+        }
+
+
+        public boolean isDef() {
+            return isDef;
+        }
+
+
+        @NotNull
+        public List<Symbol> getSymbols() {
+            return symbols;
+        }
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "<Span:" + start + "-" + end + ":" + symbols + ">";
+        }
+    }
+
+
+    @NotNull
+    private final RandomAccessFile raf;
+    @NotNull
+    private final MappedByteBuffer mapping;
+    private final int[] offsets = new int[TABLES];
+    private final int[] counts = new int[TABLES];
+    // file paths to their numbers
+    private final Map<String, Integer> files = new HashMap<>();
+
+
+    private IndexStore(@NotNull File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("too large for one mapping: " + file);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapping.capacity() < HEADER || mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+                throw new IOException("not an index file: " + file);
+            }
+            for (int t = 0; t < TABLES; t++) {
+                offsets[t] = mapping.getInt(8 + t * 8);
+                counts[t] = mapping.getInt(12 + t * 8);
+            }
+            for (int i = 0; i < counts[FILES]; i++) {
+                files.put(string(field(FILES, i, F_PATH)), i);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Maps the index in {@code file}, as {@link #write} wrote it.
+     */
+    @NotNull
+    public static IndexStore open(@NotNull File file) throws IOException {
+        return new IndexStore(file);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+
+    /**
+     * @return the files that have references, definitions or problems
+     */
+    @NotNull
+    public List<String> getFiles() {
+        List<String> paths = new ArrayList<>(counts[FILES]);
+        for (int i = 0; i < counts[FILES]; i++) {
+            paths.add(string(field(FILES, i, F_PATH)));
+        }
+        return paths;
+    }
+
+
+    /**
+     * @return the number of bindings
+     */
+    public int getSymbolCount() {
+        return counts[BINDINGS];
+    }
+
+
+    /**
+     * @return the number of references
+     */
+    public int getRefCount() {
+        return counts[REFS];
+    }
+
+
+    /**
+     * @return the bindings with {@code qname}
+     */
+    @NotNull
+    public List<Symbol> getSymbols(@NotNull String qname) {
+        int lo = 0;
+        int hi = counts[BY_QNAME];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (qnameAt(mid).compareTo(qname) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<Symbol> found = new ArrayList<>(1);
+        for (int i = lo; i < counts[BY_QNAME] && qnameAt(i).equals(qname); i++) {
+            found.add(new Symbol(field(BY_QNAME, i, 0)));
+        }
+        return found;
+    }
+
+
+    /**
+     * Same as {@link PositionIndex#lookupAt}.
+     */
+    @NotNull
+    public List<Span> lookupAt(@NotNull String file, int offset) {
+        Integer f = files.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+        int first = field(FILES, f, F_SPANS);
+        List<Span> found = new ArrayList<>(1);
+        for (int i = first + countBefore(f, offset + 1) - 1;
+             i >= first && field(SPANS, i, S_MAX_END) > offset; i--)
+        {
+            if (field(SPANS, i, S_END) > offset) {
+                found.add(span(i));
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Same as {@link PositionIndex#rangeQuery}.
+     */
+    @NotNull
+    public List<Span> rangeQuery(@NotNull String file, int start, int end) {
+        Integer f = files.get(file);
+        if (f == null || end <= start) {
+            return Collections.emptyList();
+        }
+        int first = field(FILES, f, F_SPANS);
+        List<Span> found = new ArrayList<>();
+        for (int i = first + countBefore(f, end) - 1;
+             i >= first && field(SPANS, i, S_MAX_END) > start; i--)
+        {
+            if (field(SPANS, i, S_END) > start) {
+                found.add(span(i));
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+
+    /**
+     * @return the parse errors and semantic problems of {@code file}
+     */
+    @NotNull
+    public List<Diagnostic> getDiagnostics(@NotNull String file) {
+        Integer f = files.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+        int first = field(FILES, f, F_DIAGS);
+        int n = field(FILES, f, F_NDIAGS);
+        List<Diagnostic> diags = new ArrayList<>(n);
+        for (int i = first; i < first + n; i++) {
+            diags.add(new Diagnostic(file,
+                    Diagnostic.Category.values()[field(DIAGS, i, P_CATEGORY)],
+                    field(DIAGS, i, P_START),
+                    field(DIAGS, i, P_END),
+                    string(field(DIAGS, i, P_MSG))));
+        }
+        return diags;
+    }
+
+
+    // the number of spans of file f that start before pos
+    private int countBefore(int f, int pos) {
+        int first = field(FILES, f, F_SPANS);
+        int lo = 0;
+        int hi = field(FILES, f, F_NSPANS);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (field(SPANS, first + mid, S_START) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    @NotNull
+    private Span span(int i) {
+        int start = field(SPANS, i, S_START);
+        int end = field(SPANS, i, S_END);
+        int item = field(SPANS, i, S_ITEM);
+        if (item < 0) {
+            int binding = field(DEFS, -1 - item, D_BINDING);
+            return new Span(start, end, true, Collections.singletonList(new Symbol(binding)));
+        }
+        int first = field(REFS, item, R_BINDINGS);
+        int n = field(REFS, item, R_NBINDINGS);
+        List<Symbol> symbols = new ArrayList<>(n);
+        for (int j = first; j < first + n; j++) {
+            symbols.add(new Symbol(field(INTS, j, 0)));
+        }
+        return new Span(start, end, false, symbols);
+    }
+
+
+    @NotNull
+    private Location defLocation(int d) {
+        String fileOrUrl = string(field(DEFS, d, D_FILE));
+        boolean isUrl = field(DEFS, d, D_URL) != 0;
+        return new Location(isUrl ? null : fileOrUrl, isUrl ? fileOrUrl : null,
+                field(DEFS, d, D_START), field(DEFS, d, D_END));
+    }
+
+
+    @NotNull
+    private Location refLocation(int r) {
+        return new Location(string(field(REFS, r, R_FILE)), null, field(REFS, r, R_START), field(REFS, r, R_END));
+    }
+
+
+    @NotNull
+    private String qnameAt(int i) {
+        return string(field(BINDINGS, field(BY_QNAME, i, 0), B_QNAME));
+    }
+
+
+    private int field(int table, int record, int field) {
+        return mapping.getInt(offsets[table] + (record * WIDTH[table] + field) * 4);
+    }
+
+
+    @Nullable
+    private String string(int s) {
+        if (s < 0) {
+            return null;
+        }
+        int start = field(STRINGS, s, 0);
+        int end = s + 1 < counts[STRINGS] ? field(STRINGS, s + 1, 0) : counts[STRING_BYTES];
+        byte[] bytes = new byte[end - start];
+        ByteBuffer b = mapping.duplicate();
+        b.position(offsets[STRING_BYTES] + start);
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    // ------------------------------------------------------------------
+    // writing
+
+
+    // ints, in the order of the tables
+    private static class Table {
+        private int[] data = new int[64];
+        private int size = 0;
+
+
+        void add(int... values) {
+            for (int v : values) {
+                if (size == data.length) {
+                    data = Arrays.copyOf(data, size * 2);
+                }
+                data[size++] = v;
+            }
+        }
+
+
+        void writeTo(@NotNull DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(data[i]);
+            }
+        }
+    }
+
+
+    private static class Strings {
+        final Map<String, Integer> ids = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+
+        int id(@Nullable String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = strings.size();
+                ids.put(s, id);
+                strings.add(s);
+            }
+            return id;
+        }
+    }
+
+
+    /**
+     * Writes the results of {@code indexer}, after {@link Indexer#finish}, to
+     * {@code file}.  The file is written under another name and renamed, so
+     * a reader never sees half of it.
+     */
+    public static void write(@NotNull Indexer indexer, @NotNull File file) throws IOException {
+        final Strings strings = new Strings();
+        Table bindingTable = new Table();
+        Table defTable = new Table();
+        Table refTable = new Table();
+        Table ints = new Table();
+
+        // bindings, each with its defs
+        final List<Binding> bindings = new ArrayList<>();
+        final Map<Binding, Integer> bindingIds = new IdentityHashMap<>();
+        for (List<Binding> bs : indexer.getAllBindings().values()) {
+            for (Binding b : bs) {
+                if (!bindingIds.containsKey(b)) {
+                    bindingIds.put(b, bindings.size());
+                    bindings.add(b);
+                }
+            }
+        }
+        // bindings referred to but not registered
+        for (List<Binding> bs : indexer.getReferences().values()) {
+            for (Binding b : bs) {
+                if (!bindingIds.containsKey(b)) {
+                    bindingIds.put(b, bindings.size());
+                    bindings.add(b);
+                }
+            }
+        }
+
+        // references
+        Map<Ref, Integer> refIds = new IdentityHashMap<>();
+        Map<String, List<Object>> byFile = new LinkedHashMap<>();
+        for (Map.Entry<Ref, List<Binding>> e : indexer.getReferences().entrySet()) {
+            Ref ref = e.getKey();
+            int id = refIds.size();
+            refIds.put(ref, id);
+            int flags = (ref.isAttribute() ? ATTRIBUTE : 0) | (ref.isCall() ? CALL : 0) |
+                    (ref.isNew() ? NEW : 0) | (ref.isString() ? STRING : 0);
+            refTable.add(strings.id(ref.getFile()), ref.start(), ref.end(), strings.id(ref.getName()), flags,
+                    ints.size, e.getValue().size());
+            for (Binding b : e.getValue()) {
+                ints.add(bindingIds.get(b));
+            }
+            if (ref.getFile() != null && ref.length() > 0) {
+                spansOf(ref.getFile(), byFile).add(ref);
+            }
+        }
+
+        // a def in more than one binding has a record in each, and a span for the first
+        Map<Def, Integer> defIds = new IdentityHashMap<>();
+        int nDefs = 0;
+        for (Binding b : bindings) {
+            int firstDef = nDefs;
+            for (Def def : b.getDefs()) {
+                int id = nDefs++;
+                defTable.add(bindingIds.get(b), strings.id(def.getFileOrUrl()), def.isURL() ? 1 : 0,
+                        def.getStart(), def.getEnd(), def.getBodyStart(), def.getBodyEnd(),
+                        strings.id(def.docstring), strings.id(def.getName()));
+                if (!defIds.containsKey(def)) {
+                    defIds.put(def, id);
+                    if (def.getFile() != null && def.getStart() >= 0 && def.getEnd() > def.getStart()) {
+                        spansOf(def.getFile(), byFile).add(def);
+                    }
+                }
+            }
+
+            int firstRef = ints.size;
+            for (Ref ref : b.getRefs()) {
+                Integer r = refIds.get(ref);
+                if (r != null) {
+                    ints.add(r);
+                }
+            }
+            bindingTable.add(strings.id(b.getQname()), strings.id(b.getName()), strings.id(b.getKind().name()),
+                    strings.id(b.getType().toString()), firstDef, nDefs - firstDef,
+                    firstRef, ints.size - firstRef);
+        }
+
+        // problems, by file
+        Map<String, List<Diagnostic>> diagsByFile = new LinkedHashMap<>();
+        for (Map<String, List<Diagnostic>> m : Arrays.asList(indexer.parseErrors, indexer.semanticErrors)) {
+            for (Map.Entry<String, List<Diagnostic>> e : m.entrySet()) {
+                List<Diagnostic> ds = diagsByFile.get(e.getKey());
+                if (ds == null) {
+                    ds = new ArrayList<>();
+                    diagsByFile.put(e.getKey(), ds);
+                }
+                ds.addAll(e.getValue());
+            }
+        }
+
+        // files, with their spans and problems
+        List<String> paths = new ArrayList<>(byFile.keySet());
+        for (String path : diagsByFile.keySet()) {
+            if (!byFile.containsKey(path)) {
+                paths.add(path);
+            }
+        }
+        Table fileTable = new Table();
+        Table spanTable = new Table();
+        Table diagTable = new Table();
+        int nSpans = 0;
+        int nDiags = 0;
+        for (String path : paths) {
+            List<Object> spans = byFile.containsKey(path) ? byFile.get(path) : Collections.<Object>emptyList();
+            Collections.sort(spans, BY_POSITION);
+            int maxEnd = Integer.MIN_VALUE;
+            for (Object item : spans) {
+                int start = item instanceof Ref ? ((Ref) item).start() : ((Def) item).getStart();
+                int end = item instanceof Ref ? ((Ref) item).end() : ((Def) item).getEnd();
+                maxEnd = Math.max(maxEnd, end);
+                spanTable.add(start, end, maxEnd, item instanceof Ref ? refIds.get(item) : -1 - defIds.get(item));
+            }
+
+            List<Diagnostic> diags = diagsByFile.get(path);
+            if (diags == null) {
+                diags = Collections.emptyList();
+            }
+            for (Diagnostic d : diags) {
+                diagTable.add(strings.id(path), d.category.ordinal(), d.start, d.end, strings.id(d.msg));
+            }
+
+            fileTable.add(strings.id(path), nSpans, spans.size(), nDiags, diags.size());
+            nSpans += spans.size();
+            nDiags += diags.size();
+        }
+
+        // bindings by qname
+        List<Integer> order = new ArrayList<>(bindings.size());
+        for (int i = 0; i < bindings.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return bindings.get(a).getQname().compareTo(bindings.get(b).getQname());
+            }
+        });
+        Table byQname = new Table();
+        for (int i : order) {
+            byQname.add(i);
+        }
+
+        // the string bytes, and where each starts
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        Table stringTable = new Table();
+        for (String s : strings.strings) {
+            stringTable.add(stringBytes.size());
+            byte[] bytes = s.getBytes(UTF8);
+            stringBytes.write(bytes, 0, bytes.length);
+        }
+
+        Table[] tables = new Table[TABLES - 1];
+        tables[STRINGS] = stringTable;
+        tables[FILES] = fileTable;
+        tables[BINDINGS] = bindingTable;
+        tables[DEFS] = defTable;
+        tables[REFS] = refTable;
+        tables[SPANS] = spanTable;
+        tables[DIAGS] = diagTable;
+        tables[INTS] = ints;
+        tables[BY_QNAME] = byQname;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = HEADER;
+            for (int t = 0; t < TABLES - 1; t++) {
+                out.writeInt((int) offset);
+                out.writeInt(tables[t].size / Math.max(WIDTH[t], 1));
+                offset += tables[t].size * 4L;
+            }
+            if (offset + stringBytes.size() > Integer.MAX_VALUE) {
+                throw new IOException("the index is too large for one mapping");
+            }
+            out.writeInt((int) offset);
+            out.writeInt(stringBytes.size());
+
+            for (int t = 0; t < TABLES - 1; t++) {
+                tables[t].writeTo(out);
+            }
+            stringBytes.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("can't write " + file);
+            }
+        }
+    }
+
+
+    private static final Comparator<Object> BY_POSITION = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            int sa = a instanceof Ref ? ((Ref) a).start() : ((Def) a).getStart();
+            int sb = b instanceof Ref ? ((Ref) b).start() : ((Def) b).getStart();
+            if (sa != sb) {
+                return sa < sb ? -1 : 1;
+            }
+            int ea = a instanceof Ref ? ((Ref) a).end() : ((Def) a).getEnd();
+            int eb = b instanceof Ref ? ((Ref) b).end() : ((Def) b).getEnd();
+            return ea < eb ? -1 : ea == eb ? 0 : 1;
+        }
+    };
+
+
+    @NotNull
+    private static List<Object> spansOf(@NotNull String file, @NotNull Map<String, List<Object>> byFile) {
+        List<Object> spans = byFile.get(file);
+        if (spans == null) {
+            spans = new ArrayList<>();
+            byFile.put(file, spans);
+        }
+        return spans;
+    }
+}
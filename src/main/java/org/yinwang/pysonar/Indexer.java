@@ -1,5 +1,6 @@
 package org.yinwang.pysonar;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.ast.*;
@@ -8,43 +9,91 @@ import org.yinwang.pysonar.types.ModuleType;
 import org.yinwang.pysonar.types.Type;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * Indexes a set of Python files and builds a code graph. <p>
- * This class is not thread-safe.
+ * This class is not thread-safe.  With {@code -Dpysonar.threads=N},
+ * {@link #loadFileRecursive} analyzes files that don't import each other on
+ * {@code N} threads, each with a worker indexer of its own, and then merges
+ * the results of the workers into this one.
  */
 public class Indexer {
 
-    public static Indexer idx;
+    // the indexer of the threads that have no worker indexer
+    private static Indexer idx;
+    // the worker indexer of each thread of a parallel analysis
+    private static final ThreadLocal<Indexer> workerIdx = new ThreadLocal<>();
+    // the parallel analyses running; idx() only looks at workerIdx during one
+    private static final AtomicInteger parallelRuns = new AtomicInteger();
+
+    private static final String UNUSED_VARIABLE = "Unused variable: ";
 
     public Scope moduleTable = new Scope(null, Scope.ScopeType.GLOBAL);
     public List<String> loadedFiles = new ArrayList<>();
     public Scope globaltable = new Scope(null, Scope.ScopeType.GLOBAL);
     public Map<String, List<Binding>> allBindings = new LinkedHashMap<>();
-    private Map<Ref, List<Binding>> references = new LinkedHashMap<>();
+    private RefTable references = new RefTable();
+    // what is where, built by finish() and update()
+    @Nullable
+    private PositionIndex positionIndex = null;
     public Map<String, List<Diagnostic>> semanticErrors = new HashMap<>();
     public Map<String, List<Diagnostic>> parseErrors = new HashMap<>();
     public String cwd = null;
     public int nCalled = 0;
     public boolean multilineFunType = false;
     public List<String> path = new ArrayList<>();
-    private Set<FunType> uncalled = new HashSet<>();
+    // in the order they were found, so that they are analyzed in that order
+    private Set<FunType> uncalled = new LinkedHashSet<>();
     private Set<Object> callStack = new HashSet<>();
+    // the pairs of types being compared, against cycles
+    public final TypeStack typeStack = new TypeStack();
+    // the scopes whose supers Scope.lookupAttr is searching, against cycles
+    final Set<Scope> attrLookups = new HashSet<>();
     private Set<Object> importStack = new HashSet<>();
+    // the files being resolved, innermost first
+    private Deque<String> loadStack = new ArrayDeque<>();
+    // which files import which, for the load order and update()
+    public ImportGraph importGraph = new ImportGraph();
 
     private AstCache astCache;
     public String cacheDir;
-    public Set<String> failedToParse = new HashSet<>();
+    public FileHashes fileHashes;
+    // the directories of the load path, for import resolution
+    public ModuleIndex moduleIndex = new ModuleIndex();
+    // which files loadFileRecursive loads
+    public SourceFiles sourceFiles = new SourceFiles();
+    public Set<String> failedToParse = Collections.synchronizedSet(new HashSet<String>());
+    // the modules of the load path that were made from library summaries rather than analyzed
+    public List<String> summarizedFiles = new ArrayList<>();
+    private List<LibrarySummary> summaries = new ArrayList<>();
+    @Nullable
+    private List<LibrarySummary.Loader> summaryLoaders = null;
+    // the files given to loadFileRecursive, which are analyzed even if a summary has them
+    private Set<String> projectFiles = new HashSet<>();
     public Stats stats = new Stats();
     public Builtins builtins;
     private Logger logger;
     private FancyProgress loadingProgress = null;
+    private boolean worker = false;
+
+    // what the last parallel analysis did, for the summary
+    private boolean analyzedInParallel = false;
+    private int parallelThreads = 0;
+    private int parallelGroups = 0;
+    private int largestGroup = 0;
 
 
     public Indexer() {
@@ -55,7 +104,55 @@ public class Indexer {
         builtins.init();
         addPythonPath();
         createCacheDir();
+        fileHashes = new FileHashes(new File(cacheDir, "file_hashes"));
         getAstCache();
+        addSummaries(System.getProperty("pysonar.summaries"));
+    }
+
+
+    /**
+     * A worker of a parallel analysis, created on the thread it works on.  It
+     * shares the caches, the load path and the progress of {@code parent},
+     * and has builtins, modules and results of its own.
+     */
+    private Indexer(@NotNull Indexer parent) {
+        logger = parent.logger;
+        worker = true;
+        workerIdx.set(this);
+        path = new ArrayList<>(parent.path);
+        cacheDir = parent.cacheDir;
+        fileHashes = parent.fileHashes;
+        moduleIndex = parent.moduleIndex;
+        sourceFiles = parent.sourceFiles;
+        astCache = parent.getAstCache();
+        multilineFunType = parent.multilineFunType;
+        loadingProgress = parent.loadingProgress;
+        summaries = parent.summaries;
+        projectFiles = parent.projectFiles;
+        builtins = new Builtins();
+        builtins.init();
+    }
+
+
+    /**
+     * @return the indexer the analysis on the current thread works for: the
+     * thread's worker indexer during a parallel analysis, else the indexer
+     * created last
+     */
+    public static Indexer idx() {
+        if (parallelRuns.get() == 0) {
+            return idx;
+        }
+        Indexer worker = workerIdx.get();
+        return worker != null ? worker : idx;
+    }
+
+
+    /**
+     * @return {@code true} if this is a worker of a parallel analysis
+     */
+    public boolean isWorker() {
+        return worker;
     }
 
 
@@ -95,6 +192,40 @@ public class Indexer {
     }
 
 
+    /**
+     * Reads the library summaries in {@code files}, a list like the one in
+     * {@code -Dpysonar.summaries}, separated by {@link File#pathSeparator}.
+     */
+    private void addSummaries(@Nullable String files) {
+        if (files == null) {
+            return;
+        }
+        for (String file : files.split(File.pathSeparator)) {
+            if (file.isEmpty()) {
+                continue;
+            }
+            try {
+                addSummary(LibrarySummary.read(new File(file)));
+                _.msg("Library summary: " + file);
+            }
+            catch (IOException e) {
+                warn("can't read the library summary " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Makes the modules of the files {@code summary} has from it from now on,
+     * instead of analyzing them, unless they changed since they were
+     * summarized or are given to {@link #loadFileRecursive}.
+     */
+    public void addSummary(@NotNull LibrarySummary summary) {
+        summaries.add(summary);
+        summaryLoaders = null;
+    }
+
+
     @NotNull
     public List<String> getLoadPath() {
         List<String> loadPath = new ArrayList<>();
@@ -175,16 +306,7 @@ public class Indexer {
         if (node == null || node instanceof Url || b == null) {
             return;
         }
-        Ref ref = new Ref(node);
-        List<Binding> bindings = references.get(ref);
-        if (bindings == null) {
-            bindings = new ArrayList<>(1);
-            references.put(ref, bindings);
-        }
-        if (!bindings.contains(b)) {
-            bindings.add(b);
-        }
-        b.addRef(ref);
+        b.addRef(references.put(node, b));
     }
 
 
@@ -194,6 +316,19 @@ public class Indexer {
     }
 
 
+    /**
+     * @return the index of the references and definitions by position, as of
+     * the last {@link #finish} or {@link #update}
+     */
+    @NotNull
+    public PositionIndex getPositionIndex() {
+        if (positionIndex == null) {
+            positionIndex = new PositionIndex(references, allBindings.values());
+        }
+        return positionIndex;
+    }
+
+
     public void putProblem(@NotNull Node loc, String msg) {
         String file = loc.getFile();
         if (file != null) {
@@ -238,11 +373,17 @@ public class Indexer {
         path = _.unifyPath(path);
         File f = new File(path);
 
+        positionIndex = null;
+
         if (!f.canRead()) {
             finer("\nfile not not found or cannot be read: " + path);
             return null;
         }
 
+        if (!loadStack.isEmpty()) {
+            importGraph.addImport(loadStack.peek(), path);
+        }
+
         ModuleType module = getCachedModule(path);
         if (module != null) {
             finer("\nusing cached module " + path + " [succeeded]");
@@ -250,7 +391,7 @@ public class Indexer {
         }
 
         // detect circular import
-        if (Indexer.idx.inImportStack(path)) {
+        if (Indexer.idx().inImportStack(path)) {
             return null;
         }
 
@@ -258,8 +399,18 @@ public class Indexer {
         String oldcwd = cwd;
         setCWD(f.getParent());
 
-        Indexer.idx.pushImportStack(path);
-        ModuleType mod = parseAndResolve(path);
+        Indexer.idx().pushImportStack(path);
+        loadStack.push(path);
+        ModuleType mod;
+        try {
+            mod = loadSummarized(path);
+            if (mod == null) {
+                mod = parseAndResolve(path);
+            }
+        }
+        finally {
+            loadStack.pop();
+        }
 
         // restore old CWD
         setCWD(oldcwd);
@@ -267,6 +418,49 @@ public class Indexer {
     }
 
 
+    /**
+     * Makes the module of {@code file} from a library summary, if one has the
+     * file as it is now and it isn't a file of the project.
+     *
+     * @return the module, or {@code null} if the file has to be analyzed
+     */
+    @Nullable
+    private ModuleType loadSummarized(@NotNull String file) {
+        if (summaries.isEmpty() || projectFiles.contains(file)) {
+            return null;
+        }
+        String sha1 = null;
+        for (LibrarySummary.Loader loader : getSummaryLoaders()) {
+            String summarized = loader.getSummary().getSHA1(file);
+            if (summarized == null) {
+                continue;
+            }
+            if (sha1 == null) {
+                sha1 = fileHashes.getSHA1(file);
+            }
+            if (summarized.equals(sha1)) {
+                finer("using the library summary of " + file);
+                loadingProgress.tick();
+                summarizedFiles.add(file);
+                return loader.load(file);
+            }
+        }
+        return null;
+    }
+
+
+    @NotNull
+    private List<LibrarySummary.Loader> getSummaryLoaders() {
+        if (summaryLoaders == null) {
+            summaryLoaders = new ArrayList<>();
+            for (LibrarySummary summary : summaries) {
+                summaryLoaders.add(summary.newLoader(this));
+            }
+        }
+        return summaryLoaders;
+    }
+
+
     private boolean isInLoadPath(File dir) {
         for (String s : getLoadPath()) {
             if (new File(s).equals(dir)) {
@@ -307,8 +501,17 @@ public class Indexer {
     }
 
 
+    /**
+     * @return the directory of the on-disk AST cache
+     */
+    @NotNull
+    public static String getDefaultCacheDir() {
+        return _.makePathString(_.getSystemTempDir(), "pysonar2", "ast_cache");
+    }
+
+
     private void createCacheDir() {
-        cacheDir = _.makePathString(_.getSystemTempDir(), "pysonar2", "ast_cache");
+        cacheDir = getDefaultCacheDir();
         File f = new File(cacheDir);
         _.msg("AST cache is at: " + cacheDir);
 
@@ -370,15 +573,8 @@ public class Indexer {
         List<String> loadPath = getLoadPath();
 
         for (String p : loadPath) {
-            File startDir = new File(p, headName);
-            File initFile = new File(_.joinPath(startDir, "__init__.py").getPath());
-
-            if (initFile.exists()) {
-                return p;
-            }
-
-            File startFile = new File(startDir + ".py");
-            if (startFile.exists()) {
+            File dir = new File(p);
+            if (moduleIndex.isPackage(dir, headName) || moduleIndex.isModuleFile(dir, headName)) {
                 return p;
             }
         }
@@ -389,6 +585,19 @@ public class Indexer {
 
     @Nullable
     public ModuleType loadModule(@NotNull List<Name> name, @NotNull Scope scope) {
+        return loadModule(name, scope, true);
+    }
+
+
+    /**
+     * Loads the module {@code name} and the packages it is in.
+     *
+     * @param bindFirst whether to bind the first segment of {@code name} in
+     *                  {@code scope}, as {@code import a.b} does and
+     *                  {@code from a.b import c} doesn't
+     */
+    @Nullable
+    public ModuleType loadModule(@NotNull List<Name> name, @NotNull Scope scope, boolean bindFirst) {
         if (name.isEmpty()) {
             return null;
         }
@@ -397,9 +606,11 @@ public class Indexer {
 
         ModuleType mt = getBuiltinModule(qname);
         if (mt != null) {
-            scope.insert(name.get(0).id,
-                    new Url(Builtins.LIBRARY_URL + mt.getTable().getPath() + ".html"),
-                    mt, Binding.Kind.SCOPE);
+            if (bindFirst) {
+                scope.insert(name.get(0).id,
+                        new Url(Builtins.LIBRARY_URL + mt.getTable().getPath() + ".html"),
+                        mt, Binding.Kind.SCOPE);
+            }
             return mt;
         }
 
@@ -415,10 +626,11 @@ public class Indexer {
         File path = new File(startPath);
 
         for (int i = 0; i < name.size(); i++) {
+            File parent = path;
             path = new File(path, name.get(i).id);
             File initFile = new File(_.joinPath(path, "__init__.py").getPath());
 
-            if (initFile.exists()) {
+            if (moduleIndex.isPackage(parent, name.get(i).id)) {
                 ModuleType mod = loadFile(initFile.getPath());
                 if (mod == null) {
                     return null;
@@ -426,27 +638,27 @@ public class Indexer {
 
                 if (prev != null) {
                     Binding b = prev.getTable().insert(name.get(i).id, name.get(i), mod, Binding.Kind.VARIABLE);
-                    Indexer.idx.putRef(name.get(i), b);
-                } else {
+                    Indexer.idx().putRef(name.get(i), b);
+                } else if (bindFirst) {
                     Binding b = scope.insert(name.get(i).id, name.get(i), mod, Binding.Kind.VARIABLE);
-                    Indexer.idx.putRef(name.get(i), b);
+                    Indexer.idx().putRef(name.get(i), b);
                 }
 
                 prev = mod;
 
             } else if (i == name.size() - 1) {
                 File startFile = new File(path + ".py");
-                if (startFile.exists()) {
+                if (moduleIndex.isModuleFile(parent, name.get(i).id)) {
                     ModuleType mod = loadFile(startFile.getPath());
                     if (mod == null) {
                         return null;
                     }
                     if (prev != null) {
                         Binding b = prev.getTable().insert(name.get(i).id, name.get(i), mod, Binding.Kind.VARIABLE);
-                        Indexer.idx.putRef(name.get(i), b);
-                    } else {
+                        Indexer.idx().putRef(name.get(i), b);
+                    } else if (bindFirst) {
                         Binding b = scope.insert(name.get(i).id, name.get(i), mod, Binding.Kind.VARIABLE);
-                        Indexer.idx.putRef(name.get(i), b);
+                        Indexer.idx().putRef(name.get(i), b);
                     }
                     prev = mod;
                 } else {
@@ -460,44 +672,466 @@ public class Indexer {
 
     /**
      * Load all Python source files recursively if the given fullname is a
-     * directory; otherwise just load a file.  Looks at file extension to
-     * determine whether to load a given file.
+     * directory; otherwise just load a file.  The files are found by
+     * {@link #sourceFiles}, in one walk of the tree. <p>
+     * With {@code -Dpysonar.threads=N} and nothing loaded yet, groups of files
+     * that don't import each other are analyzed on {@code N} threads, and
+     * their results merged in an order that doesn't depend on {@code N}.
      */
     public void loadFileRecursive(String fullname) {
-        int count = countFileRecursive(fullname);
+        List<String> files = sourceFiles.find(fullname);
+        projectFiles.addAll(files);
+
+        // each file after the files it imports, so that an import finds its module
+        // resolved instead of resolving it in the middle of the importing file
+        List<List<String>> components = scheduleImports(files);
+        List<String> order = new ArrayList<>();
+        for (List<String> component : components) {
+            order.addAll(component);
+        }
+
         if (loadingProgress == null) {
-            loadingProgress = new FancyProgress(count, 50);
+            loadingProgress = new FancyProgress(files.size(), 50);
+
+            // parse ahead on the parser pool while the files are resolved one by one,
+            // except for the files that will come from summaries
+            Set<String> summarized = new HashSet<>();
+            for (LibrarySummary summary : summaries) {
+                summarized.addAll(summary.getFiles());
+            }
+            summarized.removeAll(projectFiles);
+            getAstCache().prefetch(order, summarized);
         }
 
-        File file_or_dir = new File(fullname);
+        int threads = Integer.getInteger("pysonar.threads", 1);
+        if (threads > 1 && loadedFiles.isEmpty()) {
+            List<List<String>> groups = importGraph.getGroups(order);
+            if (groups.size() > 1 && loadParallel(groups, order, threads)) {
+                return;
+            }
+        }
 
-        if (file_or_dir.isDirectory()) {
-            for (File file : file_or_dir.listFiles()) {
-                loadFileRecursive(file.getPath());
+        for (List<String> component : components) {
+            for (String file : component) {
+                loadFile(file);
             }
-        } else {
-            if (file_or_dir.getPath().endsWith(".py")) {
-                loadFile(file_or_dir.getPath());
+        }
+    }
+
+
+    /**
+     * Loads {@code groups} on worker indexers, the largest groups first, and
+     * merges the results of the workers into this indexer.  If a file was
+     * loaded by two workers, because an import was resolved differently than
+     * {@link ImportGraph#scanImportedFiles} predicted, the results are dropped.
+     *
+     * @param order the files in the order they are loaded on one thread
+     * @return {@code false} if the results were dropped and nothing is loaded
+     */
+    private boolean loadParallel(@NotNull List<List<String>> groups, @NotNull List<String> order, int threads) {
+        final Deque<List<String>> queue = new ArrayDeque<>();
+        List<List<String>> bySize = new ArrayList<>(groups);
+        Collections.sort(bySize, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> a, List<String> b) {
+                return b.size() - a.size();
+            }
+        });
+        queue.addAll(bySize);
+
+        int n = Math.min(threads, groups.size());
+        ExecutorService pool = Executors.newFixedThreadPool(n, new ThreadFactoryBuilder()
+                .setNameFormat("pysonar-analysis-%d")
+                .setDaemon(true)
+                .build());
+        List<Future<Indexer>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            futures.add(pool.submit(new Callable<Indexer>() {
+                @Override
+                public Indexer call() {
+                    parallelRuns.incrementAndGet();
+                    try {
+                        Indexer worker = new Indexer(Indexer.this);
+                        while (true) {
+                            List<String> group;
+                            synchronized (queue) {
+                                group = queue.poll();
+                            }
+                            if (group == null) {
+                                break;
+                            }
+                            for (String file : group) {
+                                worker.loadFile(file);
+                            }
+                        }
+                        worker.applyUncalled();
+                        return worker;
+                    }
+                    finally {
+                        workerIdx.remove();
+                        parallelRuns.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<Indexer> workers = new ArrayList<>();
+        for (Future<Indexer> f : futures) {
+            try {
+                workers.add(f.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while analyzing", e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (Indexer worker : workers) {
+            List<String> files = new ArrayList<>(worker.loadedFiles);
+            files.addAll(worker.summarizedFiles);
+            for (String file : files) {
+                if (!seen.add(file)) {
+                    _.msg("\n" + file + " was analyzed by two threads, analyzing again on one");
+                    // the workers left their marks on the ASTs, e.g. which functions were called
+                    for (String loaded : seen) {
+                        getAstCache().forget(loaded);
+                    }
+                    for (Indexer w : workers) {
+                        for (String loaded : w.loadedFiles) {
+                            getAstCache().forget(loaded);
+                        }
+                    }
+                    return false;
+                }
             }
         }
+
+        merge(workers, loadOrder(workers, order));
+        analyzedInParallel = true;
+        parallelThreads = n;
+        parallelGroups = groups.size();
+        largestGroup = bySize.get(0).size();
+        return true;
     }
 
 
-    // count number of .py files
-    public int countFileRecursive(String fullname) {
-        File file_or_dir = new File(fullname);
-        int sum = 0;
+    /**
+     * Places the files the workers loaded in the order one thread would have
+     * loaded them: the files of {@code order} as there, and each file loaded for
+     * one of them, e.g. from the load path, just before it.  Files loaded after
+     * the last of them come last, by path.
+     */
+    @NotNull
+    private static Map<String, Integer> loadOrder(@NotNull List<Indexer> workers, @NotNull List<String> order) {
+        Map<String, Integer> place = new HashMap<>();
+        for (String file : order) {
+            place.put(file, place.size());
+        }
 
-        if (file_or_dir.isDirectory()) {
-            for (File file : file_or_dir.listFiles()) {
-                sum += countFileRecursive(file.getPath());
+        final Map<String, int[]> keys = new HashMap<>();
+        List<String> files = new ArrayList<>();
+        for (Indexer worker : workers) {
+            List<String> pending = new ArrayList<>();
+            for (String file : worker.loadedFiles) {
+                Integer p = place.get(file);
+                if (p == null) {
+                    pending.add(file);
+                } else {
+                    pending.add(file);
+                    for (int i = 0; i < pending.size(); i++) {
+                        keys.put(pending.get(i), new int[]{p, i});
+                    }
+                    pending.clear();
+                }
+            }
+            for (String file : pending) {
+                keys.put(file, new int[]{Integer.MAX_VALUE, 0});
+            }
+            files.addAll(worker.loadedFiles);
+        }
+
+        Collections.sort(files, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int[] ka = keys.get(a);
+                int[] kb = keys.get(b);
+                if (ka[0] != kb[0]) {
+                    return ka[0] < kb[0] ? -1 : 1;
+                } else if (ka[1] != kb[1]) {
+                    return ka[1] < kb[1] ? -1 : 1;
+                } else {
+                    return a.compareTo(b);
+                }
             }
+        });
+
+        Map<String, Integer> rank = new HashMap<>();
+        for (String file : files) {
+            rank.put(file, rank.size());
+        }
+        return rank;
+    }
+
+
+    /**
+     * Adds the results of {@code workers} to this indexer, in an order that
+     * doesn't depend on which worker analyzed which files: that of
+     * {@code rank} for the files, with the bindings that have no definition in
+     * a file after the others, by qname.  Each worker has builtins of its own,
+     * so a binding without a definition in a file is merged into the one this
+     * indexer has with the same qname and definitions, if there is one.  Its
+     * references are added in the order of their files, so that of two in
+     * different files at the same offset the same one is kept as on one
+     * thread.  The bindings are registered under their qnames rather than
+     * under the paths they had when they were made, which depend on what else
+     * their worker analyzed.
+     */
+    private void merge(@NotNull List<Indexer> workers, @NotNull final Map<String, Integer> rank) {
+        final Comparator<Binding> bindingOrder = new Comparator<Binding>() {
+            @Override
+            public int compare(Binding a, Binding b) {
+                Def da = firstFileDef(a);
+                Def db = firstFileDef(b);
+                if (da != null && db != null) {
+                    int c = compareFiles(da.getFile(), db.getFile(), rank);
+                    if (c != 0) {
+                        return c;
+                    }
+                    if (da.getStart() != db.getStart()) {
+                        return da.getStart() < db.getStart() ? -1 : 1;
+                    }
+                } else if (da != null || db != null) {
+                    return da != null ? -1 : 1;
+                }
+                int c = a.getQname().compareTo(b.getQname());
+                return c != 0 ? c : a.getKind().compareTo(b.getKind());
+            }
+        };
+        final Comparator<Ref> refOrder = new Comparator<Ref>() {
+            @Override
+            public int compare(Ref a, Ref b) {
+                int c = compareFiles(a.getFile(), b.getFile(), rank);
+                return c != 0 ? c : a.start() - b.start();
+            }
+        };
+
+        // the bindings this indexer had, which stay in front
+        Map<String, Integer> had = new HashMap<>();
+        for (Entry<String, List<Binding>> ent : allBindings.entrySet()) {
+            had.put(ent.getKey(), ent.getValue().size());
+        }
+
+        Map<Binding, Binding> same = new HashMap<>();
+        Map<Binding, List<Ref>> sharedRefs = new LinkedHashMap<>();
+        List<Entry<Ref, List<Binding>>> refs = new ArrayList<>();
+        for (Indexer worker : workers) {
+            for (Entry<String, List<Binding>> ent : worker.allBindings.entrySet()) {
+                for (Binding b : ent.getValue()) {
+                    Binding existing = hasFileDef(b) ? null : findSameBinding(ent.getKey(), b);
+                    if (existing == null) {
+                        getBindings(b.getQname(), allBindings).add(b);
+                    } else {
+                        List<Ref> rs = sharedRefs.get(existing);
+                        if (rs == null) {
+                            rs = new ArrayList<>(existing.getRefs());
+                            sharedRefs.put(existing, rs);
+                        }
+                        rs.addAll(b.getRefs());
+                        same.put(b, existing);
+                    }
+                }
+            }
+            refs.addAll(worker.references.entrySet());
+
+            for (Entry<String, List<Diagnostic>> ent : worker.semanticErrors.entrySet()) {
+                getFileErrs(ent.getKey(), semanticErrors).addAll(ent.getValue());
+            }
+            for (Entry<String, List<Diagnostic>> ent : worker.parseErrors.entrySet()) {
+                getFileErrs(ent.getKey(), parseErrors).addAll(ent.getValue());
+            }
+            for (String file : worker.importGraph.getFiles()) {
+                for (String imported : worker.importGraph.getImports(file)) {
+                    importGraph.addImport(file, imported);
+                }
+            }
+            builtins.addMerged(worker.builtins);
+            summarizedFiles.addAll(worker.summarizedFiles);
+            failedToParse.addAll(worker.failedToParse);
+            nCalled += worker.nCalled;
+            stats.add(worker.stats);
+        }
+
+        for (Entry<Binding, List<Ref>> ent : sharedRefs.entrySet()) {
+            List<Ref> rs = ent.getValue();
+            Collections.sort(rs, refOrder);
+            ent.getKey().getRefs().clear();
+            ent.getKey().getRefs().addAll(rs);
+        }
+
+        Map<String, List<Binding>> merged = new LinkedHashMap<>();
+        List<String> added = new ArrayList<>();
+        for (Entry<String, List<Binding>> ent : allBindings.entrySet()) {
+            Integer n = had.get(ent.getKey());
+            List<Binding> bs = ent.getValue();
+            if (n == null) {
+                Collections.sort(bs, bindingOrder);
+                added.add(ent.getKey());
+            } else {
+                Collections.sort(bs.subList(n, bs.size()), bindingOrder);
+                merged.put(ent.getKey(), bs);
+            }
+        }
+        final Map<String, List<Binding>> all = allBindings;
+        Collections.sort(added, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return bindingOrder.compare(all.get(a).get(0), all.get(b).get(0));
+            }
+        });
+        for (String key : added) {
+            merged.put(key, allBindings.get(key));
+        }
+        allBindings = merged;
+
+        Collections.sort(refs, new Comparator<Entry<Ref, List<Binding>>>() {
+            @Override
+            public int compare(Entry<Ref, List<Binding>> a, Entry<Ref, List<Binding>> b) {
+                return refOrder.compare(a.getKey(), b.getKey());
+            }
+        });
+        for (Entry<Ref, List<Binding>> ent : refs) {
+            List<Binding> bindings = new ArrayList<>(ent.getValue().size());
+            for (Binding b : ent.getValue()) {
+                Binding mb = same.get(b);
+                if (mb == null) {
+                    mb = b;
+                }
+                if (!bindings.contains(mb)) {
+                    bindings.add(mb);
+                }
+            }
+            references.put(ent.getKey(), bindings);
+        }
+
+        List<Entry<String, Binding>> modules = new ArrayList<>();
+        for (Indexer worker : workers) {
+            modules.addAll(worker.moduleTable.entrySet());
+        }
+        Collections.sort(modules, new Comparator<Entry<String, Binding>>() {
+            @Override
+            public int compare(Entry<String, Binding> a, Entry<String, Binding> b) {
+                return bindingOrder.compare(a.getValue(), b.getValue());
+            }
+        });
+        for (Entry<String, Binding> ent : modules) {
+            moduleTable.update(ent.getKey(), ent.getValue());
+        }
+
+        List<String> files = new ArrayList<>(rank.keySet());
+        Collections.sort(files, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return compareFiles(a, b, rank);
+            }
+        });
+        loadedFiles.addAll(files);
+        Collections.sort(summarizedFiles);
+    }
+
+
+    // by rank, then the files without rank by path, then no file
+    private static int compareFiles(@Nullable String a, @Nullable String b, @NotNull Map<String, Integer> rank) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        Integer ra = rank.get(a);
+        Integer rb = rank.get(b);
+        if (ra != null && rb != null) {
+            return ra.compareTo(rb);
+        } else if (ra != null || rb != null) {
+            return ra != null ? -1 : 1;
         } else {
-            if (file_or_dir.getPath().endsWith(".py")) {
-                sum += 1;
+            return a.compareTo(b);
+        }
+    }
+
+
+    @Nullable
+    private static Def firstFileDef(@NotNull Binding b) {
+        for (Def def : b.getDefs()) {
+            if (def.getFile() != null) {
+                return def;
+            }
+        }
+        return null;
+    }
+
+
+    private static boolean hasFileDef(@NotNull Binding b) {
+        return firstFileDef(b) != null;
+    }
+
+
+    @NotNull
+    private static List<Binding> getBindings(@NotNull String key, @NotNull Map<String, List<Binding>> map) {
+        List<Binding> bindings = map.get(key);
+        if (bindings == null) {
+            bindings = new ArrayList<>();
+            map.put(key, bindings);
+        }
+        return bindings;
+    }
+
+
+    // a binding of this indexer, registered under key, without a definition in a file, that is like b
+    @Nullable
+    private Binding findSameBinding(@NotNull String key, @NotNull Binding b) {
+        List<Binding> bindings = allBindings.get(key);
+        if (bindings != null) {
+            for (Binding existing : bindings) {
+                if (existing.getQname().equals(b.getQname()) && existing.getKind() == b.getKind() &&
+                        !hasFileDef(existing) && existing.getDefs().equals(b.getDefs()))
+                {
+                    return existing;
+                }
             }
         }
-        return sum;
+        return null;
+    }
+
+
+    /**
+     * Adds the imports in the sources of {@code files} to {@link #importGraph}.
+     * They are read by {@link ImportGraph#scanImportedFiles}, so that the
+     * files are parsed on the parser pool in the order they are analyzed,
+     * while earlier files are resolved, instead of all of them up front.
+     *
+     * @return {@code files} in the order of {@link ImportGraph#getComponents}
+     */
+    @NotNull
+    private List<List<String>> scheduleImports(@NotNull List<String> files) {
+        for (String file : files) {
+            for (String imported : ImportGraph.scanImportedFiles(file, path)) {
+                importGraph.addImport(file, imported);
+            }
+        }
+        return importGraph.getComponents(files);
+    }
+
+
+    // count number of .py files
+    public int countFileRecursive(String fullname) {
+        return sourceFiles.find(fullname).size();
     }
 
 
@@ -506,8 +1140,184 @@ public class Indexer {
         _.msg("\nFinished loading files. " + nCalled + " functions were called.");
         _.msg("Analyzing uncalled functions");
         applyUncalled();
+        markUnusedVariables();
+
+        for (Entry<Ref, List<Binding>> ent : references.entrySet()) {
+            convertCallToNew(ent.getKey(), ent.getValue());
+        }
+
+        getPositionIndex();
+
+        _.msg(getAnalysisSummary());
+    }
+
+
+    /**
+     * Analyzes {@code changedFiles} again, after {@link #finish}, together with
+     * the files that import them directly or indirectly, as recorded in
+     * {@link #importGraph}.  The bindings, references and problems of these
+     * files are removed and replaced by the new ones; those of the other
+     * files stay as they are.  A changed file that no longer exists is only
+     * removed, and one that wasn't loaded before is loaded. <p>
+     * Types that flowed from the changed files into files that don't import
+     * them, e.g. through calls of their functions, are not updated.
+     *
+     * @return the files analyzed again
+     */
+    @NotNull
+    public List<String> update(@NotNull Collection<String> changedFiles) {
+        List<String> changed = new ArrayList<>();
+        for (String file : changedFiles) {
+            changed.add(_.unifyPath(file));
+        }
+        Set<String> affected = importGraph.getDependents(changed);
+
+        // in the order they were loaded first, so that imports resolve as before
+        List<String> loaded = new ArrayList<>(loadedFiles);
+        loaded.addAll(summarizedFiles);
+        List<String> order = new ArrayList<>();
+        for (String file : loaded) {
+            if (affected.contains(file)) {
+                order.add(file);
+            }
+        }
+        for (String file : affected) {
+            if (!order.contains(file) && file.endsWith(".py")) {
+                order.add(file);
+            }
+        }
+
+        Map<String, String> modules = new HashMap<>();
+        for (String file : loaded) {
+            modules.put(_.moduleQname(file), file);
+        }
+
+        for (String file : affected) {
+            forget(file);
+        }
+        removeResults(affected, modules);
+
+        loadingProgress = new FancyProgress(order.size(), 50);
+        for (String file : order) {
+            loadFile(file);
+        }
+        applyUncalled();
+        markUnusedVariables();
+
+        for (Entry<Ref, List<Binding>> ent : references.entrySet()) {
+            if (affected.contains(ent.getKey().getFile())) {
+                convertCallToNew(ent.getKey(), ent.getValue());
+            }
+        }
+
+        positionIndex = null;
+        getPositionIndex();
+        return order;
+    }
+
+
+    // forgets that file was loaded, and its AST, so that loadFile reads it again
+    private void forget(@NotNull String file) {
+        moduleTable.remove(_.moduleQname(file));
+        loadedFiles.remove(file);
+        if (summarizedFiles.remove(file)) {
+            // the loaders remember the types they made for the module
+            summaryLoaders = null;
+        }
+        failedToParse.remove(file);
+        importStack.remove(file);
+        importGraph.remove(file);
+        semanticErrors.remove(file);
+        parseErrors.remove(file);
+        getAstCache().forget(file);
+    }
+
+
+    /**
+     * Removes the definitions and references in {@code files} from the
+     * bindings.  Bindings defined only by a URL, like the special attributes
+     * of a class, are removed with the module their qname is in.
+     *
+     * @param modules the loaded files by module qname
+     */
+    private void removeResults(@NotNull Set<String> files, @NotNull Map<String, String> modules) {
+        Iterator<Entry<Ref, List<Binding>>> refs = references.entrySet().iterator();
+        while (refs.hasNext()) {
+            Entry<Ref, List<Binding>> ent = refs.next();
+            if (files.contains(ent.getKey().getFile())) {
+                for (Binding b : ent.getValue()) {
+                    Iterator<Ref> it = b.getRefs().iterator();
+                    while (it.hasNext()) {
+                        if (files.contains(it.next().getFile())) {
+                            it.remove();
+                        }
+                    }
+                }
+                refs.remove();
+            }
+        }
+
+        Iterator<Entry<String, List<Binding>>> all = allBindings.entrySet().iterator();
+        while (all.hasNext()) {
+            List<Binding> bindings = all.next().getValue();
+            Iterator<Binding> bs = bindings.iterator();
+            while (bs.hasNext()) {
+                Binding b = bs.next();
+                boolean removed = false;
+                Iterator<Def> defs = b.getDefs().iterator();
+                while (defs.hasNext()) {
+                    if (files.contains(defs.next().getFile())) {
+                        defs.remove();
+                        removed = true;
+                    }
+                }
+                if (removed && b.getDefs().isEmpty() ||
+                        b.isBuiltin() && files.contains(moduleFile(b.getQname(), modules)))
+                {
+                    bs.remove();
+                }
+            }
+            if (bindings.isEmpty()) {
+                all.remove();
+            }
+        }
+    }
+
+
+    // the file of the module that qname is in, or null if it is not in a loaded module
+    @Nullable
+    private static String moduleFile(@NotNull String qname, @NotNull Map<String, String> modules) {
+        String q = qname;
+        while (true) {
+            String file = modules.get(q);
+            if (file != null) {
+                return file;
+            }
+            int dot = q.lastIndexOf('.');
+            if (dot <= 0) {
+                return null;
+            }
+            q = q.substring(0, dot);
+        }
+    }
+
+
+    // reports the variables that are never referenced, replacing an earlier report
+    private void markUnusedVariables() {
+        Iterator<List<Diagnostic>> files = semanticErrors.values().iterator();
+        while (files.hasNext()) {
+            List<Diagnostic> diagnostics = files.next();
+            Iterator<Diagnostic> it = diagnostics.iterator();
+            while (it.hasNext()) {
+                if (it.next().msg.startsWith(UNUSED_VARIABLE)) {
+                    it.remove();
+                }
+            }
+            if (diagnostics.isEmpty()) {
+                files.remove();
+            }
+        }
 
-        // mark unused variables
         for (List<Binding> bindings : allBindings.values()) {
             for (Binding b : bindings) {
                 if (!b.getType().isClassType() &&
@@ -516,22 +1326,36 @@ public class Indexer {
                         && b.getRefs().isEmpty())
                 {
                     for (Def def : b.getDefs()) {
-                        Indexer.idx.putProblem(def.getNode(), "Unused variable: " + def.getName());
+                        Indexer.idx().putProblem(def.getNode(), UNUSED_VARIABLE + def.getName());
                     }
                 }
             }
         }
-
-        for (Entry<Ref, List<Binding>> ent : references.entrySet()) {
-            convertCallToNew(ent.getKey(), ent.getValue());
-        }
-
-        _.msg(getAnalysisSummary());
     }
 
 
     public void close() {
         astCache.close();
+        fileHashes.save();
+    }
+
+
+    /**
+     * Gives up the AST cache, so that the next indexer made gets one of its
+     * own, and this one can still answer from its results meanwhile.
+     */
+    void detachAstCache() {
+        getAstCache().detach();
+        fileHashes.save();
+    }
+
+
+    /**
+     * Makes this the indexer the analysis works for again, after another one
+     * was made.
+     */
+    void makeCurrent() {
+        idx = this;
     }
 
 
@@ -594,8 +1418,55 @@ public class Indexer {
         String duration = _.formatTime(System.currentTimeMillis() - stats.getInt("startTime"));
         sb.append("\n- total time: " + duration);
         sb.append("\n- modules loaded: " + loadedFiles.size());
+        if (!summaries.isEmpty()) {
+            sb.append("\n- modules from library summaries: " + summarizedFiles.size());
+        }
+        if (analyzedInParallel) {
+            sb.append("\n- analyzed in parallel: " + parallelGroups + " groups of files that don't import " +
+                    "each other, on " + parallelThreads + " threads; the largest group has " + largestGroup + " files");
+        }
         sb.append("\n- semantic problems: " + semanticErrors.size());
         sb.append("\n- failed to parse: " + failedToParse.size());
+        sb.append("\n- parse retries avoided: " + getAstCache().getParseRetriesAvoided());
+
+        sb.append("\n- source files hashed: " + fileHashes.getMisses() + ", unchanged and not read: " +
+                fileHashes.getHits());
+
+        sb.append("\n- import lookups: " + moduleIndex.getLookups() + ", from " + moduleIndex.getScans() +
+                " directory listings");
+
+        int cycles = 0;
+        for (List<String> component : importGraph.getComponents(loadedFiles)) {
+            if (component.size() > 1) {
+                cycles++;
+            }
+        }
+        sb.append("\n- import graph: " + importGraph.getFiles().size() + " files, " +
+                importGraph.getImportCount() + " imports, " + cycles + " import cycles");
+
+        int hits = getAstCache().getDiskHits();
+        sb.append("\n- AST cache hits: " + _.percent(hits, hits + getAstCache().getParses()) + " (" + hits +
+                " loaded, " + getAstCache().getParses() + " parsed), about " +
+                _.formatTime(Math.max(0, getAstCache().getMillisSaved())) + " of parsing saved");
+
+        AstMemoryCache memoryCache = getAstCache().getMemoryCache();
+        sb.append("\n- ASTs dropped from memory: " + memoryCache.getEvictions() + " (" +
+                memoryCache.getUsed() / (1024 * 1024) + " of " + memoryCache.getBudget() / (1024 * 1024) + " MB used)");
+
+        AstWriter writer = getAstCache().getWriter();
+        if (writer != null) {
+            long millis = Math.max(1, writer.getWriteMillis());
+            sb.append("\n- ASTs written to the disk cache: " + writer.getWritten() + ", " +
+                    writer.getBytesWritten() / 1024 + " KB at " + writer.getBytesWritten() / 1024 * 1000 / millis +
+                    " KB/s; queue " + writer.getDepth() + " now, " + writer.getPeakDepth() + " at most, of " +
+                    writer.getCapacity() + "; " + writer.getBlockedMillis() + " ms waiting for room");
+        }
+
+        AstPrefetcher prefetcher = getAstCache().getPrefetcher();
+        if (prefetcher != null) {
+            sb.append("\n- ASTs parsed ahead: " + prefetcher.getHits() + " ready, " +
+                    prefetcher.getWaits() + " waited for, " + prefetcher.getMisses() + " missed");
+        }
 
         // calculate number of defs, refs, xrefs
         int nDef = 0, nXRef = 0;
@@ -626,6 +1497,15 @@ public class Indexer {
     }
 
 
+    /**
+     * @return {@code true} if the last {@link #loadFileRecursive} analyzed the
+     * files on several threads
+     */
+    public boolean isAnalyzedInParallel() {
+        return analyzedInParallel;
+    }
+
+
     @NotNull
     public List<String> getLoadedFiles() {
         List<String> files = new ArrayList<>();
@@ -0,0 +1,133 @@
+package org.yinwang.pysonar;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.NodeFactory.Fields;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ * Builds AST nodes from the JSON written by ast2json.py in one pass over the
+ * token stream.  The fields of a JSON object are kept in a small {@link Fields}
+ * record only until the object closes; by then all of its children are built,
+ * so {@link NodeFactory} can create the node right away and the record is dropped.
+ */
+public class JsonAstBuilder {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    // fields written by ast2json.py that no node reads
+    private static final java.util.Set<String> IGNORED = new HashSet<>(Arrays.asList(
+            "lineno", "col_offset", "end_lineno", "end_col_offset", "ctx", "type_comment",
+            "_fields", "extra_attr", "opsName", "vararg_name", "kwarg_name"));
+
+
+    @Nullable
+    public Node build(@NotNull byte[] json) throws IOException {
+        JsonParser p = factory.createParser(json);
+        try {
+            return build(p);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+
+    @Nullable
+    public Node build(@NotNull String json) throws IOException {
+        JsonParser p = factory.createParser(json);
+        try {
+            return build(p);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+
+    @Nullable
+    private Node build(@NotNull JsonParser p) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        Object o = readObject(p);
+        return o instanceof Node ? (Node) o : null;
+    }
+
+
+    @Nullable
+    private Object readValue(@NotNull JsonParser p, JsonToken t) throws IOException {
+        switch (t) {
+            case START_OBJECT:
+                return readObject(p);
+            case START_ARRAY:
+                return readArray(p);
+            case VALUE_STRING:
+                return p.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return p.getDoubleValue();      // Num.n has always been a Double
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+
+    @NotNull
+    private List<Object> readArray(@NotNull JsonParser p) throws IOException {
+        List<Object> list = new ArrayList<>();
+        JsonToken t;
+        while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+            list.add(readValue(p, t));
+        }
+        return list;
+    }
+
+
+    // Returns the built node, a Fields for the helper objects, or null for
+    // objects that don't become nodes (contexts, operators, ...)
+    @Nullable
+    private Object readObject(@NotNull JsonParser p) throws IOException {
+        Fields f = new Fields();
+        String type = null;
+
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+
+            if (t == JsonToken.VALUE_NULL) {
+                continue;
+            } else if (name.equals("node_start")) {
+                f.start = p.getIntValue();
+            } else if (name.equals("node_end")) {
+                f.end = p.getIntValue();
+            } else if (name.equals("ast_type")) {
+                type = p.getText();
+            } else if (IGNORED.contains(name)) {
+                p.skipChildren();
+            } else {
+                f.put(name, readValue(p, t));
+            }
+        }
+
+        if (type == null) {
+            return null;
+        }
+        f.kind = NodeFactory.kind(type);
+        return NodeFactory.build(f);
+    }
+}
@@ -0,0 +1,909 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Name;
+import org.yinwang.pysonar.ast.Node;
+import org.yinwang.pysonar.ast.Url;
+import org.yinwang.pysonar.types.ClassType;
+import org.yinwang.pysonar.types.DictType;
+import org.yinwang.pysonar.types.FunType;
+import org.yinwang.pysonar.types.InstanceType;
+import org.yinwang.pysonar.types.ListType;
+import org.yinwang.pysonar.types.ModuleType;
+import org.yinwang.pysonar.types.TupleType;
+import org.yinwang.pysonar.types.Type;
+import org.yinwang.pysonar.types.UnionType;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * What the analysis of some modules, typically of a library on the load
+ * path, found about their outside: the bindings of each module with their
+ * kinds, definitions and docstrings, and their types, down to the tables of
+ * classes and the argument and return types functions were called with.
+ * {@link #write} saves this for the modules of an {@link Indexer}; when a
+ * later indexer is given the summary, {@link Indexer#loadFile} makes the
+ * module of such a file from it instead of parsing and resolving the file,
+ * as long as the file has the SHA-1 it had when it was summarized. <p>
+ * The types are kept in one table, so that a class or module that several
+ * bindings have is made once, and types that refer to each other are made
+ * before they are filled in.  The types of the builtins are kept by name.
+ * A function from a summary keeps the types it was called with then; its
+ * body isn't analyzed again for the arguments of new calls.  A summary is
+ * immutable, and may be used by several indexers, each with a
+ * {@link Loader} of its own.
+ */
+public class LibrarySummary {
+
+    private static final int MAGIC = 0x5059534d;      // "PYSM"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // type tags
+    private static final int BUILTIN = 0;          // one of the types of wellKnown()
+    private static final int NATIVE_MODULE = 1;    // a module of the builtins, by qname
+    private static final int NATIVE_CLASS = 2;     // a class of the builtins, by path
+    private static final int MODULE = 3;           // a module loaded from a file
+    private static final int CLASS = 4;
+    private static final int INSTANCE = 5;
+    private static final int FUNCTION = 6;
+    private static final int UNION = 7;
+    private static final int TUPLE = 8;
+    private static final int LIST = 9;
+    private static final int DICT = 10;
+
+    // what a definition was made from
+    private static final int DEF_NAME = 0;
+    private static final int DEF_MODULE = 1;
+    private static final int DEF_URL = 2;
+    private static final int DEF_OTHER = 3;
+
+    // binding flags
+    private static final int STATIC = 1;
+    private static final int SYNTHETIC = 2;
+    private static final int READONLY = 4;
+    private static final int DEPRECATED = 8;
+    private static final int BUILTIN_BINDING = 16;
+
+
+    private static class TypeRecord {
+        final int tag;
+        int value;                  // the index into wellKnown(), or 1 if a function has supers
+        String name;                // the file of a module, the name of a class
+        String path;                // the table path of a native type, class or function
+        int[] types = {};           // supers, elements, the class of an instance, or arrows as pairs
+        Table table = new Table();  // of a class, or the attributes of an instance
+
+
+        TypeRecord(int tag) {
+            this.tag = tag;
+        }
+    }
+
+
+    private static class Table {
+        final List<String> keys = new ArrayList<>();
+        final List<Integer> bindings = new ArrayList<>();
+    }
+
+
+    private static class BindingRecord {
+        String name;
+        String qname;
+        String kind;
+        int flags;
+        int type;
+        List<DefRecord> defs = new ArrayList<>();
+    }
+
+
+    private static class DefRecord {
+        int form;
+        String fileOrUrl;
+        String name;
+        int start;
+        int end;
+        String docstring;
+    }
+
+
+    private static class ModuleRecord {
+        String file;
+        String sha1;
+        int end;
+        String docstring;
+        Table table = new Table();
+    }
+
+
+    private final List<TypeRecord> types = new ArrayList<>();
+    private final List<BindingRecord> bindings = new ArrayList<>();
+    private final Map<String, ModuleRecord> modules = new LinkedHashMap<>();
+
+
+    private LibrarySummary() {
+    }
+
+
+    /**
+     * @return the files summarized
+     */
+    @NotNull
+    public Set<String> getFiles() {
+        return Collections.unmodifiableSet(modules.keySet());
+    }
+
+
+    /**
+     * @return the SHA-1 {@code file} had when it was summarized, or
+     * {@code null} if it isn't in this summary
+     */
+    @Nullable
+    public String getSHA1(@NotNull String file) {
+        ModuleRecord r = modules.get(file);
+        return r == null ? null : r.sha1;
+    }
+
+
+    /**
+     * @return a loader that makes the modules of this summary for
+     * {@code indexer}, with its builtins
+     */
+    @NotNull
+    public Loader newLoader(@NotNull Indexer indexer) {
+        return new Loader(indexer);
+    }
+
+
+    /**
+     * Makes the modules of a summary for one indexer.  Each type and binding
+     * of the summary is made at most once, when it is first needed.
+     */
+    public class Loader {
+        private final Indexer idx;
+        private final Type[] madeTypes = new Type[types.size()];
+        private final boolean[] making = new boolean[types.size()];
+        private final Binding[] madeBindings = new Binding[bindings.size()];
+        private final boolean[] bindingsMaking = new boolean[bindings.size()];
+        // the stand-in ASTs that definitions point into, by file
+        private final Map<String, Module> stubs = new HashMap<>();
+
+
+        private Loader(@NotNull Indexer idx) {
+            this.idx = idx;
+        }
+
+
+        @NotNull
+        public LibrarySummary getSummary() {
+            return LibrarySummary.this;
+        }
+
+
+        /**
+         * Makes the module of {@code file} and adds it to the module table of
+         * the indexer, as {@link Module#resolve} does.  The modules it refers to
+         * are loaded by {@link Indexer#loadFile}, from this summary if they are
+         * in it.
+         */
+        @NotNull
+        public ModuleType load(@NotNull String file) {
+            ModuleRecord r = modules.get(file);
+            if (r == null) {
+                throw new IllegalArgumentException("not in the summary: " + file);
+            }
+            ModuleType mt = new ModuleType(_.moduleName(file), file, idx.globaltable);
+            Module stub = stub(file);
+            stub.end = r.end;
+            Binding b = idx.moduleTable.insert(_.moduleQname(file), stub, mt, Binding.Kind.MODULE);
+            b.getSingle().docstring = r.docstring;
+            fill(mt.getTable(), r.table, false);
+            return mt;
+        }
+
+
+        private void fill(@NotNull Scope scope, @NotNull Table table, boolean keepExisting) {
+            for (int i = 0; i < table.keys.size(); i++) {
+                String key = table.keys.get(i);
+                if (keepExisting && scope.lookupLocal(key) != null) {
+                    continue;
+                }
+                Binding b = binding(table.bindings.get(i));
+                if (b != null) {
+                    scope.update(key, b);
+                }
+            }
+        }
+
+
+        // null while the binding is being made, i.e. if it is in a table of its own type
+        @Nullable
+        private Binding binding(int id) {
+            if (madeBindings[id] != null || bindingsMaking[id]) {
+                return madeBindings[id];
+            }
+            bindingsMaking[id] = true;
+            BindingRecord r = bindings.get(id);
+            Binding b = new Binding(r.name, null, type(r.type), Binding.Kind.valueOf(r.kind));
+            b.setQname(r.qname);
+            for (DefRecord d : r.defs) {
+                Def def = new Def(node(d), b);
+                def.docstring = d.docstring;
+                b.addDef(def);
+            }
+            if ((r.flags & STATIC) != 0) {
+                b.markStatic();
+            }
+            if ((r.flags & SYNTHETIC) != 0) {
+                b.markSynthetic();
+            }
+            if ((r.flags & READONLY) != 0) {
+                b.markReadOnly();
+            }
+            if ((r.flags & DEPRECATED) != 0) {
+                b.markDeprecated();
+            }
+            if ((r.flags & BUILTIN_BINDING) != 0) {
+                b.markBuiltin();
+            }
+            madeBindings[id] = b;
+            return b;
+        }
+
+
+        @NotNull
+        private Node node(@NotNull DefRecord d) {
+            Node node;
+            switch (d.form) {
+                case DEF_NAME:
+                    node = new Name(d.name, d.start, d.end);
+                    node.setParent(stub(d.fileOrUrl));
+                    return node;
+                case DEF_MODULE:
+                    return stub(d.fileOrUrl);
+                case DEF_URL:
+                    node = new Url(d.fileOrUrl);
+                    break;
+                default:
+                    node = new Url("file://" + d.fileOrUrl);
+                    break;
+            }
+            node.start = d.start;
+            node.end = d.end;
+            return node;
+        }
+
+
+        @NotNull
+        private Module stub(@NotNull String file) {
+            Module stub = stubs.get(file);
+            if (stub == null) {
+                stub = new Module(null, 0, 0);
+                ModuleRecord r = modules.get(file);
+                stub.setFileAndMD5(file, r == null ? null : r.sha1);
+                stubs.put(file, stub);
+            }
+            return stub;
+        }
+
+
+        @NotNull
+        private Type type(int id) {
+            if (madeTypes[id] != null) {
+                return madeTypes[id];
+            }
+            Builtins builtins = idx.builtins;
+            if (making[id]) {
+                return builtins.unknown;     // a list, tuple or union that contains itself
+            }
+
+            TypeRecord r = types.get(id);
+            Type t;
+            switch (r.tag) {
+                case BUILTIN:
+                    t = wellKnown(builtins)[r.value];
+                    break;
+                case NATIVE_MODULE:
+                    t = builtins.get(r.path);
+                    break;
+                case NATIVE_CLASS:
+                    t = findNativeClass(builtins, r.path);
+                    break;
+                case MODULE:
+                    t = idx.loadFile(r.name);
+                    break;
+                case CLASS:
+                    return makeClass(id, r);
+                case INSTANCE:
+                    return makeInstance(id, r);
+                case FUNCTION:
+                    return makeFunction(id, r);
+                default:
+                    making[id] = true;
+                    t = makeCompound(r);
+                    making[id] = false;
+                    break;
+            }
+            if (t == null) {
+                t = builtins.unknown;
+            }
+            madeTypes[id] = t;
+            return t;
+        }
+
+
+        // the class is remembered before its supers and table are made, since they may refer to it
+        @NotNull
+        private Type makeClass(int id, @NotNull TypeRecord r) {
+            ClassType c = new ClassType(r.name, null);
+            c.getTable().setPath(r.path);
+            madeTypes[id] = c;
+            for (int sup : r.types) {
+                Type t = type(sup);
+                if (t != idx.builtins.unknown) {
+                    c.addSuper(t);
+                }
+            }
+            fill(c.getTable(), r.table, false);
+            return c;
+        }
+
+
+        // instances of a class from the summary are its canonical instance, and
+        // their attributes go to the class, so that new instances find them too
+        @NotNull
+        private Type makeInstance(int id, @NotNull TypeRecord r) {
+            Type c = type(r.types[0]);
+            if (madeTypes[id] != null) {
+                return madeTypes[id];
+            }
+            Type t = c instanceof ClassType ? ((ClassType) c).getCanon() : idx.builtins.unknown;
+            madeTypes[id] = t;
+            if (types.get(r.types[0]).tag == CLASS) {
+                fill(c.getTable(), r.table, true);
+            }
+            return t;
+        }
+
+
+        @NotNull
+        private Type makeFunction(int id, @NotNull TypeRecord r) {
+            FunType f = new FunType();
+            madeTypes[id] = f;
+            f.getTable().setPath(r.path);
+            if (r.value > 0) {
+                f.getTable().addSuper(idx.builtins.BaseFunction.getTable());
+            }
+            for (int i = 0; i + 1 < r.types.length; i += 2) {
+                Type from = type(r.types[i]);
+                f.arrows.put(from, type(r.types[i + 1]));
+            }
+            return f;
+        }
+
+
+        @NotNull
+        private Type makeCompound(@NotNull TypeRecord r) {
+            switch (r.tag) {
+                case UNION:
+                    UnionType u = new UnionType();
+                    for (int member : r.types) {
+                        u.addType(type(member));
+                    }
+                    return u;
+                case TUPLE:
+                    TupleType tuple = new TupleType();
+                    for (int elt : r.types) {
+                        tuple.add(type(elt));
+                    }
+                    return tuple;
+                case LIST:
+                    return new ListType(type(r.types[0]));
+                case DICT:
+                    return new DictType(type(r.types[0]), type(r.types[1]));
+                default:
+                    return idx.builtins.unknown;
+            }
+        }
+    }
+
+
+    /**
+     * Summarizes the modules {@code indexer} loaded, from their source files
+     * or from summaries, and writes the summary to {@code file}.
+     *
+     * @return the number of modules written
+     */
+    public static int write(@NotNull Indexer indexer, @NotNull File file) throws IOException {
+        List<String> files = new ArrayList<>(indexer.getLoadedFiles());
+        files.addAll(indexer.summarizedFiles);
+        return write(indexer, files, file);
+    }
+
+
+    /**
+     * Summarizes the modules of {@code files} that {@code indexer} loaded, and
+     * writes the summary to {@code file}.  The indexer must be the current
+     * one, and can't be the result of a parallel analysis, whose types come
+     * from the builtins of several workers.
+     *
+     * @return the number of modules written
+     */
+    public static int write(@NotNull Indexer indexer, @NotNull Collection<String> files,
+                            @NotNull File file) throws IOException
+    {
+        if (indexer.isAnalyzedInParallel()) {
+            throw new IllegalStateException("can't summarize the results of a parallel analysis");
+        }
+        LibrarySummary summary = new Encoder(indexer).encode(files);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+            summary.writeTo(out);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("can't write " + file);
+                }
+            }
+            return summary.modules.size();
+        }
+        finally {
+            if (out != null) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+
+    // turns the types and bindings of an indexer into records
+    private static class Encoder {
+        private final Indexer idx;
+        private final Type[] wellKnown;
+        private final LibrarySummary summary = new LibrarySummary();
+        private final Map<Type, Integer> typeIds = new IdentityHashMap<>();
+        private final Map<Binding, Integer> bindingIds = new IdentityHashMap<>();
+        private final Set<String> files = new HashSet<>();
+
+
+        Encoder(@NotNull Indexer idx) {
+            this.idx = idx;
+            this.wellKnown = wellKnown(idx.builtins);
+        }
+
+
+        @NotNull
+        LibrarySummary encode(@NotNull Collection<String> files) {
+            for (String file : files) {
+                if (idx.getCachedModule(file) != null) {
+                    this.files.add(file);
+                }
+            }
+            for (String file : files) {
+                ModuleType mt = idx.getCachedModule(file);
+                if (mt == null || summary.modules.containsKey(file)) {
+                    continue;
+                }
+                ModuleRecord r = new ModuleRecord();
+                r.file = file;
+                r.sha1 = idx.fileHashes.getSHA1(file);
+                Binding b = idx.moduleTable.lookupLocal(_.moduleQname(file));
+                if (b != null && b.getType() == mt && !b.getDefs().isEmpty()) {
+                    Def def = b.getDef();
+                    r.end = def.getBodyEnd();
+                    r.docstring = def.docstring;
+                }
+                summary.modules.put(file, r);
+                addTable(r.table, mt.getTable());
+            }
+            return summary;
+        }
+
+
+        // leaves out the bindings that files outside the summary added, e.g. a
+        // submodule that is bound in its package by an import in another file
+        private void addTable(@NotNull Table table, @NotNull Scope scope) {
+            for (Map.Entry<String, Binding> e : scope.entrySet()) {
+                if (!isDefinedInside(e.getValue())) {
+                    continue;
+                }
+                table.keys.add(e.getKey());
+                table.bindings.add(binding(e.getValue()));
+            }
+        }
+
+
+        private boolean isDefinedInside(@NotNull Binding b) {
+            boolean outside = false;
+            for (Def def : b.getDefs()) {
+                if (def.getFile() != null) {
+                    if (files.contains(def.getFile())) {
+                        return true;
+                    }
+                    outside = true;
+                }
+            }
+            return !outside;
+        }
+
+
+        private int binding(@NotNull Binding b) {
+            Integer id = bindingIds.get(b);
+            if (id != null) {
+                return id;
+            }
+            id = summary.bindings.size();
+            BindingRecord r = new BindingRecord();
+            summary.bindings.add(r);
+            bindingIds.put(b, id);
+
+            r.name = b.getName();
+            r.qname = b.getQname();
+            r.kind = b.getKind().name();
+            r.flags = (b.isStatic() ? STATIC : 0) | (b.isSynthetic() ? SYNTHETIC : 0) |
+                    (b.isReadOnly() ? READONLY : 0) | (b.isDeprecated() ? DEPRECATED : 0) |
+                    (b.isBuiltin() ? BUILTIN_BINDING : 0);
+            for (Def def : b.getDefs()) {
+                DefRecord d = new DefRecord();
+                if (def.isURL()) {
+                    d.form = DEF_URL;
+                } else if (def.getFile() == null) {
+                    continue;
+                } else if (def.getNode() instanceof Module) {
+                    d.form = DEF_MODULE;
+                } else if (def.getName() != null) {
+                    d.form = DEF_NAME;
+                } else {
+                    d.form = DEF_OTHER;
+                }
+                d.fileOrUrl = def.getFileOrUrl();
+                d.name = def.getName();
+                d.start = def.getStart();
+                d.end = def.getEnd();
+                d.docstring = def.docstring;
+                r.defs.add(d);
+            }
+            r.type = type(b.getType());
+            return id;
+        }
+
+
+        private int type(@Nullable Type t) {
+            if (t == null) {
+                t = idx.builtins.unknown;
+            }
+            Integer id = typeIds.get(t);
+            if (id != null) {
+                return id;
+            }
+
+            for (int i = 0; i < wellKnown.length; i++) {
+                if (wellKnown[i] == t) {
+                    TypeRecord r = add(t, BUILTIN);
+                    r.value = i;
+                    return typeIds.get(t);
+                }
+            }
+
+            if (t instanceof ModuleType) {
+                ModuleType mt = (ModuleType) t;
+                if (mt.getFile() != null) {
+                    add(t, MODULE).name = mt.getFile();
+                } else if (idx.builtins.get(mt.getTable().getPath()) == mt) {
+                    add(t, NATIVE_MODULE).path = mt.getTable().getPath();
+                } else {
+                    typeIds.put(t, type(idx.builtins.unknown));
+                }
+            } else if (t instanceof ClassType) {
+                String path = t.getTable().getPath();
+                if (idx.builtins.isNative(t) && findNativeClass(idx.builtins, path) == t) {
+                    add(t, NATIVE_CLASS).path = path;
+                } else {
+                    TypeRecord r = add(t, CLASS);
+                    r.name = ((ClassType) t).getName();
+                    r.path = path;
+                    List<Integer> supers = new ArrayList<>();
+                    for (Scope sup : t.getTable().getSupers()) {
+                        if (sup.getType() != null) {
+                            supers.add(type(sup.getType()));
+                        }
+                    }
+                    r.types = toArray(supers);
+                    addTable(r.table, t.getTable());
+                }
+            } else if (t instanceof InstanceType) {
+                TypeRecord r = add(t, INSTANCE);
+                r.types = new int[]{type(((InstanceType) t).getClassType())};
+                addTable(r.table, t.getTable());
+            } else if (t instanceof FunType) {
+                TypeRecord r = add(t, FUNCTION);
+                r.path = t.getTable().getPath();
+                r.value = t.getTable().getSupers().isEmpty() ? 0 : 1;
+                List<Integer> arrows = new ArrayList<>();
+                for (Map.Entry<Type, Type> e : ((FunType) t).arrows.entrySet()) {
+                    arrows.add(type(e.getKey()));
+                    arrows.add(type(e.getValue()));
+                }
+                r.types = toArray(arrows);
+            } else if (t instanceof UnionType) {
+                TypeRecord r = add(t, UNION);
+                List<Integer> members = new ArrayList<>();
+                for (Type member : ((UnionType) t).getTypes()) {
+                    members.add(type(member));
+                }
+                r.types = toArray(members);
+            } else if (t instanceof TupleType) {
+                TypeRecord r = add(t, TUPLE);
+                List<Integer> elts = new ArrayList<>();
+                for (Type elt : ((TupleType) t).getElementTypes()) {
+                    elts.add(type(elt));
+                }
+                r.types = toArray(elts);
+            } else if (t instanceof ListType) {
+                TypeRecord r = add(t, LIST);
+                r.types = new int[]{type(((ListType) t).getElementType())};
+            } else if (t instanceof DictType) {
+                TypeRecord r = add(t, DICT);
+                r.types = new int[]{type(((DictType) t).keyType), type(((DictType) t).valueType)};
+            } else {
+                typeIds.put(t, type(idx.builtins.unknown));
+            }
+            return typeIds.get(t);
+        }
+
+
+        // the record of t, numbered before the types it refers to
+        @NotNull
+        private TypeRecord add(@NotNull Type t, int tag) {
+            TypeRecord r = new TypeRecord(tag);
+            typeIds.put(t, summary.types.size());
+            summary.types.add(r);
+            return r;
+        }
+    }
+
+
+    /**
+     * Reads a summary written by {@link #write}.
+     */
+    @NotNull
+    public static LibrarySummary read(@NotNull File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a library summary: " + file);
+            }
+            LibrarySummary summary = new LibrarySummary();
+            summary.readFrom(in);
+            return summary;
+        }
+        finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+
+    private void writeTo(@NotNull DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(types.size());
+        for (TypeRecord r : types) {
+            out.writeByte(r.tag);
+            out.writeInt(r.value);
+            writeString(out, r.name);
+            writeString(out, r.path);
+            writeInts(out, r.types);
+            writeTable(out, r.table);
+        }
+
+        out.writeInt(bindings.size());
+        for (BindingRecord r : bindings) {
+            writeString(out, r.name);
+            writeString(out, r.qname);
+            writeString(out, r.kind);
+            out.writeInt(r.flags);
+            out.writeInt(r.type);
+            out.writeInt(r.defs.size());
+            for (DefRecord d : r.defs) {
+                out.writeByte(d.form);
+                writeString(out, d.fileOrUrl);
+                writeString(out, d.name);
+                out.writeInt(d.start);
+                out.writeInt(d.end);
+                writeString(out, d.docstring);
+            }
+        }
+
+        out.writeInt(modules.size());
+        for (ModuleRecord r : modules.values()) {
+            writeString(out, r.file);
+            writeString(out, r.sha1);
+            out.writeInt(r.end);
+            writeString(out, r.docstring);
+            writeTable(out, r.table);
+        }
+    }
+
+
+    private void readFrom(@NotNull DataInputStream in) throws IOException {
+        int nTypes = in.readInt();
+        for (int i = 0; i < nTypes; i++) {
+            TypeRecord r = new TypeRecord(in.readByte());
+            r.value = in.readInt();
+            r.name = readString(in);
+            r.path = readString(in);
+            r.types = readInts(in);
+            readTable(in, r.table);
+            types.add(r);
+        }
+
+        int nBindings = in.readInt();
+        for (int i = 0; i < nBindings; i++) {
+            BindingRecord r = new BindingRecord();
+            r.name = readString(in);
+            r.qname = readString(in);
+            r.kind = readString(in);
+            r.flags = in.readInt();
+            r.type = in.readInt();
+            int nDefs = in.readInt();
+            for (int j = 0; j < nDefs; j++) {
+                DefRecord d = new DefRecord();
+                d.form = in.readByte();
+                d.fileOrUrl = readString(in);
+                d.name = readString(in);
+                d.start = in.readInt();
+                d.end = in.readInt();
+                d.docstring = readString(in);
+                r.defs.add(d);
+            }
+            bindings.add(r);
+        }
+
+        int nModules = in.readInt();
+        for (int i = 0; i < nModules; i++) {
+            ModuleRecord r = new ModuleRecord();
+            r.file = readString(in);
+            r.sha1 = readString(in);
+            r.end = in.readInt();
+            r.docstring = readString(in);
+            readTable(in, r.table);
+            modules.put(r.file, r);
+        }
+    }
+
+
+    private static void writeTable(@NotNull DataOutputStream out, @NotNull Table table) throws IOException {
+        out.writeInt(table.keys.size());
+        for (int i = 0; i < table.keys.size(); i++) {
+            writeString(out, table.keys.get(i));
+            out.writeInt(table.bindings.get(i));
+        }
+    }
+
+
+    private static void readTable(@NotNull DataInputStream in, @NotNull Table table) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            table.keys.add(readString(in));
+            table.bindings.add(in.readInt());
+        }
+    }
+
+
+    private static void writeInts(@NotNull DataOutputStream out, @NotNull int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+
+    @NotNull
+    private static int[] readInts(@NotNull DataInputStream in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+
+
+    // not writeUTF, which is limited to 64K bytes, too few for some docstrings
+    private static void writeString(@NotNull DataOutputStream out, @Nullable String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+
+    @Nullable
+    private static String readString(@NotNull DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    @NotNull
+    private static int[] toArray(@NotNull List<Integer> list) {
+        int[] ints = new int[list.size()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = list.get(i);
+        }
+        return ints;
+    }
+
+
+    // the types of the builtins that are kept by number; don't reorder, only append
+    @NotNull
+    private static Type[] wellKnown(@NotNull Builtins b) {
+        return new Type[]{
+                b.unknown, b.None, b.Cont, b.BaseNum, b.BaseFloat, b.BaseComplex, b.BaseBool, b.BaseStr,
+                b.Object, b.Type, b.BaseList, b.BaseArray, b.BaseDict, b.BaseTuple, b.BaseModule,
+                b.BaseFile, b.BaseException, b.BaseStruct, b.BaseFunction, b.BaseClass, b.Builtin
+        };
+    }
+
+
+    /**
+     * @return the class of the builtins with the table path {@code path},
+     * e.g. "datetime.date", or {@code null}
+     */
+    @Nullable
+    private static ClassType findNativeClass(@NotNull Builtins builtins, @NotNull String path) {
+        String[] names = path.split("\\.");
+        for (int i = names.length - 1; i > 0; i--) {
+            StringBuilder module = new StringBuilder(names[0]);
+            for (int j = 1; j < i; j++) {
+                module.append('.').append(names[j]);
+            }
+            Type t = builtins.get(module.toString());
+            if (t == null) {
+                continue;
+            }
+            for (int j = i; j < names.length && t != null; j++) {
+                Binding b = t.getTable().lookupLocal(names[j]);
+                t = b == null ? null : b.getType();
+            }
+            if (t instanceof ClassType && path.equals(t.getTable().getPath())) {
+                return (ClassType) t;
+            }
+            return null;
+        }
+        return null;
+    }
+}
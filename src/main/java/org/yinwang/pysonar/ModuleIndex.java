@@ -0,0 +1,116 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Answers the questions import resolution asks about the load path, whether
+ * {@code dir/name.py} is a module and whether {@code dir/name} is a package,
+ * from listings of the directories instead of probing the file system each
+ * time.  Each directory is listed when it is first asked about, and listed
+ * again when its modification time has changed; the time is checked at most
+ * once every {@link #RECHECK_MILLIS}. <p>
+ * It may be used from several threads.
+ */
+public class ModuleIndex {
+
+    // how long a listing is trusted before the directory's time is checked again
+    private static final long RECHECK_MILLIS = 1000;
+
+
+    private static class Listing {
+        final long mtime;
+        long checked;
+        @NotNull
+        final Set<String> names;
+
+
+        Listing(long mtime, long checked, @NotNull Set<String> names) {
+            this.mtime = mtime;
+            this.checked = checked;
+            this.names = names;
+        }
+    }
+
+
+    private final Map<String, Listing> listings = new HashMap<>();
+    private int scans = 0;
+    private int lookups = 0;
+
+
+    /**
+     * @return {@code true} if {@code dir/name.py} exists
+     */
+    public boolean isModuleFile(@NotNull File dir, @NotNull String name) {
+        return names(dir).contains(name + ".py");
+    }
+
+
+    /**
+     * @return {@code true} if {@code dir/name/__init__.py} exists
+     */
+    public boolean isPackage(@NotNull File dir, @NotNull String name) {
+        return names(dir).contains(name) && names(new File(dir, name)).contains("__init__.py");
+    }
+
+
+    /**
+     * Forgets all listings, so that the directories are listed again.
+     */
+    public synchronized void clear() {
+        listings.clear();
+    }
+
+
+    @NotNull
+    private synchronized Set<String> names(@NotNull File dir) {
+        lookups++;
+        String key = dir.getPath();
+        long now = System.currentTimeMillis();
+        Listing listing = listings.get(key);
+        if (listing != null && now - listing.checked < RECHECK_MILLIS) {
+            return listing.names;
+        }
+
+        long mtime = dir.lastModified();
+        if (listing != null && listing.mtime == mtime) {
+            listing.checked = now;
+            return listing.names;
+        }
+
+        scans++;
+        String[] children = dir.list();
+        Set<String> names;
+        if (children == null) {
+            names = Collections.emptySet();
+        } else {
+            names = new HashSet<>(Arrays.asList(children));
+        }
+        listings.put(key, new Listing(mtime, now, names));
+        return names;
+    }
+
+
+    /**
+     * @return the number of directory listings read
+     */
+    public synchronized int getScans() {
+        return scans;
+    }
+
+
+    /**
+     * @return the number of questions answered
+     */
+    public synchronized int getLookups() {
+        return lookups;
+    }
+}
@@ -0,0 +1,790 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Turns the fields of one Python AST object into a node.  There is one
+ * {@link Kind} per node type, looked up by the type name that ast2json.py
+ * writes, and each kind knows how to build its own node, so decoders pay one
+ * table lookup per node instead of a chain of string comparisons.
+ */
+class NodeFactory {
+
+    /**
+     * The fields of one AST object as read by a decoder.  Offsets are kept
+     * unboxed; everything else is a built child: a Node, a list, a string, a
+     * number or, for the helper kinds that are not nodes themselves, a nested
+     * Fields.
+     */
+    static class Fields {
+        @Nullable
+        Kind kind;
+        int start = 0;
+        int end = 1;
+        int size = 0;
+        String[] names = new String[8];
+        Object[] values = new Object[8];
+
+
+        void put(String name, Object value) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            names[size] = name;
+            values[size] = value;
+            size++;
+        }
+
+
+        @Nullable
+        Object get(String name) {
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * The AST object types we understand, named exactly as Python names them.
+     * Types missing from here (contexts, operators, ...) don't become nodes.
+     */
+    enum Kind {
+        // helper objects that stay as Fields for their parent to read
+        arguments(false),
+        withitem(false),
+
+        Module {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Block b = block(f, "body");
+                Module m = new Module(b, f.start, f.end);
+                try {
+                    m.setFile(_.unifyPath((String) f.get("filename")));
+                }
+                catch (Exception e) {
+
+                }
+                return m;
+            }
+        },
+
+        alias {         // lower case alias
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String qname = (String) f.get("name");
+                List<Name> names = segmentQname(qname, f.start + "import ".length(), false);
+                Name asname = f.get("asname") == null ? null : new Name((String) f.get("asname"));
+                return new Alias(names, asname, f.start, f.end);
+            }
+        },
+
+        Assert {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node test = node(f, "test");
+                Node msg = node(f, "msg");
+                return new Assert(test, msg, f.start, f.end);
+            }
+        },
+
+        Assign {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> targets = list(f, "targets", Node.class);
+                Node value = node(f, "value");
+                return new Assign(targets, value, f.start, f.end);
+            }
+        },
+
+        Attribute {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                Name attr = (Name) node(f, "attr_name");
+                if (attr == null) {
+                    attr = new Name((String) f.get("attr"));
+                }
+                return new Attribute(value, attr, f.start, f.end);
+            }
+        },
+
+        AugAssign {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node target = node(f, "target");
+                Node value = node(f, "value");
+                Name op = (Name) node(f, "op_node");              // hack
+                return new AugAssign(target, value, op, f.start, f.end);
+            }
+        },
+
+        BinOp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node left = node(f, "left");
+                Node right = node(f, "right");
+                Node op = node(f, "op");
+                return new BinOp(left, right, op, f.start, f.end);
+            }
+        },
+
+        BoolOp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> values = list(f, "values", Node.class);
+                Name op = (Name) node(f, "op_node");
+                return new BoolOp(op, values, f.start, f.end);
+            }
+        },
+
+        Break {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                return new Break(f.start, f.end);
+            }
+        },
+
+        Bytes {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Object s = f.get("s");
+                return new Bytes(s, f.start, f.end);
+            }
+        },
+
+        Call {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node func = node(f, "func");
+                List<Node> args = list(f, "args", Node.class);
+                List<Keyword> keywords = list(f, "keywords", Keyword.class);
+                Node kwargs = node(f, "kwarg");
+                Node starargs = node(f, "starargs");
+                return new Call(func, args, keywords, kwargs, starargs, f.start, f.end);
+            }
+        },
+
+        ClassDef {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Name name = (Name) node(f, "name_node");      // hack
+                List<Node> bases = list(f, "bases", Node.class);
+                Block body = block(f, "body");
+                return new ClassDef(name, bases, body, f.start, f.end);
+            }
+        },
+
+        Compare {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node name = node(f, "left");
+                List<Node> ops = list(f, "ops", Node.class);
+                List<Node> comparators = list(f, "comparators", Node.class);
+                return new Compare(name, ops, comparators, f.start, f.end);
+            }
+        },
+
+        comprehension {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node target = node(f, "target");
+                Node iter = node(f, "iter");
+                List<Node> ifs = list(f, "ifs", Node.class);
+                return new Comprehension(target, iter, ifs, f.start, f.end);
+            }
+        },
+
+        Continue {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                return new Continue(f.start, f.end);
+            }
+        },
+
+        Delete {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> targets = list(f, "targets", Node.class);
+                return new Delete(targets, f.start, f.end);
+            }
+        },
+
+        Dict {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> keys = list(f, "keys", Node.class);
+                List<Node> values = list(f, "values", Node.class);
+                return new Dict(keys, values, f.start, f.end);
+            }
+        },
+
+        DictComp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node key = node(f, "key");
+                Node value = node(f, "value");
+                List<Comprehension> generators = list(f, "generators", Comprehension.class);
+                return new DictComp(key, value, generators, f.start, f.end);
+            }
+        },
+
+        Ellipsis {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                return new Ellipsis(f.start, f.end);
+            }
+        },
+
+        ExceptHandler {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node name = node(f, "name");
+                Node exceptionType = node(f, "type");
+                Block body = block(f, "body");
+                return new ExceptHandler(name, exceptionType, body, f.start, f.end);
+            }
+        },
+
+        Exec {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node body = node(f, "body");
+                Node globals = node(f, "globals");
+                Node locals = node(f, "locals");
+                return new Exec(body, globals, locals, f.start, f.end);
+            }
+        },
+
+        Expr {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Expr(value, f.start, f.end);
+            }
+        },
+
+        For {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node target = node(f, "target");
+                Node iter = node(f, "iter");
+                Block body = block(f, "body");
+                Block orelse = block(f, "orelse");
+                return new For(target, iter, body, orelse, f.start, f.end);
+            }
+        },
+
+        FunctionDef {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Name name = (Name) node(f, "name_node");
+                Fields argsFields = (Fields) f.get("args");
+                List<Node> args = list(argsFields, "args", Node.class);
+                List<Node> defaults = list(argsFields, "defaults", Node.class);
+                Block body = block(f, "body");
+                Name vararg = argsFields.get("vararg") == null ? null : new Name((String) argsFields.get("vararg"));
+                Name kwarg = argsFields.get("kwarg") == null ? null : new Name((String) argsFields.get("kwarg"));
+                return new FunctionDef(name, args, body, defaults, vararg, kwarg, f.start, f.end);
+            }
+        },
+
+        GeneratorExp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node elt = node(f, "elt");
+                List<Comprehension> generators = list(f, "generators", Comprehension.class);
+                return new GeneratorExp(elt, generators, f.start, f.end);
+            }
+        },
+
+        Global {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<?> names = (List<?>) f.get("names");
+                List<Name> nameNodes = new ArrayList<>();
+                for (Object name : names) {
+                    nameNodes.add(new Name((String) name));
+                }
+                return new Global(nameNodes, f.start, f.end);
+            }
+        },
+
+        If {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node test = node(f, "test");
+                Block body = block(f, "body");
+                Block orelse = block(f, "orelse");
+                return new If(test, body, orelse, f.start, f.end);
+            }
+        },
+
+        IfExp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node test = node(f, "test");
+                Node body = node(f, "body");
+                Node orelse = node(f, "orelse");
+                return new IfExp(test, body, orelse, f.start, f.end);
+            }
+        },
+
+        Import {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Alias> aliases = list(f, "names", Alias.class);
+                return new Import(aliases, f.start, f.end);
+            }
+        },
+
+        ImportFrom {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String module = (String) f.get("module");
+                List<Name> moduleSeg = module == null ? null : segmentQname(module, f.start + "from ".length(), true);
+                List<Alias> names = list(f, "names", Alias.class);
+                int level = ((Double) f.get("level")).intValue();
+                return new ImportFrom(moduleSeg, names, level, f.start, f.end);
+            }
+        },
+
+        Index {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Index(value, f.start, f.end);
+            }
+        },
+
+        keyword {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String arg = (String) f.get("arg");
+                Node value = node(f, "value");
+                return new Keyword(arg, value, f.start, f.end);
+            }
+        },
+
+        Lambda {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Fields argsFields = (Fields) f.get("args");
+                List<Node> args = list(argsFields, "args", Node.class);
+                List<Node> defaults = list(argsFields, "defaults", Node.class);
+                Node body = node(f, "body");
+                Name vararg = argsFields.get("vararg") == null ? null : new Name((String) argsFields.get("vararg"));
+                Name kwarg = argsFields.get("kwarg") == null ? null : new Name((String) argsFields.get("kwarg"));
+                return new Lambda(args, body, defaults, vararg, kwarg, f.start, f.end);
+            }
+        },
+
+        List {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> elts = list(f, "elts", Node.class);
+                return new NList(elts, f.start, f.end);
+            }
+        },
+
+        ListComp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node elt = node(f, "elt");
+                List<Comprehension> generators = list(f, "generators", Comprehension.class);
+                return new ListComp(elt, generators, f.start, f.end);
+            }
+        },
+
+        Name {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String id = (String) f.get("id");
+                return new Name(id, f.start, f.end);
+            }
+        },
+
+        // another name for Name in Python3 func parameters?
+        arg {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String id = (String) f.get("arg");
+                return new Name(id, f.start, f.end);
+            }
+        },
+
+        Num {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Object n = f.get("n");
+                return new Num(n, f.start, f.end);
+            }
+        },
+
+        SetComp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node elt = node(f, "elt");
+                List<Comprehension> generators = list(f, "generators", Comprehension.class);
+                return new SetComp(elt, generators, f.start, f.end);
+            }
+        },
+
+        Pass {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                return new Pass(f.start, f.end);
+            }
+        },
+
+        Print {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> values = list(f, "values", Node.class);
+                Node destination = node(f, "destination");
+                return new Print(destination, values, f.start, f.end);
+            }
+        },
+
+        Raise {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node exceptionType = node(f, "type");
+                Node inst = node(f, "inst");
+                Node tback = node(f, "tback");
+                return new Raise(exceptionType, inst, tback, f.start, f.end);
+            }
+        },
+
+        Repr {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Repr(value, f.start, f.end);
+            }
+        },
+
+        Return {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Return(value, f.start, f.end);
+            }
+        },
+
+        Set {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> elts = list(f, "elts", Node.class);
+                return new Set(elts, f.start, f.end);
+            }
+        },
+
+        Slice {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node lower = node(f, "lower");
+                Node step = node(f, "step");
+                Node upper = node(f, "upper");
+                return new Slice(lower, step, upper, f.start, f.end);
+            }
+        },
+
+        ExtSlice {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> dims = list(f, "dims", Node.class);
+                return new ExtSlice(dims, f.start, f.end);
+            }
+        },
+
+        Str {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                String s = (String) f.get("s");
+                return new Str(s, f.start, f.end);
+            }
+        },
+
+        Subscript {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                Node slice = node(f, "slice");
+                return new Subscript(value, slice, f.start, f.end);
+            }
+        },
+
+        TryExcept {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Block body = block(f, "body");
+                Block orelse = block(f, "orelse");
+                List<ExceptHandler> handlers = list(f, "handlers", ExceptHandler.class);
+                return new TryExcept(handlers, body, orelse, f.start, f.end);
+            }
+        },
+
+        TryFinally {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Block body = block(f, "body");
+                Block finalbody = block(f, "finalbody");
+                return new TryFinally(body, finalbody, f.start, f.end);
+            }
+        },
+
+        Tuple {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Node> elts = list(f, "elts", Node.class);
+                return new Tuple(elts, f.start, f.end);
+            }
+        },
+
+        UnaryOp {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node op = node(f, "op");
+                Node operand = node(f, "operand");
+                return new UnaryOp(op, operand, f.start, f.end);
+            }
+        },
+
+        While {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node test = node(f, "test");
+                Block body = block(f, "body");
+                Block orelse = block(f, "orelse");
+                return new While(test, body, orelse, f.start, f.end);
+            }
+        },
+
+        With {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                List<Withitem> items = new ArrayList<>();
+
+                Node context_expr = node(f, "context_expr");
+                Node optional_vars = node(f, "optional_vars");
+                Block body = block(f, "body");
+
+                // Python 3 puts context_expr and optional_vars inside "items"
+                if (context_expr != null) {
+                    Withitem item = new Withitem(context_expr, optional_vars, -1, -1);
+                    items.add(item);
+                } else {
+                    List<?> itemsFields = (List<?>) f.get("items");
+
+                    for (Object o : itemsFields) {
+                        Fields m = (Fields) o;
+                        context_expr = node(m, "context_expr");
+                        optional_vars = node(m, "optional_vars");
+                        Withitem item = new Withitem(context_expr, optional_vars, -1, -1);
+                        items.add(item);
+                    }
+                }
+
+                return new With(items, body, f.start, f.end);
+            }
+        },
+
+        Yield {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Yield(value, f.start, f.end);
+            }
+        },
+
+        YieldFrom {
+            @NotNull
+            @Override
+            Node build(@NotNull Fields f) {
+                Node value = node(f, "value");
+                return new Yield(value, f.start, f.end);
+            }
+        };
+
+
+        final boolean isNode;
+
+
+        Kind() {
+            this(true);
+        }
+
+
+        Kind(boolean isNode) {
+            this.isNode = isNode;
+        }
+
+
+        @Nullable
+        Node build(@NotNull Fields f) {
+            return null;
+        }
+    }
+
+
+    private static final Map<String, Kind> kinds = new HashMap<>();
+
+    static {
+        for (Kind k : Kind.values()) {
+            kinds.put(k.name(), k);
+        }
+    }
+
+
+    @Nullable
+    static Kind kind(String type) {
+        return kinds.get(type);
+    }
+
+
+    /**
+     * Returns the built node, {@code f} itself for the helper kinds, or
+     * {@code null} for objects that don't become nodes.
+     */
+    @Nullable
+    static Object build(@NotNull Fields f) {
+        if (f.kind == null) {
+            return null;
+        } else if (!f.kind.isNode) {
+            return f;
+        } else {
+            return f.kind.build(f);
+        }
+    }
+
+
+    @Nullable
+    static Node node(@NotNull Fields f, String name) {
+        Object o = f.get(name);
+        return o instanceof Node ? (Node) o : null;
+    }
+
+
+    @Nullable
+    static Block block(@NotNull Fields f, String name) {
+        List<Node> seq = list(f, name, Node.class);
+        return seq == null ? null : new Block(seq, 0, 0);
+    }
+
+
+    @Nullable
+    static <T extends Node> List<T> list(@NotNull Fields f, String name, @NotNull Class<T> cls) {
+        Object o = f.get(name);
+        if (o == null) {
+            return null;
+        }
+
+        List<T> out = new ArrayList<>();
+        for (Object x : (List<?>) o) {
+            if (x instanceof Node) {
+                out.add(cls.cast(x));
+            }
+        }
+        return out;
+    }
+
+
+    @NotNull
+    static List<Name> segmentQname(@NotNull String qname, int start, boolean hasLoc) {
+        List<Name> result = new ArrayList<>();
+
+        for (int i = 0; i < qname.length(); i++) {
+            String name = "";
+            while (Character.isSpaceChar(qname.charAt(i))) {
+                i++;
+            }
+            int nameStart = i;
+
+            while (i < qname.length() &&
+                    (Character.isJavaIdentifierPart(qname.charAt(i)) ||
+                            qname.charAt(i) == '*') &&
+                    qname.charAt(i) != '.')
+            {
+                name += qname.charAt(i);
+                i++;
+            }
+
+            int nameStop = i;
+            int nstart = hasLoc ? start + nameStart : -1;
+            int nstop = hasLoc ? start + nameStop : -1;
+            result.add(new Name(name, nstart, nstop));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,307 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.types.Type;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Answers "what is at this position" for the analyzed files: the references
+ * and definitions whose text covers an offset or overlaps a range, with the
+ * bindings they stand for, for go-to-definition and hover in an editor. <p>
+ * The references and definitions of each file are kept in arrays sorted by
+ * start, together with the largest end up to each one, so that a lookup is
+ * a binary search followed by a short walk back over the spans that may
+ * still cover the offset.  The index is built by {@link Indexer#finish} and
+ * {@link Indexer#update}; see {@link Indexer#getPositionIndex}.
+ */
+public class PositionIndex {
+
+    /**
+     * A reference or a definition, and the bindings it stands for.
+     */
+    public static class Span {
+        private final int start;
+        private final int end;
+        @Nullable
+        private final Ref ref;
+        @Nullable
+        private final Def def;
+        @NotNull
+        private final List<Binding> bindings;
+
+
+        Span(int start, int end, @Nullable Ref ref, @Nullable Def def, @NotNull List<Binding> bindings) {
+            this.start = start;
+            this.end = end;
+            this.ref = ref;
+            this.def = def;
+            this.bindings = bindings;
+        }
+
+
+        public int getStart() {
+            return start;
+        }
+
+
+        public int getEnd() {
+            return end;
+        }
+
+
+        /**
+         * @return the reference, or {@code null} if this is a definition
+         */
+        @Nullable
+        public Ref getRef() {
+            return ref;
+        }
+
+
+        /**
+         * @return the definition, or {@code null} if this is a reference
+         */
+        @Nullable
+        public Def getDef() {
+            return def;
+        }
+
+
+        public boolean isDef() {
+            return def != null;
+        }
+
+
+        @NotNull
+        public List<Binding> getBindings() {
+            return bindings;
+        }
+
+
+        /**
+         * @return the types of the bindings
+         */
+        @NotNull
+        public List<Type> getTypes() {
+            List<Type> types = new ArrayList<>(bindings.size());
+            for (Binding b : bindings) {
+                types.add(b.getType());
+            }
+            return types;
+        }
+
+
+        /**
+         * @return the docstrings of the definitions of the bindings
+         */
+        @NotNull
+        public List<String> getDocstrings() {
+            List<String> docs = new ArrayList<>();
+            for (Binding b : bindings) {
+                for (Def d : b.getDefs()) {
+                    if (d.docstring != null && !docs.contains(d.docstring)) {
+                        docs.add(d.docstring);
+                    }
+                }
+            }
+            return docs;
+        }
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "<Span:" + start + "-" + end + ":" + (ref != null ? ref : def) + ">";
+        }
+    }
+
+
+    // the spans of one file, sorted by start and then end
+    private static class FileSpans {
+        final int[] starts;
+        final int[] ends;
+        final int[] maxEnds;    // the largest end of the spans up to each one
+        final Object[] items;   // Ref or Def
+
+
+        FileSpans(@NotNull List<Object> sorted) {
+            int n = sorted.size();
+            starts = new int[n];
+            ends = new int[n];
+            maxEnds = new int[n];
+            items = sorted.toArray();
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                starts[i] = start(items[i]);
+                ends[i] = end(items[i]);
+                max = Math.max(max, ends[i]);
+                maxEnds[i] = max;
+            }
+        }
+
+
+        // the number of spans that start before pos
+        int countBefore(int pos) {
+            int lo = 0;
+            int hi = starts.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] < pos) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+
+    private static final Comparator<Object> BY_POSITION = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            int c = Integer.compare(start(a), start(b));
+            return c != 0 ? c : Integer.compare(end(a), end(b));
+        }
+    };
+
+
+    @NotNull
+    private final Map<Ref, List<Binding>> references;
+    @NotNull
+    private final Map<String, FileSpans> files = new HashMap<>();
+
+
+    /**
+     * Indexes {@code references} and the definitions of {@code bindings}.
+     * The bindings of a reference are looked up in {@code references} when
+     * it is found, so they are the current ones.
+     */
+    public PositionIndex(@NotNull Map<Ref, List<Binding>> references,
+                         @NotNull Collection<List<Binding>> bindings)
+    {
+        this.references = references;
+
+        Map<String, List<Object>> byFile = new HashMap<>();
+        for (Ref ref : references.keySet()) {
+            if (ref.getFile() != null && ref.length() > 0) {
+                spansOf(ref.getFile(), byFile).add(ref);
+            }
+        }
+        Set<Def> seen = Collections.newSetFromMap(new IdentityHashMap<Def, Boolean>());
+        for (List<Binding> bs : bindings) {
+            for (Binding b : bs) {
+                for (Def def : b.getDefs()) {
+                    if (def.getFile() != null && def.getStart() >= 0 && def.getEnd() > def.getStart() &&
+                            seen.add(def))
+                    {
+                        spansOf(def.getFile(), byFile).add(def);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Object>> e : byFile.entrySet()) {
+            List<Object> spans = e.getValue();
+            Collections.sort(spans, BY_POSITION);
+            files.put(e.getKey(), new FileSpans(spans));
+        }
+    }
+
+
+    /**
+     * @param file a path as {@link _#unifyPath} makes it
+     * @return the references and definitions in {@code file} whose text
+     * contains {@code offset}, innermost first
+     */
+    @NotNull
+    public List<Span> lookupAt(@NotNull String file, int offset) {
+        FileSpans fs = files.get(file);
+        if (fs == null) {
+            return Collections.emptyList();
+        }
+        List<Span> found = new ArrayList<>(1);
+        for (int i = fs.countBefore(offset + 1) - 1; i >= 0 && fs.maxEnds[i] > offset; i--) {
+            if (fs.ends[i] > offset) {
+                found.add(span(fs, i));
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * @param file a path as {@link _#unifyPath} makes it
+     * @return the references and definitions in {@code file} that overlap
+     * the range from {@code start} to {@code end}, exclusive, ordered by start
+     */
+    @NotNull
+    public List<Span> rangeQuery(@NotNull String file, int start, int end) {
+        FileSpans fs = files.get(file);
+        if (fs == null || end <= start) {
+            return Collections.emptyList();
+        }
+        List<Span> found = new ArrayList<>();
+        for (int i = fs.countBefore(end) - 1; i >= 0 && fs.maxEnds[i] > start; i--) {
+            if (fs.ends[i] > start) {
+                found.add(span(fs, i));
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+
+    /**
+     * @return the number of files that have references or definitions
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+
+    @NotNull
+    private Span span(@NotNull FileSpans fs, int i) {
+        Object item = fs.items[i];
+        if (item instanceof Ref) {
+            List<Binding> bs = references.get(item);
+            return new Span(fs.starts[i], fs.ends[i], (Ref) item, null,
+                    bs == null ? Collections.<Binding>emptyList() : bs);
+        } else {
+            Def def = (Def) item;
+            return new Span(fs.starts[i], fs.ends[i], null, def, Collections.singletonList(def.getBinding()));
+        }
+    }
+
+
+    @NotNull
+    private static List<Object> spansOf(@NotNull String file, @NotNull Map<String, List<Object>> byFile) {
+        List<Object> spans = byFile.get(file);
+        if (spans == null) {
+            spans = new ArrayList<>();
+            byFile.put(file, spans);
+        }
+        return spans;
+    }
+
+
+    private static int start(@NotNull Object item) {
+        return item instanceof Ref ? ((Ref) item).start() : ((Def) item).getStart();
+    }
+
+
+    private static int end(@NotNull Object item) {
+        return item instanceof Ref ? ((Ref) item).end() : ((Def) item).getEnd();
+    }
+}
@@ -0,0 +1,326 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Node;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * The references of an {@link Indexer}: the bindings each name or string in
+ * the source refers to, by its {@link Ref}, in the order they were added. <p>
+ * {@link Indexer#putRef} is called for every name that is resolved, so the
+ * table is keyed by a {@code long}, the id of the file in the high half and
+ * the start offset in the low half, in an open-addressing table of indexes
+ * into arrays of the entries.  A reference to a single binding keeps the
+ * binding itself rather than a list.  {@link #put(Node, Binding)} allocates
+ * only for a new reference or a reference to a second binding.
+ */
+public class RefTable extends AbstractMap<Ref, List<Binding>> {
+
+    private static final int EMPTY = -1;
+    private static final int REMOVED = -2;
+
+    // file paths to ids; 0 stands for no file
+    private final Map<String, Integer> fileIds = new HashMap<>();
+
+    // entry indexes, EMPTY or REMOVED; twice as many as there is room for entries
+    private int[] slots;
+    private long[] keys;
+    private Ref[] refs;             // null where the entry was removed
+    private Object[] bindings;      // a Binding or a Binding[]
+    private int count = 0;          // entries used, including the removed ones
+    private int size = 0;
+
+
+    public RefTable() {
+        allocate(16);
+    }
+
+
+    /**
+     * Records that {@code node} refers to {@code b}.
+     *
+     * @return the ref of {@code node}
+     */
+    @NotNull
+    public Ref put(@NotNull Node node, @NotNull Binding b) {
+        long key = key(internFile(node.getFile()), node.start);
+        int s = slot(key);
+        int e = slots[s];
+        if (e < 0) {
+            if (count == keys.length) {
+                rebuild();
+                s = slot(key);
+            }
+            e = add(s, key, new Ref(node));
+            bindings[e] = b;
+            return refs[e];
+        }
+
+        Object v = bindings[e];
+        if (v instanceof Binding) {
+            if (v != b) {
+                bindings[e] = new Binding[]{(Binding) v, b};
+            }
+        } else {
+            Binding[] bs = (Binding[]) v;
+            for (Binding x : bs) {
+                if (x == b) {
+                    return refs[e];
+                }
+            }
+            bs = Arrays.copyOf(bs, bs.length + 1);
+            bs[bs.length - 1] = b;
+            bindings[e] = bs;
+        }
+        return refs[e];
+    }
+
+
+    /**
+     * Sets the bindings {@code ref} refers to, replacing any it had.
+     */
+    @Nullable
+    @Override
+    public List<Binding> put(@NotNull Ref ref, @NotNull List<Binding> bs) {
+        if (bs.isEmpty()) {
+            return remove(ref);
+        }
+        long key = key(internFile(ref.getFile()), ref.start());
+        int s = slot(key);
+        int e = slots[s];
+        List<Binding> old = null;
+        if (e < 0) {
+            if (count == keys.length) {
+                rebuild();
+                s = slot(key);
+            }
+            e = add(s, key, ref);
+        } else {
+            old = getBindings(e);
+            refs[e] = ref;
+        }
+        bindings[e] = bs.size() == 1 ? bs.get(0) : bs.toArray(new Binding[bs.size()]);
+        return old;
+    }
+
+
+    @Nullable
+    @Override
+    public List<Binding> get(Object o) {
+        int e = find(o);
+        return e < 0 ? null : getBindings(e);
+    }
+
+
+    @Override
+    public boolean containsKey(Object o) {
+        return find(o) >= 0;
+    }
+
+
+    @Nullable
+    @Override
+    public List<Binding> remove(Object o) {
+        int e = find(o);
+        if (e < 0) {
+            return null;
+        }
+        List<Binding> old = getBindings(e);
+        removeEntry(e);
+        return old;
+    }
+
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    @Override
+    public void clear() {
+        fileIds.clear();
+        allocate(16);
+        count = 0;
+        size = 0;
+    }
+
+
+    @NotNull
+    @Override
+    public Set<Entry<Ref, List<Binding>>> entrySet() {
+        return new AbstractSet<Entry<Ref, List<Binding>>>() {
+            @NotNull
+            @Override
+            public Iterator<Entry<Ref, List<Binding>>> iterator() {
+                return new EntryIterator();
+            }
+
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+
+    private class EntryIterator implements Iterator<Entry<Ref, List<Binding>>> {
+        private int next = 0;
+        private int last = -1;
+
+
+        @Override
+        public boolean hasNext() {
+            while (next < count && refs[next] == null) {
+                next++;
+            }
+            return next < count;
+        }
+
+
+        @NotNull
+        @Override
+        public Entry<Ref, List<Binding>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new SimpleImmutableEntry<>(refs[last], getBindings(last));
+        }
+
+
+        @Override
+        public void remove() {
+            if (last < 0 || refs[last] == null) {
+                throw new IllegalStateException();
+            }
+            removeEntry(last);
+        }
+    }
+
+
+    @NotNull
+    private List<Binding> getBindings(int e) {
+        Object v = bindings[e];
+        if (v instanceof Binding) {
+            return Collections.singletonList((Binding) v);
+        } else {
+            return Collections.unmodifiableList(Arrays.asList((Binding[]) v));
+        }
+    }
+
+
+    // the entry of o, or -1
+    private int find(Object o) {
+        if (!(o instanceof Ref)) {
+            return -1;
+        }
+        Ref ref = (Ref) o;
+        int fileId = 0;
+        if (ref.getFile() != null) {
+            Integer id = fileIds.get(ref.getFile());
+            if (id == null) {
+                return -1;
+            }
+            fileId = id;
+        }
+        int e = slots[slot(key(fileId, ref.start()))];
+        return e < 0 ? -1 : e;
+    }
+
+
+    private int internFile(@Nullable String file) {
+        if (file == null) {
+            return 0;
+        }
+        Integer id = fileIds.get(file);
+        if (id == null) {
+            id = fileIds.size() + 1;
+            fileIds.put(file, id);
+        }
+        return id;
+    }
+
+
+    private static long key(int fileId, int start) {
+        return (long) fileId << 32 | start & 0xffffffffL;
+    }
+
+
+    // the slot of key, or the empty slot where it goes
+    private int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        int mask = slots.length - 1;
+        int s = (int) (h ^ h >>> 32) & mask;
+        while (true) {
+            int e = slots[s];
+            if (e == EMPTY || e >= 0 && keys[e] == key) {
+                return s;
+            }
+            s = (s + 1) & mask;
+        }
+    }
+
+
+    private int add(int s, long key, @NotNull Ref ref) {
+        int e = count++;
+        slots[s] = e;
+        keys[e] = key;
+        refs[e] = ref;
+        size++;
+        return e;
+    }
+
+
+    private void removeEntry(int e) {
+        slots[slot(keys[e])] = REMOVED;
+        refs[e] = null;
+        bindings[e] = null;
+        size--;
+    }
+
+
+    private void allocate(int capacity) {
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, EMPTY);
+        keys = new long[capacity];
+        refs = new Ref[capacity];
+        bindings = new Object[capacity];
+    }
+
+
+    // drops the removed entries, and makes room for as many entries again as are left
+    private void rebuild() {
+        long[] oldKeys = keys;
+        Ref[] oldRefs = refs;
+        Object[] oldBindings = bindings;
+        int oldCount = count;
+
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+        count = 0;
+        size = 0;
+        for (int i = 0; i < oldCount; i++) {
+            if (oldRefs[i] != null) {
+                int e = add(slot(oldKeys[i]), oldKeys[i], oldRefs[i]);
+                bindings[e] = oldBindings[i];
+            }
+        }
+    }
+}
@@ -145,6 +145,15 @@ public class Scope {
     }
 
 
+    @NotNull
+    public List<Scope> getSupers() {
+        if (supers != null) {
+            return supers;
+        }
+        return Collections.emptyList();
+    }
+
+
     public void setScopeType(ScopeType type) {
         this.scopeType = type;
     }
@@ -277,12 +286,9 @@ public class Scope {
      * rule. The new MRO can be implemented, but will probably not introduce
      * much difference.
      */
-    @NotNull
-    private static Set<Scope> looked = new HashSet<>();    // circularity prevention
-
-
     @Nullable
     public Binding lookupAttr(String attr) {
+        Set<Scope> looked = Indexer.idx().attrLookups;    // circularity prevention
         if (looked.contains(this)) {
             return null;
         } else {
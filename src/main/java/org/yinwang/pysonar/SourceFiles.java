@@ -0,0 +1,139 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+
+/**
+ * Finds the source files to analyze under a file or directory, in one walk
+ * of the tree.  Symbolic links are followed, except the ones that lead back
+ * to a directory that is being walked. <p>
+ * Include and exclude patterns are {@link java.nio.file.FileSystem#getPathMatcher
+ * globs}, matched against the path relative to the root of the walk, e.g.
+ * {@code lib/**.py} or {@code **&#47;tests}.  A file is found if it ends with
+ * {@code .py}, matches an include pattern or there are none, and neither it
+ * nor a directory above it matches an exclude pattern.
+ */
+public class SourceFiles {
+
+    @NotNull
+    private final List<PathMatcher> includes = new ArrayList<>();
+    @NotNull
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private int loopsSkipped = 0;
+
+
+    @NotNull
+    public SourceFiles include(@NotNull String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        return this;
+    }
+
+
+    @NotNull
+    public SourceFiles exclude(@NotNull String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        return this;
+    }
+
+
+    /**
+     * @return the source files under {@code fileOrDir}, or {@code fileOrDir}
+     * itself if it is a source file, in the order the directories list them
+     */
+    @NotNull
+    public List<String> find(@NotNull String fileOrDir) {
+        final Path root = new File(fileOrDir).toPath();
+        final List<String> files = new ArrayList<>();
+
+        try {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @NotNull
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            if (!dir.equals(root) && isExcluded(root.relativize(dir))) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+
+                        @NotNull
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            Path rel = file.equals(root) ? file.getFileName() : root.relativize(file);
+                            if (!attrs.isDirectory() && isIncluded(rel) && !isExcluded(rel)) {
+                                files.add(_.unifyPath(file.toFile()));
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+
+                        @NotNull
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            if (e instanceof FileSystemLoopException) {
+                                loopsSkipped++;
+                            } else {
+                                _.msg("Can't read " + file + ": " + e);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        }
+        catch (IOException e) {
+            _.msg("Failed to list " + fileOrDir + ": " + e);
+        }
+        return files;
+    }
+
+
+    private boolean isIncluded(@NotNull Path rel) {
+        if (!rel.toString().endsWith(".py")) {
+            return false;
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (PathMatcher m : includes) {
+            if (m.matches(rel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private boolean isExcluded(@NotNull Path rel) {
+        for (PathMatcher m : excludes) {
+            if (m.matches(rel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return the number of symbolic links not followed because they lead
+     * back to a directory being walked
+     */
+    public int getLoopsSkipped() {
+        return loopsSkipped;
+    }
+}
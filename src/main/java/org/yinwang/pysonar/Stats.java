@@ -39,6 +39,18 @@ public class Stats {
     }
 
 
+    /**
+     * Adds the counters of {@code other} to these.
+     */
+    public void add(Stats other) {
+        for (Map.Entry<String, Object> e : other.contents.entrySet()) {
+            if (e.getValue() instanceof Long) {
+                inc(e.getKey(), (Long) e.getValue());
+            }
+        }
+    }
+
+
     public String print() {
         StringBuilder sb = new StringBuilder();
 
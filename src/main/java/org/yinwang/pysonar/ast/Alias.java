@@ -26,7 +26,7 @@ public class Alias extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.unknown;
+        return Indexer.idx().builtins.unknown;
     }
 
 
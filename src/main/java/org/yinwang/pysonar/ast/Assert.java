@@ -29,7 +29,7 @@ public class Assert extends Node {
         if (msg != null) {
             resolveExpr(msg, s);
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
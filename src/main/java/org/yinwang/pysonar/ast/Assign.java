@@ -33,7 +33,7 @@ public class Assign extends Node {
     @Override
     public Type resolve(@NotNull Scope s) {
         if (rvalue == null) {
-            Indexer.idx.putProblem(this, "missing RHS of assignment");
+            Indexer.idx().putProblem(this, "missing RHS of assignment");
         } else {
             Type valueType = resolveExpr(rvalue, s);
             for (Node t : targets) {
@@ -41,7 +41,7 @@ public class Assign extends Node {
             }
         }
 
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
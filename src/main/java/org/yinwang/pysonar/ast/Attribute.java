@@ -72,7 +72,7 @@ public class Attribute extends Node {
 
     private void setAttrType(@NotNull Type targetType, @NotNull Type v) {
         if (targetType.isUnknownType()) {
-            Indexer.idx.putProblem(this, "Can't set attribute for UnknownType");
+            Indexer.idx().putProblem(this, "Can't set attribute for UnknownType");
             return;
         }
         targetType.getTable().insert(attr.getId(), attr, v, ATTRIBUTE);
@@ -85,7 +85,7 @@ public class Attribute extends Node {
         Type targetType = resolveExpr(target, s);
         if (targetType.isUnionType()) {
             Set<Type> types = targetType.asUnionType().getTypes();
-            Type retType = Indexer.idx.builtins.unknown;
+            Type retType = Indexer.idx().builtins.unknown;
             for (Type tt : types) {
                 retType = UnionType.union(retType, getAttrType(tt));
             }
@@ -99,12 +99,12 @@ public class Attribute extends Node {
     private Type getAttrType(@NotNull Type targetType) {
         Binding b = targetType.getTable().lookupAttr(attr.getId());
         if (b == null) {
-            Indexer.idx.putProblem(attr, "attribute not found in type: " + targetType);
-            Type t = Indexer.idx.builtins.unknown;
+            Indexer.idx().putProblem(attr, "attribute not found in type: " + targetType);
+            Type t = Indexer.idx().builtins.unknown;
             t.getTable().setPath(targetType.getTable().extendPath(attr.getId()));
             return t;
         } else {
-            Indexer.idx.putRef(attr, b);
+            Indexer.idx().putRef(attr, b);
 
             if (getParent() != null && getParent().isCall() &&
                     b.getType().isFuncType() && targetType.isInstanceType())
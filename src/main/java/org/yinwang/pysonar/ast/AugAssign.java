@@ -27,7 +27,7 @@ public class AugAssign extends Node {
     public Type resolve(Scope s) {
         resolveExpr(target, s);
         resolveExpr(value, s);
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
@@ -33,27 +33,27 @@ public class Block extends Node {
                     scope.addGlobalName(name.getId());
                     Binding nb = scope.lookup(name.getId());
                     if (nb != null) {
-                        Indexer.idx.putRef(name, nb);
+                        Indexer.idx().putRef(name, nb);
                     }
                 }
             }
         }
 
         boolean returned = false;
-        Type retType = Indexer.idx.builtins.unknown;
+        Type retType = Indexer.idx().builtins.unknown;
 
         for (Node n : seq) {
             Type t = resolveExpr(n, scope);
             if (!returned) {
                 retType = UnionType.union(retType, t);
-                if (!UnionType.contains(t, Indexer.idx.builtins.Cont)) {
+                if (!UnionType.contains(t, Indexer.idx().builtins.Cont)) {
                     returned = true;
-                    retType = UnionType.remove(retType, Indexer.idx.builtins.Cont);
+                    retType = UnionType.remove(retType, Indexer.idx().builtins.Cont);
                 }
             } else if (scope.getScopeType() != Scope.ScopeType.GLOBAL &&
                     scope.getScopeType() != Scope.ScopeType.MODULE)
             {
-                Indexer.idx.putProblem(n, "unreachable code");
+                Indexer.idx().putProblem(n, "unreachable code");
             }
         }
 
@@ -30,7 +30,7 @@ public class BoolOp extends Node {
             for (Node e : values) {
                 last = resolveExpr(e, s);
             }
-            return (last == null ? Indexer.idx.builtins.unknown : last);
+            return (last == null ? Indexer.idx().builtins.unknown : last);
         }
 
         // OR
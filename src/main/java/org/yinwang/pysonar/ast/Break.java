@@ -29,6 +29,6 @@ public class Break extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.None;
+        return Indexer.idx().builtins.None;
     }
 }
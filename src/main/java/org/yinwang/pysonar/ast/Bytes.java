@@ -25,7 +25,7 @@ public class Bytes extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.BaseStr;
+        return Indexer.idx().builtins.BaseStr;
     }
 
 
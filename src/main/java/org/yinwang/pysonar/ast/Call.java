@@ -71,7 +71,7 @@ public class Call extends Node {
 
         if (opType.isUnionType()) {
             Set<Type> types = opType.asUnionType().getTypes();
-            Type retType = Indexer.idx.builtins.unknown;
+            Type retType = Indexer.idx().builtins.unknown;
             for (Type funcType : types) {
                 Type t = resolveCall(funcType, aTypes, kwTypes, kwargsType, starargsType);
                 retType = UnionType.union(retType, t);
@@ -97,7 +97,7 @@ public class Call extends Node {
             return new InstanceType(rator, this, aTypes);
         } else {
             addWarning("calling non-function and non-class: " + rator);
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
     }
 
@@ -110,22 +110,22 @@ public class Call extends Node {
                              Type starargsType,
                              @Nullable Node call)
     {
-        Indexer.idx.removeUncalled(func);
+        Indexer.idx().removeUncalled(func);
 
         if (func.func != null && !func.func.called) {
-            Indexer.idx.nCalled++;
+            Indexer.idx().nCalled++;
             func.func.called = true;
         }
 
         if (func.getFunc() == null) {           // func without definition (possibly builtins)
             return func.getReturnType();
-        } else if (call != null && Indexer.idx.inStack(call)) {
+        } else if (call != null && Indexer.idx().inStack(call)) {
             func.setSelfType(null);
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
 
         if (call != null) {
-            Indexer.idx.pushStack(call);
+            Indexer.idx().pushStack(call);
         }
 
         List<Type> argTypeList = new ArrayList<>();
@@ -161,10 +161,10 @@ public class Call extends Node {
         } else {
             Type toType = resolveExpr(func.func.body, funcTable);
             if (missingReturn(toType)) {
-                Indexer.idx.putProblem(func.func.name, "Function not always return a value");
+                Indexer.idx().putProblem(func.func.name, "Function not always return a value");
 
                 if (call != null) {
-                    Indexer.idx.putProblem(call, "Call not always return a value");
+                    Indexer.idx().putProblem(call, "Call not always return a value");
                 }
             }
 
@@ -207,9 +207,9 @@ public class Call extends Node {
             {
                 aType = starargsType.asTupleType().get(j++);
             } else {
-                aType = Indexer.idx.builtins.unknown;
+                aType = Indexer.idx().builtins.unknown;
                 if (call != null) {
-                    Indexer.idx.putProblem(args.get(i), "unable to bind argument:" + args.get(i));
+                    Indexer.idx().putProblem(args.get(i), "unable to bind argument:" + args.get(i));
                 }
             }
             NameBinder.bind(funcTable, arg, aType, Binding.Kind.PARAMETER);
@@ -218,10 +218,10 @@ public class Call extends Node {
 
         if (kwTypes != null && !kwTypes.isEmpty()) {
             Type kwValType = UnionType.newUnion(kwTypes.values());
-            NameBinder.bind(funcTable, fkwargs, new DictType(Indexer.idx.builtins.BaseStr, kwValType),
+            NameBinder.bind(funcTable, fkwargs, new DictType(Indexer.idx().builtins.BaseStr, kwValType),
                     Binding.Kind.PARAMETER);
         } else {
-            NameBinder.bind(funcTable, fkwargs, Indexer.idx.builtins.unknown,
+            NameBinder.bind(funcTable, fkwargs, Indexer.idx().builtins.unknown,
                     Binding.Kind.PARAMETER);
         }
 
@@ -229,7 +229,7 @@ public class Call extends Node {
             Type starType = new TupleType(aTypes.subList(args.size(), aTypes.size()));
             NameBinder.bind(funcTable, fvarargs, starType, Binding.Kind.PARAMETER);
         } else {
-            NameBinder.bind(funcTable, fvarargs, Indexer.idx.builtins.unknown, Binding.Kind.PARAMETER);
+            NameBinder.bind(funcTable, fvarargs, Indexer.idx().builtins.unknown, Binding.Kind.PARAMETER);
         }
 
         return fromType;
@@ -267,7 +267,7 @@ public class Call extends Node {
 
         if (toType.isUnionType()) {
             for (Type t : toType.asUnionType().getTypes()) {
-                if (t == Indexer.idx.builtins.None || t == Indexer.idx.builtins.Cont) {
+                if (t == Indexer.idx().builtins.None || t == Indexer.idx().builtins.Cont) {
                     hasNone = true;
                 } else {
                     hasOther = true;
@@ -65,17 +65,17 @@ public class ClassDef extends Node {
                     break;
                 }
             } else {
-                Indexer.idx.putProblem(base, base + " is not a class");
+                Indexer.idx().putProblem(base, base + " is not a class");
             }
             baseTypes.add(baseType);
         }
 
         // XXX: Not sure if we should add "bases", "name" and "dict" here. They
         // must be added _somewhere_ but I'm just not sure if it should be HERE.
-        Builtins builtins = Indexer.idx.builtins;
+        Builtins builtins = Indexer.idx().builtins;
         addSpecialAttribute(classType.getTable(), "__bases__", new TupleType(baseTypes));
         addSpecialAttribute(classType.getTable(), "__name__", builtins.BaseStr);
-        addSpecialAttribute(classType.getTable(), "__dict__", new DictType(builtins.BaseStr, Indexer.idx.builtins.unknown));
+        addSpecialAttribute(classType.getTable(), "__dict__", new DictType(builtins.BaseStr, Indexer.idx().builtins.unknown));
         addSpecialAttribute(classType.getTable(), "__module__", builtins.BaseStr);
         addSpecialAttribute(classType.getTable(), "__doc__", builtins.BaseStr);
 
@@ -83,7 +83,7 @@ public class ClassDef extends Node {
         // methods need this type as self.
         NameBinder.bind(s, name, classType, Binding.Kind.CLASS);
         resolveExpr(body, classType.getTable());
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
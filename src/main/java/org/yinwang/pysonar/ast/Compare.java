@@ -32,7 +32,7 @@ public class Compare extends Node {
     public Type resolve(Scope s) {
         resolveExpr(left, s);
         resolveList(comparators, s);
-        return Indexer.idx.builtins.BaseNum;
+        return Indexer.idx().builtins.BaseNum;
     }
 
 
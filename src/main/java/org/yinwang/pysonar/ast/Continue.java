@@ -23,7 +23,7 @@ public class Continue extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.None;
+        return Indexer.idx().builtins.None;
     }
 
 
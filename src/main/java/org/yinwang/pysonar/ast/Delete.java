@@ -29,7 +29,7 @@ public class Delete extends Node {
                 s.remove(n.asName().getId());
             }
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
@@ -31,7 +31,7 @@ public class ExceptHandler extends Node {
     @NotNull
     @Override
     public Type resolve(@NotNull Scope s) {
-        Type typeval = Indexer.idx.builtins.unknown;
+        Type typeval = Indexer.idx().builtins.unknown;
         if (exceptionType != null) {
             typeval = resolveExpr(exceptionType, s);
         }
@@ -41,7 +41,7 @@ public class ExceptHandler extends Node {
         if (body != null) {
             return resolveExpr(body, s);
         } else {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
     }
 
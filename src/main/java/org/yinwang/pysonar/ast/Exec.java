@@ -34,7 +34,7 @@ public class Exec extends Node {
         if (locals != null) {
             resolveExpr(locals, s);
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
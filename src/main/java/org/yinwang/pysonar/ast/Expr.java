@@ -27,7 +27,7 @@ public class Expr extends Node {
         if (value != null) {
             resolveExpr(value, s);
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
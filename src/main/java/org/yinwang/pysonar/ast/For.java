@@ -41,7 +41,7 @@ public class For extends Node {
 
         Type ret;
         if (body == null) {
-            ret = Indexer.idx.builtins.unknown;
+            ret = Indexer.idx().builtins.unknown;
         } else {
             ret = resolveExpr(body, s);
         }
@@ -157,7 +157,7 @@ public class FunctionDef extends Node {
         fun.getTable().setParent(outer);
         fun.getTable().setPath(outer.extendPath(getName().getId()));
         fun.setDefaultTypes(resolveAndConstructList(defaults, outer));
-        Indexer.idx.addUncalled(fun);
+        Indexer.idx().addUncalled(fun);
         Binding.Kind funkind;
 
         if (outer.getScopeType() == Scope.ScopeType.CLASS) {
@@ -176,7 +176,7 @@ public class FunctionDef extends Node {
         }
 
         NameBinder.bind(outer, name, fun, funkind);
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
@@ -24,7 +24,7 @@ public class Global extends Node {
     @Override
     public Type resolve(Scope s) {
         // Do nothing here because global names are processed by NBlock
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
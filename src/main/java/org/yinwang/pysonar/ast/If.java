@@ -35,17 +35,17 @@ public class If extends Node {
         if (body != null && !body.isEmpty()) {
             type1 = resolveExpr(body, s1);
         } else {
-            type1 = Indexer.idx.builtins.Cont;
+            type1 = Indexer.idx().builtins.Cont;
         }
 
         if (orelse != null && !orelse.isEmpty()) {
             type2 = resolveExpr(orelse, s2);
         } else {
-            type2 = Indexer.idx.builtins.Cont;
+            type2 = Indexer.idx().builtins.Cont;
         }
 
-        boolean cont1 = UnionType.contains(type1, Indexer.idx.builtins.Cont);
-        boolean cont2 = UnionType.contains(type2, Indexer.idx.builtins.Cont);
+        boolean cont1 = UnionType.contains(type1, Indexer.idx().builtins.Cont);
+        boolean cont2 = UnionType.contains(type2, Indexer.idx().builtins.Cont);
 
         Scope ss;
 
@@ -32,12 +32,12 @@ public class IfExp extends Node {
         if (body != null) {
             type1 = resolveExpr(body, s);
         } else {
-            type1 = Indexer.idx.builtins.Cont;
+            type1 = Indexer.idx().builtins.Cont;
         }
         if (orelse != null) {
             type2 = resolveExpr(orelse, s);
         } else {
-            type2 = Indexer.idx.builtins.Cont;
+            type2 = Indexer.idx().builtins.Cont;
         }
         return UnionType.union(type1, type2);
     }
@@ -26,14 +26,14 @@ public class Import extends Node {
     @Override
     public Type resolve(@NotNull Scope s) {
         for (Alias a : names) {
-            ModuleType mod = Indexer.idx.loadModule(a.name, s);
+            ModuleType mod = Indexer.idx().loadModule(a.name, s);
             if (mod == null) {
-                Indexer.idx.putProblem(this, "Cannot load module");
+                Indexer.idx().putProblem(this, "Cannot load module");
             } else if (a.asname != null) {
                 s.insert(a.asname.id, a.asname, mod, Binding.Kind.VARIABLE);
             }
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
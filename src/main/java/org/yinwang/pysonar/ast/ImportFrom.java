@@ -26,6 +26,7 @@ public class ImportFrom extends Node {
         this.module = module;
         this.level = level;
         this.names = names;
+        addChildren(module);
         addChildren(names);
     }
 
@@ -40,13 +41,13 @@ public class ImportFrom extends Node {
     @Override
     public Type resolve(@NotNull Scope s) {
         if (module == null) {
-            return Indexer.idx.builtins.Cont;
+            return Indexer.idx().builtins.Cont;
         }
 
-        ModuleType mod = Indexer.idx.loadModule(module, s);
+        ModuleType mod = Indexer.idx().loadModule(module, s, false);
 
         if (mod == null) {
-            Indexer.idx.putProblem(this, "Cannot load module");
+            Indexer.idx().putProblem(this, "Cannot load module");
         } else if (isImportStar()) {
             importStar(s, mod);
         } else {
@@ -56,15 +57,15 @@ public class ImportFrom extends Node {
                 if (b != null) {
                     if (a.asname != null) {
                         s.update(a.asname.id, b);
-                        Indexer.idx.putRef(a.asname, b);
+                        Indexer.idx().putRef(a.asname, b);
                     } else {
                         s.update(first.id, b);
-                        Indexer.idx.putRef(first, b);
+                        Indexer.idx().putRef(first, b);
                     }
                 } else {
                     List<Name> ext = new ArrayList<>(module);
                     ext.add(first);
-                    ModuleType mod2 = Indexer.idx.loadModule(ext, s);
+                    ModuleType mod2 = Indexer.idx().loadModule(ext, s, false);
                     if (mod2 != null) {
                         if (a.asname != null) {
                             s.insert(a.asname.id, a.asname, mod2, Binding.Kind.VARIABLE);
@@ -76,7 +77,7 @@ public class ImportFrom extends Node {
             }
         }
 
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
@@ -90,7 +91,7 @@ public class ImportFrom extends Node {
             return;
         }
 
-        Module mod = Indexer.idx.getAstForFile(mt.getFile());
+        Module mod = Indexer.idx().getAstForFile(mt.getFile());
         if (mod == null) {
             return;
         }
@@ -116,7 +117,7 @@ public class ImportFrom extends Node {
                 } else {
                     List<Name> m2 = new ArrayList<>(module);
                     m2.add(new Name(name));
-                    ModuleType mod2 = Indexer.idx.loadModule(m2, s);
+                    ModuleType mod2 = Indexer.idx().loadModule(m2, s, false);
                     if (mod2 != null) {
                         s.insert(name, null, mod2, Binding.Kind.VARIABLE);
                     }
@@ -42,7 +42,11 @@ public class Lambda extends FunctionDef {
         if (name != null) {
             return name;
         } else {
-            String fn = genLambdaName();
+            // the threads of a parallel analysis reach the lambdas in no fixed
+            // order, so there, and in updates of its results, they are named
+            // by position instead
+            Indexer idx = Indexer.idx();
+            String fn = idx.isWorker() || idx.isAnalyzedInParallel() ? "lambda%" + start : genLambdaName();
             name = new Name(fn, start, start + "lambda".length());
             addChildren(name);
             return name;
@@ -59,7 +63,7 @@ public class Lambda extends FunctionDef {
         cl.getTable().setPath(outer.extendPath(getName().getId()));
         NameBinder.bind(outer, getName(), cl, Binding.Kind.FUNCTION);
         cl.setDefaultTypes(resolveAndConstructList(defaults, outer));
-        Indexer.idx.addUncalled(cl);
+        Indexer.idx().addUncalled(cl);
         return cl;
     }
 
@@ -30,14 +30,14 @@ public class Module extends Node {
     public void setFile(String file) {
         this.file = file;
         this.name = _.moduleName(file);
-        this.sha1 = _.getSHA1(new File(file));
+        this.sha1 = Indexer.idx().fileHashes.getSHA1(file);
     }
 
 
     public void setFile(@NotNull File path) {
         file = _.unifyPath(path);
         name = _.moduleName(file);
-        sha1 = _.getSHA1(path);
+        sha1 = Indexer.idx().fileHashes.getSHA1(path);
     }
 
 
@@ -68,7 +68,7 @@ public class Module extends Node {
     @NotNull
     @Override
     public Type resolve(@NotNull Scope s) {
-        ModuleType mt = new ModuleType(_.moduleName(file), file, Indexer.idx.globaltable);
+        ModuleType mt = new ModuleType(_.moduleName(file), file, Indexer.idx().globaltable);
         s.insert(_.moduleQname(file), this, mt, Binding.Kind.MODULE);
         resolveExpr(body, mt.getTable());
         return mt;
@@ -52,15 +52,15 @@ public class Name extends Node {
     public Type resolve(@NotNull Scope s) {
         Binding b = s.lookup(id);
         if (b != null) {
-            Indexer.idx.putRef(this, b);
-            Indexer.idx.stats.inc("resolved");
+            Indexer.idx().putRef(this, b);
+            Indexer.idx().stats.inc("resolved");
             return b.getType();
         } else if (id.equals("True") || id.equals("False")) {
-            return Indexer.idx.builtins.BaseBool;
+            return Indexer.idx().builtins.BaseBool;
         } else {
-            Indexer.idx.putProblem(this, "unbound variable " + getId());
-            Indexer.idx.stats.inc("unresolved");
-            Type t = Indexer.idx.builtins.unknown;
+            Indexer.idx().putProblem(this, "unbound variable " + getId());
+            Indexer.idx().stats.inc("unresolved");
+            Type t = Indexer.idx().builtins.unknown;
             t.getTable().setPath(s.extendPath(getId()));
             return t;
         }
@@ -37,7 +37,7 @@ public class NameBinder {
                 t.setElementType(UnionType.union(t.getElementType(), rvalue));
             }
         } else if (target != null) {
-            Indexer.idx.putProblem(target, "invalid location for assignment");
+            Indexer.idx().putProblem(target, "invalid location for assignment");
         }
     }
 
@@ -73,10 +73,10 @@ public class NameBinder {
             bind(s, xs, rvalue.asDictType().toTupleType(xs.size()), kind);
         } else if (rvalue.isUnknownType()) {
             for (Node x : xs) {
-                bind(s, x, Indexer.idx.builtins.unknown, kind);
+                bind(s, x, Indexer.idx().builtins.unknown, kind);
             }
         } else {
-            Indexer.idx.putProblem(xs.get(0).getFile(),
+            Indexer.idx().putProblem(xs.get(0).getFile(),
                     xs.get(0).start,
                     xs.get(xs.size() - 1).end,
                     "unpacking non-iterable: " + rvalue);
@@ -92,7 +92,7 @@ public class NameBinder {
 
         if (s.isGlobalName(name.getId())) {
             b = s.getGlobalTable().insert(name.getId(), name, rvalue, kind);
-            Indexer.idx.putRef(name, b);
+            Indexer.idx().putRef(name, b);
         } else {
             b = s.insert(name.getId(), name, rvalue, kind);
         }
@@ -118,7 +118,7 @@ public class NameBinder {
                 if (!iterType.isUnknownType()) {
                     iter.addWarning("not an iterable type: " + iterType);
                 }
-                bind(s, target, Indexer.idx.builtins.unknown, kind);
+                bind(s, target, Indexer.idx().builtins.unknown, kind);
             } else {
                 bind(s, target, ent.getType().asFuncType().getReturnType(), kind);
             }
@@ -137,6 +137,6 @@ public class NameBinder {
         } else {
             msg = "ValueError: too many values to unpack";
         }
-        Indexer.idx.putProblem(xs.get(0).getFile(), beg, end, msg);
+        Indexer.idx().putProblem(xs.get(0).getFile(), beg, end, msg);
     }
 }
@@ -200,12 +200,12 @@ public abstract class Node implements java.io.Serializable {
 
 
     protected void addWarning(String msg) {
-        Indexer.idx.putProblem(this, msg);
+        Indexer.idx().putProblem(this, msg);
     }
 
 
     protected void addError(String msg) {
-        Indexer.idx.putProblem(this, msg);
+        Indexer.idx().putProblem(this, msg);
     }
 
 
@@ -217,10 +217,10 @@ public abstract class Node implements java.io.Serializable {
     @NotNull
     protected Type resolveListAsUnion(@Nullable List<? extends Node> nodes, Scope s) {
         if (nodes == null || nodes.isEmpty()) {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
 
-        Type result = Indexer.idx.builtins.unknown;
+        Type result = Indexer.idx().builtins.unknown;
         for (Node node : nodes) {
             Type nodeType = resolveExpr(node, s);
             result = UnionType.union(result, nodeType);
@@ -20,7 +20,7 @@ public class Num extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.BaseNum;
+        return Indexer.idx().builtins.BaseNum;
     }
 
 
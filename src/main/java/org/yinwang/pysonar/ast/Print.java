@@ -32,7 +32,7 @@ public class Print extends Node {
         if (values != null) {
             resolveList(values, s);
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
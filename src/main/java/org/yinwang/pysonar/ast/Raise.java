@@ -34,7 +34,7 @@ public class Raise extends Node {
         if (traceback != null) {
             resolveExpr(traceback, s);
         }
-        return Indexer.idx.builtins.Cont;
+        return Indexer.idx().builtins.Cont;
     }
 
 
@@ -24,7 +24,7 @@ public class Repr extends Node {
         if (value != null) {
             resolveExpr(value, s);
         }
-        return Indexer.idx.builtins.BaseStr;
+        return Indexer.idx().builtins.BaseStr;
     }
 
 
@@ -22,7 +22,7 @@ public class Return extends Node {
     @Override
     public Type resolve(Scope s) {
         if (value == null) {
-            return Indexer.idx.builtins.None;
+            return Indexer.idx().builtins.None;
         } else {
             return resolveExpr(value, s);
         }
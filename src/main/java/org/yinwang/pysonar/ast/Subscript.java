@@ -31,7 +31,7 @@ public class Subscript extends Node {
         Type st = resolveExpr(slice, s);
 
         if (vt.isUnionType()) {
-            Type retType = Indexer.idx.builtins.unknown;
+            Type retType = Indexer.idx().builtins.unknown;
             for (Type t : vt.asUnionType().getTypes()) {
                 retType = UnionType.union(retType, getSubscript(t, st, s));
             }
@@ -45,7 +45,7 @@ public class Subscript extends Node {
     @NotNull
     private Type getSubscript(@NotNull Type vt, @NotNull Type st, Scope s) {
         if (vt.isUnknownType()) {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         } else if (vt.isListType()) {
             return getListSubscript(vt, st, s);
         } else if (vt.isTupleType()) {
@@ -58,10 +58,10 @@ public class Subscript extends Node {
                 return vt;
             } else {
                 addWarning("Possible KeyError (wrong type for subscript)");
-                return Indexer.idx.builtins.unknown;
+                return Indexer.idx().builtins.unknown;
             }
         } else {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
     }
 
@@ -77,16 +77,16 @@ public class Subscript extends Node {
                 Type sliceFunc = vt.getTable().lookupAttrType("__getslice__");
                 if (sliceFunc == null) {
                     addError("The type can't be sliced: " + vt);
-                    return Indexer.idx.builtins.unknown;
+                    return Indexer.idx().builtins.unknown;
                 } else if (sliceFunc.isFuncType()) {
                     return Call.apply(sliceFunc.asFuncType(), null, null, null, null, this);
                 } else {
                     addError("The type's __getslice__ method is not a function: " + sliceFunc);
-                    return Indexer.idx.builtins.unknown;
+                    return Indexer.idx().builtins.unknown;
                 }
             }
         } else {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
     }
 
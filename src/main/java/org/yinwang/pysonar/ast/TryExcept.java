@@ -31,9 +31,9 @@ public class TryExcept extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        Type tp1 = Indexer.idx.builtins.unknown;
-        Type tp2 = Indexer.idx.builtins.unknown;
-        Type tph = Indexer.idx.builtins.unknown;
+        Type tp1 = Indexer.idx().builtins.unknown;
+        Type tp2 = Indexer.idx().builtins.unknown;
+        Type tph = Indexer.idx().builtins.unknown;
 
         for (ExceptHandler h : handlers) {
             tph = UnionType.union(tph, resolveExpr(h, s));
@@ -23,7 +23,7 @@ public class TryFinally extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        Type tFinal = Indexer.idx.builtins.unknown;
+        Type tFinal = Indexer.idx().builtins.unknown;
         if (body != null) {
             resolveExpr(body, s);
         }
@@ -28,7 +28,7 @@ public class Url extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.BaseStr;
+        return Indexer.idx().builtins.BaseStr;
     }
 
 
@@ -27,7 +27,7 @@ public class While extends Node {
     @Override
     public Type resolve(Scope s) {
         resolveExpr(test, s);
-        Type t = Indexer.idx.builtins.unknown;
+        Type t = Indexer.idx().builtins.unknown;
 
         if (body != null) {
             t = resolveExpr(body, s);
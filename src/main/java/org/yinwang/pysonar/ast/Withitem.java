@@ -37,7 +37,7 @@ public class Withitem extends Node {
     @NotNull
     @Override
     public Type resolve(Scope s) {
-        return Indexer.idx.builtins.unknown;
+        return Indexer.idx().builtins.unknown;
     }
 
 
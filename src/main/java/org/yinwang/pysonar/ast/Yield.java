@@ -25,7 +25,7 @@ public class Yield extends Node {
         if (value != null) {
             return new ListType(resolveExpr(value, s));
         } else {
-            return Indexer.idx.builtins.None;
+            return Indexer.idx().builtins.None;
         }
     }
 
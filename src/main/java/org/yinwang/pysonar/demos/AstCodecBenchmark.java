@@ -0,0 +1,157 @@
+package org.yinwang.pysonar.demos;
+
+import org.jetbrains.annotations.NotNull;
+import org.yinwang.pysonar.AstCodec;
+import org.yinwang.pysonar.AstParser;
+import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar._;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Compares the AST cache format ({@link AstCodec}) with the Java
+ * serialization the cache used before: total size, and write and read
+ * throughput over the parsed files of a directory.
+ * <p>
+ * Usage: {@code java -cp pysonar.jar org.yinwang.pysonar.demos.AstCodecBenchmark <file-or-dir> [rounds]}
+ */
+public class AstCodecBenchmark {
+
+    private interface Codec {
+        String name();
+
+        byte[] write(Module m) throws Exception;
+
+        Module read(byte[] data) throws Exception;
+    }
+
+
+    private static final Codec JAVA = new Codec() {
+        @Override
+        public String name() {
+            return "java serialization";
+        }
+
+
+        @Override
+        public byte[] write(Module m) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(m);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+
+        @Override
+        public Module read(byte[] data) throws Exception {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            return (Module) in.readObject();
+        }
+    };
+
+
+    private static final Codec COMPACT = new Codec() {
+        @Override
+        public String name() {
+            return "AstCodec";
+        }
+
+
+        @Override
+        public byte[] write(Module m) throws Exception {
+            return AstCodec.encode(m);
+        }
+
+
+        @Override
+        public Module read(byte[] data) throws Exception {
+            return AstCodec.decode(data);
+        }
+    };
+
+
+    private static void collect(@NotNull File f, @NotNull List<String> out) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File c : children) {
+                    collect(c, out);
+                }
+            }
+        } else if (f.getName().endsWith(".py")) {
+            out.add(_.unifyPath(f));
+        }
+    }
+
+
+    private static void run(@NotNull Codec codec, @NotNull List<Module> modules, int rounds) throws Exception {
+        List<byte[]> encoded = new ArrayList<>();
+        long size = 0;
+        for (Module m : modules) {
+            byte[] data = codec.write(m);
+            encoded.add(data);
+            size += data.length;
+        }
+
+        // the first round warms up the JIT and isn't counted
+        long writeNanos = 0;
+        long readNanos = 0;
+        for (int r = 0; r <= rounds; r++) {
+            long t0 = System.nanoTime();
+            for (Module m : modules) {
+                codec.write(m);
+            }
+            long t1 = System.nanoTime();
+            for (byte[] data : encoded) {
+                codec.read(data);
+            }
+            long t2 = System.nanoTime();
+            if (r > 0) {
+                writeNanos += t1 - t0;
+                readNanos += t2 - t1;
+            }
+        }
+
+        double mb = size * (double) rounds / (1024 * 1024);
+        _.msg(String.format("%-20s %10d bytes  write %8.1f MB/s %8.0f files/s  read %8.1f MB/s %8.0f files/s",
+                codec.name(), size,
+                mb / (writeNanos / 1e9), modules.size() * rounds / (writeNanos / 1e9),
+                mb / (readNanos / 1e9), modules.size() * rounds / (readNanos / 1e9)));
+    }
+
+
+    public static void main(@NotNull String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            _.msg("Usage: java org.yinwang.pysonar.demos.AstCodecBenchmark <file-or-dir> [rounds]");
+            System.exit(2);
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<String> files = new ArrayList<>();
+        collect(new File(args[0]), files);
+
+        Indexer idx = new Indexer();
+        AstParser parser = AstParser.create();
+        List<Module> modules = new ArrayList<>();
+        for (Node n : parser.parseFiles(files).values()) {
+            if (n instanceof Module) {
+                modules.add((Module) n);
+            }
+        }
+        parser.close();
+        _.msg("Parsed " + modules.size() + " of " + files.size() + " files");
+
+        run(JAVA, modules, rounds);
+        run(COMPACT, modules, rounds);
+        idx.close();
+        System.exit(0);
+    }
+}
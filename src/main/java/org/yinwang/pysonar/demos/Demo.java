@@ -1,11 +1,19 @@
 package org.yinwang.pysonar.demos;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.AstBundle;
+import org.yinwang.pysonar.AstCache;
 import org.yinwang.pysonar.FancyProgress;
+import org.yinwang.pysonar.IndexStore;
 import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar.LibrarySummary;
+import org.yinwang.pysonar.SourceFiles;
 import org.yinwang.pysonar._;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -58,6 +66,8 @@ public class Demo {
                     "} </script>\n";
 
 
+    private static SourceFiles sourceFiles = new SourceFiles();
+
     private Indexer indexer;
     private String rootPath;
     private Linker linker;
@@ -81,6 +91,7 @@ public class Demo {
         }
 
         indexer = new Indexer();
+        indexer.sourceFiles = sourceFiles;
         _.msg("Loading and analyzing files");
         indexer.loadFileRecursive(_.unifyPath(fileOrDir));
         indexer.finish();
@@ -177,7 +188,21 @@ public class Demo {
 
 
     private static void usage() {
-        _.msg("Usage:  java -jar pysonar-2.0-SNAPSHOT.jar <file-or-dir> <output-dir>");
+        _.msg("Usage:  java -jar pysonar-2.0-SNAPSHOT.jar [--python-version 2|3] [--parser python|java] " +
+                "<file-or-dir> <output-dir>");
+        _.msg("Without --python-version, the dialect is detected for each package.");
+        _.msg("--parser java parses in the JVM instead of running Python.");
+        _.msg("--include <glob> and --exclude <glob> select the files to analyze by their path " +
+                "under <file-or-dir>, e.g. --exclude '**/test'.");
+        _.msg("--clear-cache deletes the AST cache and exits.");
+        _.msg("--export-cache <file> saves the AST cache to <file>, after the analysis if there is one.");
+        _.msg("--import-cache <file> adds the ASTs in <file> to the AST cache before the analysis.");
+        _.msg("--import-graph <file> writes which files import which to <file>, as JSON.");
+        _.msg("--write-index <file> saves the results of the analysis to <file>, for IndexStore.");
+        _.msg("--threads <n> analyzes files that don't import each other on <n> threads.");
+        _.msg("--write-summary <file> saves what the analysis found about the loaded modules to <file>.");
+        _.msg("--summary <file> takes the modules of unchanged library files from a summary saved so, " +
+                "instead of analyzing them; it may be given several times.");
         _.msg("Example that generates an index for Python 2.7 standard library:");
         _.msg(" java -jar pysonar-2.0-SNAPSHOT.jar /usr/lib/python2.7 ./html");
         System.exit(0);
@@ -194,15 +219,104 @@ public class Demo {
     }
 
 
+    private static void exportCache(@NotNull File cacheDir, @Nullable File bundle) throws IOException {
+        if (bundle != null) {
+            int count = AstBundle.export(cacheDir, bundle);
+            _.msg("Exported " + count + " ASTs to " + bundle + " (" + bundle.length() + " bytes)");
+        }
+    }
+
+
     public static void main(@NotNull String[] args) throws Exception {
-        if (args.length != 2) {
+        List<String> files = new ArrayList<>();
+        File cacheDir = new File(Indexer.getDefaultCacheDir());
+        File exportTo = null;
+        File graphTo = null;
+        File indexTo = null;
+        File summaryTo = null;
+        StringBuilder summaries = new StringBuilder();
+        boolean imported = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--python-version") && i + 1 < args.length) {
+                String version = args[++i];
+                if (!version.equals("2") && !version.equals("3")) {
+                    usage();
+                }
+                System.setProperty("pysonar.python", version);
+            } else if (args[i].equals("--clear-cache")) {
+                File dir = new File(Indexer.getDefaultCacheDir());
+                long freed = AstCache.deleteDiskCache(dir);
+                if (freed < 0) {
+                    _.die("Failed to clear the AST cache: " + dir);
+                }
+                _.msg("Cleared the AST cache at " + dir + ": " + freed + " bytes freed");
+                System.exit(0);
+            } else if (args[i].equals("--import-cache") && i + 1 < args.length) {
+                File bundle = checkFile(args[++i]);
+                int added = AstBundle.importInto(cacheDir, bundle);
+                _.msg("Imported " + added + " ASTs from " + bundle);
+                imported = true;
+            } else if (args[i].equals("--export-cache") && i + 1 < args.length) {
+                exportTo = new File(args[++i]);
+            } else if (args[i].equals("--import-graph") && i + 1 < args.length) {
+                graphTo = new File(args[++i]);
+            } else if (args[i].equals("--write-index") && i + 1 < args.length) {
+                indexTo = new File(args[++i]);
+            } else if (args[i].equals("--write-summary") && i + 1 < args.length) {
+                summaryTo = new File(args[++i]);
+            } else if (args[i].equals("--summary") && i + 1 < args.length) {
+                File summary = checkFile(args[++i]);
+                if (summaries.length() > 0) {
+                    summaries.append(File.pathSeparator);
+                }
+                summaries.append(summary.getPath());
+                System.setProperty("pysonar.summaries", summaries.toString());
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                String threads = args[++i];
+                if (!threads.matches("[1-9][0-9]*")) {
+                    usage();
+                }
+                System.setProperty("pysonar.threads", threads);
+            } else if (args[i].equals("--include") && i + 1 < args.length) {
+                sourceFiles.include(args[++i]);
+            } else if (args[i].equals("--exclude") && i + 1 < args.length) {
+                sourceFiles.exclude(args[++i]);
+            } else if (args[i].equals("--parser") && i + 1 < args.length) {
+                String parser = args[++i];
+                if (!parser.equals("python") && !parser.equals("java")) {
+                    usage();
+                }
+                System.setProperty("pysonar.parser", parser);
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        if (files.isEmpty() && (imported || exportTo != null)) {
+            exportCache(cacheDir, exportTo);
+            System.exit(0);
+        }
+        if (files.size() != 2) {
             usage();
         }
 
-        File fileOrDir = checkFile(args[0]);
-        OUTPUT_DIR = new File(args[1]);
+        File fileOrDir = checkFile(files.get(0));
+        OUTPUT_DIR = new File(files.get(1));
 
         new Demo().start(fileOrDir);
+        exportCache(cacheDir, exportTo);
+        if (graphTo != null) {
+            Indexer.idx().importGraph.writeJson(graphTo);
+            _.msg("Wrote the import graph to " + graphTo);
+        }
+        if (indexTo != null) {
+            IndexStore.write(Indexer.idx(), indexTo);
+            _.msg("Wrote the index to " + indexTo + " (" + indexTo.length() + " bytes)");
+        }
+        if (summaryTo != null) {
+            int count = LibrarySummary.write(Indexer.idx(), summaryTo);
+            _.msg("Wrote a summary of " + count + " modules to " + summaryTo + " (" + summaryTo.length() + " bytes)");
+        }
 
         _.msg(_.getGCStats());
 
@@ -0,0 +1,232 @@
+package org.yinwang.pysonar.demos;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.JsonAstBuilder;
+import org.yinwang.pysonar._;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Measures what it costs to find the builder of an AST object from its
+ * {@code ast_type}: the chain of {@code type.equals(...)} tests that
+ * JsonAstBuilder used to run, against one lookup in a table keyed by type
+ * name, as NodeFactory does.  The type names are those of the JSON that
+ * ast2json.py writes for the files of a directory, in document order, each a
+ * fresh string as the JSON reader hands it over.  The time to build the whole
+ * trees from that JSON is shown for scale.
+ * <p>
+ * Usage: {@code java -cp pysonar.jar org.yinwang.pysonar.demos.NodeDispatchBenchmark <file-or-dir> [rounds] [python]}
+ */
+public class NodeDispatchBenchmark {
+
+    // the tests of the old JsonAstBuilder, in their order
+    private static final String[] CHAIN = {
+            "arguments", "withitem",
+            "Module", "alias", "Assert", "Assign", "Attribute", "AugAssign", "BinOp", "BoolOp",
+            "Break", "Bytes", "Call", "ClassDef", "Compare", "comprehension", "Continue",
+            "Delete", "Dict", "DictComp", "Ellipsis", "ExceptHandler", "Exec", "Expr", "For",
+            "FunctionDef", "GeneratorExp", "Global", "If", "IfExp", "Import", "ImportFrom",
+            "Index", "keyword", "Lambda", "List", "ListComp", "Name", "arg", "Num", "SetComp",
+            "Pass", "Print", "Raise", "Repr", "Return", "Set", "Slice", "ExtSlice", "Str",
+            "Subscript", "TryExcept", "TryFinally", "Tuple", "UnaryOp", "While", "With",
+            "Yield", "YieldFrom"
+    };
+
+    private static final Map<String, Integer> TABLE = new HashMap<>();
+
+    static {
+        for (int i = 0; i < CHAIN.length; i++) {
+            TABLE.put(CHAIN[i], i);
+        }
+    }
+
+
+    private static int chain(@NotNull String type) {
+        for (int i = 0; i < CHAIN.length; i++) {
+            if (type.equals(CHAIN[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private static int table(@NotNull String type) {
+        Integer i = TABLE.get(type);
+        return i == null ? -1 : i;
+    }
+
+
+    private static void collect(@NotNull File f, @NotNull List<String> out) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File c : children) {
+                    collect(c, out);
+                }
+            }
+        } else if (f.getName().endsWith(".py")) {
+            out.add(_.unifyPath(f));
+        }
+    }
+
+
+    /**
+     * Runs ast2json.py over the pipe, as PythonParser does with
+     * {@code -Dpysonar.format=json}, and returns the JSON of the files it
+     * could parse and JsonAstBuilder can build.
+     */
+    @NotNull
+    private static List<byte[]> toJson(@NotNull List<String> files, @NotNull String python) throws Exception {
+        File stub = File.createTempFile("ast2json", ".py");
+        stub.deleteOnExit();
+        InputStream script = NodeDispatchBenchmark.class.getClassLoader()
+                .getResourceAsStream("org/yinwang/pysonar/ast2json.py");
+        Writer w = new OutputStreamWriter(new FileOutputStream(stub), "UTF-8");
+        try {
+            w.write(_.readWholeStream(script));
+        }
+        finally {
+            w.close();
+        }
+
+        ProcessBuilder builder = new ProcessBuilder(python, stub.getPath(), "--pipe");
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process p = builder.start();
+        Writer requests = new OutputStreamWriter(p.getOutputStream(), "UTF-8");
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(p.getInputStream()));
+
+        JsonAstBuilder astBuilder = new JsonAstBuilder();
+        List<byte[]> docs = new ArrayList<>();
+        try {
+            for (String file : files) {
+                requests.write(file + "\n");
+                requests.flush();
+                byte[] frame = new byte[frames.readInt()];
+                frames.readFully(frame);
+                if (frame.length == 0) {
+                    continue;
+                }
+                try {
+                    astBuilder.build(frame);
+                    docs.add(frame);
+                }
+                catch (RuntimeException e) {
+                    // a node ast2json.py writes in a shape the builders don't know
+                }
+            }
+        }
+        finally {
+            requests.close();
+            p.destroy();
+        }
+        return docs;
+    }
+
+
+    @NotNull
+    private static List<String> types(@NotNull List<byte[]> docs) throws IOException {
+        JsonFactory factory = new JsonFactory();
+        List<String> types = new ArrayList<>();
+        for (byte[] doc : docs) {
+            JsonParser p = factory.createParser(doc);
+            try {
+                JsonToken t;
+                while ((t = p.nextToken()) != null) {
+                    if (t == JsonToken.FIELD_NAME && p.getCurrentName().equals("ast_type")) {
+                        p.nextToken();
+                        types.add(p.getText());
+                    }
+                }
+            }
+            finally {
+                p.close();
+            }
+        }
+        return types;
+    }
+
+
+    private interface Dispatch {
+        int run(@NotNull String type);
+    }
+
+
+    private static double time(@NotNull List<String> types, int rounds, @Nullable Dispatch dispatch) {
+        long nanos = 0;
+        long sink = 0;
+        // the first round warms up the JIT and isn't counted
+        for (int r = 0; r <= rounds; r++) {
+            long t0 = System.nanoTime();
+            for (String type : types) {
+                String copy = new String(type);
+                sink += dispatch == null ? copy.length() : dispatch.run(copy);
+            }
+            if (r > 0) {
+                nanos += System.nanoTime() - t0;
+            }
+        }
+        if (sink == 42) {
+            _.msg("");
+        }
+        return (double) nanos / rounds / types.size();
+    }
+
+
+    public static void main(@NotNull String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            _.msg("Usage: java org.yinwang.pysonar.demos.NodeDispatchBenchmark <file-or-dir> [rounds] [python]");
+            System.exit(2);
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String python = args.length > 2 ? args[2] : "python3";
+
+        List<String> files = new ArrayList<>();
+        collect(new File(args[0]), files);
+        List<byte[]> docs = toJson(files, python);
+        List<String> types = types(docs);
+        _.msg("Parsed " + docs.size() + " of " + files.size() + " files, " + types.size() + " objects");
+
+        double copy = time(types, rounds, null);
+        double chain = time(types, rounds, new Dispatch() {
+            @Override
+            public int run(@NotNull String type) {
+                return chain(type);
+            }
+        });
+        double table = time(types, rounds, new Dispatch() {
+            @Override
+            public int run(@NotNull String type) {
+                return table(type);
+            }
+        });
+
+        JsonAstBuilder builder = new JsonAstBuilder();
+        long nanos = 0;
+        for (int r = 0; r <= rounds; r++) {
+            long t0 = System.nanoTime();
+            for (byte[] doc : docs) {
+                builder.build(doc);
+            }
+            if (r > 0) {
+                nanos += System.nanoTime() - t0;
+            }
+        }
+
+        _.msg(String.format("string copy   %8.1f ns/object", copy));
+        _.msg(String.format("if-chain      %8.1f ns/object", chain));
+        _.msg(String.format("table         %8.1f ns/object", table));
+        _.msg(String.format("whole build   %8.1f ns/object", (double) nanos / rounds / types.size()));
+    }
+}
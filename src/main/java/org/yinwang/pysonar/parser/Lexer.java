@@ -0,0 +1,552 @@
+package org.yinwang.pysonar.parser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Splits Python source into tokens the way CPython's tokenizer does, with
+ * INDENT and DEDENT tokens and the (line, column) positions that the ast module
+ * reports.  Python 3 source is expected with its newlines translated, as
+ * {@code open()} in text mode returns it, and with each character outside the
+ * BMP replaced by {@link #ASTRAL}, so that offsets into it are code point
+ * offsets, as they are in Python.
+ */
+class Lexer {
+
+    /**
+     * Stands for one character outside the BMP.  It counts as four bytes of
+     * UTF-8 in column offsets.
+     */
+    static final char ASTRAL = '\uffff';
+
+    private static final int TABSIZE = 8;
+
+    private static final Set<String> OPS3 = new HashSet<>(Arrays.asList("**=", "//=", ">>=", "<<=", "..."));
+    private static final Set<String> OPS2 = new HashSet<>(Arrays.asList(
+            "!=", "%=", "&=", "**", "*=", "+=", "-=", "->", "//", "/=", ":=",
+            "<<", "<=", "==", ">=", ">>", "@=", "^=", "|=", "<>"
+    ));
+    private static final String OPS1 = "%&()*+,-./:;<=>@[]^{|}~`";
+
+    // the second characters of OPS2 and OPS3
+    private static final String OPS_SECOND = "=*/<>.";
+
+    // the token texts of OPS1, so that they aren't made for every token
+    private static final String[] OPS1_TEXT = new String[OPS1.length()];
+
+    static {
+        for (int i = 0; i < OPS1.length(); i++) {
+            OPS1_TEXT[i] = String.valueOf(OPS1.charAt(i));
+        }
+    }
+
+    // Python 2 has neither of these and Python 3 has no <> or backquote
+    private static final List<String> PYTHON3_ONLY = Arrays.asList("->", ":=", "@=");
+    private static final List<String> PYTHON2_ONLY = Arrays.asList("<>", "`");
+
+    // CPython 3's tokenizer refuses deeper nesting
+    private static final int MAX_BRACKETS = 200;
+
+    // names that may directly follow a number, e.g. "1if x else y"
+    private static final String[] AFTER_NUMBER = {"and", "else", "for", "if", "in", "is", "not", "or"};
+
+    @NotNull
+    private final String s;
+    private final boolean python3;
+    private final int n;
+
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0;
+    private boolean lineAscii;
+
+    private final List<Token> tokens = new ArrayList<>();
+    private int[] indents = new int[16];
+    private int[] altIndents = new int[16];
+    private int depth = 0;
+    private final StringBuilder brackets = new StringBuilder();
+
+
+    private Lexer(@NotNull String s, boolean python3) {
+        this.s = s;
+        this.python3 = python3;
+        this.n = s.length();
+        startLine();
+    }
+
+
+    @NotNull
+    static List<Token> tokenize(@NotNull String source, boolean python3) throws ParseException {
+        Lexer lexer = new Lexer(source, python3);
+        lexer.run();
+        return lexer.tokens;
+    }
+
+
+    private void run() throws ParseException {
+        boolean atLineStart = true;
+
+        while (true) {
+            if (atLineStart) {
+                atLineStart = false;
+                if (!indentation()) {
+                    atLineStart = true;
+                    continue;       // blank line, already consumed
+                }
+            }
+
+            while (pos < n && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t' || s.charAt(pos) == '\f')) {
+                pos++;
+            }
+            if (pos >= n) {
+                break;
+            }
+
+            char c = s.charAt(pos);
+            if (c == '#') {
+                while (pos < n && s.charAt(pos) != '\n' && s.charAt(pos) != '\r') {
+                    pos++;
+                }
+            } else if (c == '\n' || c == '\r') {
+                if (brackets.length() == 0) {
+                    add(Token.NEWLINE, "", pos, pos);
+                    atLineStart = true;
+                }
+                newline();
+            } else if (c == '\\') {
+                pos++;
+                if (pos < n && (s.charAt(pos) == '\n' || s.charAt(pos) == '\r')) {
+                    newline();
+                } else if (pos >= n) {
+                    throw error("unexpected EOF while parsing");
+                } else {
+                    throw error("unexpected character after line continuation character");
+                }
+            } else if (isIdStart(c)) {
+                name();
+            } else if (isDigit(c) || (c == '.' && pos + 1 < n && isDigit(s.charAt(pos + 1)))) {
+                number();
+            } else if (c == '\'' || c == '"') {
+                string(pos, pos);
+            } else {
+                operator();
+            }
+        }
+
+        if (brackets.length() > 0) {
+            throw error("'" + brackets.charAt(brackets.length() - 1) + "' was never closed");
+        }
+        if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).type != Token.NEWLINE &&
+                tokens.get(tokens.size() - 1).type != Token.DEDENT)
+        {
+            add(Token.NEWLINE, "", n, n);
+        }
+        while (depth > 0) {
+            depth--;
+            add(Token.DEDENT, "", n, n);
+        }
+        add(Token.END, "", n, n);
+    }
+
+
+    /**
+     * Reads the indentation of a new line and emits INDENT or DEDENT tokens.
+     *
+     * @return false if the line is blank or a comment, and has been consumed
+     */
+    private boolean indentation() throws ParseException {
+        int col = 0;
+        int altcol = 0;
+        while (pos < n) {
+            char c = s.charAt(pos);
+            if (c == ' ') {
+                col++;
+                altcol++;
+            } else if (c == '\t') {
+                col = (col / TABSIZE + 1) * TABSIZE;
+                altcol = altcol + 1;
+            } else if (c == '\f') {
+                col = altcol = 0;
+            } else {
+                break;
+            }
+            pos++;
+        }
+
+        if (pos >= n) {
+            return true;
+        }
+
+        char c = s.charAt(pos);
+        if (c == '#' || c == '\n' || c == '\r') {
+            while (pos < n && s.charAt(pos) != '\n' && s.charAt(pos) != '\r') {
+                pos++;
+            }
+            if (pos < n) {
+                newline();
+            }
+            return false;
+        }
+
+        if (brackets.length() > 0) {
+            return true;
+        }
+
+        if (col == indents[depth]) {
+            if (python3 && altcol != altIndents[depth]) {
+                throw error("inconsistent use of tabs and spaces in indentation");
+            }
+        } else if (col > indents[depth]) {
+            if (python3 && altcol <= altIndents[depth]) {
+                throw error("inconsistent use of tabs and spaces in indentation");
+            }
+            if (depth + 1 == indents.length) {
+                indents = Arrays.copyOf(indents, depth * 2);
+                altIndents = Arrays.copyOf(altIndents, depth * 2);
+            }
+            depth++;
+            indents[depth] = col;
+            altIndents[depth] = altcol;
+            add(Token.INDENT, "", pos, pos);
+        } else {
+            while (depth > 0 && col < indents[depth]) {
+                depth--;
+                add(Token.DEDENT, "", pos, pos);
+            }
+            if (col != indents[depth]) {
+                throw error("unindent does not match any outer indentation level");
+            }
+            if (python3 && altcol != altIndents[depth]) {
+                throw error("inconsistent use of tabs and spaces in indentation");
+            }
+        }
+        return true;
+    }
+
+
+    private void name() throws ParseException {
+        int start = pos;
+        int startCol = col(start);
+        boolean ascii = true;
+        while (pos < n && isIdPart(s.charAt(pos))) {
+            if (s.charAt(pos) >= 128) {
+                ascii = false;
+            }
+            pos++;
+        }
+
+        if (pos < n && (s.charAt(pos) == '\'' || s.charAt(pos) == '"') && isStringPrefix(s.substring(start, pos))) {
+            string(start, pos);
+            return;
+        }
+
+        String id = s.substring(start, pos);
+        if (!ascii) {
+            id = Normalizer.normalize(id, Normalizer.Form.NFKC);
+        }
+        tokens.add(new Token(Token.NAME, id, start, pos, line, startCol));
+    }
+
+
+    private boolean isStringPrefix(@NotNull String prefix) {
+        String p = prefix.toLowerCase();
+        if (python3) {
+            return p.equals("r") || p.equals("u") || p.equals("b") || p.equals("f") ||
+                    p.equals("br") || p.equals("rb") || p.equals("fr") || p.equals("rf");
+        } else {
+            return p.equals("r") || p.equals("u") || p.equals("b") || p.equals("ur") || p.equals("br");
+        }
+    }
+
+
+    /**
+     * Scans a string literal whose prefix starts at {@code start} and whose
+     * opening quote is at {@code quote}.
+     */
+    private void string(int start, int quote) throws ParseException {
+        int startLine = line;
+        int startCol = col(start);
+        char q = s.charAt(quote);
+        pos = quote + 1;
+
+        boolean triple = pos + 1 < n && s.charAt(pos) == q && s.charAt(pos + 1) == q;
+        if (triple) {
+            pos += 2;
+        }
+
+        while (true) {
+            if (pos >= n) {
+                throw new ParseException(triple ?
+                        "unterminated triple-quoted string literal" : "unterminated string literal", startLine);
+            }
+            char c = s.charAt(pos);
+            if (c == '\\') {
+                pos++;
+                if (pos < n && (s.charAt(pos) == '\n' || s.charAt(pos) == '\r')) {
+                    newline();
+                } else {
+                    pos++;
+                }
+            } else if (c == '\n' || c == '\r') {
+                if (!triple) {
+                    throw new ParseException("unterminated string literal", startLine);
+                }
+                newline();
+            } else if (c == q) {
+                pos++;
+                if (!triple) {
+                    break;
+                } else if (pos + 1 < n && s.charAt(pos) == q && s.charAt(pos + 1) == q) {
+                    pos += 2;
+                    break;
+                }
+            } else {
+                pos++;
+            }
+        }
+
+        tokens.add(new Token(Token.STRING, s.substring(start, pos), start, pos, startLine, startCol));
+    }
+
+
+    private void number() throws ParseException {
+        int start = pos;
+        char c = s.charAt(pos);
+
+        if (c == '0' && pos + 1 < n && "xXoObB".indexOf(s.charAt(pos + 1)) >= 0) {
+            char base = Character.toLowerCase(s.charAt(pos + 1));
+            pos += 2;
+            if (!python3 && base != 'x' && base != 'o' && base != 'b') {
+                throw error("invalid syntax");
+            }
+            String digits = base == 'x' ? "0123456789abcdefABCDEF" : base == 'o' ? "01234567" : "01";
+            if (!digitPart(digits, true)) {
+                throw error("invalid " + (base == 'x' ? "hexadecimal" : base == 'o' ? "octal" : "binary") + " literal");
+            }
+            longSuffix();
+        } else {
+            boolean isFloat = false;
+            if (c != '.') {
+                digitPart("0123456789", false);
+            }
+            if (pos < n && s.charAt(pos) == '.') {
+                isFloat = true;
+                pos++;
+                if (pos < n && isDigit(s.charAt(pos))) {
+                    digitPart("0123456789", false);
+                }
+            }
+            if (pos < n && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+                int save = pos;
+                pos++;
+                if (pos < n && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+                    pos++;
+                }
+                if (pos < n && isDigit(s.charAt(pos))) {
+                    isFloat = true;
+                    digitPart("0123456789", false);
+                } else if (python3) {
+                    throw error("invalid decimal literal");
+                } else {
+                    pos = save;
+                }
+            }
+
+            boolean imaginary = pos < n && (s.charAt(pos) == 'j' || s.charAt(pos) == 'J');
+            if (imaginary) {
+                pos++;
+            } else if (!isFloat) {
+                // "0" followed by more digits: old-style octal in Python 2, an error in Python 3
+                String text = s.substring(start, pos).replace("_", "");
+                if (text.length() > 1 && text.charAt(0) == '0') {
+                    if (python3 && !text.matches("0+")) {
+                        throw error("leading zeros in decimal integer literals are not permitted; " +
+                                "use an 0o prefix for octal integers");
+                    }
+                    if (!python3 && !text.matches("[0-7]+")) {
+                        throw error("invalid token");
+                    }
+                }
+                longSuffix();
+            }
+        }
+
+        // Python 2 reads "1if" as two tokens and leaves any error to the parser
+        if (python3 && pos < n && isIdStart(s.charAt(pos))) {
+            boolean ok = false;
+            for (String kw : AFTER_NUMBER) {
+                if (s.startsWith(kw, pos)) {
+                    ok = true;
+                    break;
+                }
+            }
+            if (!ok) {
+                throw error("invalid decimal literal");
+            }
+        }
+
+        tokens.add(new Token(Token.NUMBER, s.substring(start, pos), start, pos, line, col(start)));
+    }
+
+
+    /**
+     * Reads digits with single underscores between them (Python 3 only).
+     */
+    private boolean digitPart(@NotNull String digits, boolean afterPrefix) throws ParseException {
+        boolean any = false;
+        while (pos < n) {
+            char c = s.charAt(pos);
+            if (digits.indexOf(c) >= 0) {
+                any = true;
+                pos++;
+            } else if (c == '_' && python3 && (any || afterPrefix) && pos + 1 < n &&
+                    digits.indexOf(s.charAt(pos + 1)) >= 0)
+            {
+                pos++;
+            } else if (c == '_' && python3) {
+                throw error("invalid decimal literal");
+            } else {
+                break;
+            }
+        }
+        return any;
+    }
+
+
+    private void longSuffix() {
+        if (!python3 && pos < n && (s.charAt(pos) == 'l' || s.charAt(pos) == 'L')) {
+            pos++;
+        }
+    }
+
+
+    private void operator() throws ParseException {
+        String op = null;
+        char c = s.charAt(pos);
+        if (pos + 1 < n && OPS_SECOND.indexOf(s.charAt(pos + 1)) >= 0) {
+            if (pos + 3 <= n && OPS3.contains(s.substring(pos, pos + 3))) {
+                op = s.substring(pos, pos + 3);
+            } else if (OPS2.contains(s.substring(pos, pos + 2))) {
+                op = s.substring(pos, pos + 2);
+                if ((python3 && PYTHON2_ONLY.contains(op)) || (!python3 && PYTHON3_ONLY.contains(op))) {
+                    op = null;
+                }
+            }
+        }
+        if (op == null) {
+            int i = OPS1.indexOf(c);
+            if (i < 0 || (python3 && c == '`')) {
+                throw error("invalid character '" + c + "'");
+            }
+            op = OPS1_TEXT[i];
+        }
+
+        if (op.length() == 1 && "([{".indexOf(c) >= 0) {
+            if (python3 && brackets.length() == MAX_BRACKETS) {
+                throw error("too many nested parentheses");
+            }
+            brackets.append(c);
+        } else if (op.length() == 1 && ")]}".indexOf(c) >= 0) {
+            if (brackets.length() == 0) {
+                throw error("unmatched '" + c + "'");
+            }
+            char open = brackets.charAt(brackets.length() - 1);
+            if ("([{".indexOf(open) != ")]}".indexOf(c)) {
+                throw error("closing parenthesis '" + c + "' does not match opening parenthesis '" + open + "'");
+            }
+            brackets.setLength(brackets.length() - 1);
+        }
+
+        add(Token.OP, op, pos, pos + op.length());
+        pos += op.length();
+    }
+
+
+    private void add(int type, @NotNull String text, int start, int end) {
+        tokens.add(new Token(type, text, start, end, line, col(start)));
+    }
+
+
+    // consumes a line break ("\n", "\r\n" or "\r") at pos
+    private void newline() {
+        if (s.charAt(pos) == '\r' && pos + 1 < n && s.charAt(pos + 1) == '\n') {
+            pos++;
+        }
+        pos++;
+        line++;
+        startLine();
+    }
+
+
+    private void startLine() {
+        lineStart = pos;
+        lineAscii = true;
+        if (python3) {
+            for (int i = pos; i < n; i++) {
+                char c = s.charAt(i);
+                if (c == '\n') {
+                    break;
+                } else if (c >= 128) {
+                    lineAscii = false;
+                    break;
+                }
+            }
+        }
+    }
+
+
+    // column of p on the current line, in bytes
+    private int col(int p) {
+        if (lineAscii) {
+            return p - lineStart;
+        }
+        int bytes = 0;
+        for (int i = lineStart; i < p; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (c == ASTRAL) {
+                bytes += 4;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+
+    private boolean isIdStart(char c) {
+        if (c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        }
+        return python3 && c != ASTRAL && Character.isUnicodeIdentifierStart(c);
+    }
+
+
+    private boolean isIdPart(char c) {
+        if (c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+        return python3 && c != ASTRAL && Character.isUnicodeIdentifierPart(c) && !Character.isIdentifierIgnorable(c);
+    }
+
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    @NotNull
+    private ParseException error(String message) {
+        return new ParseException(message, line);
+    }
+}
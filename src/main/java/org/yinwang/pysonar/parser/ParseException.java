@@ -0,0 +1,24 @@
+package org.yinwang.pysonar.parser;
+
+
+/**
+ * Source that CPython would reject with a SyntaxError (or one of its
+ * subclasses, IndentationError and TabError).
+ */
+public class ParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+
+    public ParseException(String message, int line) {
+        super("line " + line + ": " + message);
+        this.line = line;
+    }
+
+
+    public int getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,2803 @@
+package org.yinwang.pysonar.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A recursive descent parser for Python 3 (the grammar of 3.11) and Python
+ * 2.7.  It builds the tree that {@code ast.parse} of that version builds,
+ * with the positions that version gives each node, and rejects the source
+ * that {@code ast.parse} rejects.  The trees differ between the two versions
+ * as they do in Python: Python 2 has Print, Exec, Repr, TryExcept and
+ * TryFinally, Num and Str, Index and ExtSlice, parameters that are Names, and
+ * places some nodes differently (a tuple or a comprehension starts at its
+ * first element, a decorated definition at its first decorator, a multi-line
+ * string on its last line with column -1). <p>
+ * The values of f-strings are not built: a JoinedStr has no values.  The
+ * patterns and bodies of the cases of a match statement are checked but
+ * dropped from the tree as well.
+ */
+public class Parser {
+
+    private static final Set<String> KEYWORDS3 = new HashSet<>(Arrays.asList(
+            "False", "None", "True", "and", "as", "assert", "async", "await", "break", "class", "continue",
+            "def", "del", "elif", "else", "except", "finally", "for", "from", "global", "if", "import",
+            "in", "is", "lambda", "nonlocal", "not", "or", "pass", "raise", "return", "try", "while",
+            "with", "yield"));
+
+    private static final Set<String> KEYWORDS2 = new HashSet<>(Arrays.asList(
+            "and", "as", "assert", "break", "class", "continue", "def", "del", "elif", "else", "except",
+            "exec", "finally", "for", "from", "global", "if", "import", "in", "is", "lambda", "not", "or",
+            "pass", "print", "raise", "return", "try", "while", "with", "yield"));
+
+    private static final String[][] BINARY_OPS = {
+            {"|"}, {"^"}, {"&"}, {"<<", ">>"}, {"+", "-"}, {"*", "/", "//", "%", "@"}
+    };
+
+    private static final Map<String, String> OPERATORS = new HashMap<>();
+    private static final Map<String, String> AUG_OPERATORS = new HashMap<>();
+
+    static {
+        String[] ops = {
+                "+", "Add", "-", "Sub", "*", "Mult", "@", "MatMult", "/", "Div", "%", "Mod",
+                "//", "FloorDiv", "**", "Pow", "<<", "LShift", ">>", "RShift", "&", "BitAnd",
+                "|", "BitOr", "^", "BitXor"
+        };
+        for (int i = 0; i < ops.length; i += 2) {
+            OPERATORS.put(ops[i], ops[i + 1]);
+            AUG_OPERATORS.put(ops[i] + "=", ops[i + 1]);
+        }
+    }
+
+    private static final Pattern CODING = Pattern.compile("^[ \\t\\f]*#.*?coding[:=][ \\t]*([-\\w.]+)");
+
+    private static final int MAX_STR_DIGITS = 4300;
+
+    @NotNull
+    private final List<Token> tokens;
+    private final boolean python3;
+    private int p = 0;
+
+    // Python 2 only: the effect of from __future__ imports and of the source encoding
+    private boolean printFunction = false;
+    private boolean unicodeLiterals = false;
+    private boolean utf8Source = false;
+
+
+    private Parser(@NotNull List<Token> tokens, boolean python3) {
+        this.tokens = tokens;
+        this.python3 = python3;
+    }
+
+
+    /**
+     * Parses the contents of a source file the way ast2json.py does: Python
+     * 3 reads it as UTF-8 text with universal newlines, Python 2 parses its
+     * bytes.  The nodes of the result have the offsets that ast2json.py's
+     * improve_ast computes.
+     *
+     * @return the Module
+     * @throws ParseException if that Python would fail to parse the file
+     */
+    @NotNull
+    public static PyNode parse(@NotNull byte[] source, boolean python3) throws ParseException {
+        if (python3) {
+            String text = python3Text(source);
+            PyNode module = parseText(text, python3, false);
+            Positions.improve(module, text, true);
+            return module;
+        } else {
+            String text = new String(source, Charset.forName("ISO-8859-1"));
+            if (text.indexOf('\0') >= 0) {
+                throw new ParseException("source code string cannot contain null bytes", 1);
+            }
+
+            // The tokenizer skips a UTF-8 BOM, which shifts the columns of the
+            // first line, but improve_ast sees the whole string.
+            boolean bom = text.startsWith("\u00ef\u00bb\u00bf");
+            boolean utf8 = bom || isUtf8Coding(text);
+            if (utf8) {
+                decodeUtf8(source);
+            }
+            PyNode module = parseText(bom ? text.substring(3) : text, false, utf8);
+            Positions.improve(module, text, false);
+            return module;
+        }
+    }
+
+
+    @NotNull
+    static PyNode parseText(@NotNull String text, boolean python3, boolean utf8Source) throws ParseException {
+        Parser parser = new Parser(Lexer.tokenize(text, python3), python3);
+        parser.utf8Source = utf8Source;
+        return parser.file();
+    }
+
+
+    /**
+     * The text that Python 3's {@code open().read()} returns, with each
+     * character outside the BMP replaced by {@link Lexer#ASTRAL}, so that
+     * offsets into it count code points as Python does.
+     */
+    @NotNull
+    static String python3Text(@NotNull byte[] source) throws ParseException {
+        String decoded = decodeUtf8(source);
+
+        // most files have nothing to replace
+        boolean plain = true;
+        for (byte b : source) {
+            if (b == '\r' || b == 0 || (b & 0xf0) == 0xf0) {
+                plain = false;
+                break;
+            }
+        }
+        if (plain) {
+            return decoded;
+        }
+
+        StringBuilder sb = new StringBuilder(decoded.length());
+        int n = decoded.length();
+
+        for (int i = 0; i < n; i++) {
+            char c = decoded.charAt(i);
+            if (c == '\r') {
+                sb.append('\n');
+                if (i + 1 < n && decoded.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(decoded.charAt(i + 1))) {
+                sb.append(Lexer.ASTRAL);
+                i++;
+            } else if (c == '\0') {
+                throw new ParseException("source code string cannot contain null bytes", 1);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    @NotNull
+    private static String decodeUtf8(@NotNull byte[] source) throws ParseException {
+        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try {
+            CharBuffer chars = decoder.decode(ByteBuffer.wrap(source));
+            return chars.toString();
+        }
+        catch (CharacterCodingException e) {
+            throw new ParseException("source is not valid UTF-8", 1);
+        }
+    }
+
+
+    // a coding declaration for UTF-8 in the first two lines
+    private static boolean isUtf8Coding(@NotNull String text) {
+        int lineEnd = -1;
+        for (int line = 0; line < 2; line++) {
+            int start = lineEnd + 1;
+            if (start >= text.length()) {
+                break;
+            }
+            lineEnd = text.indexOf('\n', start);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            Matcher m = CODING.matcher(text.substring(start, lineEnd));
+            if (m.find()) {
+                String enc = m.group(1).toLowerCase().replace('_', '-');
+                return enc.equals("utf-8") || enc.startsWith("utf-8-") || enc.equals("utf8");
+            }
+        }
+        return false;
+    }
+
+
+    //-------------------------------------------------------------
+    //                   statements
+    //-------------------------------------------------------------
+
+    @NotNull
+    private PyNode file() throws ParseException {
+        PyNode module = new PyNode("Module", 2);
+        List<Object> body = new ArrayList<>();
+        while (peek().type != Token.END) {
+            statement(body);
+        }
+        module.put("body", body);
+        if (python3) {
+            module.put("type_ignores", new ArrayList<>());
+        }
+        return module;
+    }
+
+
+    private void statement(@NotNull List<Object> body) throws ParseException {
+        Token t = peek();
+        if (t.type == Token.INDENT) {
+            throw new ParseException("unexpected indent", t.line);
+        }
+        if (t.type == Token.OP && t.text.equals("@")) {
+            body.add(decorated());
+            return;
+        }
+        if (t.type == Token.NAME) {
+            switch (t.text) {
+                case "def":
+                    body.add(funcDef(t, new ArrayList<>(), false));
+                    return;
+                case "class":
+                    body.add(classDef(t, new ArrayList<>()));
+                    return;
+                case "if":
+                    body.add(ifStatement());
+                    return;
+                case "while":
+                    body.add(whileStatement());
+                    return;
+                case "for":
+                    body.add(forStatement(t, false));
+                    return;
+                case "try":
+                    body.add(tryStatement());
+                    return;
+                case "with":
+                    withStatement(t, false, body);
+                    return;
+                case "async":
+                    if (python3) {
+                        body.add(asyncStatement());
+                        return;
+                    }
+                    break;
+                case "match":
+                    if (python3) {
+                        PyNode match = matchStatement();
+                        if (match != null) {
+                            body.add(match);
+                            return;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        simpleStatements(body);
+    }
+
+
+    @NotNull
+    private List<Object> block() throws ParseException {
+        List<Object> body = new ArrayList<>();
+        if (peek().type == Token.NEWLINE) {
+            next();
+            if (peek().type != Token.INDENT) {
+                throw new ParseException("expected an indented block", peek().line);
+            }
+            next();
+            while (peek().type != Token.DEDENT && peek().type != Token.END) {
+                statement(body);
+            }
+            next();
+        } else {
+            simpleStatements(body);
+        }
+        return body;
+    }
+
+
+    private void simpleStatements(@NotNull List<Object> body) throws ParseException {
+        while (true) {
+            body.add(simpleStatement());
+            if (!accept(";") || peek().type == Token.NEWLINE) {
+                break;
+            }
+        }
+        if (peek().type != Token.NEWLINE) {
+            throw error();
+        }
+        next();
+    }
+
+
+    private boolean atStatementEnd() {
+        return peek().type == Token.NEWLINE || at(";");
+    }
+
+
+    @NotNull
+    private PyNode simpleStatement() throws ParseException {
+        Token t = peek();
+        if (t.type == Token.NAME && isKeyword(t)) {
+            switch (t.text) {
+                case "pass":
+                    next();
+                    return node("Pass", t, 0);
+                case "break":
+                    next();
+                    return node("Break", t, 0);
+                case "continue":
+                    next();
+                    return node("Continue", t, 0);
+                case "return": {
+                    next();
+                    PyNode value = atStatementEnd() ? null : python3 ? starExpressions() : testList();
+                    return node("Return", t, 1).put("value", value);
+                }
+                case "raise":
+                    return raiseStatement();
+                case "global":
+                case "nonlocal": {
+                    next();
+                    List<Object> names = new ArrayList<>();
+                    do {
+                        names.add(name());
+                    } while (accept(","));
+                    return node(t.text.equals("global") ? "Global" : "Nonlocal", t, 1).put("names", names);
+                }
+                case "del":
+                    return delStatement();
+                case "assert": {
+                    next();
+                    PyNode test = expression();
+                    PyNode msg = accept(",") ? expression() : null;
+                    return node("Assert", t, 2).put("test", test).put("msg", msg);
+                }
+                case "import":
+                    return importName();
+                case "from":
+                    return importFrom();
+                case "print":
+                    return printStatement();
+                case "exec":
+                    return execStatement();
+                default:
+                    break;
+            }
+        }
+        return expressionStatement();
+    }
+
+
+    @NotNull
+    private PyNode expressionStatement() throws ParseException {
+        Token t = peek();
+        PyNode first = atKeyword("yield") ? yieldExpression() : python3 ? starExpressions() : testList();
+
+        if (at("=")) {
+            List<Object> targets = new ArrayList<>();
+            PyNode value = first;
+            while (accept("=")) {
+                checkTarget(value, false);
+                targets.add(value);
+                value = atKeyword("yield") ? yieldExpression() : python3 ? starExpressions() : testList();
+            }
+            PyNode assign = node("Assign", t, 3).put("targets", targets).put("value", value);
+            if (python3) {
+                assign.put("type_comment", null);
+            }
+            return assign;
+        }
+
+        Token opToken = peek();
+        String op = opToken.type == Token.OP ? AUG_OPERATORS.get(opToken.text) : null;
+        if (op != null && (python3 || !op.equals("MatMult"))) {
+            next();
+            if (!first.kind.equals("Name") && !first.kind.equals("Attribute") && !first.kind.equals("Subscript")) {
+                throw new ParseException("'" + first.kind + "' is an illegal expression for augmented assignment",
+                        t.line);
+            }
+            checkTarget(first, false);
+            PyNode value = atKeyword("yield") ? yieldExpression() : python3 ? starExpressions() : testList();
+            return node("AugAssign", t, 3).put("target", first).put("op", new PyNode(op, 0)).put("value", value);
+        }
+
+        if (python3 && at(":")) {
+            next();
+            boolean simple = first.kind.equals("Name") && !first.parenthesized;
+            if (!first.kind.equals("Name") && !first.kind.equals("Attribute") && !first.kind.equals("Subscript")) {
+                throw new ParseException("only single target (not tuple) can be annotated", t.line);
+            }
+            PyNode annotation = expression();
+            PyNode value = null;
+            if (accept("=")) {
+                value = atKeyword("yield") ? yieldExpression() : starExpressions();
+            }
+            return node("AnnAssign", t, 4).put("target", first).put("annotation", annotation)
+                    .put("value", value).put("simple", simple ? BigInteger.ONE : BigInteger.ZERO);
+        }
+
+        return node("Expr", t, 1).put("value", first);
+    }
+
+
+    @NotNull
+    private PyNode raiseStatement() throws ParseException {
+        Token t = next();
+        if (python3) {
+            PyNode exc = null;
+            PyNode cause = null;
+            if (!atStatementEnd()) {
+                exc = expression();
+                if (acceptKeyword("from")) {
+                    cause = expression();
+                }
+            }
+            return node("Raise", t, 2).put("exc", exc).put("cause", cause);
+        } else {
+            PyNode type = null;
+            PyNode inst = null;
+            PyNode tback = null;
+            if (!atStatementEnd()) {
+                type = expression();
+                if (accept(",")) {
+                    inst = expression();
+                    if (accept(",")) {
+                        tback = expression();
+                    }
+                }
+            }
+            return node("Raise", t, 3).put("type", type).put("inst", inst).put("tback", tback);
+        }
+    }
+
+
+    @NotNull
+    private PyNode delStatement() throws ParseException {
+        Token t = next();
+        List<Object> targets = new ArrayList<>();
+        do {
+            if (python3 && atStatementEnd() && !targets.isEmpty()) {
+                break;
+            }
+            PyNode target = bitwiseOr();
+            checkTarget(target, true);
+            targets.add(target);
+        } while (accept(","));
+        if (!atStatementEnd()) {
+            throw error();
+        }
+        return node("Delete", t, 1).put("targets", targets);
+    }
+
+
+    @NotNull
+    private PyNode importName() throws ParseException {
+        Token t = next();
+        List<Object> names = new ArrayList<>();
+        do {
+            Token at = peek();
+            String name = dottedName();
+            String asname = acceptKeyword("as") ? name() : null;
+            names.add(alias(at, name, asname));
+        } while (accept(","));
+        return node("Import", t, 1).put("names", names);
+    }
+
+
+    @NotNull
+    private PyNode importFrom() throws ParseException {
+        Token t = next();
+        int level = 0;
+        while (at(".") || at("...")) {
+            level += next().text.length();
+        }
+
+        String module = null;
+        if (level == 0 || !atKeyword("import")) {
+            module = dottedName();
+        }
+        expectKeyword("import");
+
+        List<Object> names = new ArrayList<>();
+        if (at("*")) {
+            Token star = next();
+            names.add(alias(star, "*", null));
+        } else {
+            boolean parens = accept("(");
+            while (true) {
+                Token at = peek();
+                String name = name();
+                String asname = acceptKeyword("as") ? name() : null;
+                names.add(alias(at, name, asname));
+                if (!accept(",")) {
+                    break;
+                }
+                if (parens && at(")")) {
+                    break;
+                } else if (!parens && atStatementEnd()) {
+                    throw new ParseException("trailing comma not allowed without surrounding parentheses", t.line);
+                }
+            }
+            if (parens) {
+                expect(")");
+            }
+        }
+
+        if (!python3 && "__future__".equals(module)) {
+            for (Object o : names) {
+                String name = (String) ((PyNode) o).get("name");
+                if ("print_function".equals(name)) {
+                    printFunction = true;
+                } else if ("unicode_literals".equals(name)) {
+                    unicodeLiterals = true;
+                }
+            }
+        }
+
+        return node("ImportFrom", t, 3).put("module", module).put("names", names)
+                .put("level", BigInteger.valueOf(level));
+    }
+
+
+    @NotNull
+    private PyNode alias(@NotNull Token at, @NotNull String name, @Nullable String asname) {
+        PyNode alias = python3 ? node("alias", at, 2) : new PyNode("alias", 2);
+        return alias.put("name", name).put("asname", asname);
+    }
+
+
+    @NotNull
+    private String dottedName() throws ParseException {
+        StringBuilder sb = new StringBuilder(name());
+        while (accept(".")) {
+            sb.append('.').append(name());
+        }
+        return sb.toString();
+    }
+
+
+    // Python 2
+    @NotNull
+    private PyNode printStatement() throws ParseException {
+        Token t = next();
+        PyNode dest = null;
+        List<Object> values = new ArrayList<>();
+        boolean nl = true;
+
+        if (accept(">>")) {
+            dest = expression();
+            if (accept(",")) {
+                values.add(expression());
+            }
+        } else if (!atStatementEnd()) {
+            values.add(expression());
+        }
+
+        if (!values.isEmpty()) {
+            while (accept(",")) {
+                if (atStatementEnd()) {
+                    nl = false;
+                    break;
+                }
+                values.add(expression());
+            }
+        }
+
+        return node("Print", t, 3).put("dest", dest).put("values", values).put("nl", nl);
+    }
+
+
+    // Python 2
+    @NotNull
+    private PyNode execStatement() throws ParseException {
+        Token t = next();
+        PyNode body = bitwiseOr();
+        PyNode globals = null;
+        PyNode locals = null;
+        if (acceptKeyword("in")) {
+            globals = expression();
+            if (accept(",")) {
+                locals = expression();
+            }
+        }
+        return node("Exec", t, 3).put("body", body).put("globals", globals).put("locals", locals);
+    }
+
+
+    @NotNull
+    private PyNode decorated() throws ParseException {
+        Token first = peek();
+        List<Object> decorators = new ArrayList<>();
+        while (accept("@")) {
+            decorators.add(python3 ? namedExpression() : decorator());
+            if (peek().type != Token.NEWLINE) {
+                throw error();
+            }
+            next();
+        }
+
+        Token t = peek();
+        if (atKeyword("def")) {
+            return funcDef(python3 ? t : first, decorators, false);
+        } else if (atKeyword("class")) {
+            return classDef(python3 ? t : first, decorators);
+        } else if (python3 && atKeyword("async") && peek(1).is(Token.NAME, "def")) {
+            next();
+            return funcDef(t, decorators, true);
+        } else {
+            throw error();
+        }
+    }
+
+
+    // Python 2: dotted_name [ '(' [arglist] ')' ]
+    @NotNull
+    private PyNode decorator() throws ParseException {
+        Token t = peek();
+        PyNode e = node("Name", t, 2).put("id", name()).put("ctx", null);
+        while (accept(".")) {
+            e = at(node("Attribute", 3), e).put("value", e).put("attr", name()).put("ctx", null);
+        }
+        if (at("(")) {
+            e = call(t, e, e, false);
+        }
+        return e;
+    }
+
+
+    @NotNull
+    private PyNode funcDef(@NotNull Token start, @NotNull List<Object> decorators, boolean async)
+            throws ParseException
+    {
+        expectKeyword("def");
+        Token nameToken = peek();
+        String name = name();
+        if (!python3) {
+            checkAssignable(name, nameToken);
+        }
+        expect("(");
+        PyNode args = python3 ? parameters(false, ")") : parameters2(")");
+        expect(")");
+        PyNode returns = null;
+        if (python3 && accept("->")) {
+            returns = expression();
+        }
+        expect(":");
+        List<Object> body = block();
+
+        PyNode def = node(async ? "AsyncFunctionDef" : "FunctionDef", start, 6);
+        def.put("name", name).put("args", args).put("body", body).put("decorator_list", decorators);
+        if (python3) {
+            def.put("returns", returns).put("type_comment", null);
+        }
+        return def;
+    }
+
+
+    @NotNull
+    private PyNode classDef(@NotNull Token start, @NotNull List<Object> decorators) throws ParseException {
+        next();
+        Token nameToken = peek();
+        String name = name();
+        if (!python3) {
+            checkAssignable(name, nameToken);
+        }
+
+        List<Object> bases = new ArrayList<>();
+        List<Object> keywords = new ArrayList<>();
+        if (at("(")) {
+            if (python3) {
+                PyNode c = call(nameToken, new PyNode("Name", 0), null, true);
+                bases = list(c.get("args"));
+                keywords = list(c.get("keywords"));
+            } else {
+                next();
+                if (!at(")")) {
+                    Token first = peek();
+                    PyNode b = testList();
+                    if (b.kind.equals("Tuple") && b.lineno == first.line && b.col == first.col) {
+                        bases = list(b.get("elts"));
+                    } else {
+                        bases.add(b);
+                    }
+                }
+                expect(")");
+            }
+        }
+        expect(":");
+        List<Object> body = block();
+
+        PyNode c = node("ClassDef", start, 5).put("name", name).put("bases", bases);
+        if (python3) {
+            c.put("keywords", keywords);
+        }
+        return c.put("body", body).put("decorator_list", decorators);
+    }
+
+
+    @NotNull
+    private PyNode ifStatement() throws ParseException {
+        Token t = next();
+        PyNode test = python3 ? namedExpression() : expression();
+        expect(":");
+        List<Object> body = block();
+        List<Object> orelse = new ArrayList<>();
+        if (atKeyword("elif")) {
+            orelse.add(ifStatement());
+        } else if (acceptKeyword("else")) {
+            expect(":");
+            orelse = block();
+        }
+        return node("If", t, 3).put("test", test).put("body", body).put("orelse", orelse);
+    }
+
+
+    @NotNull
+    private PyNode whileStatement() throws ParseException {
+        Token t = next();
+        PyNode test = python3 ? namedExpression() : expression();
+        expect(":");
+        List<Object> body = block();
+        List<Object> orelse = elseBlock();
+        return node("While", t, 3).put("test", test).put("body", body).put("orelse", orelse);
+    }
+
+
+    @NotNull
+    private List<Object> elseBlock() throws ParseException {
+        if (acceptKeyword("else")) {
+            expect(":");
+            return block();
+        }
+        return new ArrayList<>();
+    }
+
+
+    @NotNull
+    private PyNode forStatement(@NotNull Token start, boolean async) throws ParseException {
+        expectKeyword("for");
+        PyNode target = targetList();
+        expectKeyword("in");
+        PyNode iter = python3 ? starExpressions() : testList();
+        expect(":");
+        List<Object> body = block();
+        List<Object> orelse = elseBlock();
+        PyNode f = node(async ? "AsyncFor" : "For", start, 5).put("target", target).put("iter", iter)
+                .put("body", body).put("orelse", orelse);
+        if (python3) {
+            f.put("type_comment", null);
+        }
+        return f;
+    }
+
+
+    @NotNull
+    private PyNode asyncStatement() throws ParseException {
+        Token t = next();
+        if (atKeyword("def")) {
+            return funcDef(t, new ArrayList<>(), true);
+        } else if (atKeyword("for")) {
+            return forStatement(t, true);
+        } else if (atKeyword("with")) {
+            List<Object> out = new ArrayList<>();
+            withStatement(t, true, out);
+            return (PyNode) out.get(0);
+        } else {
+            throw error();
+        }
+    }
+
+
+    private void withStatement(@NotNull Token start, boolean async, @NotNull List<Object> out)
+            throws ParseException
+    {
+        expectKeyword("with");
+
+        if (!python3) {
+            out.add(withItems2());
+            return;
+        }
+
+        List<Object> items = null;
+        if (at("(")) {
+            int save = p;
+            try {
+                next();
+                items = new ArrayList<>();
+                do {
+                    if (at(")") && !items.isEmpty()) {
+                        break;
+                    }
+                    items.add(withItem());
+                } while (accept(","));
+                expect(")");
+                if (!at(":")) {
+                    throw error();
+                }
+            }
+            catch (ParseException e) {
+                p = save;
+                items = null;
+            }
+        }
+        if (items == null) {
+            items = new ArrayList<>();
+            do {
+                items.add(withItem());
+            } while (accept(","));
+        }
+        expect(":");
+        List<Object> body = block();
+        out.add(node(async ? "AsyncWith" : "With", start, 3).put("items", items).put("body", body)
+                .put("type_comment", null));
+    }
+
+
+    @NotNull
+    private PyNode withItem() throws ParseException {
+        PyNode e = expression();
+        PyNode vars = null;
+        if (acceptKeyword("as")) {
+            vars = starTarget();
+            if (!at(",") && !at(")") && !at(":")) {
+                throw error();
+            }
+        }
+        return new PyNode("withitem", 2).put("context_expr", e).put("optional_vars", vars);
+    }
+
+
+    // Python 2 makes a With for each item, the later ones nested in the body of the first
+    @NotNull
+    private PyNode withItems2() throws ParseException {
+        Token t = peek();
+        PyNode e = expression();
+        PyNode vars = null;
+        if (acceptKeyword("as")) {
+            vars = bitwiseOr();
+            checkTarget(vars, false);
+        }
+
+        List<Object> body;
+        if (accept(",")) {
+            body = new ArrayList<>();
+            body.add(withItems2());
+        } else {
+            expect(":");
+            body = block();
+        }
+        return node("With", t, 3).put("context_expr", e).put("optional_vars", vars).put("body", body);
+    }
+
+
+    @NotNull
+    private PyNode tryStatement() throws ParseException {
+        Token t = next();
+        expect(":");
+        List<Object> body = block();
+        List<Object> handlers = new ArrayList<>();
+        Boolean star = null;
+
+        while (atKeyword("except")) {
+            Token et = next();
+            boolean isStar = python3 && accept("*");
+            if (star != null && star != isStar) {
+                throw new ParseException("cannot have both 'except' and 'except*' on the same 'try'", et.line);
+            }
+            star = isStar;
+
+            PyNode type = null;
+            Object name = null;
+            if (!at(":")) {
+                type = expression();
+                if (python3) {
+                    if (at(",")) {
+                        throw new ParseException("multiple exception types must be parenthesized", et.line);
+                    }
+                    if (acceptKeyword("as")) {
+                        name = name();
+                    }
+                } else if (acceptKeyword("as") || accept(",")) {
+                    PyNode target = expression();
+                    checkTarget(target, false);
+                    name = target;
+                }
+            } else if (isStar) {
+                throw new ParseException("expected one or more exception types", et.line);
+            }
+            expect(":");
+            List<Object> handlerBody = block();
+            handlers.add(node("ExceptHandler", et, 3).put("type", type).put("name", name)
+                    .put("body", handlerBody));
+        }
+
+        List<Object> orelse = new ArrayList<>();
+        if (!handlers.isEmpty()) {
+            orelse = elseBlock();
+        }
+        List<Object> finalbody = new ArrayList<>();
+        if (acceptKeyword("finally")) {
+            expect(":");
+            finalbody = block();
+        }
+        if (handlers.isEmpty() && finalbody.isEmpty()) {
+            throw new ParseException("expected 'except' or 'finally' block", peek().line);
+        }
+
+        if (python3) {
+            return node(star == Boolean.TRUE ? "TryStar" : "Try", t, 4).put("body", body)
+                    .put("handlers", handlers).put("orelse", orelse).put("finalbody", finalbody);
+        }
+
+        if (!handlers.isEmpty()) {
+            PyNode tryExcept = node("TryExcept", t, 3).put("body", body).put("handlers", handlers)
+                    .put("orelse", orelse);
+            if (finalbody.isEmpty()) {
+                return tryExcept;
+            }
+            body = new ArrayList<>();
+            body.add(tryExcept);
+        }
+        return node("TryFinally", t, 2).put("body", body).put("finalbody", finalbody);
+    }
+
+
+    /**
+     * Parses a match statement if one starts here.  Its cases are checked
+     * and dropped.
+     */
+    @Nullable
+    private PyNode matchStatement() throws ParseException {
+        int save = p;
+        Token t = next();
+        PyNode subject;
+        try {
+            Token first = peek();
+            subject = starNamedExpression();
+            if (at(",")) {
+                List<Object> elts = new ArrayList<>();
+                elts.add(subject);
+                while (accept(",")) {
+                    if (at(":")) {
+                        break;
+                    }
+                    elts.add(starNamedExpression());
+                }
+                subject = tuple(first, elts);
+            }
+            expect(":");
+            if (peek().type != Token.NEWLINE || peek(1).type != Token.INDENT || !peek(2).is(Token.NAME, "case")) {
+                throw error();
+            }
+        }
+        catch (ParseException e) {
+            p = save;
+            return null;
+        }
+
+        next();
+        next();
+        while (peek().is(Token.NAME, "case")) {
+            next();
+            int depth = 0;
+            while (depth > 0 || !at(":")) {
+                Token x = next();
+                if (x.type == Token.NEWLINE || x.type == Token.END) {
+                    throw new ParseException("invalid syntax", x.line);
+                } else if (x.type == Token.OP && "([{".contains(x.text)) {
+                    depth++;
+                } else if (x.type == Token.OP && ")]}".contains(x.text)) {
+                    depth--;
+                }
+            }
+            next();
+            block();
+        }
+        if (peek().type != Token.DEDENT) {
+            throw error();
+        }
+        next();
+
+        return node("Match", t, 2).put("subject", subject).put("cases", new ArrayList<>());
+    }
+
+
+    //-------------------------------------------------------------
+    //                   parameters
+    //-------------------------------------------------------------
+
+    @NotNull
+    private PyNode parameters(boolean lambda, @NotNull String close) throws ParseException {
+        List<Object> posonlyargs = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        List<Object> kwonlyargs = new ArrayList<>();
+        List<Object> kwDefaults = new ArrayList<>();
+        List<Object> defaults = new ArrayList<>();
+        PyNode vararg = null;
+        PyNode kwarg = null;
+        boolean star = false;
+        boolean bareStar = false;
+        boolean slash = false;
+
+        while (!at(close)) {
+            Token t = peek();
+            if (accept("/")) {
+                if (slash || star || args.isEmpty()) {
+                    throw new ParseException("invalid syntax", t.line);
+                }
+                posonlyargs.addAll(args);
+                args.clear();
+                slash = true;
+            } else if (accept("**")) {
+                kwarg = parameter(lambda, false);
+                accept(",");
+                if (!at(close)) {
+                    throw new ParseException("arguments cannot follow var-keyword argument", t.line);
+                }
+                break;
+            } else if (accept("*")) {
+                if (star) {
+                    throw new ParseException("* argument may appear only once", t.line);
+                }
+                star = true;
+                if (at(",") || at(close)) {
+                    bareStar = true;
+                } else {
+                    vararg = parameter(lambda, true);
+                }
+            } else {
+                PyNode a = parameter(lambda, false);
+                PyNode d = accept("=") ? expression() : null;
+                if (star) {
+                    kwonlyargs.add(a);
+                    kwDefaults.add(d);
+                } else {
+                    if (d != null) {
+                        defaults.add(d);
+                    } else if (!defaults.isEmpty()) {
+                        throw new ParseException("non-default argument follows default argument", t.line);
+                    }
+                    args.add(a);
+                }
+            }
+            if (!accept(",")) {
+                break;
+            }
+        }
+        if (bareStar && kwonlyargs.isEmpty()) {
+            throw new ParseException("named arguments must follow bare *", peek().line);
+        }
+
+        return new PyNode("arguments", 7).put("posonlyargs", posonlyargs).put("args", args).put("vararg", vararg)
+                .put("kwonlyargs", kwonlyargs).put("kw_defaults", kwDefaults).put("kwarg", kwarg)
+                .put("defaults", defaults);
+    }
+
+
+    @NotNull
+    private PyNode parameter(boolean lambda, boolean starAnnotation) throws ParseException {
+        Token t = peek();
+        String name = name();
+        PyNode annotation = null;
+        if (!lambda && accept(":")) {
+            if (starAnnotation && at("*")) {
+                Token s = next();
+                annotation = node("Starred", s, 2).put("value", expression()).put("ctx", null);
+            } else {
+                annotation = expression();
+            }
+        }
+        return node("arg", t, 3).put("arg", name).put("annotation", annotation).put("type_comment", null);
+    }
+
+
+    // Python 2 varargslist
+    @NotNull
+    private PyNode parameters2(@NotNull String close) throws ParseException {
+        List<Object> args = new ArrayList<>();
+        List<Object> defaults = new ArrayList<>();
+        String vararg = null;
+        String kwarg = null;
+
+        while (!at(close)) {
+            Token t = peek();
+            if (accept("*")) {
+                Token n = peek();
+                vararg = name();
+                checkAssignable(vararg, n);
+                if (accept(",")) {
+                    expect("**");
+                    n = peek();
+                    kwarg = name();
+                    checkAssignable(kwarg, n);
+                }
+                break;
+            } else if (accept("**")) {
+                Token n = peek();
+                kwarg = name();
+                checkAssignable(kwarg, n);
+                break;
+            } else {
+                PyNode a = fpdef();
+                if (accept("=")) {
+                    defaults.add(expression());
+                } else if (!defaults.isEmpty()) {
+                    throw new ParseException("non-default argument follows default argument", t.line);
+                }
+                args.add(a);
+            }
+            if (!accept(",")) {
+                break;
+            }
+        }
+
+        return new PyNode("arguments", 4).put("args", args).put("vararg", vararg).put("kwarg", kwarg)
+                .put("defaults", defaults);
+    }
+
+
+    // Python 2: NAME | '(' fplist ')', where (x) is just x
+    @NotNull
+    private PyNode fpdef() throws ParseException {
+        Token t = peek();
+        if (accept("(")) {
+            Token first = peek();
+            List<Object> elts = new ArrayList<>();
+            boolean comma = false;
+            while (true) {
+                elts.add(fpdef());
+                if (!accept(",")) {
+                    break;
+                }
+                comma = true;
+                if (at(")")) {
+                    break;
+                }
+            }
+            expect(")");
+            if (elts.size() == 1 && !comma) {
+                return (PyNode) elts.get(0);
+            }
+            return node("Tuple", first, 2).put("elts", elts).put("ctx", null);
+        }
+        String name = name();
+        checkAssignable(name, t);
+        return node("Name", t, 2).put("id", name).put("ctx", null);
+    }
+
+
+    //-------------------------------------------------------------
+    //                   expressions
+    //-------------------------------------------------------------
+
+    // star_expressions (Python 3)
+    @NotNull
+    private PyNode starExpressions() throws ParseException {
+        Token t = peek();
+        PyNode first = starExpression();
+        if (!at(",")) {
+            return first;
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (accept(",")) {
+            if (!startsExpression()) {
+                break;
+            }
+            elts.add(starExpression());
+        }
+        return tuple(t, elts);
+    }
+
+
+    @NotNull
+    private PyNode starExpression() throws ParseException {
+        if (at("*")) {
+            Token t = next();
+            return node("Starred", t, 2).put("value", bitwiseOr()).put("ctx", null);
+        }
+        return expression();
+    }
+
+
+    @NotNull
+    private PyNode starNamedExpression() throws ParseException {
+        if (python3 && at("*")) {
+            Token t = next();
+            return node("Starred", t, 2).put("value", bitwiseOr()).put("ctx", null);
+        }
+        return namedExpression();
+    }
+
+
+    // testlist (Python 2)
+    @NotNull
+    private PyNode testList() throws ParseException {
+        Token t = peek();
+        PyNode first = expression();
+        if (!at(",")) {
+            return first;
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (accept(",")) {
+            if (!startsExpression()) {
+                break;
+            }
+            elts.add(expression());
+        }
+        return tuple(t, elts);
+    }
+
+
+    @NotNull
+    private PyNode namedExpression() throws ParseException {
+        if (python3 && isName(peek()) && peek(1).is(Token.OP, ":=")) {
+            Token t = next();
+            next();
+            PyNode target = node("Name", t, 2).put("id", t.text).put("ctx", null);
+            return node("NamedExpr", t, 2).put("target", target).put("value", expression());
+        }
+        return expression();
+    }
+
+
+    // expression / test: conditional expressions and lambdas
+    @NotNull
+    private PyNode expression() throws ParseException {
+        if (atKeyword("lambda")) {
+            return lambda(true);
+        }
+        Token t = peek();
+        PyNode body = disjunction();
+        if (atKeyword("if")) {
+            next();
+            PyNode test = disjunction();
+            expectKeyword("else");
+            PyNode orelse = expression();
+            return node("IfExp", t, 3).put("test", test).put("body", body).put("orelse", orelse);
+        }
+        return body;
+    }
+
+
+    // old_test (Python 2): an expression without a conditional
+    @NotNull
+    private PyNode oldTest() throws ParseException {
+        if (atKeyword("lambda")) {
+            return lambda(false);
+        }
+        return disjunction();
+    }
+
+
+    @NotNull
+    private PyNode lambda(boolean full) throws ParseException {
+        Token t = next();
+        PyNode args = python3 ? parameters(true, ":") : parameters2(":");
+        expect(":");
+        PyNode body = full ? expression() : oldTest();
+        return node("Lambda", t, 2).put("args", args).put("body", body);
+    }
+
+
+    @NotNull
+    private PyNode disjunction() throws ParseException {
+        Token t = peek();
+        PyNode first = conjunction();
+        if (!atKeyword("or")) {
+            return first;
+        }
+        List<Object> values = new ArrayList<>();
+        values.add(first);
+        while (acceptKeyword("or")) {
+            values.add(conjunction());
+        }
+        return node("BoolOp", t, 2).put("op", new PyNode("Or", 0)).put("values", values);
+    }
+
+
+    @NotNull
+    private PyNode conjunction() throws ParseException {
+        Token t = peek();
+        PyNode first = inversion();
+        if (!atKeyword("and")) {
+            return first;
+        }
+        List<Object> values = new ArrayList<>();
+        values.add(first);
+        while (acceptKeyword("and")) {
+            values.add(inversion());
+        }
+        return node("BoolOp", t, 2).put("op", new PyNode("And", 0)).put("values", values);
+    }
+
+
+    @NotNull
+    private PyNode inversion() throws ParseException {
+        if (atKeyword("not")) {
+            Token t = next();
+            return node("UnaryOp", t, 2).put("op", new PyNode("Not", 0)).put("operand", inversion());
+        }
+        return comparison();
+    }
+
+
+    @NotNull
+    private PyNode comparison() throws ParseException {
+        Token t = peek();
+        PyNode left = bitwiseOr();
+        List<Object> ops = null;
+        List<Object> comparators = null;
+
+        while (true) {
+            String op = compareOperator();
+            if (op == null) {
+                break;
+            }
+            if (ops == null) {
+                ops = new ArrayList<>();
+                comparators = new ArrayList<>();
+            }
+            ops.add(new PyNode(op, 0));
+            comparators.add(bitwiseOr());
+        }
+
+        if (ops == null) {
+            return left;
+        }
+        return node("Compare", t, 3).put("left", left).put("ops", ops).put("comparators", comparators);
+    }
+
+
+    @Nullable
+    private String compareOperator() {
+        Token t = peek();
+        if (t.type == Token.OP) {
+            switch (t.text) {
+                case "==":
+                    next();
+                    return "Eq";
+                case "!=":
+                case "<>":
+                    next();
+                    return "NotEq";
+                case "<":
+                    next();
+                    return "Lt";
+                case "<=":
+                    next();
+                    return "LtE";
+                case ">":
+                    next();
+                    return "Gt";
+                case ">=":
+                    next();
+                    return "GtE";
+                default:
+                    return null;
+            }
+        } else if (t.type == Token.NAME) {
+            switch (t.text) {
+                case "in":
+                    next();
+                    return "In";
+                case "not":
+                    if (peek(1).is(Token.NAME, "in")) {
+                        next();
+                        next();
+                        return "NotIn";
+                    }
+                    return null;
+                case "is":
+                    next();
+                    if (acceptKeyword("not")) {
+                        return "IsNot";
+                    }
+                    return "Is";
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+
+    @NotNull
+    private PyNode bitwiseOr() throws ParseException {
+        return binary(0);
+    }
+
+
+    @NotNull
+    private PyNode binary(int level) throws ParseException {
+        if (level == BINARY_OPS.length) {
+            return factor();
+        }
+
+        Token t = peek();
+        PyNode left = binary(level + 1);
+        boolean chained = false;
+        while (true) {
+            Token opToken = peek();
+            if (opToken.type != Token.OP || !isOneOf(opToken.text, BINARY_OPS[level]) ||
+                    (!python3 && opToken.text.equals("@")))
+            {
+                break;
+            }
+            next();
+            PyNode right = binary(level + 1);
+            // Python 2 places the later operations of a chain at their operator
+            Token at = python3 || !chained ? t : opToken;
+            left = node("BinOp", at, 3).put("left", left).put("op", new PyNode(OPERATORS.get(opToken.text), 0))
+                    .put("right", right);
+            chained = true;
+        }
+        return left;
+    }
+
+
+    @NotNull
+    private PyNode factor() throws ParseException {
+        Token t = peek();
+        if (t.type == Token.OP && (t.text.equals("+") || t.text.equals("-") || t.text.equals("~"))) {
+            next();
+            if (!python3 && t.text.equals("-") && peek().type == Token.NUMBER && !startsTrailer(peek(1)) &&
+                    !peek(1).is(Token.OP, "**"))
+            {
+                // Python 2 folds negative numbers into the literal
+                Token number = next();
+                return node("Num", number, 1).put("n", negate(numberValue(number)));
+            }
+            String op = t.text.equals("+") ? "UAdd" : t.text.equals("-") ? "USub" : "Invert";
+            PyNode operand = factor();
+            return node("UnaryOp", t, 2).put("op", new PyNode(op, 0)).put("operand", operand);
+        }
+        return power();
+    }
+
+
+    @NotNull
+    private PyNode power() throws ParseException {
+        Token t = peek();
+        PyNode base;
+        if (python3 && atKeyword("await")) {
+            next();
+            base = node("Await", t, 1).put("value", primary());
+        } else {
+            base = primary();
+        }
+        if (accept("**")) {
+            PyNode exponent = factor();
+            return node("BinOp", t, 3).put("left", base).put("op", new PyNode("Pow", 0)).put("right", exponent);
+        }
+        return base;
+    }
+
+
+    private boolean startsTrailer(@NotNull Token t) {
+        return t.type == Token.OP && (t.text.equals("(") || t.text.equals("[") || t.text.equals("."));
+    }
+
+
+    @NotNull
+    private PyNode primary() throws ParseException {
+        Token t = peek();
+        PyNode e = atom();
+        PyNode atom = e;
+
+        while (true) {
+            if (at(".")) {
+                next();
+                String attr = name();
+                e = at(node("Attribute", t, 3), atom).put("value", e).put("attr", attr).put("ctx", null);
+            } else if (at("(")) {
+                e = call(t, e, atom, false);
+            } else if (at("[")) {
+                e = subscript(t, e, atom);
+            } else {
+                return e;
+            }
+        }
+    }
+
+
+    // Python 2 places trailers at the atom they follow
+    @NotNull
+    private PyNode at(@NotNull PyNode n, @NotNull PyNode atom) {
+        if (!python3) {
+            n.lineno = atom.lineno;
+            n.col = atom.col;
+        }
+        return n;
+    }
+
+
+    /**
+     * Parses the arguments of a call, or of a class definition if {@code inClass}.
+     */
+    @NotNull
+    private PyNode call(@NotNull Token start, @NotNull PyNode func, @Nullable PyNode atom, boolean inClass)
+            throws ParseException
+    {
+        Token open = next();
+        List<Object> args = new ArrayList<>();
+        List<Object> keywords = new ArrayList<>();
+        PyNode starargs = null;
+        PyNode kwargs = null;
+        boolean sawKeyword = false;
+        boolean sawDoubleStar = false;
+
+        while (!at(")")) {
+            Token a = peek();
+            if (at("*")) {
+                next();
+                if (python3) {
+                    if (sawDoubleStar) {
+                        throw new ParseException(
+                                "iterable argument unpacking follows keyword argument unpacking", a.line);
+                    }
+                    args.add(node("Starred", a, 2).put("value", expression()).put("ctx", null));
+                } else {
+                    if (starargs != null || kwargs != null) {
+                        throw error(a);
+                    }
+                    starargs = expression();
+                }
+            } else if (at("**")) {
+                next();
+                PyNode value = expression();
+                if (python3) {
+                    keywords.add(node("keyword", a, 2).put("arg", null).put("value", value));
+                    sawDoubleStar = true;
+                } else {
+                    if (kwargs != null) {
+                        throw error(a);
+                    }
+                    kwargs = value;
+                }
+            } else {
+                if (!python3 && kwargs != null) {
+                    throw error(a);
+                }
+                if (python3 && isName(a) && peek(1).is(Token.OP, "=")) {
+                    next();
+                    next();
+                    keywords.add(node("keyword", a, 2).put("arg", a.text).put("value", expression()));
+                    sawKeyword = true;
+                } else {
+                    PyNode e = python3 ? namedExpression() : expression();
+                    if (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+                        List<Object> generators = comprehensions();
+                        boolean sole = args.isEmpty() && keywords.isEmpty() && starargs == null &&
+                                (python3 ? at(")") : at(")") || (peek().is(Token.OP, ",") && peek(1).is(Token.OP, ")")));
+                        if (!sole || inClass) {
+                            throw new ParseException("Generator expression must be parenthesized", a.line);
+                        }
+                        e = node("GeneratorExp", python3 ? open : a, 2).put("elt", e).put("generators", generators);
+                        args.add(e);
+                    } else if (at("=")) {
+                        if (python3) {
+                            throw new ParseException("expression cannot contain assignment", a.line);
+                        }
+                        next();
+                        if (e.kind.equals("Lambda")) {
+                            throw new ParseException("lambda cannot contain assignment", a.line);
+                        } else if (!e.kind.equals("Name")) {
+                            throw new ParseException("keyword can't be an expression", a.line);
+                        }
+                        String arg = (String) e.get("id");
+                        checkAssignable(arg, a);
+                        for (Object k : keywords) {
+                            if (arg.equals(((PyNode) k).get("arg"))) {
+                                throw new ParseException("keyword argument repeated", a.line);
+                            }
+                        }
+                        keywords.add(new PyNode("keyword", 2).put("arg", arg).put("value", expression()));
+                    } else {
+                        if (sawDoubleStar) {
+                            throw new ParseException("positional argument follows keyword argument unpacking", a.line);
+                        } else if (sawKeyword || !keywords.isEmpty()) {
+                            throw new ParseException("positional argument follows keyword argument", a.line);
+                        } else if (starargs != null) {
+                            throw new ParseException("only named arguments may follow *expression", a.line);
+                        }
+                        args.add(e);
+                    }
+                }
+            }
+            if (!accept(",")) {
+                break;
+            }
+        }
+        expect(")");
+
+        PyNode call = node("Call", start, 5).put("func", func).put("args", args).put("keywords", keywords);
+        if (!python3) {
+            call.put("starargs", starargs).put("kwargs", kwargs);
+            if (atom != null) {
+                at(call, atom);
+            }
+        }
+        return call;
+    }
+
+
+    @NotNull
+    private PyNode subscript(@NotNull Token start, @NotNull PyNode value, @NotNull PyNode atom)
+            throws ParseException
+    {
+        next();
+        PyNode slice;
+
+        if (python3) {
+            Token t = peek();
+            boolean starred = at("*");
+            slice = slice();
+            if (at(",") || starred) {
+                List<Object> elts = new ArrayList<>();
+                elts.add(slice);
+                while (accept(",")) {
+                    if (at("]")) {
+                        break;
+                    }
+                    elts.add(slice());
+                }
+                slice = tuple(t, elts);
+            }
+        } else {
+            Token t = peek();
+            List<Object> dims = new ArrayList<>();
+            boolean simple = true;
+            boolean comma = false;
+            while (true) {
+                PyNode dim = slice2();
+                if (!dim.kind.equals("Index")) {
+                    simple = false;
+                }
+                dims.add(dim);
+                if (!accept(",")) {
+                    break;
+                }
+                comma = true;
+                if (at("]")) {
+                    break;
+                }
+            }
+            if (!comma) {
+                slice = (PyNode) dims.get(0);
+            } else if (!simple) {
+                slice = new PyNode("ExtSlice", 1).put("dims", dims);
+            } else {
+                List<Object> elts = new ArrayList<>();
+                for (Object d : dims) {
+                    elts.add(((PyNode) d).get("value"));
+                }
+                slice = new PyNode("Index", 1).put("value", tuple(t, elts));
+            }
+        }
+
+        expect("]");
+        return at(node("Subscript", start, 3), atom).put("value", value).put("slice", slice).put("ctx", null);
+    }
+
+
+    // slice (Python 3): an expression, a starred expression or lower:upper:step
+    @NotNull
+    private PyNode slice() throws ParseException {
+        Token t = peek();
+        if (at("*")) {
+            next();
+            return node("Starred", t, 2).put("value", bitwiseOr()).put("ctx", null);
+        }
+
+        PyNode lower = null;
+        if (!at(":")) {
+            lower = namedExpression();
+            if (!at(":")) {
+                return lower;
+            }
+        }
+        next();
+        PyNode upper = at(":") || at(",") || at("]") ? null : expression();
+        PyNode step = null;
+        if (accept(":")) {
+            step = at(",") || at("]") ? null : expression();
+        }
+        return node("Slice", t, 3).put("lower", lower).put("upper", upper).put("step", step);
+    }
+
+
+    // subscript (Python 2): Ellipsis, Index or Slice, which have no position
+    @NotNull
+    private PyNode slice2() throws ParseException {
+        if (accept("...")) {
+            return new PyNode("Ellipsis", 0);
+        }
+
+        PyNode lower = null;
+        if (!at(":")) {
+            lower = expression();
+            if (!at(":")) {
+                return new PyNode("Index", 1).put("value", lower);
+            }
+        }
+        next();
+        PyNode upper = at(":") || at(",") || at("]") ? null : expression();
+        PyNode step = null;
+        if (at(":")) {
+            Token colon = next();
+            if (at(",") || at("]")) {
+                step = node("Name", colon, 2).put("id", "None").put("ctx", null);
+            } else {
+                step = expression();
+            }
+        }
+        return new PyNode("Slice", 3).put("lower", lower).put("upper", upper).put("step", step);
+    }
+
+
+    @NotNull
+    private PyNode atom() throws ParseException {
+        Token t = peek();
+        switch (t.type) {
+            case Token.NAME:
+                if (!isKeyword(t)) {
+                    next();
+                    return node("Name", t, 2).put("id", t.text).put("ctx", null);
+                }
+                if (python3) {
+                    switch (t.text) {
+                        case "True":
+                            next();
+                            return constant(t, Boolean.TRUE);
+                        case "False":
+                            next();
+                            return constant(t, Boolean.FALSE);
+                        case "None":
+                            next();
+                            return constant(t, null);
+                        default:
+                            break;
+                    }
+                }
+                throw error(t);
+            case Token.NUMBER:
+                next();
+                return python3 ? constant(t, numberValue(t)) : node("Num", t, 1).put("n", numberValue(t));
+            case Token.STRING:
+                return strings();
+            case Token.OP:
+                switch (t.text) {
+                    case "(":
+                        return group();
+                    case "[":
+                        return listDisplay();
+                    case "{":
+                        return dictOrSet();
+                    case "...":
+                        if (python3) {
+                            next();
+                            return constant(t, PyNode.ELLIPSIS);
+                        }
+                        break;
+                    case "`":
+                        if (!python3) {
+                            next();
+                            PyNode value = testList();
+                            expect("`");
+                            return node("Repr", t, 1).put("value", value);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                throw error(t);
+            default:
+                throw error(t);
+        }
+    }
+
+
+    @NotNull
+    private PyNode constant(@NotNull Token t, @Nullable Object value) {
+        return node("Constant", t, 2).put("value", value).put("kind", null);
+    }
+
+
+    @NotNull
+    private PyNode group() throws ParseException {
+        Token open = next();
+        if (accept(")")) {
+            return node("Tuple", open, 2).put("elts", new ArrayList<>()).put("ctx", null);
+        }
+        if (atKeyword("yield")) {
+            PyNode y = yieldExpression();
+            expect(")");
+            y.parenthesized = true;
+            return y;
+        }
+
+        Token first = peek();
+        PyNode e = starNamedExpression();
+        if (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+            if (e.kind.equals("Starred")) {
+                throw error(first);
+            }
+            List<Object> generators = comprehensions();
+            expect(")");
+            return node("GeneratorExp", python3 ? open : first, 2).put("elt", e).put("generators", generators);
+        }
+        if (at(",")) {
+            List<Object> elts = new ArrayList<>();
+            elts.add(e);
+            while (accept(",")) {
+                if (at(")")) {
+                    break;
+                }
+                elts.add(starNamedExpression());
+            }
+            expect(")");
+            PyNode tuple = tuple(python3 ? open : first, elts);
+            tuple.parenthesized = true;
+            return tuple;
+        }
+        expect(")");
+        if (e.kind.equals("Starred")) {
+            throw new ParseException("cannot use starred expression here", first.line);
+        }
+        e.parenthesized = true;
+        return e;
+    }
+
+
+    @NotNull
+    private PyNode listDisplay() throws ParseException {
+        Token open = next();
+        List<Object> elts = new ArrayList<>();
+        if (accept("]")) {
+            return node("List", open, 2).put("elts", elts).put("ctx", null);
+        }
+
+        Token first = peek();
+        PyNode e = starNamedExpression();
+        if (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+            if (e.kind.equals("Starred")) {
+                throw error(first);
+            }
+            List<Object> generators = python3 ? comprehensions() : listComprehensions();
+            expect("]");
+            return node("ListComp", python3 ? open : first, 2).put("elt", e).put("generators", generators);
+        }
+        elts.add(e);
+        while (accept(",")) {
+            if (at("]")) {
+                break;
+            }
+            elts.add(starNamedExpression());
+        }
+        expect("]");
+        return node("List", open, 2).put("elts", elts).put("ctx", null);
+    }
+
+
+    @NotNull
+    private PyNode dictOrSet() throws ParseException {
+        Token open = next();
+        if (accept("}")) {
+            return node("Dict", open, 2).put("keys", new ArrayList<>()).put("values", new ArrayList<>());
+        }
+
+        Token first = peek();
+        if (python3 && at("**")) {
+            return dictDisplay(open, null, null);
+        }
+
+        PyNode e = starNamedExpression();
+        if (accept(":")) {
+            if (e.kind.equals("Starred") || (e.kind.equals("NamedExpr") && !e.parenthesized)) {
+                throw error(first);
+            }
+            PyNode value = expression();
+            if (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+                List<Object> generators = comprehensions();
+                expect("}");
+                return node("DictComp", python3 ? open : first, 3).put("key", e).put("value", value)
+                        .put("generators", generators);
+            }
+            return dictDisplay(open, e, value);
+        }
+
+        if (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+            if (e.kind.equals("Starred")) {
+                throw error(first);
+            }
+            List<Object> generators = comprehensions();
+            expect("}");
+            return node("SetComp", python3 ? open : first, 2).put("elt", e).put("generators", generators);
+        }
+
+        List<Object> elts = new ArrayList<>();
+        elts.add(e);
+        while (accept(",")) {
+            if (at("}")) {
+                break;
+            }
+            elts.add(starNamedExpression());
+        }
+        expect("}");
+        return node("Set", open, 1).put("elts", elts);
+    }
+
+
+    // the rest of a dict display, after its first key and value if it has them
+    @NotNull
+    private PyNode dictDisplay(@NotNull Token open, @Nullable PyNode key, @Nullable PyNode value)
+            throws ParseException
+    {
+        List<Object> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        boolean more = true;
+        if (value != null) {
+            keys.add(key);
+            values.add(value);
+            more = accept(",");
+        }
+
+        while (more && !at("}")) {
+            if (python3 && accept("**")) {
+                keys.add(null);
+                values.add(bitwiseOr());
+            } else {
+                keys.add(expression());
+                expect(":");
+                values.add(expression());
+            }
+            more = accept(",");
+        }
+        expect("}");
+        return node("Dict", open, 2).put("keys", keys).put("values", values);
+    }
+
+
+    // for_if_clauses, or comp_for in Python 2
+    @NotNull
+    private List<Object> comprehensions() throws ParseException {
+        List<Object> generators = new ArrayList<>();
+        while (atKeyword("for") || (python3 && atKeyword("async") && peek(1).is(Token.NAME, "for"))) {
+            boolean async = acceptKeyword("async");
+            next();
+            PyNode target = targetList();
+            expectKeyword("in");
+            PyNode iter = disjunction();
+            List<Object> ifs = new ArrayList<>();
+            while (atKeyword("if")) {
+                next();
+                ifs.add(python3 ? disjunction() : oldTest());
+            }
+            PyNode c = new PyNode("comprehension", 4).put("target", target).put("iter", iter).put("ifs", ifs);
+            if (python3) {
+                c.put("is_async", async ? BigInteger.ONE : BigInteger.ZERO);
+            }
+            generators.add(c);
+        }
+        return generators;
+    }
+
+
+    // list_for in Python 2, whose iterable may be an unparenthesized tuple
+    @NotNull
+    private List<Object> listComprehensions() throws ParseException {
+        List<Object> generators = new ArrayList<>();
+        while (acceptKeyword("for")) {
+            PyNode target = targetList();
+            expectKeyword("in");
+
+            Token t = peek();
+            PyNode iter = oldTest();
+            if (at(",")) {
+                List<Object> elts = new ArrayList<>();
+                elts.add(iter);
+                while (accept(",")) {
+                    if (!startsExpression()) {
+                        break;
+                    }
+                    elts.add(oldTest());
+                }
+                iter = tuple(t, elts);
+            }
+
+            List<Object> ifs = new ArrayList<>();
+            while (acceptKeyword("if")) {
+                ifs.add(oldTest());
+            }
+            generators.add(new PyNode("comprehension", 3).put("target", target).put("iter", iter).put("ifs", ifs));
+        }
+        return generators;
+    }
+
+
+    // the targets of for and of comprehensions
+    @NotNull
+    private PyNode targetList() throws ParseException {
+        Token t = peek();
+        PyNode first = starTarget();
+        if (!at(",")) {
+            return first;
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (accept(",")) {
+            if (atKeyword("in") || !startsExpression()) {
+                break;
+            }
+            elts.add(starTarget());
+        }
+        return tuple(t, elts);
+    }
+
+
+    @NotNull
+    private PyNode starTarget() throws ParseException {
+        Token t = peek();
+        PyNode target;
+        if (python3 && at("*")) {
+            next();
+            PyNode inner = bitwiseOr();
+            if (inner.kind.equals("Starred")) {
+                throw error(t);
+            }
+            target = node("Starred", t, 2).put("value", inner).put("ctx", null);
+        } else {
+            target = bitwiseOr();
+        }
+        checkTarget(target, false);
+        return target;
+    }
+
+
+    @NotNull
+    private PyNode yieldExpression() throws ParseException {
+        Token t = next();
+        if (python3 && acceptKeyword("from")) {
+            return node("YieldFrom", t, 1).put("value", expression());
+        }
+        PyNode value = null;
+        if (startsExpression()) {
+            value = python3 ? starExpressions() : testList();
+        }
+        return node("Yield", t, 1).put("value", value);
+    }
+
+
+    @NotNull
+    private PyNode tuple(@NotNull Token t, @NotNull List<Object> elts) {
+        return node("Tuple", t, 2).put("elts", elts).put("ctx", null);
+    }
+
+
+    private boolean startsExpression() {
+        Token t = peek();
+        switch (t.type) {
+            case Token.NUMBER:
+            case Token.STRING:
+                return true;
+            case Token.NAME:
+                if (!isKeyword(t)) {
+                    return true;
+                }
+                switch (t.text) {
+                    case "not":
+                    case "lambda":
+                    case "await":
+                    case "True":
+                    case "False":
+                    case "None":
+                        return true;
+                    default:
+                        return false;
+                }
+            case Token.OP:
+                switch (t.text) {
+                    case "(":
+                    case "[":
+                    case "{":
+                    case "-":
+                    case "+":
+                    case "~":
+                        return true;
+                    case "*":
+                    case "...":
+                        return python3;
+                    case "`":
+                        return !python3;
+                    default:
+                        return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+
+    //-------------------------------------------------------------
+    //                   targets
+    //-------------------------------------------------------------
+
+    /**
+     * Rejects what can't be assigned to (or deleted), as the parser does.
+     */
+    private void checkTarget(@NotNull PyNode n, boolean del) throws ParseException {
+        switch (n.kind) {
+            case "Name":
+                if (!python3) {
+                    checkAssignable((String) n.get("id"), n);
+                }
+                return;
+            case "Attribute":
+                if (!python3 && !del) {
+                    checkAssignable((String) n.get("attr"), n);
+                }
+                return;
+            case "Subscript":
+                return;
+            case "Tuple":
+            case "List":
+                for (Object elt : list(n.get("elts"))) {
+                    PyNode e = (PyNode) elt;
+                    if (e.kind.equals("Starred") && !del) {
+                        checkTarget((PyNode) e.get("value"), false);
+                    } else {
+                        checkTarget(e, del);
+                    }
+                }
+                return;
+            case "Starred":
+                if (!del) {
+                    PyNode value = (PyNode) n.get("value");
+                    if (!value.kind.equals("Starred")) {
+                        checkTarget(value, false);
+                        return;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        throw new ParseException("cannot " + (del ? "delete " : "assign to ") + n.kind, line(n));
+    }
+
+
+    // Python 2 does not let None or __debug__ be assigned to
+    private void checkAssignable(@Nullable String name, @NotNull Object where) throws ParseException {
+        if (!python3 && ("None".equals(name) || "__debug__".equals(name))) {
+            int line = where instanceof Token ? ((Token) where).line : line((PyNode) where);
+            throw new ParseException("cannot assign to " + name, line);
+        }
+    }
+
+
+    private int line(@NotNull PyNode n) {
+        return n.lineno == PyNode.NONE ? peek().line : n.lineno;
+    }
+
+
+    //-------------------------------------------------------------
+    //                   literals
+    //-------------------------------------------------------------
+
+    @NotNull
+    private Object numberValue(@NotNull Token t) throws ParseException {
+        String text = t.text.replace("_", "");
+        char last = Character.toLowerCase(text.charAt(text.length() - 1));
+
+        if (last == 'j') {
+            return new PyNode.Imaginary(parseDouble(text.substring(0, text.length() - 1)), python3);
+        }
+        if (last == 'l') {
+            text = text.substring(0, text.length() - 1);
+        }
+
+        if (text.length() > 1 && text.charAt(0) == '0' && Character.isLetter(text.charAt(1))) {
+            char base = Character.toLowerCase(text.charAt(1));
+            int radix = base == 'x' ? 16 : base == 'o' ? 8 : 2;
+            return new BigInteger(text.substring(2), radix);
+        }
+        if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+            return parseDouble(text);
+        }
+        if (!python3 && text.length() > 1 && text.charAt(0) == '0') {
+            return new BigInteger(text.substring(1), 8);
+        }
+        if (python3 && text.length() > MAX_STR_DIGITS) {
+            throw new ParseException("Exceeds the limit (" + MAX_STR_DIGITS + " digits) for integer string " +
+                    "conversion: value has " + text.length() + " digits", t.line);
+        }
+        return new BigInteger(text);
+    }
+
+
+    private static double parseDouble(@NotNull String text) {
+        if (text.startsWith(".")) {
+            text = "0" + text;
+        }
+        return Double.parseDouble(text);
+    }
+
+
+    // Python 2 only
+    @NotNull
+    private static Object negate(@NotNull Object n) {
+        if (n instanceof BigInteger) {
+            return ((BigInteger) n).negate();
+        } else if (n instanceof Double) {
+            return -(Double) n;
+        } else {
+            return new PyNode.Imaginary(-((PyNode.Imaginary) n).imag, false);
+        }
+    }
+
+
+    /**
+     * Adjacent string literals, concatenated.
+     */
+    @NotNull
+    private PyNode strings() throws ParseException {
+        Token t = peek();
+        StringBuilder sb = new StringBuilder();
+        boolean bytes = false;
+        boolean nonBytes = false;
+        boolean fstring = false;
+        boolean unicode = false;
+
+        while (peek().type == Token.STRING) {
+            Token s = next();
+            String text = s.text;
+            int q = 0;
+            while (text.charAt(q) != '\'' && text.charAt(q) != '"') {
+                q++;
+            }
+            String prefix = text.substring(0, q).toLowerCase();
+            int quoteLength = text.length() - q >= 6 && text.charAt(q + 1) == text.charAt(q) &&
+                    text.charAt(q + 2) == text.charAt(q) ? 3 : 1;
+            String body = text.substring(q + quoteLength, text.length() - quoteLength);
+            boolean raw = prefix.indexOf('r') >= 0;
+
+            if (python3) {
+                boolean isBytes = prefix.indexOf('b') >= 0;
+                if (isBytes) {
+                    bytes = true;
+                } else {
+                    nonBytes = true;
+                }
+                if (bytes && nonBytes) {
+                    throw new ParseException("cannot mix bytes and nonbytes literals", s.line);
+                }
+                if (prefix.indexOf('f') >= 0) {
+                    fstring = true;
+                    checkFString(body, 0, raw, 0, s);
+                } else if (isBytes) {
+                    for (int i = 0; i < body.length(); i++) {
+                        if (body.charAt(i) >= 128) {
+                            throw new ParseException("bytes can only contain ASCII literal characters", s.line);
+                        }
+                    }
+                    sb.append(raw ? body : unescape(body, false, s.line));
+                } else {
+                    sb.append(raw ? body : unescape(body, true, s.line));
+                }
+            } else {
+                body = body.replace("\r\n", "\n").replace('\r', '\n');
+                boolean isUnicode = prefix.indexOf('u') >= 0 || (unicodeLiterals && prefix.indexOf('b') < 0);
+                if (isUnicode) {
+                    unicode = true;
+                    if (utf8Source) {
+                        body = new String(body.getBytes(Charset.forName("ISO-8859-1")), Charset.forName("UTF-8"));
+                    }
+                    sb.append(raw ? unescapeRawUnicode(body, s.line) : unescape(body, true, s.line));
+                } else {
+                    sb.append(raw ? body : unescape(body, false, s.line));
+                }
+            }
+        }
+
+        if (!python3) {
+            return node("Str", t, 1).put("s", sb.toString());
+        } else if (fstring) {
+            return node("JoinedStr", t, 1).put("values", new ArrayList<>());
+        } else if (bytes) {
+            return constant(t, new PyNode.Bytes(sb.toString()));
+        } else {
+            return constant(t, sb.toString()).put("kind", t.text.toLowerCase().startsWith("u") ? "u" : null);
+        }
+    }
+
+
+    /**
+     * Processes the escapes of a string literal: those of bytes, and \N, \\u
+     * and \U as well if {@code unicode}.
+     */
+    @NotNull
+    private static String unescape(@NotNull String s, boolean unicode, int line) throws ParseException {
+        int backslash = s.indexOf('\\');
+        if (backslash < 0) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(s.length());
+        sb.append(s, 0, backslash);
+        int n = s.length();
+        for (int i = backslash; i < n; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 >= n) {
+                sb.append(c);
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+                case '\n':
+                    break;
+                case '\\':
+                case '\'':
+                case '"':
+                    sb.append(e);
+                    break;
+                case 'a':
+                    sb.append('\u0007');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'v':
+                    sb.append('\u000b');
+                    break;
+                case '0':
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                case '6':
+                case '7': {
+                    int v = e - '0';
+                    int k = 1;
+                    while (k < 3 && i + 1 < n && s.charAt(i + 1) >= '0' && s.charAt(i + 1) <= '7') {
+                        v = v * 8 + (s.charAt(++i) - '0');
+                        k++;
+                    }
+                    sb.append((char) (unicode ? v : v & 0xff));
+                    break;
+                }
+                case 'x':
+                    sb.append((char) hexEscape(s, i + 1, 2, line));
+                    i += 2;
+                    break;
+                case 'u':
+                case 'U':
+                    if (unicode) {
+                        int digits = e == 'u' ? 4 : 8;
+                        int v = hexEscape(s, i + 1, digits, line);
+                        if (v < 0 || v > 0x10ffff) {
+                            throw new ParseException("(unicode error) illegal Unicode character", line);
+                        }
+                        sb.appendCodePoint(v);
+                        i += digits;
+                    } else {
+                        sb.append('\\').append(e);
+                    }
+                    break;
+                case 'N':
+                    if (unicode) {
+                        int close = s.indexOf('}', i);
+                        if (i + 1 >= n || s.charAt(i + 1) != '{' || close < 0 || close == i + 2) {
+                            throw new ParseException("(unicode error) malformed \\N character escape", line);
+                        }
+                        // Java 7 has no lookup by character name
+                        sb.append('\ufffd');
+                        i = close;
+                    } else {
+                        sb.append('\\').append(e);
+                    }
+                    break;
+                default:
+                    sb.append('\\').append(e);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private static int hexEscape(@NotNull String s, int from, int digits, int line) throws ParseException {
+        if (from + digits > s.length()) {
+            throw new ParseException("(unicode error) truncated \\xXX escape", line);
+        }
+        long v = 0;
+        for (int i = from; i < from + digits; i++) {
+            int d = Character.digit(s.charAt(i), 16);
+            if (d < 0) {
+                throw new ParseException("(unicode error) truncated escape", line);
+            }
+            v = v * 16 + d;
+        }
+        return v > Integer.MAX_VALUE ? -1 : (int) v;
+    }
+
+
+    // raw unicode literals in Python 2 still process \\u and \U
+    @NotNull
+    private static String unescapeRawUnicode(@NotNull String s, int line) throws ParseException {
+        StringBuilder sb = new StringBuilder(s.length());
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                int start = i;
+                while (i < n && s.charAt(i) == '\\') {
+                    i++;
+                }
+                int count = i - start;
+                if (count % 2 == 1 && i < n && (s.charAt(i) == 'u' || s.charAt(i) == 'U')) {
+                    sb.append(s, start, i - 1);
+                    int digits = s.charAt(i) == 'u' ? 4 : 8;
+                    int v = hexEscape(s, i + 1, digits, line);
+                    if (v < 0 || v > 0x10ffff) {
+                        throw new ParseException("(unicode error) illegal Unicode character", line);
+                    }
+                    sb.appendCodePoint(v);
+                    i += digits;
+                } else {
+                    sb.append(s, start, i);
+                    i--;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Checks the replacement fields of an f-string the way Python 3.11 does:
+     * the expressions must parse, and the braces, conversions and format specs
+     * must be well formed.
+     *
+     * @return where the scan stopped: the end of {@code s}, or the closing
+     * brace of a format spec if {@code level} > 0
+     */
+    private int checkFString(@NotNull String s, int i, boolean raw, int level, @NotNull Token t)
+            throws ParseException
+    {
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            if (!raw && c == '\\' && i + 1 < n) {
+                if (s.charAt(i + 1) == 'N' && i + 2 < n && s.charAt(i + 2) == '{') {
+                    int close = s.indexOf('}', i);
+                    i = close < 0 ? n : close + 1;
+                } else {
+                    i += 2;
+                }
+            } else if (c == '{') {
+                if (level == 0 && i + 1 < n && s.charAt(i + 1) == '{') {
+                    i += 2;
+                } else {
+                    i = checkReplacementField(s, i + 1, raw, level, t);
+                }
+            } else if (c == '}') {
+                if (level > 0) {
+                    return i;
+                }
+                if (i + 1 < n && s.charAt(i + 1) == '}') {
+                    i += 2;
+                } else {
+                    throw new ParseException("f-string: single '}' is not allowed", t.line);
+                }
+            } else {
+                i++;
+            }
+        }
+        if (level > 0) {
+            throw new ParseException("f-string: expecting '}'", t.line);
+        }
+        return i;
+    }
+
+
+    // from just after a '{' to just after its '}'
+    private int checkReplacementField(@NotNull String s, int start, boolean raw, int level, @NotNull Token t)
+            throws ParseException
+    {
+        if (level >= 2) {
+            throw new ParseException("f-string: expressions nested too deeply", t.line);
+        }
+
+        int n = s.length();
+        int depth = 0;
+        char quote = 0;
+        int quoteLength = 0;
+        int i = start;
+
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                throw new ParseException("f-string expression part cannot include a backslash", t.line);
+            }
+            if (quote != 0) {
+                if (c == quote && (quoteLength == 1 || (i + 2 < n && s.charAt(i + 1) == quote &&
+                        s.charAt(i + 2) == quote)))
+                {
+                    i += quoteLength - 1;
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"') {
+                quote = c;
+                quoteLength = i + 2 < n && s.charAt(i + 1) == c && s.charAt(i + 2) == c ? 3 : 1;
+                i += quoteLength - 1;
+            } else if (c == '[' || c == '(' || c == '{') {
+                depth++;
+            } else if (c == '#') {
+                throw new ParseException("f-string expression part cannot include '#'", t.line);
+            } else if (depth == 0 && (c == '!' || c == ':' || c == '}' || c == '=' || c == '>' || c == '<')) {
+                if (i + 1 < n && s.charAt(i + 1) == '=' && c != ':' && c != '}') {
+                    i++;
+                    continue;
+                }
+                if (c == '>' || c == '<') {
+                    continue;
+                }
+                break;
+            } else if (c == ']' || c == ')' || c == '}') {
+                depth--;
+                if (depth < 0) {
+                    throw new ParseException("f-string: unmatched '" + c + "'", t.line);
+                }
+            }
+        }
+        if (quote != 0) {
+            throw new ParseException("f-string: unterminated string", t.line);
+        }
+        if (depth != 0 || i >= n) {
+            throw new ParseException("f-string: expecting '}'", t.line);
+        }
+
+        String expr = s.substring(start, i);
+        if (expr.trim().isEmpty()) {
+            throw new ParseException("f-string: empty expression not allowed", t.line);
+        }
+        checkFStringExpression(expr, t);
+
+        char c = s.charAt(i);
+        if (c == '=') {
+            i++;
+            c = i < n ? s.charAt(i) : 0;
+        }
+        if (c == '!') {
+            if (i + 1 >= n || "sra".indexOf(s.charAt(i + 1)) < 0) {
+                throw new ParseException("f-string: invalid conversion character", t.line);
+            }
+            i += 2;
+            c = i < n ? s.charAt(i) : 0;
+        }
+        if (c == ':') {
+            i = checkFString(s, i + 1, raw, level + 1, t);
+            c = i < n ? s.charAt(i) : 0;
+        }
+        if (c != '}') {
+            throw new ParseException("f-string: expecting '}'", t.line);
+        }
+        return i + 1;
+    }
+
+
+    private static void checkFStringExpression(@NotNull String expr, @NotNull Token t) throws ParseException {
+        try {
+            Parser sub = new Parser(Lexer.tokenize("(" + expr + ")", true), true);
+            sub.atom();
+            if (sub.peek().type != Token.NEWLINE || sub.peek(1).type != Token.END) {
+                throw sub.error();
+            }
+        }
+        catch (ParseException e) {
+            throw new ParseException("f-string: " + e.getMessage(), t.line);
+        }
+    }
+
+
+    //-------------------------------------------------------------
+    //                   tokens
+    //-------------------------------------------------------------
+
+    @NotNull
+    private Token peek() {
+        return tokens.get(p);
+    }
+
+
+    @NotNull
+    private Token peek(int k) {
+        return tokens.get(Math.min(p + k, tokens.size() - 1));
+    }
+
+
+    @NotNull
+    private Token next() {
+        Token t = tokens.get(p);
+        if (t.type != Token.END) {
+            p++;
+        }
+        return t;
+    }
+
+
+    private boolean at(@NotNull String op) {
+        Token t = tokens.get(p);
+        return t.type == Token.OP && t.text.equals(op);
+    }
+
+
+    private boolean accept(@NotNull String op) {
+        if (at(op)) {
+            p++;
+            return true;
+        }
+        return false;
+    }
+
+
+    private void expect(@NotNull String op) throws ParseException {
+        if (!accept(op)) {
+            throw error();
+        }
+    }
+
+
+    private boolean atKeyword(@NotNull String keyword) {
+        Token t = tokens.get(p);
+        return t.type == Token.NAME && t.text.equals(keyword) && isKeyword(t);
+    }
+
+
+    private boolean acceptKeyword(@NotNull String keyword) {
+        if (atKeyword(keyword)) {
+            p++;
+            return true;
+        }
+        return false;
+    }
+
+
+    private void expectKeyword(@NotNull String keyword) throws ParseException {
+        if (!acceptKeyword(keyword)) {
+            throw error();
+        }
+    }
+
+
+    private boolean isKeyword(@NotNull Token t) {
+        if (python3) {
+            return KEYWORDS3.contains(t.text);
+        } else {
+            return KEYWORDS2.contains(t.text) && !(printFunction && t.text.equals("print"));
+        }
+    }
+
+
+    private boolean isName(@NotNull Token t) {
+        return t.type == Token.NAME && !isKeyword(t);
+    }
+
+
+    @NotNull
+    private String name() throws ParseException {
+        Token t = peek();
+        if (!isName(t)) {
+            throw error(t);
+        }
+        next();
+        return t.text;
+    }
+
+
+    private static boolean isOneOf(@NotNull String s, @NotNull String[] options) {
+        for (String o : options) {
+            if (o.equals(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(@Nullable Object o) {
+        return o == null ? Collections.emptyList() : (List<Object>) o;
+    }
+
+
+    @NotNull
+    private ParseException error() {
+        return error(peek());
+    }
+
+
+    @NotNull
+    private ParseException error(@NotNull Token t) {
+        if (t.type == Token.END) {
+            return new ParseException("unexpected EOF while parsing", t.line);
+        }
+        return new ParseException("invalid syntax near " + t, t.line);
+    }
+
+
+    //-------------------------------------------------------------
+    //                   nodes
+    //-------------------------------------------------------------
+
+    @NotNull
+    private PyNode node(@NotNull String kind, @NotNull Token at, int fields) {
+        PyNode n = new PyNode(kind, fields);
+        int[] pos = position(at);
+        n.lineno = pos[0];
+        n.col = pos[1];
+        return n;
+    }
+
+
+    @NotNull
+    private PyNode node(@NotNull String kind, int fields) {
+        return new PyNode(kind, fields);
+    }
+
+
+    /**
+     * The lineno and col_offset of a node starting at {@code t}.  Python 2
+     * gives a string that spans lines the number of its last line and column
+     * -1.
+     */
+    @NotNull
+    private int[] position(@NotNull Token t) {
+        if (!python3 && t.type == Token.STRING) {
+            int lines = 0;
+            for (int i = 0; i < t.text.length(); i++) {
+                char c = t.text.charAt(i);
+                if (c == '\n' || (c == '\r' && (i + 1 == t.text.length() || t.text.charAt(i + 1) != '\n'))) {
+                    lines++;
+                }
+            }
+            if (lines > 0) {
+                return new int[]{t.line + lines, -1};
+            }
+        }
+        return new int[]{t.line, t.col};
+    }
+}
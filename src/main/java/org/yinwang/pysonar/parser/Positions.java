@@ -0,0 +1,658 @@
+package org.yinwang.pysonar.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Computes the {@code start} and {@code end} offsets of the nodes, and the
+ * name_node, attr_name and op_node fields, exactly as improve_ast in
+ * ast2json.py does, quirks included: ends are found by scanning the text for
+ * quotes and brackets, offsets mix character indexes with byte columns, and
+ * a node whose end can't be determined gets its start plus 3. <p>
+ * The work of ast2json.py runs close to Python's recursion limit on deeply
+ * nested trees, so this also fails the trees that would fail there.
+ */
+class Positions {
+
+    // Python's default recursion limit, and the depth of the frames below
+    // improve_node and the encoder's value() when ast2json.py serves a pipe
+    private static final int RECURSION_LIMIT = 1000;
+    private static final int IMPROVE_DEPTH = 7;
+    private static final int ENCODE_DEPTH = 5;
+
+    private static final Map<String, String> OPS = new HashMap<>();
+
+    static {
+        String[] ops = {
+                "Or", "or", "And", "and", "Add", "+", "Sub", "-", "Mult", "*", "Div", "/", "FloorDiv", "//",
+                "Mod", "%", "Pow", "**", "BitOr", "|", "BitAnd", "&", "BitXor", "^", "RShift", ">>",
+                "LShift", "<<"
+        };
+        for (int i = 0; i < ops.length; i += 2) {
+            OPS.put(ops[i], ops[i + 1]);
+        }
+    }
+
+    @NotNull
+    private final String s;
+    private final boolean python3;
+    private final int[] idxmap;
+
+
+    private Positions(@NotNull String s, boolean python3) {
+        this.s = s;
+        this.python3 = python3;
+
+        int lines = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        idxmap = new int[lines];
+        int line = 1;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                idxmap[line++] = i + 1;
+            }
+        }
+    }
+
+
+    /**
+     * Runs improve_ast over {@code module}, the tree of {@code s}.
+     *
+     * @throws ParseException where ast2json.py would raise an exception
+     */
+    static void improve(@NotNull PyNode module, @NotNull String s, boolean python3) throws ParseException {
+        Positions p = new Positions(s, python3);
+        p.improveNode(module, IMPROVE_DEPTH);
+        p.encodeDepth(module, ENCODE_DEPTH);
+    }
+
+
+    private static void check(int depth) throws ParseException {
+        if (depth > RECURSION_LIMIT) {
+            throw new ParseException("maximum recursion depth exceeded", 0);
+        }
+    }
+
+
+    private void improveNode(@Nullable Object node, int d) throws ParseException {
+        check(d);
+        if (node instanceof List) {
+            for (Object n : (List<?>) node) {
+                improveNode(n, d + 1);
+            }
+        } else if (node instanceof PyNode) {
+            PyNode n = (PyNode) node;
+            findStart(n, d + 1);
+            findEnd(n, d + 1);
+            addMissingNames(n, d + 1);
+
+            boolean attribute = n.kind.equals("Attribute");
+            for (int i = 0; i < n.size(); i++) {
+                String name = n.name(i);
+                if (!name.equals("ctx") && (!attribute || !name.equals("attr"))) {
+                    improveNode(n.value(i), d + 1);
+                }
+            }
+        }
+    }
+
+
+    // find_node_start
+    private int findStart(@Nullable Object node, int d) throws ParseException {
+        check(d);
+        if (node instanceof List) {
+            List<?> list = (List<?>) node;
+            return list.isEmpty() ? PyNode.NONE : findStart(list.get(0), d + 1);
+        }
+        if (!(node instanceof PyNode)) {
+            return PyNode.NONE;
+        }
+
+        PyNode n = (PyNode) node;
+        if (n.start != PyNode.NONE) {
+            return n.start;
+        }
+
+        int ret;
+        if (n.kind.equals("Module")) {
+            List<?> body = list(n.get("body"));
+            ret = body.isEmpty() ? PyNode.NONE : findStart(body.get(0), d + 1);
+        } else if (n.kind.equals("BinOp")) {
+            int left = findStart(n.get("left"), d + 1);
+            ret = left != PyNode.NONE ? left : mapIdx(n.lineno, n.col, d + 1);
+        } else if (n.hasPosition()) {
+            ret = mapIdx(n.lineno, n.col, d + 1);
+            if (n.col < 0) {
+                // special case for """ strings
+                while (ret > 0 && ret + 2 < s.length() && !s.startsWith("\"\"\"", ret)) {
+                    ret--;
+                }
+            }
+        } else {
+            return PyNode.NONE;
+        }
+
+        if (ret != PyNode.NONE) {
+            n.start = ret;
+        }
+        return ret;
+    }
+
+
+    // find_node_end
+    private int findEnd(@Nullable Object node, int d) throws ParseException {
+        check(d);
+        if (node instanceof List) {
+            List<?> list = (List<?>) node;
+            return list.isEmpty() ? PyNode.NONE : findEnd(list.get(list.size() - 1), d + 1);
+        }
+        if (!(node instanceof PyNode)) {
+            check(d + 1);
+            return PyNode.NONE;
+        }
+
+        PyNode n = (PyNode) node;
+        if (n.end != PyNode.NONE) {
+            return n.end;
+        }
+
+        int end;
+        switch (n.kind) {
+            case "Module":
+                end = findEnd(n.get("body"), d + 1);
+                break;
+            case "Expr":
+                end = findEnd(n.get("value"), d + 1);
+                break;
+            case "Name":
+                end = findStart(n, d + 1) + ((String) n.get("id")).length();
+                break;
+            case "Attribute": {
+                int from = findEnd(n.get("value"), d + 1);
+                end = endSeq((String) n.get("attr"), from == PyNode.NONE ? 0 : from, d + 1);
+                break;
+            }
+            case "FunctionDef":
+            case "ClassDef":
+            case "Lambda":
+                end = findEnd(n.get("body"), d + 1);
+                break;
+            case "Print":
+                end = startSeq("\n", findStart(n, d + 1), d + 1);
+                break;
+            case "Call": {
+                int from = findEnd(n.get("func"), d + 1);
+                end = from == PyNode.NONE ? PyNode.NONE : matchParen('(', ')', from, d + 1);
+                break;
+            }
+            case "Yield":
+                end = findEnd(n.get("value"), d + 1);
+                break;
+            case "Return":
+                if (n.get("value") != null) {
+                    end = findEnd(n.get("value"), d + 1);
+                } else {
+                    end = findStart(n, d + 1) + "return".length();
+                }
+                break;
+            case "For":
+            case "While":
+            case "If":
+            case "IfExp": {
+                Object orelse = n.get("orelse");
+                if (orelse instanceof List && ((List<?>) orelse).isEmpty()) {
+                    end = findEnd(n.get("body"), d + 1);
+                } else {
+                    end = findEnd(orelse, d + 1);
+                }
+                break;
+            }
+            case "Assign":
+            case "AugAssign":
+                end = findEnd(n.get("value"), d + 1);
+                break;
+            case "BinOp":
+                end = findEnd(n.get("right"), d + 1);
+                break;
+            case "BoolOp":
+                end = findEnd(last(n.get("values")), d + 1);
+                break;
+            case "Compare":
+                end = findEnd(last(n.get("comparators")), d + 1);
+                break;
+            case "UnaryOp":
+                end = findEnd(n.get("operand"), d + 1);
+                break;
+            case "List":
+            case "Subscript":
+                end = matchParen('[', ']', findStart(n, d + 1), d + 1);
+                break;
+            case "Tuple":
+                end = list(n.get("elts")).isEmpty() ? PyNode.NONE : findEnd(n.get("elts"), d + 1);
+                break;
+            case "Dict":
+                end = matchParen('{', '}', findStart(n, d + 1), d + 1);
+                break;
+            case "Try":
+            case "TryExcept":
+                if (!list(n.get("orelse")).isEmpty()) {
+                    end = findEnd(n.get("orelse"), d + 1);
+                } else if (!list(n.get("handlers")).isEmpty()) {
+                    end = findEnd(n.get("handlers"), d + 1);
+                } else {
+                    end = findEnd(n.get("body"), d + 1);
+                }
+                break;
+            case "ExceptHandler":
+                end = findEnd(n.get("body"), d + 1);
+                break;
+            case "Pass":
+                end = findStart(n, d + 1) + "pass".length();
+                break;
+            case "Break":
+                end = findStart(n, d + 1) + "break".length();
+                break;
+            case "Continue":
+                end = findStart(n, d + 1) + "continue".length();
+                break;
+            case "Global":
+                end = startSeq("\n", findStart(n, d + 1), d + 1);
+                break;
+            case "Import":
+                end = findStart(n, d + 1) + "import".length();
+                break;
+            case "ImportFrom":
+                end = findStart(n, d + 1) + "from".length();
+                break;
+            case "Str":
+                end = stringEnd(n, d);
+                break;
+            case "Num":
+                end = findStart(n, d + 1) + str(n.get("n"), false).length();
+                break;
+            case "Constant": {
+                Object value = n.get("value");
+                if (value instanceof String) {
+                    end = stringEnd(n, d);
+                } else if (value instanceof BigInteger || value instanceof Double ||
+                        value instanceof PyNode.Imaginary)
+                {
+                    end = findStart(n, d + 1) + str(value, true).length();
+                } else {
+                    end = defaultEnd(n, d);
+                }
+                break;
+            }
+            default:
+                end = defaultEnd(n, d);
+                break;
+        }
+
+        if (end != PyNode.NONE) {
+            n.end = end;
+        }
+        return end;
+    }
+
+
+    // can't determine node end, set to 3 chars after start
+    private int defaultEnd(@NotNull PyNode n, int d) throws ParseException {
+        int start = findStart(n, d + 1);
+        return start == PyNode.NONE ? PyNode.NONE : start + 3;
+    }
+
+
+    private int stringEnd(@NotNull PyNode n, int d) throws ParseException {
+        int i = findStart(n, d + 1);
+        while (charAt(i) != '"' && charAt(i) != '\'') {
+            i++;
+        }
+
+        String q;
+        if (i + 2 < s.length() && s.startsWith("\"\"\"", i)) {
+            q = "\"\"\"";
+            i += 3;
+        } else {
+            q = String.valueOf(s.charAt(i));
+            i += 1;
+        }
+        return endSeq(q, i, d + 1);
+    }
+
+
+    // s[i], which raises IndexError past the end and counts from the end for negative i
+    private char charAt(int i) throws ParseException {
+        if (i < 0) {
+            i += s.length();
+        }
+        if (i < 0 || i >= s.length()) {
+            throw new ParseException("string index out of range", 0);
+        }
+        return s.charAt(i);
+    }
+
+
+    private void addMissingNames(@NotNull PyNode n, int d) throws ParseException {
+        switch (n.kind) {
+            case "ClassDef": {
+                int head = findStart(n, d + 1);
+                n.put("name_node", strToName(s.indexOf("class", Math.max(head, 0)) + "class".length(), d + 1));
+                break;
+            }
+            case "FunctionDef": {
+                int head = findStart(n, d + 1);
+                n.put("name_node", strToName(s.indexOf("def", Math.max(head, 0)) + "def".length(), d + 1));
+                break;
+            }
+            case "Attribute": {
+                int start = findEnd(n.get("value"), d + 1);
+                if (start != PyNode.NONE) {
+                    n.put("attr_name", strToName(start, d + 1));
+                }
+                break;
+            }
+            case "BoolOp":
+            case "AugAssign": {
+                int start = findStart(n, d + 1);
+                if (start != PyNode.NONE) {
+                    PyNode op = convertOp((PyNode) n.get("op"), start, d + 1);
+                    if (op != null) {
+                        n.put("op_node", op);
+                    }
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+
+    // str_to_name
+    @Nullable
+    private PyNode strToName(int start, int d) throws ParseException {
+        check(d);
+        int i = start;
+        while (i < s.length() && !isAlpha(s.charAt(i))) {
+            i++;
+        }
+        int nameStart = i;
+        while (i < s.length() && isAlpha(s.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart) {
+            return null;
+        }
+        return name(s.substring(nameStart, i), nameStart, i, d + 1);
+    }
+
+
+    // convert_ops, for the single operator of a BoolOp or AugAssign
+    @Nullable
+    private PyNode convertOp(@Nullable PyNode op, int start, int d) throws ParseException {
+        check(d);
+        String sym = op == null ? null : OPS.get(op.kind);
+        if (sym == null) {
+            return null;
+        }
+        int i = s.indexOf(sym, Math.max(start, 0));
+        if (i < 0) {
+            return null;
+        }
+        return name(sym, i, i + sym.length(), d + 1);
+    }
+
+
+    @NotNull
+    private PyNode name(@NotNull String id, int start, int end, int d) throws ParseException {
+        check(d);
+        PyNode name = new PyNode("Name", 2);
+        name.put("id", id).put("ctx", null);
+        name.start = start;
+        name.end = end;
+
+        // map_line_col
+        int line = Arrays.binarySearch(idxmap, start);
+        line = line >= 0 ? line + 1 : -line - 1;
+        name.lineno = line;
+        name.col = start - idxmap[line - 1];
+        return name;
+    }
+
+
+    private static boolean isAlpha(char c) {
+        return c == '_' || ('0' <= c && c <= '9') || ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+    }
+
+
+    private int mapIdx(int line, int col, int d) throws ParseException {
+        check(d);
+        if (line - 1 >= idxmap.length || line < 1) {
+            throw new ParseException("list index out of range", line);
+        }
+        return idxmap[line - 1] + col;
+    }
+
+
+    // find a sequence in s, returning the start point
+    private int startSeq(@NotNull String pat, int start, int d) throws ParseException {
+        check(d);
+        int i = s.indexOf(pat, Math.max(start, 0));
+        return i < 0 ? s.length() : i;
+    }
+
+
+    // find a sequence in s, returning the end point
+    private int endSeq(@NotNull String pat, int start, int d) throws ParseException {
+        check(d);
+        int i = s.indexOf(pat, Math.max(start, 0));
+        return i < 0 ? s.length() : i + pat.length();
+    }
+
+
+    // find matching close paren from start
+    private int matchParen(char open, char close, int start, int d) throws ParseException {
+        check(d);
+        while (start < s.length() && (start < 0 ? s.charAt(start + s.length()) : s.charAt(start)) != open) {
+            start++;
+        }
+        if (start >= s.length()) {
+            return s.length();
+        }
+
+        int left = 1;
+        int i = start + 1;
+        while (left > 0 && i < s.length()) {
+            char c = i < 0 ? s.charAt(i + s.length()) : s.charAt(i);
+            if (c == open) {
+                left++;
+            } else if (c == close) {
+                left--;
+            }
+            i++;
+        }
+        return i;
+    }
+
+
+    /**
+     * Follows the calls of BinaryEncoder.value in ast2json.py over the tree,
+     * which nests deeper than improve_ast does.
+     */
+    private void encodeDepth(@Nullable Object o, int d) throws ParseException {
+        if (o instanceof PyNode) {
+            PyNode n = (PyNode) o;
+            // node(), then string() and varint() for its kind and field names
+            check(d + 3);
+            for (int i = 0; i < n.size(); i++) {
+                String name = n.name(i);
+                if (!name.equals("ctx") && !name.equals("type_comment")) {
+                    encodeDepth(n.value(i), d + 2);
+                }
+            }
+        } else if (o instanceof List) {
+            check(d + 1);
+            for (Object x : (List<?>) o) {
+                encodeDepth(x, d + 1);
+            }
+        } else if (o != null && !(o instanceof Boolean) && !(o instanceof BigInteger) && !(o instanceof Double)) {
+            check(d + 2);
+        } else {
+            check(d);
+        }
+    }
+
+
+    //-------------------------------------------------------------
+    //                   Python's str() of numbers
+    //-------------------------------------------------------------
+
+    /**
+     * What {@code str()} returns for a number in Python 3 (repr of floats)
+     * or in Python 2 (12 significant digits).
+     */
+    @NotNull
+    static String str(@Nullable Object n, boolean python3) throws ParseException {
+        if (n instanceof BigInteger) {
+            BigInteger i = (BigInteger) n;
+            String digits = i.toString();
+            if (python3 && i.bitLength() > 14000 && i.abs().toString().length() > 4300) {
+                throw new ParseException("Exceeds the limit for integer string conversion", 0);
+            }
+            return digits;
+        } else if (n instanceof Double) {
+            double d = (Double) n;
+            return python3 ? repr(d, true) : format12g(d, true);
+        } else if (n instanceof PyNode.Imaginary) {
+            return complexStr(((PyNode.Imaginary) n).imag, python3);
+        } else {
+            return String.valueOf(n);
+        }
+    }
+
+
+    // str() of a complex number without a real part
+    @NotNull
+    static String complexStr(double imag, boolean python3) {
+        return (python3 ? repr(imag, false) : format12g(imag, false)) + "j";
+    }
+
+
+    // float_repr_style 'short': the shortest digits that read back to d
+    @NotNull
+    private static String repr(double d, boolean addDot0) {
+        if (Double.isNaN(d)) {
+            return "nan";
+        }
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "inf" : "-inf";
+        }
+        if (d == 0) {
+            String zero = (1 / d < 0 ? "-0" : "0");
+            return addDot0 ? zero + ".0" : zero;
+        }
+
+        BigDecimal exact = new BigDecimal(d);
+        BigDecimal shortest = exact;
+        for (int precision = 1; precision <= 17; precision++) {
+            BigDecimal rounded = exact.round(new MathContext(precision, RoundingMode.HALF_EVEN));
+            if (rounded.doubleValue() == d) {
+                shortest = rounded;
+                break;
+            }
+        }
+        return format(shortest, -4, 16, addDot0);
+    }
+
+
+    // '%.12g', with ".0" added to what would look like an integer
+    @NotNull
+    private static String format12g(double d, boolean addDot0) {
+        if (Double.isNaN(d)) {
+            return "nan";
+        }
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "inf" : "-inf";
+        }
+        if (d == 0) {
+            String zero = (1 / d < 0 ? "-0" : "0");
+            return addDot0 ? zero + ".0" : zero;
+        }
+        BigDecimal rounded = new BigDecimal(d).round(new MathContext(12, RoundingMode.HALF_EVEN));
+        return format(rounded, -4, 12, addDot0);
+    }
+
+
+    /**
+     * Formats {@code v} in positional notation if its decimal point position
+     * (the exponent plus one) is above {@code minDecpt} and at most
+     * {@code maxDecpt}, otherwise in exponent notation, without trailing
+     * zeros.
+     */
+    @NotNull
+    private static String format(@NotNull BigDecimal v, int minDecpt, int maxDecpt, boolean addDot0) {
+        BigDecimal stripped = v.stripTrailingZeros();
+        String digits = stripped.unscaledValue().abs().toString();
+        int decpt = digits.length() - stripped.scale();
+        String sign = stripped.signum() < 0 ? "-" : "";
+
+        if (decpt > minDecpt && decpt <= maxDecpt) {
+            String out;
+            if (decpt <= 0) {
+                StringBuilder sb = new StringBuilder("0.");
+                for (int i = 0; i < -decpt; i++) {
+                    sb.append('0');
+                }
+                out = sb.append(digits).toString();
+            } else if (decpt >= digits.length()) {
+                StringBuilder sb = new StringBuilder(digits);
+                for (int i = digits.length(); i < decpt; i++) {
+                    sb.append('0');
+                }
+                if (addDot0) {
+                    sb.append(".0");
+                }
+                out = sb.toString();
+            } else {
+                out = digits.substring(0, decpt) + "." + digits.substring(decpt);
+            }
+            return sign + out;
+        } else {
+            int exp = decpt - 1;
+            String mantissa = digits.length() == 1 ? digits : digits.charAt(0) + "." + digits.substring(1);
+            String e = String.valueOf(Math.abs(exp));
+            return sign + mantissa + "e" + (exp < 0 ? "-" : "+") + (e.length() < 2 ? "0" + e : e);
+        }
+    }
+
+
+    @NotNull
+    private static List<?> list(@Nullable Object o) {
+        return o instanceof List ? (List<?>) o : Collections.emptyList();
+    }
+
+
+    @Nullable
+    private static Object last(@Nullable Object o) throws ParseException {
+        List<?> list = list(o);
+        if (list.isEmpty()) {
+            throw new ParseException("list index out of range", 0);
+        }
+        return list.get(list.size() - 1);
+    }
+}
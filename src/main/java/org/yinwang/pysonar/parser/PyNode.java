@@ -0,0 +1,200 @@
+package org.yinwang.pysonar.parser;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+
+/**
+ * One object of the tree that Python's ast module would build for the same
+ * source: its type name, the fields Python gives it and, for the types that
+ * have a position, its lineno and col_offset.  {@link Positions} adds the
+ * {@code start} and {@code end} offsets that ast2json.py computes, and the
+ * extra Name fields it adds (name_node, attr_name, op_node). <p>
+ * Field values are {@code null}, Boolean, String, {@link Bytes}, BigInteger,
+ * Double, {@link Imaginary}, {@link #ELLIPSIS}, a PyNode or a List of these.
+ */
+public class PyNode {
+
+    /**
+     * Marks a position the node doesn't have.
+     */
+    public static final int NONE = Integer.MIN_VALUE;
+
+    /**
+     * The value of {@code ...} in Python 3.
+     */
+    public static final Object ELLIPSIS = new Object() {
+        @NotNull
+        @Override
+        public String toString() {
+            return "Ellipsis";
+        }
+    };
+
+
+    /**
+     * The value of a bytes literal in Python 3.  The bytes are kept as the
+     * characters U+0000 to U+00FF.
+     */
+    public static class Bytes {
+        @NotNull
+        public final String latin1;
+
+
+        Bytes(@NotNull String latin1) {
+            this.latin1 = latin1;
+        }
+
+
+        // repr(), which is also its str()
+        @NotNull
+        @Override
+        public String toString() {
+            char quote = latin1.indexOf('\'') >= 0 && latin1.indexOf('"') < 0 ? '"' : '\'';
+            StringBuilder sb = new StringBuilder("b").append(quote);
+            for (int i = 0; i < latin1.length(); i++) {
+                char c = latin1.charAt(i);
+                if (c == quote || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else if (c < ' ' || c >= 0x7f) {
+                    sb.append(String.format("\\x%02x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append(quote).toString();
+        }
+    }
+
+
+    /**
+     * The value of an imaginary literal such as {@code 1.5j}.
+     */
+    public static class Imaginary {
+        public final double imag;
+        private final boolean python3;
+
+
+        Imaginary(double imag, boolean python3) {
+            this.imag = imag;
+            this.python3 = python3;
+        }
+
+
+        // str() in the Python version that parsed it
+        @NotNull
+        @Override
+        public String toString() {
+            return Positions.complexStr(imag, python3);
+        }
+    }
+
+
+    @NotNull
+    public final String kind;
+    public int lineno = NONE;
+    public int col = NONE;
+    public int start = NONE;
+    public int end = NONE;
+
+    // written in parentheses, which the parser needs to know for a few checks
+    boolean parenthesized = false;
+
+    private int size = 0;
+    private String[] names;
+    private Object[] values;
+
+
+    PyNode(@NotNull String kind, int fields) {
+        this.kind = kind;
+        names = new String[Math.max(1, fields)];
+        values = new Object[Math.max(1, fields)];
+    }
+
+
+    PyNode(@NotNull String kind, @NotNull Token at, int fields) {
+        this(kind, fields);
+        lineno = at.line;
+        col = at.col;
+    }
+
+
+    /**
+     * Sets the field {@code name}, adding it if the node doesn't have it.
+     */
+    @NotNull
+    public PyNode put(@NotNull String name, @Nullable Object value) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                values[i] = value;
+                return this;
+            }
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+
+    @Nullable
+    public Object get(@NotNull String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+
+    public boolean has(@NotNull String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    @NotNull
+    public String name(int i) {
+        return names[i];
+    }
+
+
+    @Nullable
+    public Object value(int i) {
+        return values[i];
+    }
+
+
+    public boolean hasPosition() {
+        return lineno != NONE;
+    }
+
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "(" + kind + ":" + lineno + ":" + col + ")";
+    }
+}
@@ -0,0 +1,63 @@
+package org.yinwang.pysonar.parser;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * A token of Python source.  {@code line} and {@code col} are what CPython's
+ * tokenizer reports: a 1-based line and the offset into that line in bytes
+ * (UTF-8 for Python 3), which is what ends up in the AST's lineno and
+ * col_offset.  {@code pos} and {@code endPos} are offsets into the source text.
+ */
+class Token {
+
+    static final int NAME = 0;
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int OP = 3;
+    static final int NEWLINE = 4;
+    static final int INDENT = 5;
+    static final int DEDENT = 6;
+    static final int END = 7;
+
+    final int type;
+    @NotNull
+    final String text;
+    final int pos;
+    final int endPos;
+    final int line;
+    final int col;
+
+
+    Token(int type, @NotNull String text, int pos, int endPos, int line, int col) {
+        this.type = type;
+        this.text = text;
+        this.pos = pos;
+        this.endPos = endPos;
+        this.line = line;
+        this.col = col;
+    }
+
+
+    boolean is(int type, @NotNull String text) {
+        return this.type == type && this.text.equals(text);
+    }
+
+
+    @NotNull
+    @Override
+    public String toString() {
+        switch (type) {
+            case NEWLINE:
+                return "NEWLINE";
+            case INDENT:
+                return "INDENT";
+            case DEDENT:
+                return "DEDENT";
+            case END:
+                return "end of file";
+            default:
+                return "'" + text + "'";
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.yinwang.pysonar.types;
 
 import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar.TypeStack;
 
 
 public class DictType extends Type {
@@ -11,15 +12,15 @@ public class DictType extends Type {
 
 
     public DictType() {
-        this(Indexer.idx.builtins.unknown, Indexer.idx.builtins.unknown);
+        this(Indexer.idx().builtins.unknown, Indexer.idx().builtins.unknown);
     }
 
 
     public DictType(Type key0, Type val0) {
         keyType = key0;
         valueType = val0;
-        getTable().addSuper(Indexer.idx.builtins.BaseDict.getTable());
-        getTable().setPath(Indexer.idx.builtins.BaseDict.getTable().getPath());
+        getTable().addSuper(Indexer.idx().builtins.BaseDict.getTable());
+        getTable().setPath(Indexer.idx().builtins.BaseDict.getTable().getPath());
     }
 
 
@@ -41,6 +42,7 @@ public class DictType extends Type {
 
     @Override
     public boolean equals(Object other) {
+        TypeStack typeStack = typeStack();
         if (typeStack.contains(this, other)) {
             return true;
         } else if (other instanceof DictType) {
@@ -35,8 +35,8 @@ public class FunType extends Type {
 
     public FunType(Type from, Type to) {
         addMapping(from, to);
-        getTable().addSuper(Indexer.idx.builtins.BaseFunction.getTable());
-        getTable().setPath(Indexer.idx.builtins.BaseFunction.getTable().getPath());
+        getTable().addSuper(Indexer.idx().builtins.BaseFunction.getTable());
+        getTable().setPath(Indexer.idx().builtins.BaseFunction.getTable().getPath());
     }
 
 
@@ -63,7 +63,7 @@ public class FunType extends Type {
         if (!arrows.isEmpty()) {
             return arrows.values().iterator().next();
         } else {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         }
     }
 
@@ -129,7 +129,7 @@ public class FunType extends Type {
     static Type removeNoneReturn(@NotNull Type toType) {
         if (toType.isUnionType()) {
             Set<Type> types = new HashSet<>(toType.asUnionType().getTypes());
-            types.remove(Indexer.idx.builtins.Cont);
+            types.remove(Indexer.idx().builtins.Cont);
             return UnionType.newUnion(types);
         } else {
             return toType;
@@ -223,7 +223,7 @@ public class FunType extends Type {
 
                 if (!seen.contains(as)) {
                     if (i != 0) {
-                        if (Indexer.idx.multilineFunType) {
+                        if (Indexer.idx().multilineFunType) {
                             sb.append("\n| ");
                         } else {
                             sb.append(" | ");
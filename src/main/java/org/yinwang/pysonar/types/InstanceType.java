@@ -14,7 +14,7 @@ public class InstanceType extends Type {
 
 
     public InstanceType() {
-        classType = Indexer.idx.builtins.unknown;
+        classType = Indexer.idx().builtins.unknown;
     }
 
 
@@ -2,6 +2,7 @@ package org.yinwang.pysonar.types;
 
 import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar.TypeStack;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -17,14 +18,14 @@ public class ListType extends Type {
 
 
     public ListType() {
-        this(Indexer.idx.builtins.unknown);
+        this(Indexer.idx().builtins.unknown);
     }
 
 
     public ListType(Type elt0) {
         eltType = elt0;
-        getTable().addSuper(Indexer.idx.builtins.BaseList.getTable());
-        getTable().setPath(Indexer.idx.builtins.BaseList.getTable().getPath());
+        getTable().addSuper(Indexer.idx().builtins.BaseList.getTable());
+        getTable().setPath(Indexer.idx().builtins.BaseList.getTable().getPath());
     }
 
 
@@ -72,6 +73,7 @@ public class ListType extends Type {
 
     @Override
     public boolean equals(Object other) {
+        TypeStack typeStack = typeStack();
         if (typeStack.contains(this, other)) {
             return true;
         } else if (other instanceof ListType) {
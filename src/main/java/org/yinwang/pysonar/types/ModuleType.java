@@ -34,8 +34,8 @@ public class ModuleType extends Type {
         getTable().setType(this);
 
         // null during bootstrapping of built-in types
-        if (Indexer.idx.builtins != null) {
-            getTable().addSuper(Indexer.idx.builtins.BaseModule.getTable());
+        if (Indexer.idx().builtins != null) {
+            getTable().addSuper(Indexer.idx().builtins.BaseModule.getTable());
         }
     }
 
@@ -2,6 +2,7 @@ package org.yinwang.pysonar.types;
 
 import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar.TypeStack;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -15,8 +16,8 @@ public class TupleType extends Type {
 
     public TupleType() {
         this.eltTypes = new ArrayList<>();
-        getTable().addSuper(Indexer.idx.builtins.BaseTuple.getTable());
-        getTable().setPath(Indexer.idx.builtins.BaseTuple.getTable().getPath());
+        getTable().addSuper(Indexer.idx().builtins.BaseTuple.getTable());
+        getTable().setPath(Indexer.idx().builtins.BaseTuple.getTable().getPath());
     }
 
 
@@ -77,6 +78,7 @@ public class TupleType extends Type {
 
     @Override
     public boolean equals(Object other) {
+        TypeStack typeStack = typeStack();
         if (typeStack.contains(this, other)) {
             return true;
         } else if (other instanceof TupleType) {
@@ -19,8 +19,11 @@ public abstract class Type {
     public Scope table;
 
 
+    // that of the indexer analyzing on this thread, for parallel analysis
     @NotNull
-    protected static TypeStack typeStack = new TypeStack();
+    protected static TypeStack typeStack() {
+        return Indexer.idx().typeStack;
+    }
 
 
     public Type() {
@@ -46,7 +49,7 @@ public abstract class Type {
      * (i.e., C, Java, C# or some other host language.)
      */
     public boolean isNative() {
-        return Indexer.idx.builtins.isNative(this);
+        return Indexer.idx().builtins.isNative(this);
     }
 
 
@@ -81,14 +84,12 @@ public abstract class Type {
 
 
     public boolean isNumType() {
-        return (this == Indexer.idx.builtins.BaseNum ||
-                this == Indexer.idx.builtins.BaseFloat ||
-                this == Indexer.idx.builtins.BaseComplex);
+        return Indexer.idx().builtins.isNum(this);
     }
 
 
     public boolean isStrType() {
-        return this == Indexer.idx.builtins.BaseStr;
+        return Indexer.idx().builtins.isStr(this);
     }
 
 
@@ -103,7 +104,7 @@ public abstract class Type {
 
 
     public boolean isUnknownType() {
-        return this == Indexer.idx.builtins.unknown;
+        return Indexer.idx().builtins.isUnknown(this);
     }
 
 
@@ -3,6 +3,7 @@ package org.yinwang.pysonar.types;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.Indexer;
+import org.yinwang.pysonar.TypeStack;
 
 import java.util.Collection;
 import java.util.HashSet;
@@ -50,7 +51,7 @@ public class UnionType extends Type {
             types.remove(t2);
             return UnionType.newUnion(types);
         } else if (t1 == t2) {
-            return Indexer.idx.builtins.unknown;
+            return Indexer.idx().builtins.unknown;
         } else {
             return t1;
         }
@@ -59,7 +60,7 @@ public class UnionType extends Type {
 
     @NotNull
     static public Type newUnion(@NotNull Collection<Type> types) {
-        Type t = Indexer.idx.builtins.unknown;
+        Type t = Indexer.idx().builtins.unknown;
         for (Type nt : types) {
             t = union(t, nt);
         }
@@ -114,7 +115,7 @@ public class UnionType extends Type {
     @Nullable
     public Type firstUseful() {
         for (Type type : types) {
-            if (!type.isUnknownType() && type != Indexer.idx.builtins.None) {
+            if (!type.isUnknownType() && !Indexer.idx().builtins.isNone(type)) {
                 return type;
             }
         }
@@ -124,6 +125,7 @@ public class UnionType extends Type {
 
     @Override
     public boolean equals(Object other) {
+        TypeStack typeStack = typeStack();
         if (typeStack.contains(this, other)) {
             return true;
         } else if (other instanceof UnionType) {
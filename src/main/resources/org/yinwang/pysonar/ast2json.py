@@ -1,6 +1,7 @@
 import ast
 import codecs
 import re
+import struct
 import sys
 
 from json import JSONEncoder
@@ -21,15 +22,19 @@ class AstEncoder(JSONEncoder):
             return str(o)
 
 
+def encode_file(filename):
+    if is_python3:
+        encoder = AstEncoder()
+    else:
+        encoder = AstEncoder(encoding="latin1")
+
+    tree = parse_file(filename)
+    return encoder.encode(tree)
+
+
 def parse_dump(filename, output, end_mark):
     try:
-        if is_python3:
-            encoder = AstEncoder()
-        else:
-            encoder = AstEncoder(encoding="latin1")
-
-        tree = parse_file(filename)
-        encoded = encoder.encode(tree)
+        encoded = encode_file(filename)
         f = open(output, "w")
         f.write(encoded)
         f.close()
@@ -39,6 +44,159 @@ def parse_dump(filename, output, end_mark):
         f.close()
 
 
+#-------------------------------------------------------------
+#                   binary wire format
+#-------------------------------------------------------------
+
+# A more compact alternative to the JSON above, decoded by BinaryAstBuilder on
+# the Java side. A frame is the version byte followed by one value:
+#
+#   value := NONE | TRUE | FALSE
+#          | NUM  <8-byte big-endian double>
+#          | STR  <varint length> <utf-8 bytes>    defines the next string index
+#          | SREF <varint index>                  refers to an earlier STR
+#          | LIST <varint count> value*
+#          | NODE string(kind) <zigzag start> <zigzag end>
+#                 <varint count> (string(field) value)*
+#
+# Strings are numbered in order of first appearance, so node kinds, field
+# names and identifiers go over the wire once per file. Fields the Java side
+# never reads are left out.
+
+BINARY_VERSION = 1
+
+T_NONE, T_TRUE, T_FALSE, T_NUM, T_STR, T_SREF, T_LIST, T_NODE = range(8)
+
+skipped_fields = frozenset(['node_start', 'node_end', 'ast_type', 'lineno',
+                            'col_offset', 'end_lineno', 'end_col_offset',
+                            'ctx', 'type_comment', '_fields', 'extra_attr',
+                            'opsName', 'vararg_name', 'kwarg_name'])
+
+if is_python3:
+    number_types = (int, float)
+    string_types = (str,)
+else:
+    number_types = (int, long, float)
+    string_types = (str, unicode)
+
+
+class BinaryEncoder(object):
+    def __init__(self):
+        self.out = bytearray()
+        self.strings = {}
+
+    def encode(self, tree):
+        self.out.append(BINARY_VERSION)
+        self.value(tree)
+        return bytes(self.out)
+
+    def varint(self, n):
+        out = self.out
+        while n > 0x7f:
+            out.append((n & 0x7f) | 0x80)
+            n >>= 7
+        out.append(n)
+
+    def zigzag(self, n):
+        self.varint(n << 1 if n >= 0 else ((-n) << 1) - 1)
+
+    def string(self, s):
+        if not is_python3 and isinstance(s, str):
+            s = s.decode('latin1')
+        i = self.strings.get(s)
+        if i is not None:
+            self.out.append(T_SREF)
+            self.varint(i)
+        else:
+            self.strings[s] = len(self.strings)
+            if is_python3:
+                b = s.encode('utf-8', 'surrogatepass')
+            else:
+                b = s.encode('utf-8')
+            self.out.append(T_STR)
+            self.varint(len(b))
+            self.out.extend(b)
+
+    def value(self, o):
+        if o is None:
+            self.out.append(T_NONE)
+        elif o is True:
+            self.out.append(T_TRUE)
+        elif o is False:
+            self.out.append(T_FALSE)
+        elif isinstance(o, AST):
+            self.node(o)
+        elif isinstance(o, (list, tuple)):
+            self.out.append(T_LIST)
+            self.varint(len(o))
+            for x in o:
+                self.value(x)
+        elif isinstance(o, string_types):
+            self.string(o)
+        elif isinstance(o, number_types):
+            try:
+                d = float(o)
+            except OverflowError:
+                d = float('inf')
+            self.out.append(T_NUM)
+            self.out.extend(struct.pack('>d', d))
+        else:
+            self.string(str(o))
+
+    def node(self, o):
+        d = o.__dict__
+        self.out.append(T_NODE)
+        self.string(o.__class__.__name__)
+        self.zigzag(d.get('node_start', 0))
+        self.zigzag(d.get('node_end', 1))
+        fields = [k for k in d if k not in skipped_fields]
+        self.varint(len(fields))
+        for k in fields:
+            self.string(k)
+            self.value(d[k])
+
+
+def encode_file_binary(filename):
+    return BinaryEncoder().encode(parse_file(filename))
+
+
+# Pipe transport: read one filename per line from stdin and answer each with
+# a frame on stdout, a 4-byte big-endian length followed by that many bytes of
+# JSON, or of the binary format with --binary. A zero length means the file
+# could not be parsed.
+def serve_pipe(binary):
+    if is_python3:
+        import io
+        out = sys.stdout.buffer
+        inp = io.TextIOWrapper(sys.stdin.buffer, encoding='utf-8')
+    else:
+        if sys.platform == 'win32':
+            import msvcrt
+            import os
+            msvcrt.setmode(sys.stdout.fileno(), os.O_BINARY)
+        out = sys.stdout
+        inp = sys.stdin
+
+    # keep stray prints (warnings from improve_ast) out of the frame stream
+    sys.stdout = sys.stderr
+
+    while True:
+        line = inp.readline()
+        if not line:
+            break
+        filename = line.rstrip('\r\n')
+        try:
+            if binary:
+                frame = encode_file_binary(filename)
+            else:
+                frame = encode_file(filename).encode('utf-8')
+        except Exception:
+            frame = b''
+        out.write(struct.pack('>i', len(frame)))
+        out.write(frame)
+        out.flush()
+
+
 def parse_file(filename):
     f = open(filename)
     lines = f.read()
@@ -576,3 +734,7 @@ def is_alpha(c):
             or ('0' <= c <= '9')
             or ('a' <= c <= 'z')
             or ('A' <= c <= 'Z'))
+
+
+if __name__ == '__main__' and '--pipe' in sys.argv[1:]:
+    serve_pipe('--binary' in sys.argv[1:])
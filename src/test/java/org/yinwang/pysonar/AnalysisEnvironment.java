@@ -0,0 +1,79 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Runs a test with the in-process parser, so that it doesn't depend on a
+ * Python installation, and with a temp directory of its own, so that the AST
+ * cache and the other files pysonar keeps there don't mix with those of normal
+ * runs.  The system properties it sets are restored after the test.
+ */
+public class AnalysisEnvironment extends ExternalResource {
+
+    private final TemporaryFolder tmp = new TemporaryFolder();
+    private final Map<String, String> saved = new LinkedHashMap<>();
+
+
+    @Override
+    protected void before() throws Throwable {
+        tmp.create();
+        setProperty("java.io.tmpdir", tmp.getRoot().getPath());
+        setProperty("pysonar.parser", "java");
+    }
+
+
+    @Override
+    protected void after() {
+        for (Map.Entry<String, String> e : saved.entrySet()) {
+            if (e.getValue() == null) {
+                System.clearProperty(e.getKey());
+            } else {
+                System.setProperty(e.getKey(), e.getValue());
+            }
+        }
+        saved.clear();
+        tmp.delete();
+    }
+
+
+    /**
+     * Sets a system property until the end of the test.
+     */
+    public void setProperty(@NotNull String key, @Nullable String value) {
+        if (!saved.containsKey(key)) {
+            saved.put(key, System.getProperty(key));
+        }
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+
+    /**
+     * @return a new directory under the temp directory of the test
+     */
+    @NotNull
+    public File newFolder(@NotNull String name) throws IOException {
+        return tmp.newFolder(name);
+    }
+
+
+    /**
+     * @return the directory of the on-disk AST cache of the test
+     */
+    @NotNull
+    public File getCacheDir() {
+        return new File(Indexer.getDefaultCacheDir());
+    }
+}
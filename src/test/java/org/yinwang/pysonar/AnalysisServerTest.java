@@ -0,0 +1,221 @@
+package org.yinwang.pysonar;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Drives an {@link AnalysisServer} through {@link AnalysisServer#serve} from a
+ * client on the other end of a pair of pipes, against the files in tests/.
+ */
+public class AnalysisServerTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonNodeFactory nodes = JsonNodeFactory.instance;
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private String testsDir;
+    private AnalysisServer server;
+    private ExecutorService thread;
+    private Future<Boolean> session;
+    private Writer requests;
+    private BufferedReader responses;
+    private int nextId = 1;
+
+
+    @Before
+    public void startServer() throws IOException {
+        testsDir = _.unifyPath(new File("tests"));
+        server = new AnalysisServer();
+
+        final PipedReader serverIn = new PipedReader();
+        requests = new PipedWriter(serverIn);
+        final PipedWriter serverOut = new PipedWriter();
+        responses = new BufferedReader(new PipedReader(serverOut));
+
+        thread = Executors.newSingleThreadExecutor();
+        session = thread.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                try {
+                    return server.serve(serverIn, serverOut);
+                }
+                finally {
+                    serverOut.close();
+                }
+            }
+        });
+    }
+
+
+    @After
+    public void stopServer() throws Exception {
+        requests.close();
+        thread.shutdownNow();
+        thread.awaitTermination(10, TimeUnit.SECONDS);
+        server.close();
+    }
+
+
+    @Test
+    public void indexesAgainWithTheSameResults() throws Exception {
+        JsonNode first = call("index", params("path", testsDir)).get("result");
+        assertTrue(first.get("files").asInt() > 0);
+        assertTrue(first.get("references").asInt() > 0);
+        assertConstructorTyped();
+
+        // the ASTs of the first analysis must not leak into the second
+        JsonNode second = call("index", params("path", testsDir)).get("result");
+        for (String field : new String[]{"files", "references", "problems", "failedToParse"}) {
+            assertEquals(field, first.get(field), second.get(field));
+        }
+        assertConstructorTyped();
+        assertEquals(1, fCallDefinition().size());
+    }
+
+
+    @Test
+    public void findsDefinitionsAndReferences() throws Exception {
+        call("index", params("path", testsDir));
+
+        JsonNode defs = fCallDefinition();
+        assertEquals(1, defs.size());
+        JsonNode def = defs.get(0);
+        assertTrue(def.get("qname").asText().endsWith(".union1.f"));
+        assertEquals("FUNCTION", def.get("kind").asText());
+        assertEquals(union1(), def.get("file").asText());
+        assertEquals(4, def.get("start").asInt());
+
+        ObjectNode p = params("file", union1());
+        p.put("offset", def.get("start").asInt());
+        JsonNode refs = call("references", p).get("result");
+        assertTrue(refs.size() > 1);
+        for (JsonNode ref : refs) {
+            assertEquals(union1(), ref.get("file").asText());
+        }
+
+        JsonNode types = call("typeAt", p).get("result");
+        assertTrue(types.get(0).get("isDef").asBoolean());
+
+        assertConstructorTyped();
+    }
+
+
+    @Test
+    public void reportsErrors() throws Exception {
+        JsonNode notIndexed = call("definition", params("file", union1())).get("error");
+        assertEquals(-32000, notIndexed.get("code").asInt());
+
+        JsonNode noMethod = call("noSuchMethod", nodes.objectNode()).get("error");
+        assertEquals(-32601, noMethod.get("code").asInt());
+
+        call("index", params("path", testsDir));
+        JsonNode noOffset = call("definition", params("file", union1())).get("error");
+        assertEquals(-32602, noOffset.get("code").asInt());
+    }
+
+
+    @Test
+    public void keepsTheIndexWhenIndexingFails() throws Exception {
+        call("index", params("path", testsDir));
+
+        // no such path can be walked
+        JsonNode failed = call("index", params("path", testsDir + "/\u0000")).get("error");
+        assertEquals(-32603, failed.get("code").asInt());
+
+        assertEquals(1, fCallDefinition().size());
+        assertConstructorTyped();
+    }
+
+
+    @Test
+    public void endsWithShutdown() throws Exception {
+        JsonNode response = call("shutdown", nodes.objectNode());
+        assertTrue(response.get("result").isNull());
+        assertTrue(session.get(10, TimeUnit.SECONDS));
+    }
+
+
+    /**
+     * The type of a function comes from analyzing its body when it is called,
+     * which doesn't happen if the analysis takes ASTs that an earlier one has
+     * already marked as called.
+     */
+    private void assertConstructorTyped() throws Exception {
+        String dice = _.unifyPath(new File(testsDir, "dice.py"));
+        ObjectNode p = params("file", dice);
+        p.put("offset", _.readFile(dice).indexOf("__init__"));
+        JsonNode bindings = call("typeAt", p).get("result").get(0).get("bindings");
+        assertEquals("Dice -> None", bindings.get(0).get("type").asText());
+    }
+
+
+    // the definitions of f at the call f(1) in tests/union1.py
+    @NotNull
+    private JsonNode fCallDefinition() throws Exception {
+        String source = _.readFile(union1());
+        int offset = source.indexOf("f(1)");
+        assertFalse(offset < 0);
+
+        ObjectNode p = params("file", union1());
+        p.put("offset", offset);
+        return call("definition", p).get("result");
+    }
+
+
+    @NotNull
+    private String union1() {
+        return _.unifyPath(new File(testsDir, "union1.py"));
+    }
+
+
+    @NotNull
+    private static ObjectNode params(@NotNull String name, @NotNull String value) {
+        ObjectNode params = nodes.objectNode();
+        params.put(name, value);
+        return params;
+    }
+
+
+    @NotNull
+    private JsonNode call(@NotNull String method, @NotNull JsonNode params) throws IOException {
+        ObjectNode request = nodes.objectNode();
+        request.put("jsonrpc", "2.0");
+        request.put("id", nextId);
+        request.put("method", method);
+        request.put("params", params);
+        requests.write(mapper.writeValueAsString(request) + "\n");
+        requests.flush();
+
+        String line = responses.readLine();
+        assertTrue("no response to " + method, line != null);
+        JsonNode response = mapper.readTree(line);
+        assertEquals(nextId++, response.get("id").asInt());
+        return response;
+    }
+}
@@ -0,0 +1,159 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Encodes the trees of the files in tests/ with {@link AstCodec} and checks
+ * that decoding gives back every field of every node.
+ */
+public class AstCodecTest {
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private Indexer idx;
+
+
+    @Before
+    public void createIndexer() {
+        idx = new Indexer();
+    }
+
+
+    @After
+    public void closeIndexer() {
+        idx.close();
+    }
+
+
+    @Test
+    public void decodesWhatItEncodes() throws Exception {
+        int files = 0;
+        for (File f : new File("tests").listFiles()) {
+            if (f.getName().endsWith(".py")) {
+                Module parsed = parse(f);
+                byte[] data = AstCodec.encode(parsed);
+                Module decoded = AstCodec.decode(data);
+                assertEquals(f.getName(), describe(parsed), describe(decoded));
+                files++;
+            }
+        }
+        assertTrue(files > 0);
+    }
+
+
+    @Test
+    public void decodesASlice() throws Exception {
+        Module parsed = parse(new File("tests/dice.py"));
+        byte[] data = AstCodec.encode(parsed);
+
+        // as in a pack, where the file is one of many in a mapped buffer
+        ByteBuffer buf = ByteBuffer.allocate(data.length + 20);
+        buf.position(10);
+        buf.put(data);
+        buf.position(10);
+        buf.limit(10 + data.length);
+        ByteBuffer slice = buf.slice();
+
+        assertEquals(describe(parsed), describe(AstCodec.decode(slice)));
+        assertEquals(0, slice.position());
+    }
+
+
+    @Test
+    public void rejectsOtherData() throws Exception {
+        byte[] data = AstCodec.encode(parse(new File("tests/dice.py")));
+
+        assertRejected(Arrays.copyOf(data, 3));
+
+        byte[] otherVersion = data.clone();
+        otherVersion[5] = (byte) (AstCodec.VERSION + 1);
+        assertRejected(otherVersion);
+
+        assertRejected(Arrays.copyOf(data, data.length / 2));
+    }
+
+
+    @NotNull
+    private static Module parse(@NotNull File f) {
+        Node tree = new InProcessParser().parseFile(_.unifyPath(f));
+        assertNotNull(f.getName(), tree);
+        return (Module) tree;
+    }
+
+
+    private static void assertRejected(@NotNull byte[] data) {
+        try {
+            AstCodec.decode(data);
+            fail("decoded " + data.length + " bytes");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Every field of the nodes of tree in preorder.  Parents aren't written, so
+     * instead of comparing them this checks that each child's parent is the
+     * node that holds it.
+     */
+    @NotNull
+    private static List<String> describe(@NotNull Node tree) throws IllegalAccessException {
+        List<String> out = new ArrayList<>();
+        describe(tree, null, out);
+        return out;
+    }
+
+
+    private static void describe(@Nullable Object value, @Nullable Node holder, @NotNull List<String> out)
+            throws IllegalAccessException
+    {
+        if (value instanceof Node) {
+            Node n = (Node) value;
+            if (holder != null) {
+                assertSame(n.getClass().getSimpleName() + " at " + n.start, holder, n.getParent());
+            }
+            out.add(n.getClass().getSimpleName() + " " + n.start + "-" + n.end);
+            for (Class<?> c = n.getClass(); c != Node.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        out.add("." + field.getName());
+                        describe(field.get(n), n, out);
+                    }
+                }
+            }
+        } else if (value instanceof List) {
+            out.add("[" + ((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                describe(element, holder, out);
+            }
+        } else {
+            out.add(String.valueOf(value));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Writes entries into an {@link AstPack}, closes it and checks what opening
+ * the directory again finds, with and without the index.
+ */
+public class AstPackTest {
+
+    private static final long NO_LIMIT = Long.MAX_VALUE;
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private File dir;
+
+
+    @Before
+    public void createDir() throws IOException {
+        dir = env.newFolder("asts");
+    }
+
+
+    @Test
+    public void findsEntriesAfterReopening() throws IOException {
+        AstPack pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        assertTrue(pack.isWritable());
+        pack.put("k1", "/src/a.py", bytes("first"), 120);
+        pack.put("k2", "/src/b.py", bytes("second"), 0);
+        assertArrayEquals(bytes("first"), read(pack, "k1"));
+        pack.close();
+
+        pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        try {
+            assertEquals(Arrays.asList("k1", "k2"), pack.getKeys());
+            assertArrayEquals(bytes("first"), read(pack, "k1"));
+            assertArrayEquals(bytes("second"), read(pack, "k2"));
+            assertEquals("/src/a.py", pack.getPath("k1"));
+            assertEquals(120, pack.getParseMicros("k1"));
+            assertEquals(0, pack.getParseMicros("k2"));
+            assertNull(pack.get("k3"));
+            assertNull(pack.getPath("k3"));
+        }
+        finally {
+            pack.close();
+        }
+    }
+
+
+    @Test
+    public void keepsTheNewestEntryOfAPath() throws IOException {
+        AstPack pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        pack.put("old", "/src/a.py", bytes("before the edit"), 0);
+        pack.put("new", "/src/a.py", bytes("after the edit"), 0);
+        pack.put("new", "/src/a.py", bytes("not written twice"), 0);
+        assertNull(pack.get("old"));
+        pack.close();
+
+        pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        try {
+            assertEquals(Collections.singletonList("new"), pack.getKeys());
+            assertArrayEquals(bytes("after the edit"), read(pack, "new"));
+        }
+        finally {
+            pack.close();
+        }
+    }
+
+
+    @Test
+    public void recoversWhatTheIndexMisses() throws IOException {
+        AstPack pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        pack.put("k1", "/src/a.py", bytes("first"), 0);
+        pack.put("k2", "/src/b.py", bytes("second"), 0);
+        pack.close();
+
+        // as after a crash before the index was written, with the last record torn
+        assertTrue(new File(dir, "asts.idx").delete());
+        File packFile = new File(dir, "asts-0.pack");
+        long whole = packFile.length();
+        RandomAccessFile f = new RandomAccessFile(packFile, "rw");
+        try {
+            f.setLength(whole - 3);
+        }
+        finally {
+            f.close();
+        }
+
+        pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        try {
+            assertEquals(Collections.singletonList("k1"), pack.getKeys());
+            assertArrayEquals(bytes("first"), read(pack, "k1"));
+            assertEquals("/src/a.py", pack.getPath("k1"));
+            assertNull(pack.get("k2"));
+            assertTrue(packFile.length() < whole - 3);
+        }
+        finally {
+            pack.close();
+        }
+    }
+
+
+    @Test
+    public void onlyReadsADirectoryInUse() throws IOException {
+        AstPack writer = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        writer.put("k1", "/src/a.py", bytes("first"), 0);
+        writer.close();
+
+        writer = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        try {
+            AstPack reader = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+            try {
+                assertFalse(reader.isWritable());
+                assertArrayEquals(bytes("first"), read(reader, "k1"));
+                reader.put("k2", "/src/b.py", bytes("second"), 0);
+                assertNull(reader.get("k2"));
+            }
+            finally {
+                reader.close();
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+
+    @Test
+    public void dropsWhatIsOverTheSizeLimit() throws IOException {
+        AstPack pack = new AstPack(dir, NO_LIMIT, NO_LIMIT);
+        byte[] data = new byte[1000];
+        pack.put("k1", "/src/a.py", data, 0);
+        pack.put("k2", "/src/b.py", data, 0);
+        pack.put("k3", "/src/c.py", data, 0);
+        pack.close();
+
+        pack = new AstPack(dir, 2500, NO_LIMIT);
+        try {
+            assertEquals(2, pack.getEntryCount());
+            assertTrue(pack.getSize() <= 2500);
+            assertArrayEquals(data, read(pack, pack.getKeys().get(0)));
+        }
+        finally {
+            pack.close();
+        }
+    }
+
+
+    @NotNull
+    private static byte[] read(@NotNull AstPack pack, @NotNull String key) throws IOException {
+        ByteBuffer buf = pack.get(key);
+        assertTrue("no entry " + key, buf != null);
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+
+
+    @NotNull
+    private static byte[] bytes(@NotNull String s) {
+        return s.getBytes(_.UTF_8);
+    }
+}
@@ -0,0 +1,171 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.yinwang.pysonar.ast.GenericNodeVisitor;
+import org.yinwang.pysonar.ast.Name;
+import org.yinwang.pysonar.ast.Node;
+import org.yinwang.pysonar.parser.ParseException;
+import org.yinwang.pysonar.parser.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+
+/**
+ * Parses with {@link Parser} and {@link InProcessParser}, and, where CPython is
+ * installed, checks that the names are those {@link PythonParser} finds.
+ */
+public class InProcessParserTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Set<String> CONSTANTS = new HashSet<>(Arrays.asList("True", "False", "None"));
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private Indexer idx;
+
+
+    @Before
+    public void createIndexer() {
+        idx = new Indexer();
+    }
+
+
+    @After
+    public void closeIndexer() {
+        idx.close();
+    }
+
+
+    @Test
+    public void parsesEachDialectWithItsGrammar() throws ParseException {
+        assertNotNull(Parser.parse("print x\n".getBytes(UTF8), false));
+        assertRejected("print x\n", true);
+
+        assertNotNull(Parser.parse("print(x, end='')\n".getBytes(UTF8), true));
+        assertRejected("print(x, end='')\n", false);
+    }
+
+
+    @Test
+    public void namesAreAtTheirOffsets() throws Exception {
+        String file = _.unifyPath(new File("tests/dice.py"));
+        String source = _.readFile(file);
+        Node tree = new InProcessParser().parseFile(file);
+        assertNotNull(tree);
+
+        int names = 0;
+        for (Node n : preorder(tree)) {
+            if (n instanceof Name && n.start >= 0) {
+                assertEquals(((Name) n).id, source.substring(n.start, n.end));
+                names++;
+            }
+        }
+        assertTrue(names > 0);
+    }
+
+
+    @Test
+    public void findsTheNamesOfCPython() {
+        assumeTrue(runs("python3"));
+        env.setProperty("pysonar.parser", "python");
+
+        AstParser java = new InProcessParser();
+        AstParser cpython = new PythonParser();
+        try {
+            int compared = 0;
+            for (File f : new File("tests").listFiles()) {
+                if (!f.getName().endsWith(".py")) {
+                    continue;
+                }
+                String file = _.unifyPath(f);
+                Node expected = cpython.parseFile(file);
+                Node actual = java.parseFile(file);
+                if (expected != null) {
+                    assertNotNull(file, actual);
+                    assertEquals(file, names(expected), names(actual));
+                    compared++;
+                }
+            }
+            assertTrue(compared > 0);
+        }
+        finally {
+            cpython.close();
+            java.close();
+        }
+    }
+
+
+    private static void assertRejected(@NotNull String source, boolean python3) {
+        try {
+            Parser.parse(source.getBytes(UTF8), python3);
+            fail((python3 ? "Python 3" : "Python 2") + " parsed " + source);
+        }
+        catch (ParseException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * The names in tree in preorder, each with its start. The ends and the other
+     * nodes can't be compared: CPython 3.8 and later parse literals, True, False
+     * and None as Constant, which ast2json.py doesn't convert, and give
+     * parameters other ends.
+     */
+    @NotNull
+    private static List<String> names(@NotNull Node tree) {
+        List<String> names = new ArrayList<>();
+        for (Node n : preorder(tree)) {
+            if (n instanceof Name && !CONSTANTS.contains(((Name) n).id)) {
+                names.add(((Name) n).id + "@" + n.start);
+            }
+        }
+        return names;
+    }
+
+
+    @NotNull
+    private static List<Node> preorder(@NotNull Node tree) {
+        final List<Node> nodes = new ArrayList<>();
+        tree.visit(new GenericNodeVisitor() {
+            @Override
+            public boolean dispatch(Node n) {
+                nodes.add(n);
+                return true;
+            }
+        });
+        return nodes;
+    }
+
+
+    private static boolean runs(@NotNull String exe) {
+        try {
+            return new ProcessBuilder(exe, "--version").start().waitFor() == 0;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
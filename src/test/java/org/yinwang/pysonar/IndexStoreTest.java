@@ -0,0 +1,218 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Saves the analysis of tests/ with {@link IndexStore#write}, opens it again
+ * and checks that the store answers as the indexer did.
+ */
+public class IndexStoreTest {
+
+    @ClassRule
+    public static final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private static Indexer idx;
+    private static File file;
+
+
+    @BeforeClass
+    public static void analyze() throws Exception {
+        idx = new Indexer();
+        idx.loadFileRecursive(_.unifyPath(new File("tests")));
+        idx.finish();
+        file = new File(env.newFolder("store"), "tests.idx");
+        IndexStore.write(idx, file);
+    }
+
+
+    @AfterClass
+    public static void closeIndexer() {
+        idx.close();
+    }
+
+
+    @Test
+    public void savesEveryBinding() throws Exception {
+        Set<Binding> bindings = Collections.newSetFromMap(new IdentityHashMap<Binding, Boolean>());
+        for (List<Binding> bs : idx.getAllBindings().values()) {
+            bindings.addAll(bs);
+        }
+        for (List<Binding> bs : idx.getReferences().values()) {
+            bindings.addAll(bs);
+        }
+
+        List<String> expected = new ArrayList<>();
+        Set<String> qnames = new LinkedHashSet<>();
+        for (Binding b : bindings) {
+            List<String> defs = new ArrayList<>();
+            List<String> docs = new ArrayList<>();
+            for (Def def : b.getDefs()) {
+                defs.add(def.getFileOrUrl() + ":" + def.getStart() + "-" + def.getEnd());
+                if (def.docstring != null && !docs.contains(def.docstring)) {
+                    docs.add(def.docstring);
+                }
+            }
+            List<String> refs = new ArrayList<>();
+            for (Ref ref : b.getRefs()) {
+                if (idx.getReferences().containsKey(ref)) {
+                    refs.add(ref.getFile() + ":" + ref.start() + "-" + ref.end());
+                }
+            }
+            expected.add(describe(b.getQname(), b.getName(), b.getKind(), b.getType().toString(), defs, docs, refs));
+            qnames.add(b.getQname());
+        }
+
+        IndexStore store = IndexStore.open(file);
+        try {
+            assertEquals(bindings.size(), store.getSymbolCount());
+            assertEquals(idx.getReferences().size(), store.getRefCount());
+
+            List<String> saved = new ArrayList<>();
+            for (String qname : qnames) {
+                for (IndexStore.Symbol s : store.getSymbols(qname)) {
+                    List<String> defs = new ArrayList<>();
+                    for (IndexStore.Location loc : s.getDefs()) {
+                        defs.add(describe(loc));
+                    }
+                    List<String> refs = new ArrayList<>();
+                    for (IndexStore.Location loc : s.getRefs()) {
+                        refs.add(describe(loc));
+                    }
+                    saved.add(describe(s.getQname(), s.getName(), s.getKind(), s.getType(), defs,
+                            s.getDocstrings(), refs));
+                }
+            }
+            Collections.sort(expected);
+            Collections.sort(saved);
+            assertEquals(expected, saved);
+            assertEquals(Collections.emptyList(), store.getSymbols("no.such.qname"));
+        }
+        finally {
+            store.close();
+        }
+    }
+
+
+    @Test
+    public void answersLookupsAsThePositionIndex() throws Exception {
+        PositionIndex index = idx.getPositionIndex();
+        IndexStore store = IndexStore.open(file);
+        try {
+            int found = 0;
+            for (String path : idx.getLoadedFiles()) {
+                int length = _.readFile(path).length();
+                for (int offset = -1; offset <= length + 1; offset++) {
+                    List<String> expected = describeSpans(index.lookupAt(path, offset));
+                    assertEquals(path + ":" + offset, expected, describeStored(store.lookupAt(path, offset)));
+                    found += expected.size();
+                }
+                assertEquals(path, describeSpans(index.rangeQuery(path, 0, length)),
+                        describeStored(store.rangeQuery(path, 0, length)));
+            }
+            assertTrue(found > 0);
+        }
+        finally {
+            store.close();
+        }
+    }
+
+
+    @Test
+    public void savesTheProblems() throws Exception {
+        IndexStore store = IndexStore.open(file);
+        try {
+            Set<String> paths = new LinkedHashSet<>(idx.parseErrors.keySet());
+            paths.addAll(idx.semanticErrors.keySet());
+            assertFalse(paths.isEmpty());
+            assertTrue(store.getFiles().containsAll(paths));
+
+            for (String path : paths) {
+                List<String> expected = new ArrayList<>();
+                for (Map<String, List<Diagnostic>> m : Arrays.asList(idx.parseErrors, idx.semanticErrors)) {
+                    if (m.containsKey(path)) {
+                        expected.addAll(describeDiagnostics(m.get(path)));
+                    }
+                }
+                assertEquals(path, expected, describeDiagnostics(store.getDiagnostics(path)));
+            }
+            assertEquals(Collections.emptyList(), store.getDiagnostics("/no/such/file.py"));
+        }
+        finally {
+            store.close();
+        }
+    }
+
+
+    @NotNull
+    private static String describe(@NotNull String qname, @NotNull String name, @NotNull Binding.Kind kind,
+                                   @NotNull String type, @NotNull List<String> defs, @NotNull List<String> docs,
+                                   @NotNull List<String> refs)
+    {
+        Collections.sort(defs);
+        Collections.sort(refs);
+        return qname + " " + name + " " + kind + " " + type + " defs " + defs + " docs " + docs + " refs " + refs;
+    }
+
+
+    @NotNull
+    private static String describe(@NotNull IndexStore.Location loc) {
+        return (loc.getFile() != null ? loc.getFile() : loc.getURL()) + ":" + loc.getStart() + "-" + loc.getEnd();
+    }
+
+
+    @NotNull
+    private static List<String> describeSpans(@NotNull List<PositionIndex.Span> spans) {
+        List<String> found = new ArrayList<>();
+        for (PositionIndex.Span span : spans) {
+            List<String> qnames = new ArrayList<>();
+            for (Binding b : span.getBindings()) {
+                qnames.add(b.getQname() + " " + b.getKind());
+            }
+            found.add(span.getStart() + "-" + span.getEnd() + " " + span.isDef() + " " + qnames);
+        }
+        return found;
+    }
+
+
+    @NotNull
+    private static List<String> describeStored(@NotNull List<IndexStore.Span> spans) {
+        List<String> found = new ArrayList<>();
+        for (IndexStore.Span span : spans) {
+            List<String> qnames = new ArrayList<>();
+            for (IndexStore.Symbol s : span.getSymbols()) {
+                qnames.add(s.getQname() + " " + s.getKind());
+            }
+            found.add(span.getStart() + "-" + span.getEnd() + " " + span.isDef() + " " + qnames);
+        }
+        return found;
+    }
+
+
+    @NotNull
+    private static List<String> describeDiagnostics(@NotNull List<Diagnostic> diags) {
+        List<String> found = new ArrayList<>();
+        for (Diagnostic d : diags) {
+            found.add(d.category + " " + d.start + "-" + d.end + " " + d.msg);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,73 @@
+package org.yinwang.pysonar;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks the symbols and references {@link JSONDump} writes for tests/, which
+ * tools read by their paths and offsets.
+ */
+public class JSONDumpTest {
+
+    @ClassRule
+    public static final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private static String testsDir;
+    private static JsonNode syms;
+    private static JsonNode refs;
+
+
+    @BeforeClass
+    public static void dump() throws Exception {
+        testsDir = _.unifyPath(new File("tests"));
+        String out = new File(env.newFolder("dump"), "tests").getPath();
+        JSONDump.main(new String[]{testsDir, "", out});
+
+        ObjectMapper mapper = new ObjectMapper();
+        syms = mapper.readTree(new File(out + "-sym"));
+        refs = mapper.readTree(new File(out + "-ref"));
+    }
+
+
+    // from a.b.mod_b import * binds the names of mod_b, but not a
+    @Test
+    public void importFromDoesNotBindPackage() {
+        String file = testsDir + "/import3.py";
+        for (JsonNode sym : syms) {
+            assertFalse(sym.get("path").asText(), sym.get("path").asText().startsWith(testsDir + "/import3/a"));
+        }
+
+        List<String> found = new ArrayList<>();
+        for (JsonNode ref : refsIn(file)) {
+            found.add(ref.get("start").asInt() + " " + ref.get("sym").asText());
+        }
+        assertFalse(found.contains("5 " + testsDir + "/import3/a"));
+        assertTrue(found.contains("25 " + testsDir + "/a/b/mod_b/fun_b"));
+    }
+
+
+    @NotNull
+    private static List<JsonNode> refsIn(@NotNull String file) {
+        List<JsonNode> found = new ArrayList<>();
+        for (JsonNode ref : refs) {
+            if (ref.get("file").asText().equals(file)) {
+                found.add(ref);
+            }
+        }
+        assertFalse(found.isEmpty());
+        return found;
+    }
+}
@@ -0,0 +1,170 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Summarizes a library, reads the summary back and analyzes a program that
+ * uses the library with it, which must find what analyzing the library's
+ * source finds, as long as the source is unchanged.
+ */
+public class LibrarySummaryTest {
+
+    private static final String LIBRARY =
+            "class Point:\n" +
+            "    \"\"\"A point.\"\"\"\n" +
+            "    def __init__(self, x):\n" +
+            "        self.x = x\n" +
+            "\n" +
+            "    def norm(self):\n" +
+            "        return self.x\n" +
+            "\n" +
+            "def make(v):\n" +
+            "    \"\"\"Makes a point.\"\"\"\n" +
+            "    return Point(v)\n";
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private File lib;
+    private File app;
+    private File summary;
+
+
+    @Before
+    public void writeSources() throws IOException {
+        lib = env.newFolder("lib");
+        app = env.newFolder("app");
+        write(new File(lib, "mylib.py"), LIBRARY);
+        write(new File(app, "main.py"), "import mylib\np = mylib.make(1)\nn = p.norm()\ns = mylib.Point('s')\n");
+        summary = new File(env.newFolder("summary"), "mylib.summary");
+    }
+
+
+    @Test
+    public void analyzesAsTheSource() throws IOException {
+        String library = _.unifyPath(new File(lib, "mylib.py"));
+        Indexer idx = newIndexer(null);
+        List<String> fromSource;
+        try {
+            assertTrue(idx.getLoadedFiles().contains(library));
+            assertEquals(1, LibrarySummary.write(idx, Collections.singletonList(library), summary));
+            fromSource = describe(idx);
+        }
+        finally {
+            idx.close();
+        }
+
+        LibrarySummary read = LibrarySummary.read(summary);
+        assertEquals(Collections.singleton(library), read.getFiles());
+        idx = newIndexer(read);
+        try {
+            assertEquals(Collections.singletonList(library), idx.summarizedFiles);
+            assertFalse(idx.getLoadedFiles().contains(library));
+            assertEquals(fromSource, describe(idx));
+        }
+        finally {
+            idx.close();
+        }
+    }
+
+
+    @Test
+    public void analyzesAChangedLibrary() throws IOException {
+        String library = _.unifyPath(new File(lib, "mylib.py"));
+        Indexer idx = newIndexer(null);
+        try {
+            LibrarySummary.write(idx, Collections.singletonList(library), summary);
+        }
+        finally {
+            idx.close();
+        }
+
+        write(new File(lib, "mylib.py"), LIBRARY + "\ndef added():\n    return 1\n");
+        idx = newIndexer(LibrarySummary.read(summary));
+        try {
+            assertTrue(idx.summarizedFiles.isEmpty());
+            assertTrue(idx.getLoadedFiles().contains(library));
+            boolean found = false;
+            for (String qname : idx.getAllBindings().keySet()) {
+                found |= qname.endsWith("mylib.added");
+            }
+            assertTrue(found);
+        }
+        finally {
+            idx.close();
+        }
+    }
+
+
+    @NotNull
+    private Indexer newIndexer(LibrarySummary summary) {
+        Indexer idx = new Indexer();
+        idx.addPath(lib.getPath());
+        if (summary != null) {
+            idx.addSummary(summary);
+        }
+        idx.loadFileRecursive(app.getPath());
+        idx.finish();
+        return idx;
+    }
+
+
+    // the bindings and references of the program, and what they refer to in the library
+    @NotNull
+    private List<String> describe(@NotNull Indexer idx) {
+        String main = _.unifyPath(new File(app, "main.py"));
+        List<String> found = new ArrayList<>();
+        for (List<Binding> bindings : idx.getAllBindings().values()) {
+            for (Binding b : bindings) {
+                for (Def def : b.getDefs()) {
+                    if (main.equals(def.getFile())) {
+                        found.add("DEF " + b.getQname() + " " + b.getKind() + " " + def.getStart() + " " + b.getType());
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Ref, List<Binding>> e : idx.getReferences().entrySet()) {
+            if (main.equals(e.getKey().getFile())) {
+                for (Binding b : e.getValue()) {
+                    List<String> defs = new ArrayList<>();
+                    for (Def def : b.getDefs()) {
+                        defs.add(def.getFileOrUrl() + ":" + def.getStart() + " " + def.docstring);
+                    }
+                    Collections.sort(defs);
+                    found.add("REF " + e.getKey().start() + " " + b.getQname() + " " + b.getKind() + " " +
+                            b.getType() + " " + defs);
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+
+    private static void write(@NotNull File file, @NotNull String source) throws IOException {
+        Writer w = new FileWriter(file);
+        try {
+            w.write(source);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Analyzes a small tree on several threads, whose results must not depend on
+ * the number of threads and must allow the indexer to go on updating files.
+ */
+public class ParallelAnalysisTest {
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private File root;
+
+
+    @Before
+    public void writeTree() throws IOException {
+        root = env.newFolder("tree");
+        write("a.py", "def f(x):\n    return x\n");
+        write("b.py", "import a\ny = a.f(1)\n");
+        write("c.py", "z = lambda q: q\n");
+        write("d.py", "class C:\n    def m(self):\n        return 'd'\n");
+    }
+
+
+    @Test
+    public void sameResultsOnAnyNumberOfThreads() {
+        List<String> two = analyze(2);
+        assertEquals(two, analyze(3));
+        String lambda = "DEF " + _.moduleQname(path("c.py")) + ".lambda%4 FUNCTION";
+        for (String found : two) {
+            if (found.startsWith(lambda)) {
+                return;
+            }
+        }
+        fail("no " + lambda + " in " + two);
+    }
+
+
+    @Test
+    public void updatesAfterParallelAnalysis() throws IOException {
+        env.setProperty("pysonar.threads", "2");
+        Indexer idx = new Indexer();
+        List<String> updated;
+        try {
+            idx.loadFileRecursive(root.getPath());
+            idx.finish();
+            assertTrue(idx.isAnalyzedInParallel());
+
+            write("a.py", "def f(x):\n    return str(x)\n");
+            List<String> redone = idx.update(Arrays.asList(path("a.py")));
+            assertTrue(redone.contains(path("b.py")));
+            updated = describe(idx);
+        }
+        finally {
+            idx.close();
+        }
+
+        // an update adds the bindings it makes after the others
+        List<String> fresh = analyze(2);
+        Collections.sort(fresh);
+        Collections.sort(updated);
+        assertEquals(fresh, updated);
+    }
+
+
+    // the definitions and references of a fresh analysis of the tree, in order
+    @NotNull
+    private List<String> analyze(int threads) {
+        env.setProperty("pysonar.threads", String.valueOf(threads));
+        Indexer idx = new Indexer();
+        try {
+            idx.loadFileRecursive(root.getPath());
+            idx.finish();
+            return describe(idx);
+        }
+        finally {
+            idx.close();
+        }
+    }
+
+
+    @NotNull
+    private List<String> describe(@NotNull Indexer idx) {
+        List<String> found = new ArrayList<>();
+        for (List<Binding> bindings : idx.getAllBindings().values()) {
+            for (Binding b : bindings) {
+                for (Def def : b.getDefs()) {
+                    if (def.getFile() != null) {
+                        found.add("DEF " + b.getQname() + " " + b.getKind() + " " + def.getFile() + ":" +
+                                def.getStart() + " " + b.getType());
+                    }
+                }
+            }
+        }
+        List<String> refs = new ArrayList<>();
+        for (Map.Entry<Ref, List<Binding>> ent : idx.getReferences().entrySet()) {
+            Ref ref = ent.getKey();
+            if (ref.getFile() != null) {
+                refs.add("REF " + ref.getFile() + ":" + ref.start() + " " + ent.getValue().get(0).getQname());
+            }
+        }
+        // the reference table has no order of its own
+        Collections.sort(refs);
+        found.addAll(refs);
+        return found;
+    }
+
+
+    @NotNull
+    private String path(@NotNull String file) {
+        return _.unifyPath(new File(root, file));
+    }
+
+
+    private void write(@NotNull String file, @NotNull String source) throws IOException {
+        Writer w = new FileWriter(new File(root, file));
+        try {
+            w.write(source);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Looks up offsets and ranges in a {@link PositionIndex}, at the edges of the
+ * spans and against a scan of all references and definitions of tests/.
+ */
+public class PositionIndexTest {
+
+    private static final String FILE = "/src/a.py";
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+
+    @Test
+    public void findsSpansUpToTheirEnds() {
+        // abc at 10-13, and name at 25-29 inside long_name_x at 20-31
+        Map<Ref, List<Binding>> refs = new LinkedHashMap<>();
+        refs.put(new Ref(FILE, 20, "long_name_x"), Collections.<Binding>emptyList());
+        refs.put(new Ref(FILE, 10, "abc"), Collections.<Binding>emptyList());
+        refs.put(new Ref(FILE, 25, "name"), Collections.<Binding>emptyList());
+        PositionIndex index = new PositionIndex(refs, Collections.<List<Binding>>emptyList());
+
+        assertEquals(1, index.getFileCount());
+        assertEquals(Collections.emptyList(), starts(index.lookupAt(FILE, -1)));
+        assertEquals(Collections.emptyList(), starts(index.lookupAt(FILE, 9)));
+        assertEquals(Arrays.asList(10), starts(index.lookupAt(FILE, 10)));
+        assertEquals(Arrays.asList(10), starts(index.lookupAt(FILE, 12)));
+        assertEquals(Collections.emptyList(), starts(index.lookupAt(FILE, 13)));
+        assertEquals(Arrays.asList(20), starts(index.lookupAt(FILE, 24)));
+        assertEquals(Arrays.asList(25, 20), starts(index.lookupAt(FILE, 25)));
+        assertEquals(Arrays.asList(25, 20), starts(index.lookupAt(FILE, 28)));
+        assertEquals(Arrays.asList(20), starts(index.lookupAt(FILE, 29)));
+        assertEquals(Arrays.asList(20), starts(index.lookupAt(FILE, 30)));
+        assertEquals(Collections.emptyList(), starts(index.lookupAt(FILE, 31)));
+        assertEquals(Collections.emptyList(), starts(index.lookupAt("/src/b.py", 10)));
+
+        assertEquals(Collections.emptyList(), starts(index.rangeQuery(FILE, 0, 10)));
+        assertEquals(Arrays.asList(10), starts(index.rangeQuery(FILE, 0, 11)));
+        assertEquals(Arrays.asList(10), starts(index.rangeQuery(FILE, 12, 13)));
+        assertEquals(Collections.emptyList(), starts(index.rangeQuery(FILE, 13, 20)));
+        assertEquals(Arrays.asList(20, 25), starts(index.rangeQuery(FILE, 28, 29)));
+        assertEquals(Arrays.asList(20), starts(index.rangeQuery(FILE, 30, 40)));
+        assertEquals(Arrays.asList(10, 20, 25), starts(index.rangeQuery(FILE, 0, 100)));
+        assertEquals(Collections.emptyList(), starts(index.rangeQuery(FILE, 12, 12)));
+        assertEquals(Collections.emptyList(), starts(index.rangeQuery(FILE, 12, 11)));
+    }
+
+
+    @Test
+    public void agreesWithAScanOfTheAnalysis() throws Exception {
+        Indexer idx = new Indexer();
+        try {
+            idx.loadFileRecursive(_.unifyPath(new File("tests")));
+            idx.finish();
+            PositionIndex index = idx.getPositionIndex();
+
+            // the same Def can be in more than one binding, and equal Defs in different ones
+            Set<Object> all = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            all.addAll(idx.getReferences().keySet());
+            for (List<Binding> bs : idx.getAllBindings().values()) {
+                for (Binding b : bs) {
+                    all.addAll(b.getDefs());
+                }
+            }
+
+            int found = 0;
+            for (String file : idx.getLoadedFiles()) {
+                int length = _.readFile(file).length();
+                for (int offset = -1; offset <= length + 1; offset++) {
+                    List<PositionIndex.Span> spans = index.lookupAt(file, offset);
+                    assertEquals(file + ":" + offset, scan(all, file, offset, offset + 1), describe(spans));
+                    for (PositionIndex.Span span : spans) {
+                        assertFalse(span.getBindings().isEmpty());
+                        found++;
+                    }
+                }
+                assertEquals(file, scan(all, file, 0, length), sorted(describe(index.rangeQuery(file, 0, length))));
+            }
+            assertTrue(found > 0);
+        }
+        finally {
+            idx.close();
+        }
+    }
+
+
+    // the spans in file that overlap start to end, by what they are
+    @NotNull
+    private static List<String> scan(@NotNull Set<Object> all, @NotNull String file, int start, int end) {
+        List<String> found = new ArrayList<>();
+        for (Object item : all) {
+            if (item instanceof Ref) {
+                Ref ref = (Ref) item;
+                if (file.equals(ref.getFile()) && ref.length() > 0 && ref.start() < end && ref.end() > start) {
+                    found.add(ref.start() + "-" + ref.end() + " " + ref);
+                }
+            } else {
+                Def def = (Def) item;
+                if (file.equals(def.getFile()) && def.getStart() >= 0 && def.getEnd() > def.getStart() &&
+                        def.getStart() < end && def.getEnd() > start)
+                {
+                    found.add(def.getStart() + "-" + def.getEnd() + " " + def);
+                }
+            }
+        }
+        return sorted(found);
+    }
+
+
+    @NotNull
+    private static List<String> describe(@NotNull List<PositionIndex.Span> spans) {
+        List<String> found = new ArrayList<>();
+        for (PositionIndex.Span span : spans) {
+            Object item = span.isDef() ? span.getDef() : span.getRef();
+            found.add(span.getStart() + "-" + span.getEnd() + " " + item);
+        }
+        return sorted(found);
+    }
+
+
+    @NotNull
+    private static List<String> sorted(@NotNull List<String> found) {
+        Collections.sort(found);
+        return found;
+    }
+
+
+    @NotNull
+    private static List<Integer> starts(@NotNull List<PositionIndex.Span> spans) {
+        List<Integer> starts = new ArrayList<>();
+        for (PositionIndex.Span span : spans) {
+            starts.add(span.getStart());
+        }
+        return starts;
+    }
+}
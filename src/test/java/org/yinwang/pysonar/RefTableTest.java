@@ -0,0 +1,168 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.yinwang.pysonar.ast.Block;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Name;
+import org.yinwang.pysonar.ast.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Runs the same random puts, lookups and removals on a {@link RefTable} and on
+ * the {@code LinkedHashMap} that held the references before it, and checks
+ * that both have the same entries in the same order throughout.
+ */
+public class RefTableTest {
+
+    private static final String[] FILES = {"/src/a.py", "/src/b.py", "/src/c.py", null};
+
+    @Rule
+    public final AnalysisEnvironment env = new AnalysisEnvironment();
+
+    private Indexer idx;
+    private List<Binding> bindings;
+
+
+    @Before
+    public void createIndexer() {
+        idx = new Indexer();
+        bindings = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            bindings.add(new Binding("b" + i, null, idx.builtins.unknown, Binding.Kind.VARIABLE));
+        }
+    }
+
+
+    @After
+    public void closeIndexer() {
+        idx.close();
+    }
+
+
+    @Test
+    public void behavesAsTheMapItReplaced() {
+        Random random = new Random(42);
+        RefTable table = new RefTable();
+        Map<Ref, List<Binding>> map = new LinkedHashMap<>();
+
+        for (int round = 0; round < 20; round++) {
+            // enough new references each round for the table to grow
+            for (int i = 0; i < 500; i++) {
+                Node node = name(random);
+                Binding b = bindings.get(random.nextInt(bindings.size()));
+                Ref ref = table.put(node, b);
+                assertEquals(describe(putRef(map, node, b)), describe(ref));
+            }
+            for (int i = 0; i < 100; i++) {
+                Ref ref = ref(random);
+                assertEquals(map.containsKey(ref), table.containsKey(ref));
+                assertEquals(map.get(ref), table.get(ref));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        assertEquals(map.remove(ref), table.remove(ref));
+                        break;
+                    case 1:
+                        List<Binding> bs = Arrays.asList(bindings.get(0), bindings.get(random.nextInt(bindings.size())));
+                        assertEquals(map.put(ref, new ArrayList<>(bs)), table.put(ref, bs));
+                        break;
+                    default:
+                        List<Binding> one = Collections.singletonList(bindings.get(random.nextInt(bindings.size())));
+                        assertEquals(map.put(ref, new ArrayList<>(one)), table.put(ref, one));
+                }
+            }
+            int every = random.nextInt(7) + 2;
+            Iterator<Ref> it = table.keySet().iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                Ref ref = it.next();
+                if (i % every == 0) {
+                    it.remove();
+                    map.remove(ref);
+                }
+            }
+
+            assertEquals(map.size(), table.size());
+            assertEquals(describe(map), describe(table));
+        }
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(Collections.emptyList(), describe(table));
+    }
+
+
+    // Indexer.putRef before the RefTable
+    @NotNull
+    private static Ref putRef(@NotNull Map<Ref, List<Binding>> map, @NotNull Node node, @NotNull Binding b) {
+        Ref ref = new Ref(node);
+        List<Binding> bs = map.get(ref);
+        if (bs == null) {
+            bs = new ArrayList<>(1);
+            map.put(ref, bs);
+        }
+        if (!bs.contains(b)) {
+            bs.add(b);
+        }
+        return ref;
+    }
+
+
+    // a name at one of 2000 offsets in one of the files
+    @NotNull
+    private static Name name(@NotNull Random random) {
+        String file = FILES[random.nextInt(FILES.length)];
+        int start = random.nextInt(2000);
+        Name name = new Name("n" + start, start, start + 1);
+        if (file != null) {
+            Module module = new Module(new Block(Collections.<Node>emptyList(), 0, 0), 0, 0);
+            module.setFileAndMD5(file, "");
+            name.setParent(module);
+        }
+        return name;
+    }
+
+
+    // a ref that may or may not be in the table, including one in a file it hasn't seen
+    @NotNull
+    private static Ref ref(@NotNull Random random) {
+        if (random.nextInt(10) == 0) {
+            return new Ref("/src/unknown.py", random.nextInt(2000), "u");
+        }
+        Name name = name(random);
+        return new Ref(name);
+    }
+
+
+    @NotNull
+    private static List<String> describe(@NotNull Map<Ref, List<Binding>> refs) {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<Ref, List<Binding>> e : refs.entrySet()) {
+            StringBuilder sb = new StringBuilder(describe(e.getKey()));
+            for (Binding b : e.getValue()) {
+                sb.append(" ").append(b.getName());
+            }
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+
+    @NotNull
+    private static String describe(@NotNull Ref ref) {
+        return ref.getFile() + ":" + ref.start();
+    }
+}